@@ -18,15 +18,47 @@ import android.view.ViewGroup;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import com.nissha.android.things.sample.enocean.EnOceanMessage;
-import com.nissha.android.things.sample.enocean.EnOceanModule;
-import com.nissha.android.things.sample.enocean.EnOceanSensorData;
+import com.nissha.android.things.sample.capture.TelegramCapture;
+import com.nissha.android.things.sample.data.HistoryPosition;
+import com.nissha.android.things.sample.data.SensorCheckpoint;
+import com.nissha.android.things.sample.data.SensorHistory;
+import com.nissha.android.things.sample.data.SensorHistoryFile;
+import com.nissha.android.things.sample.data.SensorHistoryServer;
+import com.nissha.android.things.sample.data.SensorSampleRing;
+import com.nissha.android.things.sample.data.SensorStateTable;
+import com.nissha.android.things.sample.decode.AnomalyDetector;
+import com.nissha.android.things.sample.decode.SenderStats;
+import com.nissha.android.things.sample.decode.ShardedDecoder;
+import com.nissha.android.things.sample.enocean.A50904;
+import com.nissha.android.things.sample.enocean.CommonCommand;
+import com.nissha.android.things.sample.enocean.EEP;
+import com.nissha.android.things.sample.enocean.EEPCatalog;
+import com.nissha.android.things.sample.enocean.ESP3;
+import com.nissha.android.things.sample.enocean.LazyCO2SensorData;
+import com.nissha.android.things.sample.stream.ISubscriber;
+import com.nissha.android.things.sample.stream.ISubscription;
+import com.nissha.android.things.sample.stream.SensorSample;
+import com.nissha.android.things.sample.stream.StreamPublisher;
+import com.nissha.android.things.sample.stream.TelegramStream;
+import com.nissha.android.things.sample.uplink.TcpUplinkTransport;
+import com.nissha.android.things.sample.uplink.UplinkPipeline;
+import com.nissha.android.things.sample.uplink.UplinkSpool;
+import com.nissha.android.things.sample.usb.ESP3CommandChannel;
 import com.nissha.android.things.sample.usb.USBManager;
+import com.nissha.android.things.sample.util.StartupTrace;
+import com.nissha.android.things.sample.util.TimeLabelFormatter;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import lecho.lib.hellocharts.formatter.SimpleAxisValueFormatter;
 import lecho.lib.hellocharts.model.Axis;
@@ -41,28 +73,274 @@ public class MainActivity extends Activity implements USBManager.IUSBDataListene
 
     private static final String TAG = MainActivity.class.getSimpleName();
 
+    /**
+     * 受信データの保存ファイル名.
+     */
+    private static final String HISTORY_FILE_NAME = "sensor_history.bin";
+
+    /**
+     * 履歴ファイルの最大レコード数(超えた分は1世代だけ "ファイル名.1" に残す).
+     */
+    private static final long HISTORY_MAX_RECORDS = 1000000;
+
+    /**
+     * メモリ上の状態のチェックポイントファイル名.
+     */
+    private static final String CHECKPOINT_FILE_NAME = "sensor_state.ckpt";
+
+    /**
+     * チェックポイントの保存間隔.
+     */
+    private static final long CHECKPOINT_INTERVAL_MS = 60 * 1000;
+
+    /**
+     * 履歴検索用HTTPエンドポイントを有効にするか.
+     */
+    private static final boolean ENABLE_HISTORY_SERVER = false;
+
+    /**
+     * 履歴検索用HTTPエンドポイントのポート番号.
+     */
+    private static final int HISTORY_SERVER_PORT = 8080;
+
+    /**
+     * 受信フレームのキャプチャを有効にするか.
+     */
+    private static final boolean ENABLE_CAPTURE = false;
+
+    private static final String CAPTURE_FILE_NAME = "telegram.ecap";
+
+    private static final int CAPTURE_RING_SIZE = 1024;
+
+    private static final long CAPTURE_MAX_BYTES = 64 * 1024 * 1024;
+
+    /**
+     * 集約サーバーへの転送を有効にするか.
+     */
+    private static final boolean ENABLE_UPLINK = false;
+
+    private static final String UPLINK_HOST = "192.168.0.10";
+
+    private static final int UPLINK_PORT = 5000;
+
+    /**
+     * 転送バッチの最大件数と最大待ち時間.
+     */
+    private static final int UPLINK_BATCH_SIZE = 500;
+
+    private static final long UPLINK_MAX_DELAY_MS = 5000;
+
+    /**
+     * リンク断の間にスプールする最大サイズ.
+     */
+    private static final long UPLINK_SPOOL_MAX_BYTES = 16 * 1024 * 1024;
+
     private USBManager mUSBManager;
 
     private TextView mTextView;
 
     private LineChartFragment mLineChartFragment;
 
+    /**
+     * 起動処理の段階ごとの時間.
+     */
+    private StartupTrace mStartupTrace;
+
+    private volatile boolean mReceivedFirstTelegram;
+
+    private boolean mOpenedFirstDevice;
+
+    /**
+     * USBデバイスのオープン用(UIスレッドを待たせない).
+     */
+    private final ExecutorService mUsbExecutor = Executors.newSingleThreadExecutor();
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        mStartupTrace = new StartupTrace();
+
         super.onCreate(savedInstanceState);
 //        setContentView(R.layout.activity_main);
         setContentView(R.layout.activity_main2);
 
+        mHandler = new Handler(Looper.getMainLooper());
+
+        mHistory = new SensorHistory(mSampleRing,
+                new SensorHistoryFile(new File(getFilesDir(), HISTORY_FILE_NAME), HISTORY_MAX_RECORDS));
+
+        if (ENABLE_HISTORY_SERVER) {
+            mHistoryServer = new SensorHistoryServer(mHistory, HISTORY_SERVER_PORT);
+        }
+        if (ENABLE_CAPTURE) {
+            mCapture = new TelegramCapture(new File(getFilesDir(), CAPTURE_FILE_NAME),
+                    CAPTURE_RING_SIZE, CAPTURE_MAX_BYTES);
+            try {
+                mCapture.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+                mCapture = null;
+            }
+        }
+        if (ENABLE_UPLINK) {
+            mUplink = new UplinkPipeline(
+                    new UplinkSpool(new File(getFilesDir(), "uplink"), UPLINK_SPOOL_MAX_BYTES),
+                    new TcpUplinkTransport(UPLINK_HOST, UPLINK_PORT),
+                    UPLINK_BATCH_SIZE, UPLINK_MAX_DELAY_MS);
+            mUplink.start();
+        }
+
+        mCheckpoint = new SensorCheckpoint(new File(getFilesDir(), CHECKPOINT_FILE_NAME),
+                SAMPLE_CAPACITY, MAX_SENSORS);
+
+        // 受信処理より先に起動時点のレコード数を確定させ, 復元と受信が重ならないようにする
+        final HistoryPosition restorePosition = new HistoryPosition();
+        mHistory.getFile().getPosition(restorePosition);
+
+        mDecoder = new ShardedDecoder(MAX_SENSORS, mDecodeListener);
+        mDecoder.start();
+
+        // ドングルのオープンと受信開始は画面の準備を待たずに行う
         mUSBManager = new USBManager(this);
         mUSBManager.setListener(this);
+        openDeviceAsync();
 
-        mHandler = new Handler(Looper.getMainLooper());
+        // 変換テーブルの生成と履歴の復元はバックグラウンドで行う
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                EEPCatalog.compileAll();
+                A50904.getHumidity(0);
+                mStartupTrace.mark("decoder tables");
+
+                boolean loaded = mCheckpoint.load();
+                mStartupTrace.mark("checkpoint " + (loaded ? "loaded" : "not found"));
+                try {
+                    int restored = mHistory.restore(restorePosition, mStateTable, loaded ? mCheckpoint : null);
+                    mStartupTrace.mark("history restored (" + restored + ")");
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                if (loaded) {
+                    // チェックポイント保存後に履歴へ追加された分も集計に加える
+                    try {
+                        int added = mCheckpoint.addHistoryTail(mHistory.getFile(), restorePosition);
+                        mStartupTrace.mark("stats tail added (" + added + ")");
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    for (SenderStats stats : mCheckpoint.getStats()) {
+                        mDecoder.restoreStats(stats);
+                    }
+                }
+
+                // 復元が終わるまでは保存しない(復元前の状態で上書きしないため)
+                mRestored = true;
+                synchronized (mCheckpointExecutor) {
+                    // 復元中に終了した場合は開始しない
+                    if (!mCheckpointExecutor.isShutdown()) {
+                        mCheckpointExecutor.scheduleWithFixedDelay(mCheckpointRunner,
+                                CHECKPOINT_INTERVAL_MS, CHECKPOINT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                    }
+                }
+
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mLineChartFragment != null) {
+                            mLineChartFragment.setData(mSampleRing, mStateTable);
+                        }
+                    }
+                });
+            }
+        }, "Startup").start();
 
 //        mTextView = (TextView) findViewById(R.id.text_sensor_data);
 
         // グラフ表示用のレイアウト（Fragment）を生成して配置
         mLineChartFragment = new LineChartFragment();
         getFragmentManager().beginTransaction().add(R.id.view_holder, mLineChartFragment).commit();
+
+        // グラフは最新の受信データのみUIスレッドで受け取る(未処理の更新はまとめられる)
+        mStream.samples().subscribe(new ISubscriber<SensorSample>() {
+            @Override
+            public void onSubscribe(ISubscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(SensorSample item) {
+                // グラフは履歴から描くため, 受け取ったサンプルは直ちにプールへ戻す
+                item.release();
+
+                // 受信したデータを渡してグラフを更新
+                mLineChartFragment.setData(mSampleRing, mStateTable);
+                mStartupTrace.markFirstReading();
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                throwable.printStackTrace();
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        }, StreamPublisher.MODE_LATEST, 0, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                mHandler.post(command);
+            }
+        });
+
+        mStartupTrace.mark("ui");
+    }
+
+    /**
+     * バックグラウンドでUSBデバイスと接続する.
+     */
+    private void openDeviceAsync() {
+        mUsbExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mUSBManager.openDevice() && !mOpenedFirstDevice) {
+                    mOpenedFirstDevice = true;
+                    mStartupTrace.mark("usb open");
+                    readDongleInfo();
+                }
+            }
+        });
+    }
+
+    /**
+     * ドングル(TCM)のバージョンとベースIDを問い合わせてログに出力する.
+     */
+    private void readDongleInfo() {
+        ESP3CommandChannel channel = mUSBManager.getCommandChannel();
+        if (channel == null) {
+            return;
+        }
+        ESP3CommandChannel.ICommandListener listener = new ESP3CommandChannel.ICommandListener() {
+            @Override
+            public void onResponse(ESP3CommandChannel.Command command, byte[] response, byte[] optional) {
+                if (CommonCommand.getReturnCode(response) != ESP3.RET_OK) {
+                    Log.w(TAG, "command failed : " + CommonCommand.getReturnCode(response));
+                    return;
+                }
+                if (command.getData()[0] == CommonCommand.CO_RD_VERSION) {
+                    Log.i(TAG, "TCM version : " + CommonCommand.getAppVersion(response)
+                            + " (" + CommonCommand.getAppDescription(response) + ")");
+                } else {
+                    Log.i(TAG, "TCM base ID : " + Integer.toHexString(CommonCommand.getIdBase(response)));
+                }
+            }
+
+            @Override
+            public void onFailure(ESP3CommandChannel.Command command, int reason) {
+                Log.w(TAG, "command failed : reason " + reason);
+            }
+        };
+        channel.sendCommonCommand(CommonCommand.readVersion(), CommonCommand.VERSION_RESPONSE_LEN, listener);
+        channel.sendCommonCommand(CommonCommand.readIdBase(), CommonCommand.IDBASE_RESPONSE_LEN, listener);
     }
 
     @Override
@@ -74,7 +352,19 @@ public class MainActivity extends Activity implements USBManager.IUSBDataListene
         filter.addAction(UsbManager.ACTION_USB_DEVICE_DETACHED);
         registerReceiver(mUsbReceiver, filter);
 
-        mUSBManager.openDevice();
+        // 停止中に変更されていた場合に備えて, 再開時にも取得し直す
+        TimeLabelFormatter.onTimeZoneChanged();
+        registerReceiver(mTimeZoneReceiver, new IntentFilter(Intent.ACTION_TIMEZONE_CHANGED));
+
+        openDeviceAsync();
+
+        if (mHistoryServer != null) {
+            try {
+                mHistoryServer.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
     }
 
     @Override
@@ -82,71 +372,361 @@ public class MainActivity extends Activity implements USBManager.IUSBDataListene
         super.onStop();
 
         unregisterReceiver(mUsbReceiver);
+        unregisterReceiver(mTimeZoneReceiver);
+
+        if (mHistoryServer != null) {
+            mHistoryServer.stop();
+        }
+
+        try {
+            mHistory.getFile().flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        mCheckpointExecutor.execute(mCheckpointRunner);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+
+        mUsbExecutor.shutdown();
+
+        synchronized (mCheckpointExecutor) {
+            mCheckpointExecutor.shutdown();
+        }
+
+        mDecoder.stop();
+
+        mStream.complete();
+
+        if (mCapture != null) {
+            mCapture.stop();
+        }
+
+        if (mUplink != null) {
+            mUplink.stop();
+        }
     }
 
     // --------------------------------
 
     private Handler mHandler;
 
-    private List<EnOceanSensorData> mSensorDataList = new ArrayList<>();
+    /**
+     * 受信データの保持件数.
+     */
+    private static final int SAMPLE_CAPACITY = 4096;
 
-    @Override
-    public void onReceivedData(byte[] data) {
-        // データ受信したのでセンサーデータのパースする
+    /**
+     * 受信データ(生データのまま保持し, グラフ表示時に変換する).
+     */
+    private SensorSampleRing mSampleRing = new SensorSampleRing(SAMPLE_CAPACITY);
 
-        try {
+    /**
+     * 管理するセンサーの最大数.
+     */
+    private static final int MAX_SENSORS = 256;
 
-            final EnOceanMessage enOceanMessage = new EnOceanMessage(data);
+    /**
+     * センサーごとの最新値.
+     */
+    private SensorStateTable mStateTable = new SensorStateTable(MAX_SENSORS);
 
-            final EnOceanModule enOceanModule = enOceanMessage.getEnOceanModule(this);
+    /**
+     * 受信データの履歴(メモリ + ファイル).
+     */
+    private SensorHistory mHistory;
 
-            if (enOceanModule != null) {
+    private SensorHistoryServer mHistoryServer;
 
-                final String sensorData = enOceanModule.toString();
+    /**
+     * 集約サーバーへの転送.
+     */
+    private UplinkPipeline mUplink;
 
-                Log.d(TAG, sensorData);
+    /**
+     * メモリ上の状態のチェックポイント.
+     */
+    private SensorCheckpoint mCheckpoint;
 
-                mSensorDataList.add(enOceanModule.getSensorData());
+    private volatile boolean mRestored;
 
-                mHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-//                        final String oldText = mTextView.getText().toString();
-//                        String newText = oldText + sensorData + "\n";
-//                        mTextView.setText(newText);
+    private final ScheduledExecutorService mCheckpointExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    private final Runnable mCheckpointRunner = new Runnable() {
+
+        private final List<SenderStats> mStats = new ArrayList<>();
+
+        @Override
+        public void run() {
+            if (!mRestored) {
+                return;
+            }
+            try {
+                long start = System.nanoTime();
+                mStats.clear();
+                mDecoder.getAllStats(mStats);
+                mCheckpoint.save(mHistory, mStateTable, mStats);
+                Log.i(TAG, "checkpoint saved : " + ((System.nanoTime() - start) / 1000000) + "ms"
+                        + ", decode latency avg " + (mDecoder.getAverageLatencyNanos() / 1000) + "us"
+                        + " max " + (mDecoder.getMaxLatencyNanos() / 1000) + "us"
+                        + ", anomalies " + mDecoder.getAnomalyCount()
+                        + ", usb stalls " + mUSBManager.getStallWatchdog().getStallCount()
+                        + " (recover max " + (mUSBManager.getStallWatchdog().getMaxRecoverNanos() / 1000000) + "ms)");
+            } catch (IOException e) {
+                e.printStackTrace();
+            } catch (InterruptedException e) {
+                Log.w(TAG, "checkpoint skipped : " + e.getMessage());
+            }
+        }
+    };
+
+    /**
+     * 受信フレームのキャプチャ.
+     */
+    private TelegramCapture mCapture;
+
+    /**
+     * 受信パイプラインの各段階の配信.
+     */
+    private final TelegramStream mStream = new TelegramStream();
 
-                        // 受信したデータリストを渡してグラフを更新
-                        mLineChartFragment.setData(mSensorDataList);
+    /**
+     * センサーごとにスレッドを振り分けて解析する.
+     */
+    private ShardedDecoder mDecoder;
+
+    @Override
+    public void onReceivedData(byte[] data, long receivedNanos) {
+        // 受信スレッドでは振り分けのみ行い, 解析は担当シャードのスレッドで行う
+        mStream.frames().publish(data);
+
+        if (!mDecoder.submit(data, receivedNanos)) {
+            Log.w(TAG, "decode queue is full. frame dropped.");
+            record(receivedNanos, TelegramCapture.RESULT_ERROR, data);
+        }
+    }
+
+    private final ShardedDecoder.IDecodeListener mDecodeListener = new ShardedDecoder.IDecodeListener() {
+        @Override
+        public void onDecoded(int shard, byte[] frame, long receivedNanos, EEP eep, int rssi, int anomalies) {
+            int result = TelegramCapture.RESULT_DECODED;
+
+            if (!mReceivedFirstTelegram) {
+                mReceivedFirstTelegram = true;
+                mStartupTrace.mark("first telegram");
+            }
+
+            try {
+                // 解析した時刻ではなく読み込んだ時刻を使う
+                final long time = mUSBManager.getReceiveClock().toWallMillis(receivedNanos);
+                final int senderId = eep.getSenderIdValue();
+                final int payload = eep.getPayloadWord();
+
+                if (AnomalyDetector.isExcluded(anomalies)) {
+                    // 異常値は履歴(グラフ・集計)に入れない(受信データはキャプチャに残る)
+                    // 最新状態は常に更新する(受信が続いていることを表示するため)
+                    mStateTable.update(senderId, time, payload, rssi);
+                    Log.w(TAG, "anomaly : " + eep.getSensorID() + " " + describeAnomalies(anomalies));
+                } else {
+                    // 状態表の更新通知を受けた購読者が履歴を読んだ時点で, 同じサンプルが履歴に入っているよう先に追加する
+                    final long sequence = mHistory.add(time, senderId, payload, rssi);
+                    mStateTable.update(senderId, time, payload, rssi);
+
+                    // 文字列の生成はログが有効な場合のみ行う
+                    if (Log.isLoggable(TAG, Log.DEBUG)) {
+                        Log.d(TAG, "received : " + eep.getSensorID() + " #" + sequence
+                                + ((anomalies != 0) ? (" " + describeAnomalies(anomalies)) : ""));
                     }
-                });
+                }
+
+                if (mUplink != null) {
+                    mUplink.offer(time, senderId, payload, rssi);
+                }
+
+                mStream.telegrams().publish(eep);
+                mStream.publishSample(time, senderId, payload, rssi);
+
+            } catch (Exception e) {
+                result = TelegramCapture.RESULT_ERROR;
+                e.printStackTrace();
             }
 
-        } catch (Exception e) {
-            e.printStackTrace();
+            record(receivedNanos, result, frame);
+        }
+
+        @Override
+        public void onDropped(int shard, byte[] frame, long receivedNanos, int reason) {
+            switch (reason) {
+                case ShardedDecoder.DROP_UNKNOWN_SENDER:
+                    record(receivedNanos, TelegramCapture.RESULT_UNKNOWN_SENDER, frame);
+                    break;
+                case ShardedDecoder.DROP_DUPLICATE:
+                case ShardedDecoder.DROP_FRAGMENT:
+                    record(receivedNanos, TelegramCapture.RESULT_DECODED, frame);
+                    break;
+                default:
+                    record(receivedNanos, TelegramCapture.RESULT_ERROR, frame);
+                    break;
+            }
+        }
+    };
+
+    /**
+     * 異常値のログ表示名(チャンネル順・FLAG_*のビット順).
+     */
+    private static final String[] ANOMALY_CHANNEL_NAMES = {"CO2", "TMP", "HUM"};
+
+    private static final String[] ANOMALY_FLAG_NAMES = {"spike", "stuck", "flat", "cross"};
+
+    /**
+     * 異常値の判定結果をログ用の文字列にする.
+     *
+     * @param anomalies 判定結果.
+     * @return 文字列(例: "CO2=stuck TMP=spike,cross").
+     */
+    private static String describeAnomalies(int anomalies) {
+        StringBuilder builder = new StringBuilder();
+        for (int channel = 0; channel < AnomalyDetector.CHANNELS; channel++) {
+            int flags = AnomalyDetector.getFlags(anomalies, channel);
+            if (flags == 0) {
+                continue;
+            }
+            if (builder.length() > 0) {
+                builder.append(' ');
+            }
+            builder.append(ANOMALY_CHANNEL_NAMES[channel]).append('=');
+            int start = builder.length();
+            for (int bit = 0; bit < ANOMALY_FLAG_NAMES.length; bit++) {
+                if ((flags & (1 << bit)) != 0) {
+                    if (builder.length() > start) {
+                        builder.append(',');
+                    }
+                    builder.append(ANOMALY_FLAG_NAMES[bit]);
+                }
+            }
         }
+        return builder.toString();
+    }
 
+    private void record(long receivedNanos, int result, byte[] frame) {
+        if (mCapture != null) {
+            mCapture.record(receivedNanos, mUSBManager.getDongleId(), result, frame, 0, frame.length);
+        }
     }
 
     // --------------------------------
 
     /**
      * グラフ表示用Fragment
+     * <p>
+     * センサーごとに系列(CO2濃度・温度・湿度の3本)を作り, 選択中のセンサーのみ表示する.
+     * 系列の色はセンサーごとに変え, 同じセンサーの3本は濃さで区別する.
+     * 系列は表示範囲(最新 {@value #VISIBLE_POINTS} 件)分だけ生成してキャッシュし,
+     * そのセンサーのデータを新たに受信した場合のみ作り直す.
      */
     public static class LineChartFragment extends Fragment {
 
-        private static int[] LINE_COLORS = {
+        /**
+         * センサーごとの色(初めて表示した順に割り当てる).
+         */
+        private static final int[] SENSOR_COLORS = {
                 Color.CYAN,
                 Color.YELLOW,
                 Color.GREEN,
                 Color.MAGENTA,
+                Color.RED,
+                Color.BLUE,
                 Color.BLACK
         };
 
+        /**
+         * 軸ごとの濃さ(CO2濃度・温度・湿度).
+         */
+        private static final int[] AXIS_ALPHAS = {0xFF, 0xA0, 0x60};
+
+        /**
+         * 1センサーあたりの表示件数.
+         */
+        private static final int VISIBLE_POINTS = 11;
+
+        /**
+         * センサー未選択時に表示するセンサー数.
+         */
+        private static final int DEFAULT_VISIBLE_SENSORS = 4;
+
+        /**
+         * X軸のラベル数.
+         */
+        private static final int AXIS_X_LABEL_NUM = 5;
+
+        private static final int AXIS_NUM = 3; // CO2濃度、温度、湿度の3軸
+
+        // 異なるレンジのデータを表示する場合(CO2濃度と温度とか)の
+        // データのスケーリング値
+        private static final int MAX_VALUE = 2550; // CO2の濃度最大値
+        private static final int MAX_VALUE2 = 100; // 温度・湿度の最大値
+        private static final int MIN_VALUE = 0;
+        private static final int MIN_VALUE2 = 0;
+        private static final float SCALE = (MAX_VALUE - MIN_VALUE) / MAX_VALUE2;
+        private static final float SUB = (MIN_VALUE2 * SCALE) / 2;
+
         private LineChartView mLineChartView;
 
-        private float mMinValue;
+        /**
+         * X軸の基準時刻(X座標 = 基準時刻からの秒数).
+         */
+        private long mBaseTime = -1;
+
+        /**
+         * 表示するセンサー(nullの場合は先頭から {@value #DEFAULT_VISIBLE_SENSORS} 件).
+         */
+        private int[] mVisibleSensors;
+
+        /**
+         * センサーごとの系列キャッシュ.
+         */
+        private final Map<Integer, SeriesModel> mSeriesCache = new HashMap<>();
+
+        private final long[] mTimes = new long[VISIBLE_POINTS];
+
+        private final int[] mPayloads = new int[VISIBLE_POINTS];
+
+        private final LazyCO2SensorData mSample = new LazyCO2SensorData();
+
+        private final int[] mSenderIds = new int[MAX_SENSORS];
+
+        /**
+         * センサー1台分の系列.
+         */
+        private static class SeriesModel {
+
+            /**
+             * 系列を作成した時点のセンサーの受信回数.
+             */
+            long mSequence = -1;
+
+            /**
+             * センサーの色.
+             */
+            final int mColor;
 
-        private float mMaxValue;
+            final List<Line> mLines = new ArrayList<>();
+
+            float mMinX;
+
+            float mMaxX;
+
+            float mMinY;
+
+            float mMaxY;
+
+            SeriesModel(int color) {
+                mColor = color;
+            }
+        }
 
         @Override
         public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
@@ -163,145 +743,192 @@ public class MainActivity extends Activity implements USBManager.IUSBDataListene
             }
         }
 
-        private void setViewPort(final long top, final long bottom, final long first, final long last) {
+        /**
+         * 表示するセンサーを選択する.
+         *
+         * @param senderIds センダーID(nullの場合は自動選択).
+         */
+        public void setVisibleSensors(int[] senderIds) {
+            mVisibleSensors = senderIds;
+        }
+
+        private void setViewPort(final float top, final float bottom, final float first, final float last) {
             Viewport viewport = new Viewport(mLineChartView.getMaximumViewport());
 
             // Viewの最大領域
             viewport.bottom = bottom;
             viewport.top = top;
-            viewport.left = 0;
+            viewport.left = first;
             viewport.right = last;
             mLineChartView.setMaximumViewport(viewport);
 
             // カレントの表示領域
-            viewport.left = first;
             mLineChartView.setCurrentViewport(viewport);
         }
 
-        public void setData(List<EnOceanSensorData> dataList) {
-            // 線グラフ用データ生成
-            final LineChartData lineChartData = createLineChartData(dataList);
+        /**
+         * 受信データからグラフを更新する.
+         *
+         * @param ring       受信データ.
+         * @param stateTable センサーごとの最新値.
+         */
+        public void setData(SensorSampleRing ring, SensorStateTable stateTable) {
+            if (mLineChartView == null) {
+                return;
+            }
 
-            // グラフにデータセット
-            mLineChartView.setLineChartData(lineChartData);
+            int[] senderIds = mVisibleSensors;
+            int sensorNum;
+            if (senderIds == null) {
+                senderIds = mSenderIds;
+                sensorNum = Math.min(stateTable.getSenderIds(mSenderIds), DEFAULT_VISIBLE_SENSORS);
+            } else {
+                sensorNum = senderIds.length;
+            }
 
-            // 表示領域設定
-            int dataNum = dataList.size();
-            long first = 0;
-            long last = dataNum - 1;
-            if (dataNum > 10) {
-                // カレントの表示エリアは10件に絞る
-                first = (last - 10);
+            List<Line> lines = new ArrayList<>();
+            float minX = Float.MAX_VALUE;
+            float maxX = -Float.MAX_VALUE;
+            float minY = 0;
+            float maxY = 0;
+
+            for (int index = 0; index < sensorNum; index++) {
+                SeriesModel model = getSeries(ring, stateTable, senderIds[index]);
+                if ((model == null) || model.mLines.isEmpty()) {
+                    continue;
+                }
+                lines.addAll(model.mLines);
+                minX = Math.min(minX, model.mMinX);
+                maxX = Math.max(maxX, model.mMaxX);
+                minY = Math.min(minY, model.mMinY);
+                maxY = Math.max(maxY, model.mMaxY);
+            }
+
+            if (lines.isEmpty()) {
+                return;
             }
 
-            int top = (int) (mMaxValue + 1);
-            int bottom = (int) (mMinValue - 1);
+            // グラフにデータセット
+            mLineChartView.setLineChartData(createLineChartData(lines, minX, maxX));
+
+            // 表示領域設定
+            int top = (int) (maxY + 1);
+            int bottom = (int) (minY - 1);
 
             int diff = (top - bottom);
             if (diff <= 0) {
                 top += (Math.abs(diff) + 5);
             }
+            if (maxX <= minX) {
+                maxX = minX + 1;
+            }
 
-            setViewPort(top, bottom, first, last);
+            setViewPort(top, bottom, minX, maxX);
         }
 
-        private LineChartData createLineChartData(List<EnOceanSensorData> dataList) {
-            if (dataList == null) {
+        /**
+         * センサーの系列を取得する. 前回作成後に新しいデータを受信していなければキャッシュを返す.
+         */
+        private SeriesModel getSeries(SensorSampleRing ring, SensorStateTable stateTable, int senderId) {
+            long sequence = stateTable.getSequence(senderId);
+            if (sequence == 0) {
                 return null;
             }
 
-            if (dataList.size() == 0) {
-                return null;
+            SeriesModel model = mSeriesCache.get(senderId);
+            if (model == null) {
+                model = new SeriesModel(SENSOR_COLORS[mSeriesCache.size() % SENSOR_COLORS.length]);
+                mSeriesCache.put(senderId, model);
             }
-
-            int dataNum = dataList.size();
-            int axisNum = 3; // CO2濃度、温度、湿度の3軸
-
-            Map<Integer, List<PointValue>> valueMap = new HashMap<>();
-            for (int axisIndex = 0; axisIndex < axisNum; axisIndex++) {
-                valueMap.put(axisIndex, new ArrayList<PointValue>());
+            if (model.mSequence == sequence) {
+                return model;
             }
 
-            List<AxisValue> axisValues = new ArrayList<>();
-
-            // 異なるレンジのデータを表示する場合(CO2濃度と温度とか)の
-            // データのスケーリング値
-            int maxValue = 2550; // CO2の濃度最大値
-            int maxValue2 = 100; // 温度・湿度の最大値
-            int minValue = 0;
-            int minValue2 = 0;
-            float scale = (maxValue - minValue) / maxValue2;
-            float sub = (minValue2 * scale) / 2;
+            // 表示範囲分(最新データ)だけ取り出して系列を作る
+            int count = ring.readLatest(senderId, mTimes, mPayloads);
+            if (mBaseTime < 0 && count > 0) {
+                mBaseTime = mTimes[count - 1];
+            }
 
-            // データをセットする
-            for (int index = 0; index < dataNum; index++) {
-                EnOceanSensorData data = dataList.get(index);
+            model.mSequence = sequence;
+            model.mLines.clear();
+            model.mMinX = Float.MAX_VALUE;
+            model.mMaxX = -Float.MAX_VALUE;
+            model.mMinY = 0;
+            model.mMaxY = 0;
 
-                for (int axisIndex = 0; axisIndex < axisNum; axisIndex++) {
+            for (int axisIndex = 0; axisIndex < AXIS_NUM; axisIndex++) {
+                List<PointValue> values = new ArrayList<>(count);
 
-                    float orgVal = (float) data.getValues(axisIndex);
+                // 古い順に並べる
+                for (int index = count - 1; index >= 0; index--) {
+                    float x = (mTimes[index] - mBaseTime) / 1000f;
+                    float orgVal = mSample.set(mTimes[index], senderId, mPayloads[index], 0).getValues(axisIndex);
                     float v = orgVal;
-                    if ((axisIndex != 0) && (scale != 1)) {
-                        v = (orgVal * scale) - sub;
+                    if ((axisIndex != 0) && (SCALE != 1)) {
+                        v = (orgVal * SCALE) - SUB;
                     }
 
+                    model.mMinX = Math.min(model.mMinX, x);
+                    model.mMaxX = Math.max(model.mMaxX, x);
+                    model.mMinY = Math.min(model.mMinY, v);
+                    model.mMaxY = Math.max(model.mMaxY, v);
 
-                    if (mMaxValue < v) {
-                        mMaxValue = v;
-                    }
-                    if (mMinValue > v) {
-                        mMinValue = v;
-                    }
-
-                    PointValue val = new PointValue(index, v);
+                    PointValue val = new PointValue(x, v);
                     // 表示用ラベルをセット
                     val.setLabel("" + orgVal);
-                    valueMap.get(axisIndex).add(val);
+                    values.add(val);
                 }
 
-                // X軸データに時間文字列を追加
-                final String dateLabel = data.getXDataLabel();
-                axisValues.add(new AxisValue(index).setLabel(dateLabel));
-            }
-
-            List<Line> lines = new ArrayList<>();
-
-            // データライン設定
-            for (int axisIndex = 0; axisIndex < axisNum; axisIndex++) {
-                List<PointValue> values = valueMap.get(axisIndex);
                 Line line = new Line(values);
 
-                int color = Color.BLACK;
-                if (axisIndex < LINE_COLORS.length) {
-                    color = LINE_COLORS[axisIndex];
-                }
+                int color = Color.argb(AXIS_ALPHAS[axisIndex], Color.red(model.mColor), Color.green(model.mColor),
+                        Color.blue(model.mColor));
                 line.setHasLabels(true);
                 line.setColor(color);
                 line.setPointRadius(0);
-                lines.add(line);
+                model.mLines.add(line);
             }
 
+            return model;
+        }
+
+        /**
+         * 線グラフ用データを生成する.
+         *
+         * @param lines 表示する系列.
+         * @param minX  表示領域の左端.
+         * @param maxX  表示領域の右端.
+         * @return 線グラフ用データ.
+         */
+        private LineChartData createLineChartData(List<Line> lines, float minX, float maxX) {
             LineChartData data = new LineChartData(lines);
 
-            // X軸設定
+            // X軸設定(表示領域内の目盛りのみラベルを作る)
+            List<AxisValue> axisValues = new ArrayList<>();
+            float step = (maxX - minX) / (AXIS_X_LABEL_NUM - 1);
+            for (int index = 0; index < AXIS_X_LABEL_NUM; index++) {
+                float x = minX + (step * index);
+                String label = TimeLabelFormatter.format(mBaseTime + (long) (x * 1000));
+                axisValues.add(new AxisValue(x).setLabel(label));
+                if (step <= 0) {
+                    break;
+                }
+            }
             Axis axisX = new Axis(axisValues);
             axisX.setName("時間");
             axisX.setTextColor(Color.BLACK);
             data.setAxisXBottom(axisX);
 
-            // Y軸設定
-            int axisYColor = Color.BLACK;
-            if (scale != 1) {
-                axisYColor = LINE_COLORS[0];
-            }
+            // Y軸設定(系列の色はセンサーごとのため, 軸は色分けしない)
             Axis axisY = new Axis().setHasLines(true).setName("データ")
-                    .setHasTiltedLabels(false).setTextColor(axisYColor);
+                    .setHasTiltedLabels(false).setTextColor(Color.BLACK);
             data.setAxisYLeft(axisY);
 
             // Y軸設定2
-            if (scale != 1) {
+            if (SCALE != 1) {
                 // 異なるレンジのデータを表示する際の右側のY軸情報
-                data.setAxisYRight(new Axis().setFormatter(new HeightValueFormatter(scale, sub, 0)));
+                data.setAxisYRight(new Axis().setFormatter(new HeightValueFormatter(SCALE, SUB, 0)));
             }
 
             data.setBaseValue(0);
@@ -339,7 +966,7 @@ public class MainActivity extends Activity implements USBManager.IUSBDataListene
             String action = intent.getAction();
             if (UsbManager.ACTION_USB_DEVICE_ATTACHED.equals(action)) {
 
-                mUSBManager.openDevice();
+                openDeviceAsync();
 
             } else if (UsbManager.ACTION_USB_DEVICE_DETACHED.equals(action)) {
 
@@ -349,4 +976,11 @@ public class MainActivity extends Activity implements USBManager.IUSBDataListene
         }
     };
 
+    private BroadcastReceiver mTimeZoneReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            TimeLabelFormatter.onTimeZoneChanged();
+        }
+    };
+
 }
@@ -0,0 +1,88 @@
+package com.nissha.android.things.sample.capture;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Reader of files written by {@link TelegramCapture}.
+ */
+
+public class CaptureReader {
+
+    /**
+     * 読み込んだレコードの通知先.
+     */
+    public interface IRecordListener {
+
+        /**
+         * レコードを通知する. frameは再利用されるため, 通知後に参照しないこと.
+         *
+         * @return false : 読み込みを中断する.
+         */
+        boolean onRecord(long nanos, int dongleId, int result, byte[] frame, int length);
+    }
+
+    private final DataInputStream mInput;
+
+    private final long mBaseWallClockMs;
+
+    private final long mBaseNanos;
+
+    private final byte[] mFrame = new byte[TelegramCapture.MAX_FRAME_LEN];
+
+    /**
+     * コンストラクタ.
+     *
+     * @param file キャプチャファイル.
+     * @throws IOException 読み込み失敗, 形式不正.
+     */
+    public CaptureReader(File file) throws IOException {
+        mInput = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+        if ((mInput.readInt() != TelegramCapture.MAGIC) || (mInput.readShort() != TelegramCapture.VERSION)) {
+            mInput.close();
+            throw new IOException("Not a capture file : " + file);
+        }
+        mInput.readShort();
+        mBaseWallClockMs = mInput.readLong();
+        mBaseNanos = mInput.readLong();
+    }
+
+    /**
+     * レコードの時刻(nanos)を実時刻(Unix Time)に変換する.
+     *
+     * @param nanos レコードの時刻.
+     * @return 実時刻(ms).
+     */
+    public long toWallClock(long nanos) {
+        return mBaseWallClockMs + ((nanos - mBaseNanos) / 1000000L);
+    }
+
+    /**
+     * 次のレコードを読む.
+     *
+     * @param listener 通知先.
+     * @return false : 終端, または中断.
+     * @throws IOException 読み込み失敗.
+     */
+    public boolean next(IRecordListener listener) throws IOException {
+        long nanos;
+        try {
+            nanos = mInput.readLong();
+        } catch (EOFException e) {
+            return false;
+        }
+        int dongleId = mInput.readInt();
+        int result = mInput.readByte();
+        int length = mInput.readShort() & 0xFFFF;
+        mInput.readFully(mFrame, 0, length);
+        return listener.onRecord(nanos, dongleId, result, mFrame, length);
+    }
+
+    public void close() throws IOException {
+        mInput.close();
+    }
+}
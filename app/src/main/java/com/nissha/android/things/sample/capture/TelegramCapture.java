@@ -0,0 +1,299 @@
+package com.nissha.android.things.sample.capture;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Binary capture of raw ESP3 frames for offline analysis.
+ * <p>
+ * 受信スレッドはロックフリーのリングバッファにフレームをコピーするだけで,
+ * ファイルへの書き込みはバックグラウンドスレッドが行う.
+ * リングが満杯の場合やファイルが上限サイズに達した場合は記録を捨てて件数のみ数える.
+ * 開始時に前回の記録があれば "ファイル名.1" に移し, 古いものから {@link #KEEP_FILES} 世代を残す.
+ * <p>
+ * ファイル形式(ビッグエンディアン):
+ * <pre>
+ * ヘッダー : "ECAP"(4) version(2) reserved(2) baseWallClockMs(8) baseNanos(8)
+ * レコード : nanos(8) dongleId(4) result(1) length(2) frame(length)
+ * </pre>
+ */
+
+public class TelegramCapture {
+
+    private static final String TAG = TelegramCapture.class.getSimpleName();
+
+    public static final int MAGIC = 0x45434150; // "ECAP"
+
+    public static final int VERSION = 1;
+
+    /**
+     * 記録結果 : デコード成功.
+     */
+    public static final int RESULT_DECODED = 0;
+
+    /**
+     * 記録結果 : 対象外のセンサー.
+     */
+    public static final int RESULT_UNKNOWN_SENDER = 1;
+
+    /**
+     * 記録結果 : 解析エラー(例外).
+     */
+    public static final int RESULT_ERROR = 2;
+
+    /**
+     * 1フレームの最大記録長(超える分は切り捨てる).
+     */
+    public static final int MAX_FRAME_LEN = 255;
+
+    /**
+     * 残す過去の記録の世代数.
+     */
+    public static final int KEEP_FILES = 3;
+
+    private static final long WRITER_INTERVAL_MS = 50;
+
+    private final int mCapacity;
+
+    private final byte[] mFrames;
+
+    private final long[] mNanos;
+
+    private final int[] mDongleIds;
+
+    private final byte[] mResults;
+
+    private final int[] mLengths;
+
+    /**
+     * スロットごとの書き込み完了済みシーケンス番号 + 1.
+     */
+    private final AtomicLongArray mPublished;
+
+    /**
+     * 次に確保するシーケンス番号.
+     */
+    private final AtomicLong mHead = new AtomicLong();
+
+    /**
+     * 次に書き出すシーケンス番号.
+     */
+    private final AtomicLong mTail = new AtomicLong();
+
+    private final AtomicLong mDropped = new AtomicLong();
+
+    private final File mFile;
+
+    private final long mMaxBytes;
+
+    private volatile boolean mIsRunning;
+
+    private Thread mWriterThread;
+
+    private long mWrittenBytes;
+
+    /**
+     * コンストラクタ.
+     *
+     * @param file     出力ファイル.
+     * @param capacity リングバッファのフレーム数.
+     * @param maxBytes ファイルの上限サイズ.
+     */
+    public TelegramCapture(File file, int capacity, long maxBytes) {
+        mFile = file;
+        mCapacity = capacity;
+        mMaxBytes = maxBytes;
+        mFrames = new byte[capacity * MAX_FRAME_LEN];
+        mNanos = new long[capacity];
+        mDongleIds = new int[capacity];
+        mResults = new byte[capacity];
+        mLengths = new int[capacity];
+        mPublished = new AtomicLongArray(capacity);
+    }
+
+    /**
+     * 記録を開始する.
+     *
+     * @throws IOException ファイル作成失敗.
+     */
+    public synchronized void start() throws IOException {
+        if (mIsRunning) {
+            return;
+        }
+        rotate();
+        final DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(mFile), 64 * 1024));
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeShort(0);
+        out.writeLong(System.currentTimeMillis());
+        out.writeLong(System.nanoTime());
+        mWrittenBytes = 24;
+
+        mIsRunning = true;
+        mWriterThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (mIsRunning) {
+                        drain(out);
+                        out.flush();
+                        try {
+                            Thread.sleep(WRITER_INTERVAL_MS);
+                        } catch (InterruptedException e) {
+                            break;
+                        }
+                    }
+                    drain(out);
+                } catch (IOException e) {
+                    Log.e(TAG, "capture write failed.", e);
+                } finally {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }, TAG);
+        mWriterThread.start();
+    }
+
+    /**
+     * 記録を停止し, 残りをファイルに書き出す.
+     */
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            mIsRunning = false;
+            thread = mWriterThread;
+            mWriterThread = null;
+        }
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public boolean isRunning() {
+        return mIsRunning;
+    }
+
+    /**
+     * 捨てた記録の件数.
+     *
+     * @return 件数.
+     */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    /**
+     * フレームを記録する. 複数スレッドから同時に呼び出してよい.
+     *
+     * @param nanos    受信時刻(System.nanoTime()).
+     * @param dongleId ドングルID.
+     * @param result   解析結果.
+     * @param frame    フレーム.
+     * @param offset   フレームの開始位置.
+     * @param length   フレーム長.
+     * @return false : リングが満杯で記録できなかった.
+     */
+    public boolean record(long nanos, int dongleId, int result, byte[] frame, int offset, int length) {
+        if (!mIsRunning) {
+            return false;
+        }
+
+        long sequence;
+        while (true) {
+            sequence = mHead.get();
+            if ((sequence - mTail.get()) >= mCapacity) {
+                mDropped.incrementAndGet();
+                return false;
+            }
+            if (mHead.compareAndSet(sequence, sequence + 1)) {
+                break;
+            }
+        }
+
+        int slot = (int) (sequence % mCapacity);
+        int len = Math.min(length, MAX_FRAME_LEN);
+        System.arraycopy(frame, offset, mFrames, slot * MAX_FRAME_LEN, len);
+        mNanos[slot] = nanos;
+        mDongleIds[slot] = dongleId;
+        mResults[slot] = (byte) result;
+        mLengths[slot] = len;
+        mPublished.set(slot, sequence + 1);
+        return true;
+    }
+
+    /**
+     * 前回の記録を "ファイル名.1" に移す(既存の世代は1つずつ繰り下げ, 最も古いものは削除する).
+     */
+    private void rotate() {
+        if (!mFile.exists() || (mFile.length() == 0)) {
+            return;
+        }
+        File oldest = getRotatedFile(KEEP_FILES);
+        if (oldest.exists() && !oldest.delete()) {
+            Log.w(TAG, "failed to delete " + oldest);
+        }
+        for (int generation = KEEP_FILES - 1; generation >= 1; generation--) {
+            File file = getRotatedFile(generation);
+            if (file.exists() && !file.renameTo(getRotatedFile(generation + 1))) {
+                Log.w(TAG, "failed to rotate " + file);
+            }
+        }
+        if (!mFile.renameTo(getRotatedFile(1))) {
+            Log.w(TAG, "failed to rotate " + mFile);
+        }
+    }
+
+    /**
+     * 過去の記録のファイルを取得する.
+     *
+     * @param generation 世代(1が直前).
+     * @return ファイル.
+     */
+    public File getRotatedFile(int generation) {
+        return new File(mFile.getPath() + "." + generation);
+    }
+
+    private void drain(DataOutputStream out) throws IOException {
+        long tail = mTail.get();
+        while (true) {
+            int slot = (int) (tail % mCapacity);
+            if (mPublished.get(slot) != (tail + 1)) {
+                // 未確保, または書き込み途中
+                break;
+            }
+
+            int len = mLengths[slot];
+            long recordBytes = 15 + len;
+            if ((mWrittenBytes + recordBytes) <= mMaxBytes) {
+                out.writeLong(mNanos[slot]);
+                out.writeInt(mDongleIds[slot]);
+                out.writeByte(mResults[slot]);
+                out.writeShort(len);
+                out.write(mFrames, slot * MAX_FRAME_LEN, len);
+                mWrittenBytes += recordBytes;
+            } else {
+                mDropped.incrementAndGet();
+            }
+
+            tail++;
+            mTail.set(tail);
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package com.nissha.android.things.sample.collector;
+
+import com.nissha.android.things.sample.enocean.ESP3;
+import com.nissha.android.things.sample.enocean.EnOceanMessage;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * Telegram stream received from one gateway.
+ * <p>
+ * 接続直後にゲートウェイID(4byte), 以降は「受信時刻(8byte, μs) + ESP3フレーム」を繰り返し受け取る.
+ * 受信時刻はゲートウェイごとに単調増加であること.
+ * 読み込みスレッドが受信キューに入れ, マージスレッドがまとめて取り出す.
+ * 受信キューが一杯の場合は読み込みを止める(TCPのフロー制御で送信側を待たせる).
+ */
+
+class GatewayFeed implements Runnable {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final int mIndex;
+
+    private final Socket mSocket;
+
+    private int mGatewayId;
+
+    // 受信キュー(リングバッファ)
+    private final long[] mQueueTimes;
+
+    private final byte[][] mQueueFrames;
+
+    private int mHead;
+
+    private int mSize;
+
+    /**
+     * 受信キューに入れた最新の受信時刻. まだ受信していない場合は Long.MIN_VALUE.
+     */
+    private volatile long mLastTime = Long.MIN_VALUE;
+
+    private volatile boolean mClosed;
+
+    // マージスレッドが取り出した分(マージスレッドだけが使う)
+    final long[] mLocalTimes;
+
+    final byte[][] mLocalFrames;
+
+    int mLocalPos;
+
+    int mLocalSize;
+
+    private volatile long mReceived;
+
+    private volatile long mErrors;
+
+    /**
+     * コンストラクタ.
+     *
+     * @param index     マージ内での番号.
+     * @param socket    ゲートウェイとの接続.
+     * @param queueSize 受信キューの長さ.
+     */
+    GatewayFeed(int index, Socket socket, int queueSize) {
+        mIndex = index;
+        mSocket = socket;
+        mQueueTimes = new long[queueSize];
+        mQueueFrames = new byte[queueSize][];
+        mLocalTimes = new long[queueSize];
+        mLocalFrames = new byte[queueSize][];
+    }
+
+    @Override
+    public void run() {
+        try {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(mSocket.getInputStream(), READ_BUFFER_SIZE));
+            mGatewayId = in.readInt();
+
+            byte[] header = new byte[ESP3.HEADER_LEN];
+            while (true) {
+                long time;
+                try {
+                    time = in.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+                in.readFully(header);
+                if ((header[0] != EnOceanMessage.SYNC_BYTE)
+                        || ((header[5] & 0xFF) != ESP3.crc8(header, 1, 4))) {
+                    // 区切りが分からなくなるため接続を切る
+                    mErrors++;
+                    throw new IOException("Invalid frame header from gateway " + mGatewayId);
+                }
+                int length = ESP3.getFrameLength(ESP3.getDataLength(header), ESP3.getOptionalLength(header));
+                byte[] frame = new byte[length];
+                System.arraycopy(header, 0, frame, 0, header.length);
+                in.readFully(frame, header.length, length - header.length);
+
+                if (!offer(time, frame)) {
+                    break;
+                }
+                mReceived++;
+            }
+        } catch (IOException e) {
+            if (!mClosed) {
+                e.printStackTrace();
+            }
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * 受信キューに入れる. 一杯の場合は空くまで待つ.
+     *
+     * @return false : 切断された.
+     */
+    private synchronized boolean offer(long time, byte[] frame) {
+        while (mSize == mQueueFrames.length) {
+            if (mClosed) {
+                return false;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        int tail = (mHead + mSize) % mQueueFrames.length;
+        mQueueTimes[tail] = time;
+        mQueueFrames[tail] = frame;
+        mSize++;
+        mLastTime = time;
+        return true;
+    }
+
+    /**
+     * 受信キューの内容をマージスレッド用の領域に移す(取り出した分が空の場合のみ呼ぶこと).
+     *
+     * @return 移した件数.
+     */
+    synchronized int drain() {
+        int count = mSize;
+        for (int index = 0; index < count; index++) {
+            mLocalTimes[index] = mQueueTimes[mHead];
+            mLocalFrames[index] = mQueueFrames[mHead];
+            mQueueFrames[mHead] = null;
+            mHead = (mHead + 1) % mQueueFrames.length;
+        }
+        if (mSize == mQueueFrames.length) {
+            notify();
+        }
+        mSize = 0;
+        mLocalPos = 0;
+        mLocalSize = count;
+        return count;
+    }
+
+    /**
+     * 取り出した分の先頭の受信時刻.
+     */
+    long headTime() {
+        return mLocalTimes[mLocalPos];
+    }
+
+    /**
+     * 取り出した分の先頭を外す.
+     *
+     * @return 外したフレーム.
+     */
+    byte[] pollHead() {
+        byte[] frame = mLocalFrames[mLocalPos];
+        mLocalFrames[mLocalPos] = null;
+        mLocalPos++;
+        return frame;
+    }
+
+    boolean hasLocal() {
+        return mLocalPos < mLocalSize;
+    }
+
+    /**
+     * 今後受信する時刻の下限.
+     *
+     * @return 受信時刻(μs). 未受信の場合は Long.MIN_VALUE.
+     */
+    long getLastTime() {
+        return mLastTime;
+    }
+
+    /**
+     * 切断済みで, 未処理のデータも無いか.
+     *
+     * @return true : 終了した.
+     */
+    synchronized boolean isFinished() {
+        return mClosed && (mSize == 0) && !hasLocal();
+    }
+
+    int getIndex() {
+        return mIndex;
+    }
+
+    int getGatewayId() {
+        return mGatewayId;
+    }
+
+    long getReceived() {
+        return mReceived;
+    }
+
+    long getErrors() {
+        return mErrors;
+    }
+
+    void close() {
+        synchronized (this) {
+            mClosed = true;
+            notifyAll();
+        }
+        try {
+            mSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,598 @@
+package com.nissha.android.things.sample.collector;
+
+import com.nissha.android.things.sample.enocean.EEP;
+import com.nissha.android.things.sample.enocean.EnOceanMessage;
+import com.nissha.android.things.sample.enocean.SenderProfiles;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Collector merging the telegram streams of many gateways into one time-ordered stream.
+ * <p>
+ * ゲートウェイごとの受信時刻順のストリームを, ヒープによるk-wayマージで1本にまとめる.
+ * 全ゲートウェイの受信済み時刻の最小値までは順序を保証して出力し,
+ * 遅れているゲートウェイは最新の受信時刻から並べ替え幅(reorder window)の分だけ待つ.
+ * 並べ替え幅より遅れて届いたテレグラムは破棄する.
+ * <p>
+ * 同じテレグラム(センダーIDとペイロードが同じで, 受信時刻の差が重複判定幅以内)を複数の
+ * ゲートウェイが受信した場合は1件にまとめ, RSSIが最も強いものを通知する.
+ * <p>
+ * 受信対象センダーとEEPはコレクターごとに持つ({@link #getSenderProfiles()} に登録する).
+ * アプリ全体の許可リスト({@link EEP#getSenderFilter()})は使わない.
+ */
+
+public class MergeCollector {
+
+    /**
+     * マージ結果の通知先. マージスレッドから呼ばれる.
+     */
+    public interface IMergeListener {
+
+        /**
+         * まとめたテレグラムを通知する. 受信時刻の順に呼ばれる.
+         *
+         * @param time      受信時刻(最初に受信したゲートウェイの時刻, μs).
+         * @param gatewayId RSSIが最も強かったゲートウェイのID.
+         * @param copies    受信したゲートウェイ数.
+         * @param frame     RSSIが最も強かったフレーム.
+         * @param eep       EEP.
+         * @param rssi      RSSI.
+         */
+        void onTelegram(long time, int gatewayId, int copies, byte[] frame, EEP eep, int rssi);
+    }
+
+    /**
+     * 最大ゲートウェイ数.
+     */
+    public static final int MAX_GATEWAYS = 64;
+
+    /**
+     * ゲートウェイごとの受信キューの長さ.
+     */
+    private static final int QUEUE_SIZE = 4096;
+
+    private final long mReorderWindow;
+
+    private final long mDedupWindow;
+
+    private final IMergeListener mListener;
+
+    private final SenderProfiles mProfiles = new SenderProfiles();
+
+    private ServerSocket mServerSocket;
+
+    private volatile boolean mIsRunning;
+
+    private Thread mMergeThread;
+
+    /**
+     * 接続中のゲートウェイ(接続時に配列ごと差し替える).
+     */
+    private volatile GatewayFeed[] mFeeds = new GatewayFeed[0];
+
+    // ゲートウェイの先頭を受信時刻順に並べたヒープ(マージスレッドだけが使う)
+    private final int[] mHeap = new int[MAX_GATEWAYS];
+
+    private final boolean[] mInHeap = new boolean[MAX_GATEWAYS];
+
+    private int mHeapSize;
+
+    /**
+     * 受信した中で最新の受信時刻と, それを受け取ったときのローカル時刻(ns).
+     */
+    private long mNewestTime = Long.MIN_VALUE;
+
+    private long mNewestNanos;
+
+    /**
+     * 重複判定待ちに最後に入れたテレグラムの受信時刻(これより古いテレグラムは順序を保てない).
+     */
+    private long mLastAcceptedTime = Long.MIN_VALUE;
+
+    // 重複判定待ちのテレグラム(受信時刻順のリングバッファ + 連鎖ハッシュ)
+    private final long[] mPendingTimes;
+
+    private final byte[][] mPendingFrames;
+
+    private final int[] mPendingSenders;
+
+    private final int[] mPendingHashes;
+
+    private final int[] mPendingRssi;
+
+    private final int[] mPendingGateways;
+
+    private final int[] mPendingCopies;
+
+    private final int[] mPendingNext;
+
+    private final int[] mBuckets;
+
+    private final int mBucketMask;
+
+    private int mPendingHead;
+
+    private int mPendingSize;
+
+    // 統計
+    private volatile long mMerged;
+
+    private volatile long mDuplicates;
+
+    private volatile long mLate;
+
+    private volatile long mForced;
+
+    private volatile long mRejected;
+
+    private volatile long mErrors;
+
+    /**
+     * コンストラクタ.
+     *
+     * @param reorderWindowMicros 遅れているゲートウェイを待つ最大時間(μs).
+     * @param dedupWindowMicros   同じテレグラムとみなす受信時刻の差(μs).
+     * @param pendingCapacity     重複判定待ちにできる最大件数.
+     * @param listener            通知先.
+     */
+    public MergeCollector(long reorderWindowMicros, long dedupWindowMicros, int pendingCapacity,
+                          IMergeListener listener) {
+        mReorderWindow = reorderWindowMicros;
+        mDedupWindow = dedupWindowMicros;
+        mListener = listener;
+
+        mPendingTimes = new long[pendingCapacity];
+        mPendingFrames = new byte[pendingCapacity][];
+        mPendingSenders = new int[pendingCapacity];
+        mPendingHashes = new int[pendingCapacity];
+        mPendingRssi = new int[pendingCapacity];
+        mPendingGateways = new int[pendingCapacity];
+        mPendingCopies = new int[pendingCapacity];
+        mPendingNext = new int[pendingCapacity];
+
+        int buckets = Integer.highestOneBit(Math.max(pendingCapacity, 1) * 2 - 1) * 2;
+        mBucketMask = buckets - 1;
+        mBuckets = new int[buckets];
+        for (int index = 0; index < buckets; index++) {
+            mBuckets[index] = -1;
+        }
+    }
+
+    /**
+     * ゲートウェイからの接続の待ち受けとマージを開始する.
+     *
+     * @param address 待ち受けアドレス(ポート0の場合は空きポート).
+     * @throws IOException 待ち受け失敗.
+     */
+    public synchronized void start(InetSocketAddress address) throws IOException {
+        if (mIsRunning) {
+            return;
+        }
+        mServerSocket = new ServerSocket();
+        mServerSocket.bind(address);
+        mIsRunning = true;
+
+        Thread acceptThread = new Thread(mAcceptRunner, MergeCollector.class.getSimpleName() + "-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+
+        mMergeThread = new Thread(mMergeRunner, MergeCollector.class.getSimpleName());
+        mMergeThread.start();
+    }
+
+    /**
+     * 停止する. 受信済みのテレグラムは全て通知してから戻る.
+     */
+    public void stop() {
+        synchronized (this) {
+            if (!mIsRunning) {
+                return;
+            }
+            mIsRunning = false;
+            try {
+                mServerSocket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            for (GatewayFeed feed : mFeeds) {
+                feed.close();
+            }
+        }
+        try {
+            mMergeThread.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 受信対象センダーとEEPの登録先を取得する.
+     *
+     * @return 登録先.
+     */
+    public SenderProfiles getSenderProfiles() {
+        return mProfiles;
+    }
+
+    public int getPort() {
+        return mServerSocket.getLocalPort();
+    }
+
+    public int getGatewayCount() {
+        return mFeeds.length;
+    }
+
+    /**
+     * ゲートウェイから受信したテレグラム数(重複を含む).
+     *
+     * @return 件数.
+     */
+    public long getReceivedCount() {
+        long count = 0;
+        for (GatewayFeed feed : mFeeds) {
+            count += feed.getReceived();
+        }
+        return count;
+    }
+
+    /**
+     * まとめて通知したテレグラム数.
+     *
+     * @return 件数.
+     */
+    public long getMergedCount() {
+        return mMerged;
+    }
+
+    /**
+     * 他のゲートウェイと重複していたテレグラム数.
+     *
+     * @return 件数.
+     */
+    public long getDuplicateCount() {
+        return mDuplicates;
+    }
+
+    /**
+     * 並べ替え幅より遅れて届いたため破棄したテレグラム数.
+     *
+     * @return 件数.
+     */
+    public long getLateCount() {
+        return mLate;
+    }
+
+    /**
+     * 重複判定待ちが一杯になり, 判定幅を待たずに通知したテレグラム数.
+     *
+     * @return 件数.
+     */
+    public long getForcedCount() {
+        return mForced;
+    }
+
+    /**
+     * 解析対象外(未登録のセンサー等)のテレグラム数.
+     *
+     * @return 件数.
+     */
+    public long getRejectedCount() {
+        return mRejected;
+    }
+
+    /**
+     * 不正なデータの件数.
+     *
+     * @return 件数.
+     */
+    public long getErrorCount() {
+        long count = mErrors;
+        for (GatewayFeed feed : mFeeds) {
+            count += feed.getErrors();
+        }
+        return count;
+    }
+
+    private final Runnable mAcceptRunner = new Runnable() {
+        @Override
+        public void run() {
+            while (mIsRunning) {
+                Socket socket;
+                try {
+                    socket = mServerSocket.accept();
+                    socket.setTcpNoDelay(true);
+                } catch (IOException e) {
+                    // 停止時は待ち受けを閉じる
+                    continue;
+                }
+                synchronized (MergeCollector.this) {
+                    GatewayFeed[] feeds = mFeeds;
+                    if (!mIsRunning || (feeds.length == MAX_GATEWAYS)) {
+                        try {
+                            socket.close();
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                        continue;
+                    }
+                    GatewayFeed feed = new GatewayFeed(feeds.length, socket, QUEUE_SIZE);
+                    GatewayFeed[] next = new GatewayFeed[feeds.length + 1];
+                    System.arraycopy(feeds, 0, next, 0, feeds.length);
+                    next[feeds.length] = feed;
+                    mFeeds = next;
+
+                    Thread thread = new Thread(feed, GatewayFeed.class.getSimpleName() + "-" + feed.getIndex());
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+            }
+        }
+    };
+
+    private final Runnable mMergeRunner = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                boolean running = mIsRunning;
+                GatewayFeed[] feeds = mFeeds;
+
+                // 停止後は受信済みの分を全て出力する
+                long watermark = running ? getWatermark(feeds) : Long.MAX_VALUE;
+                for (GatewayFeed feed : feeds) {
+                    if (!mInHeap[feed.getIndex()]) {
+                        refill(feed);
+                    }
+                }
+
+                boolean progressed = false;
+                while ((mHeapSize > 0) && (feeds[mHeap[0]].headTime() <= watermark)) {
+                    GatewayFeed feed = feeds[mHeap[0]];
+                    long time = feed.headTime();
+                    byte[] frame = feed.pollHead();
+                    removeHeapTop();
+                    refill(feed);
+
+                    accept(time, feed.getGatewayId(), frame);
+                    progressed = true;
+                }
+
+                progressed |= flush(watermark);
+
+                if (!running && (mHeapSize == 0)) {
+                    break;
+                }
+                if (!progressed) {
+                    // CPU負荷低減
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+    };
+
+    /**
+     * 順序を保証して出力できる受信時刻の上限を求める.
+     * 各ゲートウェイの受信時刻は単調増加のため, 全ゲートウェイの受信済み時刻の最小値までは確定する.
+     * ただし遅れているゲートウェイは, 最新の受信時刻から並べ替え幅の分(受信が止まっている間は経過時間を加える)だけ待つ.
+     */
+    private long getWatermark(GatewayFeed[] feeds) {
+        long safe = Long.MAX_VALUE;
+        boolean live = false;
+        for (GatewayFeed feed : feeds) {
+            if (feed.isFinished()) {
+                continue;
+            }
+            live = true;
+            safe = Math.min(safe, feed.getLastTime());
+        }
+        if (mNewestTime == Long.MIN_VALUE) {
+            return live ? safe : Long.MIN_VALUE;
+        }
+        long bound = mNewestTime - mReorderWindow + ((System.nanoTime() - mNewestNanos) / 1000);
+        return live ? Math.max(safe, bound) : bound;
+    }
+
+    /**
+     * ゲートウェイの受信キューから取り出し, 先頭をヒープに入れる.
+     */
+    private void refill(GatewayFeed feed) {
+        if (!feed.hasLocal() && (feed.drain() == 0)) {
+            return;
+        }
+        long last = feed.mLocalTimes[feed.mLocalSize - 1];
+        if (last > mNewestTime) {
+            mNewestTime = last;
+            mNewestNanos = System.nanoTime();
+        }
+        addHeap(feed.getIndex());
+    }
+
+    /**
+     * マージしたテレグラムを重複判定待ちに入れる.
+     */
+    private void accept(long time, int gatewayId, byte[] frame) {
+        long sender = EEP.peekSenderId(frame);
+        int offset;
+        int length;
+        try {
+            offset = EEP.getPayloadOffset(frame);
+            length = EEP.getPayloadLength(frame);
+        } catch (Exception e) {
+            length = -1;
+            offset = 0;
+        }
+        if ((sender == EEP.NO_SENDER_ID) || (length < 0) || (frame.length < (offset + length))) {
+            mErrors++;
+            return;
+        }
+        int senderId = (int) sender;
+        int hash = hash(senderId, frame, offset, length);
+        int rssi = EnOceanMessage.getRSSI(frame);
+
+        // 新しいものから順に探す
+        for (int slot = mBuckets[hash & mBucketMask]; slot >= 0; slot = mPendingNext[slot]) {
+            if ((mPendingHashes[slot] != hash) || (mPendingSenders[slot] != senderId)
+                    || !samePayload(mPendingFrames[slot], frame, offset, length)) {
+                continue;
+            }
+            if ((time - mPendingTimes[slot]) > mDedupWindow) {
+                break;
+            }
+            mDuplicates++;
+            mPendingCopies[slot]++;
+            if (rssi > mPendingRssi[slot]) {
+                mPendingRssi[slot] = rssi;
+                mPendingGateways[slot] = gatewayId;
+                mPendingFrames[slot] = frame;
+            }
+            return;
+        }
+
+        if (time < mLastAcceptedTime) {
+            // 並べ替え幅を過ぎてから届いた(通知済みのテレグラムの重複を含む)
+            mLate++;
+            return;
+        }
+
+        if (mPendingSize == mPendingTimes.length) {
+            // 一杯の場合は最も古いものを判定幅を待たずに通知する
+            mForced++;
+            emitOldest();
+        }
+        int slot = (mPendingHead + mPendingSize) % mPendingTimes.length;
+        mPendingSize++;
+        mPendingTimes[slot] = time;
+        mPendingFrames[slot] = frame;
+        mPendingSenders[slot] = senderId;
+        mPendingHashes[slot] = hash;
+        mPendingRssi[slot] = rssi;
+        mPendingGateways[slot] = gatewayId;
+        mPendingCopies[slot] = 1;
+        mLastAcceptedTime = time;
+        int bucket = hash & mBucketMask;
+        mPendingNext[slot] = mBuckets[bucket];
+        mBuckets[bucket] = slot;
+    }
+
+    /**
+     * 重複判定幅を過ぎたテレグラムを通知する.
+     *
+     * @return true : 通知した.
+     */
+    private boolean flush(long watermark) {
+        boolean flushed = false;
+        while ((mPendingSize > 0) && ((mPendingTimes[mPendingHead] + mDedupWindow) <= watermark)) {
+            emitOldest();
+            flushed = true;
+        }
+        return flushed;
+    }
+
+    private void emitOldest() {
+        int slot = mPendingHead;
+        mPendingHead = (mPendingHead + 1) % mPendingTimes.length;
+        mPendingSize--;
+
+        // 連鎖から外す(最も古いため連鎖の末尾にある)
+        int bucket = mPendingHashes[slot] & mBucketMask;
+        if (mBuckets[bucket] == slot) {
+            mBuckets[bucket] = mPendingNext[slot];
+        } else {
+            int prev = mBuckets[bucket];
+            while (mPendingNext[prev] != slot) {
+                prev = mPendingNext[prev];
+            }
+            mPendingNext[prev] = mPendingNext[slot];
+        }
+
+        byte[] frame = mPendingFrames[slot];
+        mPendingFrames[slot] = null;
+        long time = mPendingTimes[slot];
+
+        EEP eep;
+        try {
+            eep = EEP.getEEP(frame, mProfiles);
+        } catch (Exception e) {
+            e.printStackTrace();
+            mErrors++;
+            return;
+        }
+        if (eep == null) {
+            mRejected++;
+            return;
+        }
+        mMerged++;
+        mListener.onTelegram(time, mPendingGateways[slot], mPendingCopies[slot], frame, eep, mPendingRssi[slot]);
+    }
+
+    private static int hash(int senderId, byte[] frame, int offset, int length) {
+        int hash = senderId * 0x9E3779B9;
+        for (int index = offset; index < (offset + length); index++) {
+            hash = (hash * 31) + frame[index];
+        }
+        return hash ^ (hash >>> 15);
+    }
+
+    private static boolean samePayload(byte[] pending, byte[] frame, int offset, int length) {
+        // 同じセンダーの同じ形式のテレグラムはペイロードの位置も同じ
+        if ((EEP.getPayloadOffset(pending) != offset) || (EEP.getPayloadLength(pending) != length)) {
+            return false;
+        }
+        for (int index = offset; index < (offset + length); index++) {
+            if (pending[index] != frame[index]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // -------------------------------- ヒープ(キーはゲートウェイの先頭の受信時刻)
+
+    private void addHeap(int index) {
+        GatewayFeed[] feeds = mFeeds;
+        mInHeap[index] = true;
+        int pos = mHeapSize++;
+        long time = feeds[index].headTime();
+        while (pos > 0) {
+            int parent = (pos - 1) >>> 1;
+            if (feeds[mHeap[parent]].headTime() <= time) {
+                break;
+            }
+            mHeap[pos] = mHeap[parent];
+            pos = parent;
+        }
+        mHeap[pos] = index;
+    }
+
+    private void removeHeapTop() {
+        GatewayFeed[] feeds = mFeeds;
+        mInHeap[mHeap[0]] = false;
+        int last = mHeap[--mHeapSize];
+        if (mHeapSize == 0) {
+            return;
+        }
+        long time = feeds[last].headTime();
+        int pos = 0;
+        while (true) {
+            int child = (pos * 2) + 1;
+            if (child >= mHeapSize) {
+                break;
+            }
+            if (((child + 1) < mHeapSize) && (feeds[mHeap[child + 1]].headTime() < feeds[mHeap[child]].headTime())) {
+                child++;
+            }
+            if (feeds[mHeap[child]].headTime() >= time) {
+                break;
+            }
+            mHeap[pos] = mHeap[child];
+            pos = child;
+        }
+        mHeap[pos] = last;
+    }
+}
@@ -0,0 +1,103 @@
+package com.nissha.android.things.sample.data;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * HTTP/1.1 chunked transfer-encoding output stream.
+ * <p>
+ * 書き込んだデータは固定長のバッファにためて, 一杯になるか {@link #flush()} で1チャンクとして送信する.
+ * {@link #finish()} で終端チャンクを送信する(下位のストリームは閉じない).
+ */
+
+public class ChunkedOutputStream extends OutputStream {
+
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+
+    private final OutputStream mOutput;
+
+    private final byte[] mBuffer;
+
+    private int mCount;
+
+    /**
+     * チャンクサイズ行(16進数 + CRLF)の作業領域.
+     */
+    private final byte[] mSizeLine = new byte[10];
+
+    private boolean mFinished;
+
+    /**
+     * コンストラクタ.
+     *
+     * @param output    下位のストリーム.
+     * @param chunkSize 最大チャンクサイズ.
+     */
+    public ChunkedOutputStream(OutputStream output, int chunkSize) {
+        mOutput = output;
+        mBuffer = new byte[chunkSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (mCount == mBuffer.length) {
+            writeChunk();
+        }
+        mBuffer[mCount++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (mCount == mBuffer.length) {
+                writeChunk();
+            }
+            int count = Math.min(length, mBuffer.length - mCount);
+            System.arraycopy(data, offset, mBuffer, mCount, count);
+            mCount += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writeChunk();
+        mOutput.flush();
+    }
+
+    /**
+     * 残りのデータと終端チャンクを送信する.
+     *
+     * @throws IOException 送信失敗.
+     */
+    public void finish() throws IOException {
+        if (mFinished) {
+            return;
+        }
+        writeChunk();
+        mOutput.write(LAST_CHUNK);
+        mOutput.flush();
+        mFinished = true;
+    }
+
+    private void writeChunk() throws IOException {
+        if (mCount == 0) {
+            return;
+        }
+        int pos = mSizeLine.length - CRLF.length;
+        mSizeLine[pos] = CRLF[0];
+        mSizeLine[pos + 1] = CRLF[1];
+        int size = mCount;
+        do {
+            mSizeLine[--pos] = (byte) Character.forDigit(size & 0x0F, 16);
+            size >>>= 4;
+        } while (size != 0);
+        mOutput.write(mSizeLine, pos, mSizeLine.length - pos);
+        mOutput.write(mBuffer, 0, mCount);
+        mOutput.write(CRLF);
+        mCount = 0;
+    }
+}
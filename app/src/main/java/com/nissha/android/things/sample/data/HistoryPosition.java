@@ -0,0 +1,21 @@
+package com.nissha.android.things.sample.data;
+
+/**
+ * Position in the on-disk history (file generation and record count).
+ * <p>
+ * 世代は {@link SensorHistoryFile} がファイルを切り替えるたびに1つ増える.
+ * レコード数はその世代のファイル内のレコード数で, 切り替えると0から数え直す.
+ */
+
+public class HistoryPosition {
+
+    /**
+     * ファイルの世代.
+     */
+    public long mGeneration;
+
+    /**
+     * レコード数.
+     */
+    public long mRecords;
+}
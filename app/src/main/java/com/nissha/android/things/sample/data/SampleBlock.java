@@ -0,0 +1,94 @@
+package com.nissha.android.things.sample.data;
+
+/**
+ * Fixed-capacity block of raw samples keeping the newest ones.
+ * <p>
+ * 容量を超えて追加した場合は古いデータから上書きする. 参照は古い順のインデックスで行う.
+ */
+
+public class SampleBlock {
+
+    private final long[] mTimes;
+
+    private final int[] mSenderIds;
+
+    private final int[] mPayloads;
+
+    private final byte[] mRSSIs;
+
+    /**
+     * 最も古いデータの位置.
+     */
+    private int mStart;
+
+    private int mCount;
+
+    /**
+     * コンストラクタ.
+     *
+     * @param capacity 容量.
+     */
+    public SampleBlock(int capacity) {
+        mTimes = new long[capacity];
+        mSenderIds = new int[capacity];
+        mPayloads = new int[capacity];
+        mRSSIs = new byte[capacity];
+    }
+
+    public int getCapacity() {
+        return mTimes.length;
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    public void clear() {
+        mStart = 0;
+        mCount = 0;
+    }
+
+    /**
+     * データを追加する. 満杯の場合は最も古いデータを上書きする.
+     *
+     * @param time     受信時刻.
+     * @param senderId センダーID.
+     * @param payload  ペイロード(DB3 - DB0).
+     * @param rssi     RSSI.
+     */
+    public void add(long time, int senderId, int payload, int rssi) {
+        int capacity = mTimes.length;
+        int pos;
+        if (mCount < capacity) {
+            pos = (mStart + mCount) % capacity;
+            mCount++;
+        } else {
+            pos = mStart;
+            mStart = (mStart + 1) % capacity;
+        }
+        mTimes[pos] = time;
+        mSenderIds[pos] = senderId;
+        mPayloads[pos] = payload;
+        mRSSIs[pos] = (byte) rssi;
+    }
+
+    public long getTime(int index) {
+        return mTimes[position(index)];
+    }
+
+    public int getSenderId(int index) {
+        return mSenderIds[position(index)];
+    }
+
+    public int getPayload(int index) {
+        return mPayloads[position(index)];
+    }
+
+    public int getRSSI(int index) {
+        return mRSSIs[position(index)];
+    }
+
+    private int position(int index) {
+        return (mStart + index) % mTimes.length;
+    }
+}
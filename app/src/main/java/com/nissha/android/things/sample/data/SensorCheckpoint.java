@@ -0,0 +1,383 @@
+package com.nissha.android.things.sample.data;
+
+import com.nissha.android.things.sample.decode.SenderStats;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Binary checkpoint of the in-memory sensor state.
+ * <p>
+ * 直近の受信データ(リング)・センサーごとの最新値・集計と最終受信時刻を1つのファイルにまとめ,
+ * 1回の書き込みで保存する. ファイルの末尾にCRC32を付け, 一時ファイルに書いてから置き換える.
+ * <pre>
+ * magic "ESCP"(4) version(1) reserved(3) savedAt(8) historyGeneration(8) historyRecords(8)
+ * ringCount(4)  [time(8) senderId(4) payload(4) rssi(1)] * ringCount
+ * stateCount(4) [time(8) senderId(4) payload(4) rssi(1)] * stateCount
+ * statsCount(4) [senderId(4) count(8) duplicates(8) rssiSum(8) rssiMin(1) rssiMax(1) lastSeen(8)] * statsCount
+ * crc32(4)
+ * </pre>
+ * historyGeneration と historyRecords は保存時点の履歴ファイルの位置({@link HistoryPosition})で,
+ * 再起動時はそれ以降のレコードだけを読み込めばよい. 世代が異なる場合は保存後にファイルを切り替えている.
+ * 形式の異なる(世代を持たない version 1 の)ファイルは読み込まない.
+ * 最終受信時刻はUnix Timeに変換して保存する.
+ */
+
+public class SensorCheckpoint {
+
+    private static final byte[] MAGIC = {'E', 'S', 'C', 'P'};
+
+    private static final int VERSION = 2;
+
+    private static final int HEADER_SIZE = 32;
+
+    private static final int STATS_SIZE = 38;
+
+    private final File mFile;
+
+    private final SampleBlock mSamples;
+
+    private final SampleBlock mStates;
+
+    private final List<SenderStats> mStats = new ArrayList<>();
+
+    private final SensorState mState = new SensorState();
+
+    private int[] mSenderIds;
+
+    private byte[] mBuffer = new byte[4096];
+
+    private int mLength;
+
+    private long mSavedAt;
+
+    private final HistoryPosition mHistoryPosition = new HistoryPosition();
+
+    /**
+     * コンストラクタ.
+     *
+     * @param file       保存先ファイル.
+     * @param capacity   保存するリングの最大件数.
+     * @param maxSensors 保存する最大センサー数.
+     */
+    public SensorCheckpoint(File file, int capacity, int maxSensors) {
+        mFile = file;
+        mSamples = new SampleBlock(capacity);
+        mStates = new SampleBlock(maxSensors);
+        mSenderIds = new int[maxSensors];
+    }
+
+    /**
+     * 現在の状態を保存する.
+     *
+     * @param history 受信データの履歴.
+     * @param table   センサーごとの最新値.
+     * @param stats   センサーごとの集計(nullの場合は保存しない).
+     * @throws IOException 書き込み失敗.
+     */
+    public synchronized void save(SensorHistory history, SensorStateTable table, List<SenderStats> stats)
+            throws IOException {
+        history.snapshot(mSamples, mHistoryPosition);
+
+        mStates.clear();
+        int sensorNum = table.getSenderIds(mSenderIds);
+        for (int index = 0; index < sensorNum; index++) {
+            if (table.get(mSenderIds[index], mState)) {
+                mStates.add(mState.mTime, mState.mSenderId, mState.mPayload, mState.mRSSI);
+            }
+        }
+
+        int statsNum = (stats == null) ? 0 : stats.size();
+        ensureCapacity(HEADER_SIZE + 12 + ((mSamples.size() + mStates.size()) * SensorHistoryFile.RECORD_SIZE)
+                + (statsNum * STATS_SIZE) + 4);
+
+        long savedAt = System.currentTimeMillis();
+        long nowNanos = System.nanoTime();
+
+        int pos = 0;
+        System.arraycopy(MAGIC, 0, mBuffer, 0, MAGIC.length);
+        pos += MAGIC.length;
+        mBuffer[pos++] = VERSION;
+        pos += 3;
+        pos = putLong(pos, savedAt);
+        pos = putLong(pos, mHistoryPosition.mGeneration);
+        pos = putLong(pos, mHistoryPosition.mRecords);
+
+        pos = putBlock(pos, mSamples);
+        pos = putBlock(pos, mStates);
+
+        pos = putInt(pos, statsNum);
+        for (int index = 0; index < statsNum; index++) {
+            SenderStats item = stats.get(index);
+            pos = putInt(pos, item.mSenderId);
+            pos = putLong(pos, item.mCount);
+            pos = putLong(pos, item.mDuplicates);
+            pos = putLong(pos, item.mRssiSum);
+            mBuffer[pos++] = (byte) item.mRssiMin;
+            mBuffer[pos++] = (byte) item.mRssiMax;
+            pos = putLong(pos, savedAt - ((nowNanos - item.mLastSeenNanos) / 1000000L));
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(mBuffer, 0, pos);
+        pos = putInt(pos, (int) crc.getValue());
+
+        File temp = new File(mFile.getPath() + ".tmp");
+        FileOutputStream output = new FileOutputStream(temp);
+        try {
+            output.write(mBuffer, 0, pos);
+            output.getFD().sync();
+        } finally {
+            output.close();
+        }
+        if (!temp.renameTo(mFile)) {
+            throw new IOException("rename failed : " + mFile);
+        }
+    }
+
+    /**
+     * 保存した状態を読み込む. 読み込んだ内容は getter で参照する.
+     *
+     * @return false : ファイルが無い, または壊れている.
+     */
+    public synchronized boolean load() {
+        mSamples.clear();
+        mStates.clear();
+        mStats.clear();
+
+        if (!mFile.exists() || (mFile.length() > Integer.MAX_VALUE)) {
+            return false;
+        }
+
+        try {
+            mLength = (int) mFile.length();
+            ensureCapacity(mLength);
+            FileInputStream input = new FileInputStream(mFile);
+            try {
+                int read = 0;
+                while (read < mLength) {
+                    int size = input.read(mBuffer, read, mLength - read);
+                    if (size < 0) {
+                        return false;
+                    }
+                    read += size;
+                }
+            } finally {
+                input.close();
+            }
+            return parse();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    private boolean parse() {
+        if (mLength < (HEADER_SIZE + 12 + 4)) {
+            return false;
+        }
+        for (int index = 0; index < MAGIC.length; index++) {
+            if (mBuffer[index] != MAGIC[index]) {
+                return false;
+            }
+        }
+        if (mBuffer[MAGIC.length] != VERSION) {
+            return false;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(mBuffer, 0, mLength - 4);
+        if ((int) crc.getValue() != SensorHistoryFile.getInt(mBuffer, mLength - 4)) {
+            return false;
+        }
+
+        int end = mLength - 4;
+        mSavedAt = SensorHistoryFile.getLong(mBuffer, 8);
+        mHistoryPosition.mGeneration = SensorHistoryFile.getLong(mBuffer, 16);
+        mHistoryPosition.mRecords = SensorHistoryFile.getLong(mBuffer, 24);
+        int pos = HEADER_SIZE;
+
+        pos = getBlock(pos, end, mSamples);
+        if (pos < 0) {
+            return false;
+        }
+        pos = getBlock(pos, end, mStates);
+        if (pos < 0) {
+            return false;
+        }
+
+        if ((pos + 4) > end) {
+            return false;
+        }
+        int statsNum = SensorHistoryFile.getInt(mBuffer, pos);
+        pos += 4;
+        if ((statsNum < 0) || (pos + ((long) statsNum * STATS_SIZE) > end)) {
+            return false;
+        }
+
+        // 最終受信時刻はこのプロセスの System.nanoTime() 基準に戻す
+        long nowMillis = System.currentTimeMillis();
+        long nowNanos = System.nanoTime();
+        for (int index = 0; index < statsNum; index++) {
+            SenderStats item = new SenderStats();
+            item.mSenderId = SensorHistoryFile.getInt(mBuffer, pos);
+            item.mCount = SensorHistoryFile.getLong(mBuffer, pos + 4);
+            item.mDuplicates = SensorHistoryFile.getLong(mBuffer, pos + 12);
+            item.mRssiSum = SensorHistoryFile.getLong(mBuffer, pos + 20);
+            item.mRssiMin = mBuffer[pos + 28];
+            item.mRssiMax = mBuffer[pos + 29];
+            item.mLastSeenNanos = nowNanos - ((nowMillis - SensorHistoryFile.getLong(mBuffer, pos + 30)) * 1000000L);
+            mStats.add(item);
+            pos += STATS_SIZE;
+        }
+        return true;
+    }
+
+    /**
+     * 保存した時刻.
+     *
+     * @return Unix Time.
+     */
+    public long getSavedAt() {
+        return mSavedAt;
+    }
+
+    /**
+     * 保存時点の履歴ファイルの位置.
+     *
+     * @return 位置.
+     */
+    public HistoryPosition getHistoryPosition() {
+        return mHistoryPosition;
+    }
+
+    /**
+     * 読み込んだリングのデータ(古い順).
+     *
+     * @return データ.
+     */
+    public SampleBlock getSamples() {
+        return mSamples;
+    }
+
+    /**
+     * 読み込んだセンサーごとの最新値.
+     *
+     * @return データ.
+     */
+    public SampleBlock getStates() {
+        return mStates;
+    }
+
+    /**
+     * 読み込んだセンサーごとの集計.
+     *
+     * @return 集計.
+     */
+    public List<SenderStats> getStats() {
+        return mStats;
+    }
+
+    /**
+     * 保存後に履歴ファイルへ追加されたレコードを集計に加える(チェックポイントの集計には含まれないため).
+     * 履歴ファイルには重複・除外したサンプルは無いため, それらは集計に加わらない.
+     * 読み込み後に1回だけ呼ぶこと.
+     *
+     * @param file     履歴ファイル.
+     * @param position 起動時点の位置(それ以降は受信処理で集計される).
+     * @return 加えたレコード数. 保存時点から続くファイルが残っていない場合は0.
+     * @throws IOException ファイルの読み込み失敗.
+     */
+    public int addHistoryTail(SensorHistoryFile file, HistoryPosition position) throws IOException {
+        final Map<Integer, SenderStats> stats = new HashMap<>();
+        for (SenderStats item : mStats) {
+            stats.put(item.mSenderId, item);
+        }
+        final long nowMillis = System.currentTimeMillis();
+        final long nowNanos = System.nanoTime();
+        final int[] added = new int[1];
+        file.readRange(mHistoryPosition, position, Long.MAX_VALUE, new SensorHistoryFile.IRecordListener() {
+            @Override
+            public boolean onRecord(long time, int senderId, int payload, int rssi) {
+                long seenNanos = nowNanos - ((nowMillis - time) * 1000000L);
+                SenderStats item = stats.get(senderId);
+                if (item == null) {
+                    item = new SenderStats();
+                    item.mSenderId = senderId;
+                    item.mRssiMin = rssi;
+                    item.mRssiMax = rssi;
+                    item.mLastSeenNanos = seenNanos;
+                    stats.put(senderId, item);
+                    mStats.add(item);
+                } else {
+                    item.mRssiMin = Math.min(item.mRssiMin, rssi);
+                    item.mRssiMax = Math.max(item.mRssiMax, rssi);
+                    if ((seenNanos - item.mLastSeenNanos) > 0) {
+                        item.mLastSeenNanos = seenNanos;
+                    }
+                }
+                item.mCount++;
+                item.mRssiSum += rssi;
+                added[0]++;
+                return true;
+            }
+        });
+        return added[0];
+    }
+
+    private void ensureCapacity(int size) {
+        if (mBuffer.length < size) {
+            mBuffer = new byte[Math.max(size, mBuffer.length * 2)];
+        }
+    }
+
+    private int putBlock(int pos, SampleBlock block) {
+        pos = putInt(pos, block.size());
+        for (int index = 0; index < block.size(); index++) {
+            SensorHistoryFile.encode(mBuffer, pos, block.getTime(index), block.getSenderId(index),
+                    block.getPayload(index), block.getRSSI(index));
+            pos += SensorHistoryFile.RECORD_SIZE;
+        }
+        return pos;
+    }
+
+    /**
+     * @return 次の位置. 壊れている場合は -1.
+     */
+    private int getBlock(int pos, int end, SampleBlock out) {
+        if ((pos + 4) > end) {
+            return -1;
+        }
+        int count = SensorHistoryFile.getInt(mBuffer, pos);
+        pos += 4;
+        if ((count < 0) || ((pos + ((long) count * SensorHistoryFile.RECORD_SIZE)) > end)) {
+            return -1;
+        }
+        for (int index = 0; index < count; index++) {
+            out.add(SensorHistoryFile.getLong(mBuffer, pos), SensorHistoryFile.getInt(mBuffer, pos + 8),
+                    SensorHistoryFile.getInt(mBuffer, pos + 12), mBuffer[pos + 16]);
+            pos += SensorHistoryFile.RECORD_SIZE;
+        }
+        return pos;
+    }
+
+    private int putInt(int pos, int value) {
+        mBuffer[pos++] = (byte) (value >>> 24);
+        mBuffer[pos++] = (byte) (value >>> 16);
+        mBuffer[pos++] = (byte) (value >>> 8);
+        mBuffer[pos++] = (byte) value;
+        return pos;
+    }
+
+    private int putLong(int pos, long value) {
+        pos = putInt(pos, (int) (value >>> 32));
+        return putInt(pos, (int) value);
+    }
+}
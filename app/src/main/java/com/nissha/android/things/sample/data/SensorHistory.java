@@ -0,0 +1,300 @@
+package com.nissha.android.things.sample.data;
+
+import com.nissha.android.things.sample.enocean.LazyCO2SensorData;
+
+import java.io.IOException;
+
+/**
+ * Sensor history (in-memory ring + on-disk file) with query API.
+ * <p>
+ * 検索結果はリストにまとめず, {@value #CHUNK_SIZE} 件ずつ {@link IChunkListener} に通知する.
+ * ディスク上の履歴はリングに残っていない古い期間のみ読み込む.
+ */
+
+public class SensorHistory {
+
+    /**
+     * 1回の通知で渡す最大件数.
+     */
+    public static final int CHUNK_SIZE = 256;
+
+    /**
+     * 検索結果の通知先.
+     */
+    public interface IChunkListener {
+
+        /**
+         * 検索結果を通知する. 配列は再利用されるため, 通知後に参照しないこと.
+         *
+         * @param times  時刻.
+         * @param values 値.
+         * @param count  件数.
+         * @return false : 検索を中断する.
+         */
+        boolean onChunk(long[] times, float[] values, int count);
+    }
+
+    private final SensorSampleRing mRing;
+
+    private final SensorHistoryFile mFile;
+
+    /**
+     * コンストラクタ.
+     *
+     * @param ring メモリ上の受信データ.
+     * @param file ディスク上の受信データ(nullの場合はメモリ上のみ).
+     */
+    public SensorHistory(SensorSampleRing ring, SensorHistoryFile file) {
+        mRing = ring;
+        mFile = file;
+    }
+
+    public SensorSampleRing getRing() {
+        return mRing;
+    }
+
+    public SensorHistoryFile getFile() {
+        return mFile;
+    }
+
+    /**
+     * 受信データを追加する.
+     *
+     * @param time     受信時刻.
+     * @param senderId センダーID.
+     * @param payload  ペイロード(DB3 - DB0).
+     * @param rssi     RSSI.
+     * @return 追加したデータのシーケンス番号.
+     */
+    public synchronized long add(long time, int senderId, int payload, int rssi) {
+        long sequence = mRing.add(time, senderId, payload, rssi);
+        if (mFile != null) {
+            mFile.append(time, senderId, payload, rssi);
+        }
+        return sequence;
+    }
+
+    /**
+     * メモリ上のデータと, それを含むファイルの位置を同時点の内容で取得する(チェックポイント用).
+     *
+     * @param out      メモリ上のデータの格納先.
+     * @param position ファイルの位置の格納先.
+     * @throws IOException ファイルへの書き込み失敗.
+     */
+    public synchronized void snapshot(SampleBlock out, HistoryPosition position) throws IOException {
+        mRing.snapshot(out);
+        if (mFile == null) {
+            position.mGeneration = 0;
+            position.mRecords = 0;
+            return;
+        }
+        mFile.flush();
+        mFile.getPosition(position);
+    }
+
+    /**
+     * 起動前のデータをメモリ上に戻す(起動時にバックグラウンドで呼ぶ).
+     * チェックポイントがあればその内容に, 保存後にファイルへ追記されたレコードだけを重ねる.
+     * 保存後にファイルを切り替えている場合は, 切り替え前のファイルの続きから読む.
+     * 受信処理と並行して呼べるよう, 起動後に追記したレコードは対象外とする.
+     *
+     * @param position    起動時点のファイルの位置.
+     * @param table       最新値を戻す先(nullの場合は戻さない).
+     * @param checkpoint  読み込み済みのチェックポイント(nullの場合はファイルのみから戻す).
+     * @return 戻した件数.
+     * @throws IOException ファイルの読み込み失敗.
+     */
+    public int restore(HistoryPosition position, final SensorStateTable table, SensorCheckpoint checkpoint)
+            throws IOException {
+        final SampleBlock tail = new SampleBlock(mRing.getCapacity());
+        SensorHistoryFile.IRecordListener collector = new SensorHistoryFile.IRecordListener() {
+            @Override
+            public boolean onRecord(long time, int senderId, int payload, int rssi) {
+                tail.add(time, senderId, payload, rssi);
+                if (table != null) {
+                    table.restore(senderId, time, payload, rssi);
+                }
+                return true;
+            }
+        };
+
+        boolean continued = (checkpoint != null);
+        if (mFile != null) {
+            // チェックポイントから続くファイルが残っていない場合(作り直された等)はチェックポイントを使わない
+            continued = continued && mFile.readRange(checkpoint.getHistoryPosition(), position,
+                    tail.getCapacity(), collector);
+            if (!continued) {
+                HistoryPosition first = new HistoryPosition();
+                first.mGeneration = position.mGeneration;
+                mFile.readRange(first, position, tail.getCapacity(), collector);
+            }
+        }
+
+        SampleBlock block = new SampleBlock(mRing.getCapacity());
+        if (continued) {
+            SampleBlock samples = checkpoint.getSamples();
+            for (int index = 0; index < samples.size(); index++) {
+                block.add(samples.getTime(index), samples.getSenderId(index), samples.getPayload(index),
+                        samples.getRSSI(index));
+            }
+            if (table != null) {
+                SampleBlock states = checkpoint.getStates();
+                for (int index = 0; index < states.size(); index++) {
+                    table.restore(states.getSenderId(index), states.getTime(index), states.getPayload(index),
+                            states.getRSSI(index));
+                }
+            }
+        }
+        for (int index = 0; index < tail.size(); index++) {
+            block.add(tail.getTime(index), tail.getSenderId(index), tail.getPayload(index), tail.getRSSI(index));
+        }
+        return mRing.restore(block);
+    }
+
+    /**
+     * 検索する.
+     *
+     * @param query    検索条件.
+     * @param listener 通知先.
+     * @throws IOException ファイルの読み込み失敗.
+     */
+    public void query(SensorQuery query, IChunkListener listener) throws IOException {
+        QueryCollector collector = new QueryCollector(query, listener);
+        read(query.mFromTime, query.mToTime, collector);
+        collector.finish();
+    }
+
+    /**
+     * 指定期間のレコードを古い順に通知する(全センサー).
+     * リングに残っていない期間はファイルから読む.
+     *
+     * @param fromTime 開始時刻(この時刻を含む).
+     * @param toTime   終了時刻(この時刻を含まない).
+     * @param listener 通知先(falseを返すと中断する).
+     * @throws IOException ファイルの読み込み失敗.
+     */
+    public void read(long fromTime, long toTime, final SensorHistoryFile.IRecordListener listener)
+            throws IOException {
+        final boolean[] cancelled = new boolean[1];
+        SensorHistoryFile.IRecordListener tracker = new SensorHistoryFile.IRecordListener() {
+            @Override
+            public boolean onRecord(long time, int senderId, int payload, int rssi) {
+                if (!listener.onRecord(time, senderId, payload, rssi)) {
+                    cancelled[0] = true;
+                    return false;
+                }
+                return true;
+            }
+        };
+
+        long ringFrom = mRing.getOldestTime();
+        if (mFile != null) {
+            // 受信時刻が前後するため, リングの最古の時刻の直後でもリングから追い出されたレコードがあり得る.
+            // ファイルには全レコードがあるので, 前後し得る幅まではファイルから読む
+            ringFrom = SensorHistoryFile.addDisorder(ringFrom);
+            if (fromTime < ringFrom) {
+                mFile.flush();
+                mFile.read(fromTime, Math.min(toTime, ringFrom), tracker);
+            }
+        }
+
+        if (!cancelled[0]) {
+            mRing.read(Math.max(fromTime, ringFrom), toTime, listener);
+        }
+    }
+
+    /**
+     * 条件に一致するレコードを集めて, 間引きしながらチャンク単位で通知する.
+     */
+    private static class QueryCollector implements SensorHistoryFile.IRecordListener {
+
+        private final SensorQuery mQuery;
+
+        private final IChunkListener mListener;
+
+        private final LazyCO2SensorData mSample = new LazyCO2SensorData();
+
+        private final long[] mTimes = new long[CHUNK_SIZE];
+
+        private final float[] mValues = new float[CHUNK_SIZE];
+
+        private int mCount;
+
+        private boolean mCancelled;
+
+        private long mBucketStart = Long.MIN_VALUE;
+
+        private double mBucketSum;
+
+        private int mBucketCount;
+
+        QueryCollector(SensorQuery query, IChunkListener listener) {
+            mQuery = query;
+            mListener = listener;
+        }
+
+        @Override
+        public boolean onRecord(long time, int senderId, int payload, int rssi) {
+            if (senderId != mQuery.mSenderId) {
+                return true;
+            }
+
+            float value = mSample.set(time, senderId, payload, rssi).getValues(mQuery.mChannel);
+
+            long bucketMillis = mQuery.mBucketMillis;
+            if (bucketMillis <= 0) {
+                return emit(time, value);
+            }
+
+            long bucketStart = time - ((time - mQuery.mFromTime) % bucketMillis);
+            if ((mBucketCount > 0) && (bucketStart < mBucketStart)) {
+                // 前後して届いたデータは集計中の区間に含める
+                bucketStart = mBucketStart;
+            }
+            if ((mBucketCount > 0) && (bucketStart != mBucketStart)) {
+                if (!emitBucket()) {
+                    return false;
+                }
+            }
+            mBucketStart = bucketStart;
+            mBucketSum += value;
+            mBucketCount++;
+            return true;
+        }
+
+        void finish() {
+            if (mCancelled) {
+                return;
+            }
+            if ((mBucketCount > 0) && !emitBucket()) {
+                return;
+            }
+            if (mCount > 0) {
+                mListener.onChunk(mTimes, mValues, mCount);
+                mCount = 0;
+            }
+        }
+
+        private boolean emitBucket() {
+            float average = (float) (mBucketSum / mBucketCount);
+            mBucketSum = 0;
+            mBucketCount = 0;
+            return emit(mBucketStart, average);
+        }
+
+        private boolean emit(long time, float value) {
+            mTimes[mCount] = time;
+            mValues[mCount] = value;
+            mCount++;
+
+            if (mCount == CHUNK_SIZE) {
+                mCount = 0;
+                if (!mListener.onChunk(mTimes, mValues, CHUNK_SIZE)) {
+                    mCancelled = true;
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,456 @@
+package com.nissha.android.things.sample.data;
+
+import android.os.Process;
+
+import com.nissha.android.things.sample.enocean.A50904;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Streaming bulk export of {@link SensorHistory}.
+ * <p>
+ * 履歴をチャンク単位で読みながら, 1レコードずつ再利用するバッファに書式化して出力する.
+ * リストや文字列を生成しないため, 期間によらずメモリ使用量は一定.
+ * エクスポートは優先度を下げた専用スレッドで1件ずつ実行し, 1秒あたりのレコード数を制限して
+ * 受信・解析処理とCPU・ディスクを取り合わないようにする.
+ * <p>
+ * 形式.
+ * <ul>
+ * <li>CSV : time,sensor,co2,temperature,humidity,rssi (1行目は見出し)</li>
+ * <li>NDJSON : 1行に1レコードのJSON</li>
+ * <li>BINARY : "SHX1" の後に, 前のレコードとの時刻差(ZigZag + 可変長)・センダーID(4byte)・
+ * ペイロード(4byte)・RSSI(1byte)を繰り返す(ビッグエンディアン)</li>
+ * </ul>
+ */
+
+public class SensorHistoryExporter {
+
+    public static final int FORMAT_CSV = 0;
+
+    public static final int FORMAT_NDJSON = 1;
+
+    public static final int FORMAT_BINARY = 2;
+
+    /**
+     * エクスポート終了の通知先. エクスポートスレッドから呼ばれる.
+     */
+    public interface IExportListener {
+
+        /**
+         * エクスポートの終了(失敗・中断を含む)を通知する.
+         *
+         * @param records 出力したレコード数. 失敗した場合は -1.
+         * @param error   出力中の例外(無い場合はnull).
+         */
+        void onExportFinished(long records, IOException error);
+    }
+
+    /**
+     * 形式ごとのContent-Type.
+     */
+    private static final String[] CONTENT_TYPES = {
+            "text/csv",
+            "application/x-ndjson",
+            "application/octet-stream"
+    };
+
+    private static final byte[] CSV_HEADER = "time,sensor,co2,temperature,humidity,rssi\n".getBytes();
+
+    private static final byte[] BINARY_MAGIC = {'S', 'H', 'X', '1'};
+
+    /**
+     * 書式化用バッファのサイズ.
+     */
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * 1レコードの最大長(NDJSON).
+     */
+    private static final int MAX_RECORD_LEN = 160;
+
+    /**
+     * 速度制限・中断の確認間隔(読み込んだレコード数).
+     */
+    private static final int THROTTLE_RECORDS = SensorHistoryFile.CHUNK_RECORDS;
+
+    private static final byte[] HEX_DIGITS = "0123456789ABCDEF".getBytes();
+
+    private final SensorHistory mHistory;
+
+    private final int mMaxRecordsPerSecond;
+
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, SensorHistoryExporter.class.getSimpleName());
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
+
+    /**
+     * 書式化(エクスポートスレッドだけが使う).
+     */
+    private final RecordWriter mWriter = new RecordWriter();
+
+    /**
+     * コンストラクタ.
+     *
+     * @param history             エクスポート対象.
+     * @param maxRecordsPerSecond 1秒あたりの最大レコード数(0以下の場合は制限しない).
+     */
+    public SensorHistoryExporter(SensorHistory history, int maxRecordsPerSecond) {
+        mHistory = history;
+        mMaxRecordsPerSecond = maxRecordsPerSecond;
+    }
+
+    /**
+     * 形式名から形式を取得する.
+     *
+     * @param name 形式名(csv, ndjson, binary).
+     * @return 形式.
+     */
+    public static int parseFormat(String name) {
+        if ("csv".equalsIgnoreCase(name)) {
+            return FORMAT_CSV;
+        }
+        if ("ndjson".equalsIgnoreCase(name)) {
+            return FORMAT_NDJSON;
+        }
+        if ("binary".equalsIgnoreCase(name)) {
+            return FORMAT_BINARY;
+        }
+        throw new IllegalArgumentException("Unknown format : " + name);
+    }
+
+    public static String getContentType(int format) {
+        return CONTENT_TYPES[format];
+    }
+
+    /**
+     * 1センサーのエクスポートを依頼する. 実行中のエクスポートがある場合は終了後に実行する.
+     * 中断する場合は戻り値の {@link Future#cancel(boolean)} に true を指定する.
+     *
+     * @param format   形式.
+     * @param senderId センダーID.
+     * @param fromTime 開始時刻(この時刻を含む).
+     * @param toTime   終了時刻(この時刻を含まない).
+     * @param out      出力先(閉じない).
+     * @param listener 終了の通知先(不要な場合はnull).
+     * @return 出力したレコード数.
+     */
+    public Future<Long> submit(int format, int senderId, long fromTime, long toTime, OutputStream out,
+                               IExportListener listener) {
+        return submit(format, false, senderId, fromTime, toTime, out, listener);
+    }
+
+    /**
+     * 全センサーのエクスポートを依頼する. 実行中のエクスポートがある場合は終了後に実行する.
+     *
+     * @param format   形式.
+     * @param fromTime 開始時刻(この時刻を含む).
+     * @param toTime   終了時刻(この時刻を含まない).
+     * @param out      出力先(閉じない).
+     * @param listener 終了の通知先(不要な場合はnull).
+     * @return 出力したレコード数.
+     */
+    public Future<Long> submitAll(int format, long fromTime, long toTime, OutputStream out,
+                                  IExportListener listener) {
+        return submit(format, true, 0, fromTime, toTime, out, listener);
+    }
+
+    /**
+     * エクスポートを依頼する. 全センサーはセンダーIDとは別のフラグで指定する(どの値も実在のセンダーIDになり得るため).
+     */
+    private Future<Long> submit(final int format, final boolean allSensors, final int senderId,
+                                final long fromTime, final long toTime, final OutputStream out,
+                                final IExportListener listener) {
+        if ((format < FORMAT_CSV) || (format > FORMAT_BINARY)) {
+            throw new IllegalArgumentException("Unknown format : " + format);
+        }
+        return mExecutor.submit(new Callable<Long>() {
+            @Override
+            public Long call() throws IOException {
+                long records = -1;
+                IOException error = null;
+                try {
+                    records = export(format, allSensors, senderId, fromTime, toTime, out);
+                    return records;
+                } catch (IOException e) {
+                    error = e;
+                    throw e;
+                } finally {
+                    if (listener != null) {
+                        listener.onExportFinished(records, error);
+                    }
+                }
+            }
+        });
+    }
+
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    private long export(int format, boolean allSensors, int senderId, long fromTime, long toTime,
+                        OutputStream out) throws IOException {
+        RecordWriter writer = mWriter;
+        writer.start(format, allSensors, senderId, out, mMaxRecordsPerSecond);
+        try {
+            mHistory.read(fromTime, toTime, writer);
+            writer.finish();
+            return writer.mCount;
+        } finally {
+            writer.mOutput = null;
+        }
+    }
+
+    /**
+     * レコードを書式化してバッファに書き込む.
+     */
+    private static class RecordWriter implements SensorHistoryFile.IRecordListener {
+
+        private final byte[] mBuffer = new byte[BUFFER_SIZE];
+
+        private int mPos;
+
+        private OutputStream mOutput;
+
+        private int mFormat;
+
+        private boolean mAllSensors;
+
+        private int mSenderId;
+
+        private int mMaxRecordsPerSecond;
+
+        private long mStartNanos;
+
+        private long mCount;
+
+        /**
+         * 読み込んだレコード数(対象外のセンサーを含む. 速度制限はこの件数で行う).
+         */
+        private long mScanned;
+
+        private long mLastTime;
+
+        /**
+         * 出力中の例外(通知先から例外を投げられないため, 読み込みを中断して後で投げる).
+         */
+        private IOException mError;
+
+        void start(int format, boolean allSensors, int senderId, OutputStream out, int maxRecordsPerSecond)
+                throws IOException {
+            mFormat = format;
+            mAllSensors = allSensors;
+            mSenderId = senderId;
+            mOutput = out;
+            mMaxRecordsPerSecond = maxRecordsPerSecond;
+            mStartNanos = System.nanoTime();
+            mCount = 0;
+            mScanned = 0;
+            mLastTime = 0;
+            mError = null;
+            mPos = 0;
+
+            if (format == FORMAT_CSV) {
+                putBytes(CSV_HEADER);
+            } else if (format == FORMAT_BINARY) {
+                putBytes(BINARY_MAGIC);
+            }
+        }
+
+        void finish() throws IOException {
+            if (mError != null) {
+                throw mError;
+            }
+            drain();
+            mOutput.flush();
+        }
+
+        @Override
+        public boolean onRecord(long time, int senderId, int payload, int rssi) {
+            try {
+                if ((++mScanned % THROTTLE_RECORDS) == 0) {
+                    throttle();
+                }
+                if (!mAllSensors && (senderId != mSenderId)) {
+                    return true;
+                }
+                if ((mPos + MAX_RECORD_LEN) > mBuffer.length) {
+                    drain();
+                }
+                switch (mFormat) {
+                    case FORMAT_CSV:
+                        putCsv(time, senderId, payload, rssi);
+                        break;
+                    case FORMAT_NDJSON:
+                        putJson(time, senderId, payload, rssi);
+                        break;
+                    default:
+                        putBinary(time, senderId, payload, rssi);
+                        break;
+                }
+                mCount++;
+                return true;
+            } catch (IOException e) {
+                mError = e;
+                return false;
+            }
+        }
+
+        /**
+         * 中断を確認し, 速度制限を超えている場合は待つ.
+         */
+        private void throttle() throws IOException {
+            if (Thread.interrupted()) {
+                throw new InterruptedIOException("export cancelled.");
+            }
+            if (mMaxRecordsPerSecond <= 0) {
+                return;
+            }
+            long expected = (mScanned * 1000000000L) / mMaxRecordsPerSecond;
+            long ahead = expected - (System.nanoTime() - mStartNanos);
+            if (ahead >= 1000000) {
+                try {
+                    Thread.sleep(ahead / 1000000);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("export cancelled.");
+                }
+            }
+        }
+
+        private void putCsv(long time, int senderId, int payload, int rssi) {
+            putLong(time);
+            putByte(',');
+            putHex(senderId);
+            putByte(',');
+            putValues(payload, ',');
+            putByte(',');
+            putLong(rssi);
+            putByte('\n');
+        }
+
+        private void putJson(long time, int senderId, int payload, int rssi) {
+            putAscii("{\"time\":");
+            putLong(time);
+            putAscii(",\"sensor\":\"");
+            putHex(senderId);
+            putAscii("\",\"co2\":");
+            putLong(A50904.getConcentration((payload >>> 16) & 0xFF));
+            putAscii(",\"temperature\":");
+            putTenths(A50904.getTemperature((payload >>> 8) & 0xFF));
+            putAscii(",\"humidity\":");
+            putTenths(A50904.getHumidity(payload >>> 24));
+            putAscii(",\"rssi\":");
+            putLong(rssi);
+            putAscii("}\n");
+        }
+
+        private void putBinary(long time, int senderId, int payload, int rssi) {
+            long delta = time - mLastTime;
+            mLastTime = time;
+            long zigzag = (delta << 1) ^ (delta >> 63);
+            while ((zigzag & ~0x7FL) != 0) {
+                putByte((int) ((zigzag & 0x7F) | 0x80));
+                zigzag >>>= 7;
+            }
+            putByte((int) zigzag);
+            putInt(senderId);
+            putInt(payload);
+            putByte(rssi);
+        }
+
+        /**
+         * CO2濃度・温度・湿度を区切り文字で区切って書き込む.
+         */
+        private void putValues(int payload, char separator) {
+            putLong(A50904.getConcentration((payload >>> 16) & 0xFF));
+            putByte(separator);
+            putTenths(A50904.getTemperature((payload >>> 8) & 0xFF));
+            putByte(separator);
+            putTenths(A50904.getHumidity(payload >>> 24));
+        }
+
+        /**
+         * 小数点以下1桁で書き込む.
+         */
+        private void putTenths(double value) {
+            long tenths = Math.round(value * 10);
+            if (tenths < 0) {
+                putByte('-');
+                tenths = -tenths;
+            }
+            putLong(tenths / 10);
+            putByte('.');
+            putByte((int) ('0' + (tenths % 10)));
+        }
+
+        private void putLong(long value) {
+            if (value < 0) {
+                putByte('-');
+                value = -value;
+            }
+            int start = mPos;
+            do {
+                mBuffer[mPos++] = (byte) ('0' + (value % 10));
+                value /= 10;
+            } while (value != 0);
+            // 下の桁から書いたので反転する
+            for (int low = start, high = mPos - 1; low < high; low++, high--) {
+                byte tmp = mBuffer[low];
+                mBuffer[low] = mBuffer[high];
+                mBuffer[high] = tmp;
+            }
+        }
+
+        private void putHex(int value) {
+            for (int shift = 28; shift >= 0; shift -= 4) {
+                mBuffer[mPos++] = HEX_DIGITS[(value >>> shift) & 0x0F];
+            }
+        }
+
+        private void putInt(int value) {
+            mBuffer[mPos++] = (byte) (value >>> 24);
+            mBuffer[mPos++] = (byte) (value >>> 16);
+            mBuffer[mPos++] = (byte) (value >>> 8);
+            mBuffer[mPos++] = (byte) value;
+        }
+
+        private void putAscii(String text) {
+            for (int index = 0; index < text.length(); index++) {
+                mBuffer[mPos++] = (byte) text.charAt(index);
+            }
+        }
+
+        private void putBytes(byte[] data) {
+            System.arraycopy(data, 0, mBuffer, mPos, data.length);
+            mPos += data.length;
+        }
+
+        private void putByte(int value) {
+            mBuffer[mPos++] = (byte) value;
+        }
+
+        private void drain() throws IOException {
+            if (mPos > 0) {
+                mOutput.write(mBuffer, 0, mPos);
+                mPos = 0;
+            }
+        }
+    }
+}
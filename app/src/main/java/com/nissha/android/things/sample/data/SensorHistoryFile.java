@@ -0,0 +1,518 @@
+package com.nissha.android.things.sample.data;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * On-disk sensor history (append only binary file).
+ * <p>
+ * 1レコード {@value #RECORD_SIZE} byte の固定長で,
+ * 受信時刻(8byte)・センダーID(4byte)・ペイロード(4byte)・RSSI(1byte) をビッグエンディアンで格納する.
+ * レコードは解析スレッドごとに追記されるため, 受信時刻は厳密には単調増加しない.
+ * 前後するのは {@link #MAX_DISORDER_MILLIS} 未満とし, 期間を指定した読み込みはその幅だけ前後を余分に探す.
+ * <p>
+ * 追記はメモリ上のバッファにコピーするだけで, ファイルへの書き込みは書き込みスレッド
+ * (または {@link #flush()} の呼び出し元)が行う. 受信スレッドがディスクI/Oで待たされないようにするため.
+ * ファイルが上限のレコード数に達すると "ファイル名.1" に移して新しいファイルに切り替える(1世代のみ残す).
+ * レコード番号は現在のファイル内の位置で, 切り替えると0から数え直す. 切り替えた回数(世代)は
+ * "ファイル名.gen" に保存し, 世代とレコード番号の組({@link HistoryPosition})で位置を表す.
+ */
+
+public class SensorHistoryFile {
+
+    /**
+     * 1レコードのサイズ.
+     */
+    public static final int RECORD_SIZE = 17;
+
+    /**
+     * 読み込み時に一度に読むレコード数.
+     */
+    public static final int CHUNK_RECORDS = 512;
+
+    /**
+     * 1ファイルの既定の最大レコード数(約17MB).
+     */
+    public static final long DEFAULT_MAX_RECORDS = 1000000;
+
+    /**
+     * 追記順と受信時刻が前後し得る最大幅. 後から追記されたレコードの受信時刻は,
+     * それ以前に追記されたレコードの受信時刻からこの時間を引いた時刻より後になる.
+     */
+    public static final long MAX_DISORDER_MILLIS = 1000;
+
+    /**
+     * 書き込みスレッドが待機なしで終了するまでの時間.
+     */
+    private static final long WRITER_KEEP_ALIVE_SEC = 10;
+
+    /**
+     * 読み込んだレコードの通知先.
+     */
+    public interface IRecordListener {
+
+        /**
+         * レコードを通知する.
+         *
+         * @return false : 読み込みを中断する.
+         */
+        boolean onRecord(long time, int senderId, int payload, int rssi);
+    }
+
+    private final File mFile;
+
+    private final File mRotatedFile;
+
+    private final File mGenerationFile;
+
+    private final long mMaxRecords;
+
+    /**
+     * 書き込み中のファイル(書き込みロックを取って使う).
+     */
+    private OutputStream mOutput;
+
+    /**
+     * 現在のファイルの世代(書き込みロックを取って使う).
+     */
+    private long mGeneration;
+
+    /**
+     * 書き込みロック. ファイルへの書き込みと切り替えを直列化する.
+     */
+    private final Object mWriteLock = new Object();
+
+    /**
+     * 追記済みで未書き込みのレコード(this のロックを取って使う).
+     */
+    private byte[] mPending = new byte[RECORD_SIZE * CHUNK_RECORDS];
+
+    private int mPendingLength;
+
+    /**
+     * 書き込み中のレコード(書き込みロックを取って使う. mPending と入れ替えて使い回す).
+     */
+    private byte[] mWriting = new byte[RECORD_SIZE * CHUNK_RECORDS];
+
+    private boolean mWriteScheduled;
+
+    private final ThreadPoolExecutor mWriter;
+
+    private final Runnable mWriteTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    };
+
+    /**
+     * コンストラクタ(最大レコード数は {@link #DEFAULT_MAX_RECORDS}).
+     *
+     * @param file 保存先ファイル.
+     */
+    public SensorHistoryFile(File file) {
+        this(file, DEFAULT_MAX_RECORDS);
+    }
+
+    /**
+     * コンストラクタ.
+     *
+     * @param file       保存先ファイル.
+     * @param maxRecords 1ファイルの最大レコード数.
+     */
+    public SensorHistoryFile(File file, long maxRecords) {
+        mFile = file;
+        mRotatedFile = new File(file.getPath() + ".1");
+        mGenerationFile = new File(file.getPath() + ".gen");
+        mGeneration = readGeneration(mGenerationFile);
+        mMaxRecords = maxRecords;
+        mWriter = new ThreadPoolExecutor(1, 1, WRITER_KEEP_ALIVE_SEC, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, SensorHistoryFile.class.getSimpleName());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mWriter.allowCoreThreadTimeOut(true);
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * 切り替え前のファイル.
+     *
+     * @return ファイル.
+     */
+    public File getRotatedFile() {
+        return mRotatedFile;
+    }
+
+    /**
+     * 世代を保存するファイル.
+     *
+     * @return ファイル.
+     */
+    public File getGenerationFile() {
+        return mGenerationFile;
+    }
+
+    /**
+     * レコードを追記する. メモリ上のバッファにコピーするだけで, ディスクI/Oは行わない.
+     *
+     * @param time     受信時刻.
+     * @param senderId センダーID.
+     * @param payload  ペイロード(DB3 - DB0).
+     * @param rssi     RSSI.
+     */
+    public synchronized void append(long time, int senderId, int payload, int rssi) {
+        if ((mPendingLength + RECORD_SIZE) > mPending.length) {
+            // 書き込みが追いついていない
+            byte[] pending = new byte[mPending.length * 2];
+            System.arraycopy(mPending, 0, pending, 0, mPendingLength);
+            mPending = pending;
+        }
+        encode(mPending, mPendingLength, time, senderId, payload, rssi);
+        mPendingLength += RECORD_SIZE;
+
+        if (!mWriteScheduled && (mPendingLength >= (RECORD_SIZE * CHUNK_RECORDS))) {
+            mWriteScheduled = true;
+            mWriter.execute(mWriteTask);
+        }
+    }
+
+    /**
+     * 追記済みのレコードをファイルに書き込む. 上限に達した場合はファイルを切り替える.
+     *
+     * @throws IOException 書き込み失敗.
+     */
+    public void flush() throws IOException {
+        synchronized (mWriteLock) {
+            int length;
+            synchronized (this) {
+                byte[] pending = mPending;
+                if (mWriting.length < pending.length) {
+                    mWriting = new byte[pending.length];
+                }
+                mPending = mWriting;
+                mWriting = pending;
+                length = mPendingLength;
+                mPendingLength = 0;
+                mWriteScheduled = false;
+            }
+            if (length == 0) {
+                return;
+            }
+
+            if (mOutput == null) {
+                mOutput = new BufferedOutputStream(new FileOutputStream(mFile, true), RECORD_SIZE * CHUNK_RECORDS);
+            }
+            mOutput.write(mWriting, 0, length);
+            mOutput.flush();
+
+            if (getRecordCount() >= mMaxRecords) {
+                rotate();
+            }
+        }
+    }
+
+    /**
+     * ファイルを閉じる. 未書き込みのレコードは書き込む.
+     *
+     * @throws IOException 書き込み失敗.
+     */
+    public void close() throws IOException {
+        synchronized (mWriteLock) {
+            flush();
+            if (mOutput != null) {
+                mOutput.close();
+                mOutput = null;
+            }
+        }
+    }
+
+    /**
+     * 現在のファイルを "ファイル名.1" に移す(書き込みロックを取って呼ぶこと).
+     */
+    private void rotate() throws IOException {
+        mOutput.close();
+        mOutput = null;
+        if (mRotatedFile.exists() && !mRotatedFile.delete()) {
+            throw new IOException("failed to delete " + mRotatedFile);
+        }
+        if (!mFile.renameTo(mRotatedFile)) {
+            throw new IOException("failed to rotate " + mFile);
+        }
+        mGeneration++;
+        writeGeneration();
+    }
+
+    private void writeGeneration() throws IOException {
+        RandomAccessFile output = new RandomAccessFile(mGenerationFile, "rw");
+        try {
+            output.writeLong(mGeneration);
+            output.getFD().sync();
+        } finally {
+            output.close();
+        }
+    }
+
+    private static long readGeneration(File file) {
+        if (!file.exists()) {
+            return 0;
+        }
+        try {
+            RandomAccessFile input = new RandomAccessFile(file, "r");
+            try {
+                return input.readLong();
+            } finally {
+                input.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+    /**
+     * 保存済みのレコード数を取得する(未flushのデータは含まない).
+     *
+     * @return レコード数.
+     */
+    public long getRecordCount() {
+        return mFile.length() / RECORD_SIZE;
+    }
+
+    /**
+     * 保存済みの位置(現在の世代とレコード数)を取得する(未flushのデータは含まない).
+     *
+     * @param out 格納先.
+     */
+    public void getPosition(HistoryPosition out) {
+        synchronized (mWriteLock) {
+            out.mGeneration = mGeneration;
+            out.mRecords = getRecordCount();
+        }
+    }
+
+    /**
+     * 指定期間のレコードを先頭から順に読み込む(切り替え前のファイルを含む).
+     * 受信時刻は {@link #MAX_DISORDER_MILLIS} の範囲で前後するため, 通知は厳密な時刻順ではない.
+     *
+     * @param fromTime 開始時刻(この時刻を含む).
+     * @param toTime   終了時刻(この時刻を含まない).
+     * @param listener 通知先.
+     * @throws IOException 読み込み失敗.
+     */
+    public void read(long fromTime, long toTime, IRecordListener listener) throws IOException {
+        if (read(mRotatedFile, fromTime, toTime, listener)) {
+            read(mFile, fromTime, toTime, listener);
+        }
+    }
+
+    /**
+     * @return false : 中断した.
+     */
+    private static boolean read(File target, long fromTime, long toTime, IRecordListener listener)
+            throws IOException {
+        if (!target.exists()) {
+            return true;
+        }
+
+        RandomAccessFile file = new RandomAccessFile(target, "r");
+        try {
+            long count = file.length() / RECORD_SIZE;
+            long firstIndex = findFirstIndex(file, count, subtractDisorder(fromTime));
+            return read(file, firstIndex, count, fromTime, toTime, listener);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * 位置 from から位置 to までに追記されたレコードを読み込む. 間でファイルを切り替えている場合は,
+     * 切り替え前のファイルの from 以降を読んでから現在のファイルを読む.
+     * 読み込み中はファイルを切り替えない(書き込みスレッドは待つが, 追記は待たない).
+     *
+     * @param from       開始位置(この位置のレコードから読む).
+     * @param to         終了位置(この位置のレコードは含まない).
+     * @param maxRecords 最大件数. 超える場合は新しい方から読む.
+     * @param listener   通知先.
+     * @return false : from から続くファイルが残っていない(2回以上切り替えた, または作り直された). 何も読まない.
+     * @throws IOException 読み込み失敗.
+     */
+    public boolean readRange(HistoryPosition from, HistoryPosition to, long maxRecords, IRecordListener listener)
+            throws IOException {
+        synchronized (mWriteLock) {
+            File fromFile = getFile(from.mGeneration);
+            File toFile = getFile(to.mGeneration);
+            if ((fromFile == null) || (toFile == null)) {
+                return false;
+            }
+
+            if (from.mGeneration == to.mGeneration) {
+                if (from.mRecords > to.mRecords) {
+                    return false;
+                }
+                readRecords(toFile, Math.max(from.mRecords, to.mRecords - maxRecords), to.mRecords, listener);
+                return true;
+            }
+
+            // 切り替え前のファイルは from の世代, 現在のファイルは to の世代
+            long rotatedRecords = fromFile.length() / RECORD_SIZE;
+            if ((from.mGeneration != (to.mGeneration - 1)) || (from.mRecords > rotatedRecords)) {
+                return false;
+            }
+            long rest = maxRecords - Math.min(maxRecords, to.mRecords);
+            if ((rest > 0) && !readRecords(fromFile, Math.max(from.mRecords, rotatedRecords - rest),
+                    rotatedRecords, listener)) {
+                return true;
+            }
+            readRecords(toFile, Math.max(0, to.mRecords - maxRecords), to.mRecords, listener);
+            return true;
+        }
+    }
+
+    /**
+     * 世代のファイルを取得する(書き込みロックを取って呼ぶこと).
+     *
+     * @return ファイル. 残っていない世代の場合は null.
+     */
+    private File getFile(long generation) {
+        if (generation == mGeneration) {
+            return mFile;
+        }
+        if ((generation == (mGeneration - 1)) && mRotatedFile.exists()) {
+            return mRotatedFile;
+        }
+        return null;
+    }
+
+    /**
+     * レコード番号を指定して読み込む.
+     *
+     * @return false : 中断した.
+     */
+    private static boolean readRecords(File target, long fromIndex, long toIndex, IRecordListener listener)
+            throws IOException {
+        if (!target.exists()) {
+            return true;
+        }
+
+        RandomAccessFile file = new RandomAccessFile(target, "r");
+        try {
+            long count = Math.min(toIndex, file.length() / RECORD_SIZE);
+            return read(file, Math.max(0, fromIndex), count, Long.MIN_VALUE, Long.MAX_VALUE, listener);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * 期間外のレコードは読み飛ばし, 終了時刻から前後し得る幅を超えたところで止める.
+     *
+     * @return false : 中断した(終了時刻に達した場合を含む).
+     */
+    private static boolean read(RandomAccessFile file, long index, long count, long fromTime, long toTime,
+                                IRecordListener listener) throws IOException {
+        long stopTime = addDisorder(toTime);
+        byte[] chunk = new byte[RECORD_SIZE * CHUNK_RECORDS];
+        while (index < count) {
+            int records = (int) Math.min(CHUNK_RECORDS, count - index);
+            file.seek(index * RECORD_SIZE);
+            file.readFully(chunk, 0, records * RECORD_SIZE);
+
+            for (int pos = 0; pos < (records * RECORD_SIZE); pos += RECORD_SIZE) {
+                long time = getLong(chunk, pos);
+                if (time >= stopTime) {
+                    return false;
+                }
+                if ((time < fromTime) || (time >= toTime)) {
+                    continue;
+                }
+                if (!listener.onRecord(time, getInt(chunk, pos + 8), getInt(chunk, pos + 12), chunk[pos + 16])) {
+                    return false;
+                }
+            }
+            index += records;
+        }
+        return true;
+    }
+
+    /**
+     * 指定時刻以降の最初のレコード位置を二分探索で求める.
+     * 時刻が前後していても, 返す位置より前に (指定時刻 + {@link #MAX_DISORDER_MILLIS}) 以降のレコードは無い.
+     */
+    private static long findFirstIndex(RandomAccessFile file, long count, long time) throws IOException {
+        long low = 0;
+        long high = count;
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            file.seek(mid * RECORD_SIZE);
+            if (file.readLong() < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * 前後し得る幅だけ前の時刻(オーバーフローしない).
+     */
+    static long subtractDisorder(long time) {
+        return (time < (Long.MIN_VALUE + MAX_DISORDER_MILLIS)) ? Long.MIN_VALUE : (time - MAX_DISORDER_MILLIS);
+    }
+
+    /**
+     * 前後し得る幅だけ後の時刻(オーバーフローしない).
+     */
+    static long addDisorder(long time) {
+        return (time > (Long.MAX_VALUE - MAX_DISORDER_MILLIS)) ? Long.MAX_VALUE : (time + MAX_DISORDER_MILLIS);
+    }
+
+    /**
+     * レコードをbyte配列に書き込む.
+     */
+    static void encode(byte[] out, int pos, long time, int senderId, int payload, int rssi) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out[pos++] = (byte) (time >>> shift);
+        }
+        pos = putInt(out, pos, senderId);
+        pos = putInt(out, pos, payload);
+        out[pos] = (byte) rssi;
+    }
+
+    private static int putInt(byte[] out, int pos, int value) {
+        out[pos++] = (byte) (value >>> 24);
+        out[pos++] = (byte) (value >>> 16);
+        out[pos++] = (byte) (value >>> 8);
+        out[pos++] = (byte) value;
+        return pos;
+    }
+
+    static int getInt(byte[] data, int pos) {
+        return ((data[pos] & 0xFF) << 24) | ((data[pos + 1] & 0xFF) << 16)
+                | ((data[pos + 2] & 0xFF) << 8) | (data[pos + 3] & 0xFF);
+    }
+
+    static long getLong(byte[] data, int pos) {
+        return ((long) getInt(data, pos) << 32) | (getInt(data, pos + 4) & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,391 @@
+package com.nissha.android.things.sample.data;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Minimal embedded HTTP endpoint for {@link SensorHistory} queries.
+ * <p>
+ * <pre>
+ * GET /history?sensor=040189B8&amp;channel=0&amp;from=1500000000000&amp;to=1500003600000&amp;bucket=60000
+ * </pre>
+ * 結果は "時刻,値" のCSVを Transfer-Encoding: chunked で返す.
+ * 省略時は from=0, to=現在時刻, bucket=0(間引き無し).
+ * <pre>
+ * GET /export?format=ndjson&amp;sensor=040189B8&amp;from=1500000000000&amp;to=1500003600000
+ * </pre>
+ * 全チャンネルの生データを {@link SensorHistoryExporter} の形式(csv, ndjson, binary)で返す.
+ * 省略時は format=csv, sensor=全センサー. エクスポートは同時に1件だけ受け付け, 実行中は 503 を返す.
+ */
+
+public class SensorHistoryServer {
+
+    private static final String TAG = SensorHistoryServer.class.getSimpleName();
+
+    private static final String PATH = "/history";
+
+    private static final String EXPORT_PATH = "/export";
+
+    /**
+     * エクスポートの最大速度(レコード数/秒).
+     */
+    private static final int EXPORT_MAX_RECORDS_PER_SECOND = 100000;
+
+    private static final int CHUNK_SIZE = 8 * 1024;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    /**
+     * 同時に処理するリクエスト数.
+     */
+    private static final int WORKER_NUM = 2;
+
+    private final SensorHistory mHistory;
+
+    private final InetAddress mAddress;
+
+    private final int mPort;
+
+    private ServerSocket mServerSocket;
+
+    private ExecutorService mWorkers;
+
+    private SensorHistoryExporter mExporter;
+
+    /**
+     * エクスポート実行中.
+     */
+    private final AtomicBoolean mExporting = new AtomicBoolean();
+
+    /**
+     * コンストラクタ(ループバックアドレスで待ち受ける).
+     *
+     * @param history 検索対象.
+     * @param port    ポート番号.
+     */
+    public SensorHistoryServer(SensorHistory history, int port) {
+        this(history, InetAddress.getLoopbackAddress(), port);
+    }
+
+    /**
+     * コンストラクタ.
+     *
+     * @param history 検索対象.
+     * @param address 待ち受けアドレス.
+     * @param port    ポート番号.
+     */
+    public SensorHistoryServer(SensorHistory history, InetAddress address, int port) {
+        mHistory = history;
+        mAddress = address;
+        mPort = port;
+    }
+
+    /**
+     * 待ち受けを開始する.
+     *
+     * @throws IOException 待ち受け失敗.
+     */
+    public synchronized void start() throws IOException {
+        if (mServerSocket != null) {
+            return;
+        }
+
+        mServerSocket = new ServerSocket();
+        mServerSocket.setReuseAddress(true);
+        mServerSocket.bind(new InetSocketAddress(mAddress, mPort));
+        mWorkers = Executors.newFixedThreadPool(WORKER_NUM);
+        mExporter = new SensorHistoryExporter(mHistory, EXPORT_MAX_RECORDS_PER_SECOND);
+
+        final ServerSocket serverSocket = mServerSocket;
+        final ExecutorService workers = mWorkers;
+        final SensorHistoryExporter exporter = mExporter;
+        Thread acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        final Socket socket = serverSocket.accept();
+                        workers.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                handle(socket, exporter);
+                            }
+                        });
+                    } catch (IOException e) {
+                        if (!serverSocket.isClosed()) {
+                            Log.w(TAG, "accept failed.", e);
+                        }
+                    }
+                }
+            }
+        }, TAG);
+        acceptThread.start();
+    }
+
+    /**
+     * 待ち受けポート番号を取得する(ポート0で開始した場合は割り当てられた番号).
+     *
+     * @return ポート番号.
+     */
+    public synchronized int getLocalPort() {
+        return (mServerSocket != null) ? mServerSocket.getLocalPort() : mPort;
+    }
+
+    /**
+     * 待ち受けを停止する.
+     */
+    public synchronized void stop() {
+        if (mServerSocket == null) {
+            return;
+        }
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        mWorkers.shutdownNow();
+        mExporter.shutdown();
+        mServerSocket = null;
+        mWorkers = null;
+        mExporter = null;
+    }
+
+    private void handle(Socket socket, SensorHistoryExporter exporter) {
+        boolean handedOff = false;
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), ASCII));
+            final OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+
+            String requestLine = reader.readLine();
+            String[] tokens = (requestLine != null) ? requestLine.split(" ") : new String[0];
+            if ((tokens.length < 2) || !"GET".equals(tokens[0])) {
+                writeError(out, "405 Method Not Allowed");
+                return;
+            }
+
+            String target = tokens[1];
+            int question = target.indexOf('?');
+            String path = (question < 0) ? target : target.substring(0, question);
+            Map<String, String> params;
+            try {
+                params = parseParams((question < 0) ? "" : target.substring(question + 1));
+            } catch (IllegalArgumentException e) {
+                writeError(out, "400 Bad Request");
+                return;
+            }
+            if (PATH.equals(path)) {
+                handleQuery(params, out);
+            } else if (EXPORT_PATH.equals(path)) {
+                handedOff = handleExport(params, socket, out, exporter);
+            } else {
+                writeError(out, "404 Not Found");
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "request failed.", e);
+        } finally {
+            if (!handedOff) {
+                close(socket);
+            }
+        }
+    }
+
+    private void handleQuery(Map<String, String> params, OutputStream out) throws IOException {
+        SensorQuery query;
+        try {
+            query = parseQuery(params);
+        } catch (IllegalArgumentException e) {
+            writeError(out, "400 Bad Request");
+            return;
+        }
+
+        writeChunkedHeader(out, "text/csv");
+
+        final ChunkedOutputStream chunked = new ChunkedOutputStream(out, CHUNK_SIZE);
+        final StringBuilder sb = new StringBuilder();
+        final IOException[] error = new IOException[1];
+        mHistory.query(query, new SensorHistory.IChunkListener() {
+            @Override
+            public boolean onChunk(long[] times, float[] values, int count) {
+                sb.setLength(0);
+                for (int index = 0; index < count; index++) {
+                    sb.append(times[index]).append(',').append(values[index]).append("\r\n");
+                }
+                try {
+                    chunked.write(sb.toString().getBytes(ASCII));
+                    chunked.flush();
+                    return true;
+                } catch (IOException e) {
+                    // クライアントが切断した
+                    error[0] = e;
+                    return false;
+                }
+            }
+        });
+
+        if (error[0] == null) {
+            chunked.finish();
+        }
+    }
+
+    /**
+     * エクスポート専用スレッドに出力を任せる. ワーカーは終了を待たずに戻る.
+     *
+     * @return true : ソケットをエクスポート専用スレッドに渡した(終了時にエクスポート側で閉じる).
+     */
+    private boolean handleExport(Map<String, String> params, final Socket socket, OutputStream out,
+                                 SensorHistoryExporter exporter) throws IOException {
+        int format;
+        String sensor = params.get("sensor");
+        int senderId;
+        long from;
+        long to;
+        try {
+            format = SensorHistoryExporter.parseFormat(getOrDefault(params, "format", "csv"));
+            senderId = (sensor == null) ? 0 : parseSenderId(sensor);
+            from = Long.parseLong(getOrDefault(params, "from", "0"));
+            to = Long.parseLong(getOrDefault(params, "to", Long.toString(System.currentTimeMillis())));
+        } catch (IllegalArgumentException e) {
+            writeError(out, "400 Bad Request");
+            return false;
+        }
+
+        if (!mExporting.compareAndSet(false, true)) {
+            writeError(out, "503 Service Unavailable");
+            return false;
+        }
+
+        boolean submitted = false;
+        try {
+            writeChunkedHeader(out, SensorHistoryExporter.getContentType(format));
+
+            final ChunkedOutputStream chunked = new ChunkedOutputStream(out, CHUNK_SIZE);
+            SensorHistoryExporter.IExportListener listener = new SensorHistoryExporter.IExportListener() {
+                @Override
+                public void onExportFinished(long records, IOException error) {
+                    try {
+                        if (records >= 0) {
+                            chunked.finish();
+                            Log.i(TAG, "exported " + records + " records.");
+                        } else {
+                            // 失敗・停止した. 終端チャンクを送らずに切断する
+                            Log.w(TAG, "export failed.", error);
+                        }
+                    } catch (IOException e) {
+                        Log.w(TAG, "export failed.", e);
+                    } finally {
+                        close(socket);
+                        mExporting.set(false);
+                    }
+                }
+            };
+            if (sensor == null) {
+                exporter.submitAll(format, from, to, chunked, listener);
+            } else {
+                exporter.submit(format, senderId, from, to, chunked, listener);
+            }
+            submitted = true;
+        } catch (RejectedExecutionException e) {
+            // 停止中
+            Log.w(TAG, "export rejected.", e);
+        } finally {
+            if (!submitted) {
+                mExporting.set(false);
+            }
+        }
+        return submitted;
+    }
+
+    private static Map<String, String> parseParams(String queryString) {
+        Map<String, String> params = new HashMap<>();
+        for (String param : queryString.split("&")) {
+            int equal = param.indexOf('=');
+            if (equal > 0) {
+                try {
+                    params.put(param.substring(0, equal), URLDecoder.decode(param.substring(equal + 1), "UTF-8"));
+                } catch (java.io.UnsupportedEncodingException e) {
+                    throw new IllegalArgumentException(e);
+                }
+            }
+        }
+        return params;
+    }
+
+    private static SensorQuery parseQuery(Map<String, String> params) {
+        String sensor = params.get("sensor");
+        if (sensor == null) {
+            throw new IllegalArgumentException("sensor is required.");
+        }
+
+        try {
+            int senderId = parseSenderId(sensor);
+            int channel = Integer.parseInt(getOrDefault(params, "channel", "0"));
+            if ((channel < 0) || (channel >= SensorQuery.CHANNEL_NUM)) {
+                throw new IllegalArgumentException("Invalid channel : " + channel);
+            }
+            long from = Long.parseLong(getOrDefault(params, "from", "0"));
+            long to = Long.parseLong(getOrDefault(params, "to", Long.toString(System.currentTimeMillis())));
+            long bucket = Long.parseLong(getOrDefault(params, "bucket", "0"));
+            return new SensorQuery(senderId, channel, from, to).setBucketMillis(bucket);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * センダーID(16進数, 32bit)を解析する.
+     *
+     * @param sensor センダーID文字列.
+     * @return センダーID.
+     */
+    private static int parseSenderId(String sensor) {
+        long value = Long.parseLong(sensor, 16);
+        if ((value < 0) || (value > 0xFFFFFFFFL)) {
+            throw new IllegalArgumentException("Invalid sensor : " + sensor);
+        }
+        return (int) value;
+    }
+
+    private static String getOrDefault(Map<String, String> params, String key, String defaultValue) {
+        String value = params.get(key);
+        return (value != null) ? value : defaultValue;
+    }
+
+    private static void writeChunkedHeader(OutputStream out, String contentType) throws IOException {
+        out.write(("HTTP/1.1 200 OK\r\n"
+                + "Content-Type: " + contentType + "\r\n"
+                + "Transfer-Encoding: chunked\r\n"
+                + "Connection: close\r\n\r\n").getBytes(ASCII));
+    }
+
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void writeError(OutputStream out, String status) throws IOException {
+        out.write(String.format(Locale.US, "HTTP/1.1 %s\r\nContent-Length: 0\r\nConnection: close\r\n\r\n", status)
+                .getBytes(ASCII));
+        out.flush();
+    }
+}
@@ -0,0 +1,79 @@
+package com.nissha.android.things.sample.data;
+
+/**
+ * Sensor history query condition.
+ */
+
+public class SensorQuery {
+
+    /**
+     * チャンネル : CO2濃度(ppm).
+     */
+    public static final int CHANNEL_CONCENTRATION = 0;
+
+    /**
+     * チャンネル : 温度(℃).
+     */
+    public static final int CHANNEL_TEMPERATURE = 1;
+
+    /**
+     * チャンネル : 湿度(%).
+     */
+    public static final int CHANNEL_HUMIDITY = 2;
+
+    /**
+     * チャンネル数.
+     */
+    public static final int CHANNEL_NUM = 3;
+
+    /**
+     * センダーID.
+     */
+    public int mSenderId;
+
+    /**
+     * チャンネル({@link com.nissha.android.things.sample.enocean.EnOceanSensorData#getValues(int)} のインデックス).
+     */
+    public int mChannel;
+
+    /**
+     * 開始時刻(この時刻を含む).
+     */
+    public long mFromTime;
+
+    /**
+     * 終了時刻(この時刻を含まない).
+     */
+    public long mToTime;
+
+    /**
+     * 間引き単位(ms). 0の場合は間引きしない.
+     */
+    public long mBucketMillis;
+
+    /**
+     * コンストラクタ.
+     *
+     * @param senderId センダーID.
+     * @param channel  チャンネル.
+     * @param fromTime 開始時刻.
+     * @param toTime   終了時刻.
+     */
+    public SensorQuery(int senderId, int channel, long fromTime, long toTime) {
+        mSenderId = senderId;
+        mChannel = channel;
+        mFromTime = fromTime;
+        mToTime = toTime;
+    }
+
+    /**
+     * 間引き単位を設定する. 単位ごとの平均値を返す.
+     *
+     * @param bucketMillis 間引き単位(ms).
+     * @return this.
+     */
+    public SensorQuery setBucketMillis(long bucketMillis) {
+        mBucketMillis = bucketMillis;
+        return this;
+    }
+}
@@ -0,0 +1,382 @@
+package com.nissha.android.things.sample.data;
+
+import com.nissha.android.things.sample.enocean.EnOceanSensorData;
+import com.nissha.android.things.sample.enocean.LazyCO2SensorData;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * In-memory ring buffer of raw sensor samples.
+ * <p>
+ * 受信時刻・センダーID・ペイロード(4byte)・RSSIをプリミティブ配列に詰めて保持する.
+ * 容量を超えた場合は古いデータから上書きする.
+ * <p>
+ * センサーごとの最新データの位置をハッシュ表(オープンアドレス法)で持ち, 各データには同じセンサーの
+ * 1つ前のデータのシーケンス番号を持たせる. {@link #readLatest(int, long[], int[])} はリング全体を
+ * 走査せずに, そのセンサーのデータだけをたどる.
+ */
+
+public class SensorSampleRing {
+
+    private final int mCapacity;
+
+    private final long[] mTimes;
+
+    private final int[] mSenderIds;
+
+    private final int[] mPayloads;
+
+    private final byte[] mRSSIs;
+
+    /**
+     * 同じセンサーの1つ前のデータのシーケンス番号(無い場合は -1).
+     */
+    private final long[] mPrevious;
+
+    /**
+     * センサーごとの最新データの表(センダーID).
+     */
+    private final int[] mIndexKeys;
+
+    /**
+     * センサーごとの最新データの表(シーケンス番号 + 1. 0は空き).
+     */
+    private final long[] mIndexLatest;
+
+    private final int mIndexMask;
+
+    /**
+     * これまでに追加した件数(次に追加するデータのシーケンス番号).
+     */
+    private long mTotalCount;
+
+    /**
+     * コンストラクタ.
+     *
+     * @param capacity 保持件数.
+     */
+    public SensorSampleRing(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive.");
+        }
+        mCapacity = capacity;
+        mTimes = new long[capacity];
+        mSenderIds = new int[capacity];
+        mPayloads = new int[capacity];
+        mRSSIs = new byte[capacity];
+        mPrevious = new long[capacity];
+
+        // センサー数は最大で保持件数と同じため, 使用率50%以下に収まる
+        int slots = Integer.highestOneBit(Math.max(capacity, 2) * 2 - 1) * 2;
+        mIndexMask = slots - 1;
+        mIndexKeys = new int[slots];
+        mIndexLatest = new long[slots];
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * データを追加する.
+     *
+     * @param time     受信時刻.
+     * @param senderId センダーID.
+     * @param payload  ペイロード(DB3 - DB0).
+     * @param rssi     RSSI.
+     * @return 追加したデータのシーケンス番号.
+     */
+    public synchronized long add(long time, int senderId, int payload, int rssi) {
+        int pos = (int) (mTotalCount % mCapacity);
+        if (mTotalCount >= mCapacity) {
+            unlink(mTotalCount - mCapacity, mSenderIds[pos]);
+        }
+        mTimes[pos] = time;
+        mSenderIds[pos] = senderId;
+        mPayloads[pos] = payload;
+        mRSSIs[pos] = (byte) rssi;
+        link(mTotalCount, senderId);
+        return mTotalCount++;
+    }
+
+    /**
+     * 起動前に保存したデータを, 保持しているデータより古いものとして先頭側に戻す.
+     * 容量を超える分は古いものから捨てる. 戻した件数だけ既存データのシーケンス番号は後ろにずれる.
+     *
+     * @param block 戻すデータ(古い順).
+     * @return 戻した件数.
+     */
+    public synchronized int restore(SampleBlock block) {
+        int live = (int) Math.min(mTotalCount, mCapacity);
+        int count = block.size();
+        int restored = Math.min(count, mCapacity - live);
+        if (restored <= 0) {
+            return 0;
+        }
+
+        // 既存データを退避してから, 戻すデータ・既存データの順に並べ直す
+        SampleBlock liveBlock = new SampleBlock(Math.max(live, 1));
+        snapshot(liveBlock);
+
+        mTotalCount += restored;
+        long sequence = mTotalCount - live - restored;
+        for (int index = count - restored; index < count; index++) {
+            set(sequence++, block.getTime(index), block.getSenderId(index), block.getPayload(index),
+                    block.getRSSI(index));
+        }
+        for (int index = 0; index < live; index++) {
+            set(sequence++, liveBlock.getTime(index), liveBlock.getSenderId(index), liveBlock.getPayload(index),
+                    liveBlock.getRSSI(index));
+        }
+
+        // シーケンス番号がずれたため, センサーごとの表を作り直す
+        Arrays.fill(mIndexLatest, 0);
+        for (long seq = mTotalCount - live - restored; seq < mTotalCount; seq++) {
+            link(seq, mSenderIds[(int) (seq % mCapacity)]);
+        }
+        return restored;
+    }
+
+    /**
+     * 保持しているデータを古い順にコピーする. 格納先の容量を超える分は新しいものを残す.
+     *
+     * @param out 格納先(既存の内容は消去する).
+     */
+    public synchronized void snapshot(SampleBlock out) {
+        out.clear();
+        long first = mTotalCount - Math.min(mTotalCount, mCapacity);
+        for (long sequence = first; sequence < mTotalCount; sequence++) {
+            int pos = (int) (sequence % mCapacity);
+            out.add(mTimes[pos], mSenderIds[pos], mPayloads[pos], mRSSIs[pos]);
+        }
+    }
+
+    private void set(long sequence, long time, int senderId, int payload, int rssi) {
+        int pos = (int) (sequence % mCapacity);
+        mTimes[pos] = time;
+        mSenderIds[pos] = senderId;
+        mPayloads[pos] = payload;
+        mRSSIs[pos] = (byte) rssi;
+    }
+
+    /**
+     * 保持している件数.
+     *
+     * @return 件数.
+     */
+    public synchronized int size() {
+        return (int) Math.min(mTotalCount, mCapacity);
+    }
+
+    /**
+     * これまでに追加した件数.
+     *
+     * @return 件数.
+     */
+    public synchronized long getTotalCount() {
+        return mTotalCount;
+    }
+
+    /**
+     * 保持している最も古いデータのシーケンス番号.
+     *
+     * @return シーケンス番号.
+     */
+    public synchronized long getFirstSequence() {
+        return mTotalCount - Math.min(mTotalCount, mCapacity);
+    }
+
+    /**
+     * シーケンス番号を指定してデータを取得する.
+     * 上書き済みのシーケンス番号の場合は保持している最も古いデータを返す.
+     *
+     * @param sequence シーケンス番号.
+     * @param out      格納先(再利用可).
+     * @return out. データが存在しない場合はnull.
+     */
+    public synchronized LazyCO2SensorData get(long sequence, LazyCO2SensorData out) {
+        if ((mTotalCount == 0) || (sequence >= mTotalCount)) {
+            return null;
+        }
+        long first = mTotalCount - Math.min(mTotalCount, mCapacity);
+        if (sequence < first) {
+            sequence = first;
+        }
+        int pos = (int) (sequence % mCapacity);
+        return out.set(mTimes[pos], mSenderIds[pos], mPayloads[pos], mRSSIs[pos]);
+    }
+
+    /**
+     * 保持しているデータのうち, 指定期間のデータを古い順(追加順)に通知する.
+     * 一定件数ずつローカル配列にコピーしてから通知するため, 通知中も追加はブロックされない.
+     * 受信時刻は {@link SensorHistoryFile#MAX_DISORDER_MILLIS} の範囲で前後するため, その幅を超えるまで読む.
+     *
+     * @param fromTime 開始時刻(この時刻を含む).
+     * @param toTime   終了時刻(この時刻を含まない).
+     * @param listener 通知先.
+     */
+    public void read(long fromTime, long toTime, SensorHistoryFile.IRecordListener listener) {
+        final int chunkSize = SensorHistoryFile.CHUNK_RECORDS;
+        long[] times = new long[chunkSize];
+        int[] senderIds = new int[chunkSize];
+        int[] payloads = new int[chunkSize];
+        byte[] rssis = new byte[chunkSize];
+
+        long stopTime = SensorHistoryFile.addDisorder(toTime);
+        long sequence = getFirstSequence();
+        while (true) {
+            int count = 0;
+            synchronized (this) {
+                long first = mTotalCount - Math.min(mTotalCount, mCapacity);
+                if (sequence < first) {
+                    // 読み込み中に上書きされた分は読み飛ばす
+                    sequence = first;
+                }
+                while ((count < chunkSize) && (sequence < mTotalCount)) {
+                    int pos = (int) (sequence % mCapacity);
+                    times[count] = mTimes[pos];
+                    senderIds[count] = mSenderIds[pos];
+                    payloads[count] = mPayloads[pos];
+                    rssis[count] = mRSSIs[pos];
+                    count++;
+                    sequence++;
+                }
+            }
+
+            if (count == 0) {
+                return;
+            }
+
+            for (int index = 0; index < count; index++) {
+                long time = times[index];
+                if (time >= stopTime) {
+                    return;
+                }
+                if ((time < fromTime) || (time >= toTime)) {
+                    continue;
+                }
+                if (!listener.onRecord(time, senderIds[index], payloads[index], rssis[index])) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 指定センサーの最新データを新しい順に取得する.
+     *
+     * @param senderId センダーID.
+     * @param times    受信時刻の格納先.
+     * @param payloads ペイロードの格納先.
+     * @return 取得件数(最大で配列の長さ).
+     */
+    public synchronized int readLatest(int senderId, long[] times, int[] payloads) {
+        int max = Math.min(times.length, payloads.length);
+        int slot = findIndexSlot(senderId);
+        if (mIndexLatest[slot] == 0) {
+            return 0;
+        }
+        long first = getFirstSequence();
+        int count = 0;
+        for (long sequence = mIndexLatest[slot] - 1; (sequence >= first) && (count < max); ) {
+            int pos = (int) (sequence % mCapacity);
+            times[count] = mTimes[pos];
+            payloads[count] = mPayloads[pos];
+            count++;
+            sequence = mPrevious[pos];
+        }
+        return count;
+    }
+
+    /**
+     * データをセンサーの最新データとして表に登録する.
+     */
+    private void link(long sequence, int senderId) {
+        int slot = findIndexSlot(senderId);
+        mPrevious[(int) (sequence % mCapacity)] = mIndexLatest[slot] - 1;
+        mIndexKeys[slot] = senderId;
+        mIndexLatest[slot] = sequence + 1;
+    }
+
+    /**
+     * 上書きされるデータがそのセンサーの最後の1件だった場合は表から削除する.
+     */
+    private void unlink(long sequence, int senderId) {
+        int slot = findIndexSlot(senderId);
+        if (mIndexLatest[slot] != (sequence + 1)) {
+            // より新しいデータが残っている(1つ前を指す位置は上書きで範囲外になる)
+            return;
+        }
+
+        // 後続のエントリを詰めて, 探索が途切れないようにする
+        mIndexLatest[slot] = 0;
+        int next = (slot + 1) & mIndexMask;
+        while (mIndexLatest[next] != 0) {
+            int home = mix(mIndexKeys[next]) & mIndexMask;
+            if (((next - home) & mIndexMask) >= ((next - slot) & mIndexMask)) {
+                mIndexKeys[slot] = mIndexKeys[next];
+                mIndexLatest[slot] = mIndexLatest[next];
+                mIndexLatest[next] = 0;
+                slot = next;
+            }
+            next = (next + 1) & mIndexMask;
+        }
+    }
+
+    /**
+     * センダーIDの表の位置を探す.
+     *
+     * @return 登録済みならその位置, 未登録なら空き位置.
+     */
+    private int findIndexSlot(int senderId) {
+        int slot = mix(senderId) & mIndexMask;
+        while ((mIndexLatest[slot] != 0) && (mIndexKeys[slot] != senderId)) {
+            slot = (slot + 1) & mIndexMask;
+        }
+        return slot;
+    }
+
+    private static int mix(int value) {
+        int h = value * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * 保持している最も古いデータの受信時刻を取得する.
+     *
+     * @return 受信時刻. データが無い場合は Long.MAX_VALUE.
+     */
+    public synchronized long getOldestTime() {
+        if (mTotalCount == 0) {
+            return Long.MAX_VALUE;
+        }
+        return mTimes[(int) (getFirstSequence() % mCapacity)];
+    }
+
+    /**
+     * 現時点で保持しているデータのリストビューを取得する.
+     * ビューの件数は呼び出し時点で固定され, 要素は参照時に生成する.
+     *
+     * @return リストビュー.
+     */
+    public synchronized List<EnOceanSensorData> asList() {
+        final long first = getFirstSequence();
+        final int size = size();
+        return new AbstractList<EnOceanSensorData>() {
+            @Override
+            public EnOceanSensorData get(int index) {
+                if ((index < 0) || (index >= size)) {
+                    throw new IndexOutOfBoundsException("index : " + index);
+                }
+                return SensorSampleRing.this.get(first + index, new LazyCO2SensorData());
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+}
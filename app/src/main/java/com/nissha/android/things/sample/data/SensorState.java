@@ -0,0 +1,47 @@
+package com.nissha.android.things.sample.data;
+
+import com.nissha.android.things.sample.enocean.LazyCO2SensorData;
+
+/**
+ * Latest state of one sensor (copied out of {@link SensorStateTable}).
+ */
+
+public class SensorState {
+
+    /**
+     * センダーID.
+     */
+    public int mSenderId;
+
+    /**
+     * 最終受信時刻(Unix Time).
+     */
+    public long mTime;
+
+    /**
+     * ペイロード(DB3 - DB0).
+     */
+    public int mPayload;
+
+    /**
+     * RSSI
+     */
+    public int mRSSI;
+
+    /**
+     * このセンサーの受信回数(1から始まる).
+     */
+    public long mSequence;
+
+    private final LazyCO2SensorData mSample = new LazyCO2SensorData();
+
+    /**
+     * 値を取得する.
+     *
+     * @param channel チャンネル({@link SensorQuery#CHANNEL_CONCENTRATION} など).
+     * @return 値.
+     */
+    public float getValue(int channel) {
+        return mSample.set(mTime, mSenderId, mPayload, mRSSI).getValues(channel);
+    }
+}
@@ -0,0 +1,425 @@
+package com.nissha.android.things.sample.data;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latest state per sensor, keyed by int sender ID.
+ * <p>
+ * オープンアドレス法のハッシュ表で, センサーごとの最新値を O(1) で参照できる.
+ * 更新はスロットごとのシーケンスロック方式(CASで奇数にして書き込む)で行うため, 読み出し側はロックを取らず,
+ * 受信処理(更新側)を待たせることもない. 更新側も表全体のロックは取らないので, 複数の解析スレッドが
+ * 別のセンサーを同時に更新できる.
+ * センサーは削除せず, 表が満杯になった場合は新しいセンサーを登録しない.
+ */
+
+public class SensorStateTable {
+
+    /**
+     * 状態変化の通知先. 受信スレッドから呼ばれるため, 重い処理は行わないこと.
+     * 別のセンサーの通知は複数のスレッドから同時に呼ばれることがある(同じセンサーの通知は同時には呼ばれない).
+     * 通知の中から同じセンサーを更新しないこと.
+     */
+    public interface ISensorStateListener {
+
+        void onStateChanged(SensorState state);
+    }
+
+    /**
+     * 購読条件.
+     */
+    private static class Subscription {
+
+        /**
+         * 全センサーを対象とする(センダーIDはどの値も実在し得るため, IDとは別に持つ).
+         */
+        final boolean mAllSensors;
+
+        final int mSenderId;
+
+        final int mChannel;
+
+        final float mMinDelta;
+
+        final ISensorStateListener mListener;
+
+        /**
+         * センサーごとの最後に通知した値(表のスロット位置で管理).
+         */
+        final float[] mLastValues;
+
+        final boolean[] mNotified;
+
+        Subscription(boolean allSensors, int senderId, int channel, float minDelta, ISensorStateListener listener,
+                     int slots) {
+            mAllSensors = allSensors;
+            mSenderId = senderId;
+            mChannel = channel;
+            mMinDelta = minDelta;
+            mListener = listener;
+            mLastValues = (minDelta > 0) ? new float[slots] : null;
+            mNotified = (minDelta > 0) ? new boolean[slots] : null;
+        }
+    }
+
+    /**
+     * スロットの状態: 空き.
+     */
+    private static final int SLOT_EMPTY = 0;
+
+    /**
+     * スロットの状態: 登録済み(読み出し側に公開済み).
+     */
+    private static final int SLOT_READY = 1;
+
+    /**
+     * スロットの状態: 登録中(キーの書き込み前).
+     */
+    private static final int SLOT_RESERVED = 2;
+
+    private static final int WRITE_UPDATED = 0;
+
+    private static final int WRITE_SKIPPED = 1;
+
+    private static final int WRITE_FULL = 2;
+
+    private final int mMask;
+
+    /**
+     * キー(センダーID)とスロットの状態.
+     */
+    private final AtomicIntegerArray mKeys;
+
+    private final AtomicIntegerArray mUsed;
+
+    /**
+     * シーケンスロック用バージョン(奇数 = 更新中).
+     */
+    private final AtomicIntegerArray mVersions;
+
+    private final AtomicLongArray mTimes;
+
+    /**
+     * 上位32bit : ペイロード, 下位32bit : RSSI.
+     */
+    private final AtomicLongArray mValues;
+
+    private final AtomicLongArray mSequences;
+
+    /**
+     * 通知中フラグ(同じセンサーの通知を同時に行わないため).
+     */
+    private final AtomicIntegerArray mNotifying;
+
+    private final CopyOnWriteArrayList<Subscription> mSubscriptions = new CopyOnWriteArrayList<>();
+
+    /**
+     * 通知用の状態(更新スレッドごとに使い回す).
+     */
+    private final ThreadLocal<SensorState> mNotifyState = new ThreadLocal<SensorState>() {
+        @Override
+        protected SensorState initialValue() {
+            return new SensorState();
+        }
+    };
+
+    private final AtomicInteger mSize = new AtomicInteger();
+
+    /**
+     * コンストラクタ.
+     *
+     * @param maxSensors 最大センサー数.
+     */
+    public SensorStateTable(int maxSensors) {
+        int slots = Integer.highestOneBit(Math.max(maxSensors, 2) * 2 - 1) * 2;
+        mMask = slots - 1;
+        mKeys = new AtomicIntegerArray(slots);
+        mUsed = new AtomicIntegerArray(slots);
+        mVersions = new AtomicIntegerArray(slots);
+        mTimes = new AtomicLongArray(slots);
+        mValues = new AtomicLongArray(slots);
+        mSequences = new AtomicLongArray(slots);
+        mNotifying = new AtomicIntegerArray(slots);
+    }
+
+    /**
+     * 登録済みのセンサー数.
+     *
+     * @return センサー数.
+     */
+    public int size() {
+        return mSize.get();
+    }
+
+    /**
+     * 最新値を更新する. 表全体のロックは取らない.
+     *
+     * @param senderId センダーID.
+     * @param time     受信時刻.
+     * @param payload  ペイロード(DB3 - DB0).
+     * @param rssi     RSSI.
+     * @return false : 表が満杯で登録できなかった.
+     */
+    public boolean update(int senderId, long time, int payload, int rssi) {
+        return write(senderId, time, payload, rssi, false) != WRITE_FULL;
+    }
+
+    /**
+     * 保存済みのデータから最新値を戻す. 既に新しい値を受信している場合は何もしない.
+     *
+     * @param senderId センダーID.
+     * @param time     受信時刻.
+     * @param payload  ペイロード(DB3 - DB0).
+     * @param rssi     RSSI.
+     * @return true : 更新した.
+     */
+    public boolean restore(int senderId, long time, int payload, int rssi) {
+        return write(senderId, time, payload, rssi, true) == WRITE_UPDATED;
+    }
+
+    /**
+     * 最新値を取得する. ロックは取らない.
+     *
+     * @param senderId センダーID.
+     * @param out      格納先.
+     * @return false : 未登録のセンサー.
+     */
+    public boolean get(int senderId, SensorState out) {
+        int slot = findSlot(senderId);
+        if ((slot < 0) || (mUsed.get(slot) != SLOT_READY)) {
+            return false;
+        }
+
+        while (true) {
+            int version = mVersions.get(slot);
+            if ((version & 1) != 0) {
+                // 更新中
+                Thread.yield();
+                continue;
+            }
+            long time = mTimes.get(slot);
+            long value = mValues.get(slot);
+            long sequence = mSequences.get(slot);
+            if (version == mVersions.get(slot)) {
+                out.mSenderId = senderId;
+                out.mTime = time;
+                out.mPayload = (int) (value >>> 32);
+                out.mRSSI = (int) value;
+                out.mSequence = sequence;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 登録済みのセンダーIDを取得する. ロックは取らない.
+     *
+     * @param out 格納先.
+     * @return 取得件数(最大で配列の長さ).
+     */
+    public int getSenderIds(int[] out) {
+        int count = 0;
+        for (int slot = 0; (slot <= mMask) && (count < out.length); slot++) {
+            if (mUsed.get(slot) == SLOT_READY) {
+                out[count++] = mKeys.get(slot);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * センサーの受信回数を取得する. ロックは取らない.
+     *
+     * @param senderId センダーID.
+     * @return 受信回数. 未登録の場合は0.
+     */
+    public long getSequence(int senderId) {
+        int slot = findSlot(senderId);
+        if ((slot < 0) || (mUsed.get(slot) != SLOT_READY)) {
+            return 0;
+        }
+        return mSequences.get(slot);
+    }
+
+    /**
+     * 1センサーの状態変化を購読する.
+     *
+     * @param senderId 対象センサー.
+     * @param channel  変化量を判定するチャンネル.
+     * @param minDelta 前回通知した値からの変化量がこの値以上の場合のみ通知する(0以下で毎回通知).
+     * @param listener 通知先.
+     */
+    public void subscribe(int senderId, int channel, float minDelta, ISensorStateListener listener) {
+        mSubscriptions.add(new Subscription(false, senderId, channel, minDelta, listener, mMask + 1));
+    }
+
+    /**
+     * 全センサーの状態変化を購読する.
+     *
+     * @param channel  変化量を判定するチャンネル.
+     * @param minDelta 前回通知した値からの変化量がこの値以上の場合のみ通知する(0以下で毎回通知).
+     * @param listener 通知先.
+     */
+    public void subscribeAll(int channel, float minDelta, ISensorStateListener listener) {
+        mSubscriptions.add(new Subscription(true, 0, channel, minDelta, listener, mMask + 1));
+    }
+
+    /**
+     * 購読を解除する.
+     *
+     * @param listener 通知先.
+     */
+    public void unsubscribe(ISensorStateListener listener) {
+        for (Subscription subscription : mSubscriptions) {
+            if (subscription.mListener == listener) {
+                mSubscriptions.remove(subscription);
+            }
+        }
+    }
+
+    /**
+     * スロットを確保して値を書き込む.
+     *
+     * @param onlyIfNewer true : 保持している値より新しい場合のみ書き込む.
+     * @return WRITE_UPDATED : 書き込んだ, WRITE_SKIPPED : 古い値のため書き込まなかった, WRITE_FULL : 表が満杯.
+     */
+    private int write(int senderId, long time, int payload, int rssi, boolean onlyIfNewer) {
+        int slot = mix(senderId) & mMask;
+        int probe = 0;
+        boolean isNew = false;
+        while (true) {
+            if (probe > mMask) {
+                return WRITE_FULL;
+            }
+            int used = mUsed.get(slot);
+            if (used == SLOT_RESERVED) {
+                // 他のスレッドが登録中. キーが決まるまで待つ
+                Thread.yield();
+                continue;
+            }
+            if (used == SLOT_READY) {
+                if (mKeys.get(slot) == senderId) {
+                    break;
+                }
+                slot = (slot + 1) & mMask;
+                probe++;
+                continue;
+            }
+            if (!reserveSize()) {
+                return WRITE_FULL;
+            }
+            if (mUsed.compareAndSet(slot, SLOT_EMPTY, SLOT_RESERVED)) {
+                mKeys.set(slot, senderId);
+                isNew = true;
+                break;
+            }
+            // 他のスレッドが先に登録した. 同じスロットを見直す
+            mSize.decrementAndGet();
+        }
+
+        int version;
+        while (true) {
+            version = mVersions.get(slot);
+            if (((version & 1) == 0) && mVersions.compareAndSet(slot, version, version + 1)) {
+                break;
+            }
+            // 他のスレッドが同じセンサーを更新中
+            Thread.yield();
+        }
+        if (onlyIfNewer && !isNew && (mTimes.get(slot) >= time)) {
+            mVersions.set(slot, version + 2);
+            return WRITE_SKIPPED;
+        }
+        mTimes.set(slot, time);
+        mValues.set(slot, ((long) payload << 32) | (rssi & 0xFFFFFFFFL));
+        long sequence = mSequences.get(slot) + 1;
+        mSequences.set(slot, sequence);
+        mVersions.set(slot, version + 2);
+
+        if (isNew) {
+            // 値を書き終えてから読み出し側に公開する
+            mUsed.set(slot, SLOT_READY);
+        }
+
+        if (!mSubscriptions.isEmpty()) {
+            while (!mNotifying.compareAndSet(slot, 0, 1)) {
+                Thread.yield();
+            }
+            try {
+                notifyChanged(slot, senderId, time, payload, rssi, sequence);
+            } finally {
+                mNotifying.set(slot, 0);
+            }
+        }
+        return WRITE_UPDATED;
+    }
+
+    /**
+     * 登録数を1つ予約する. 探索が長くならないよう, 使用率50%を上限とする.
+     *
+     * @return false : 上限に達している.
+     */
+    private boolean reserveSize() {
+        while (true) {
+            int size = mSize.get();
+            if ((size + 1) > ((mMask + 1) / 2)) {
+                return false;
+            }
+            if (mSize.compareAndSet(size, size + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void notifyChanged(int slot, int senderId, long time, int payload, int rssi, long sequence) {
+        SensorState state = mNotifyState.get();
+        state.mSenderId = senderId;
+        state.mTime = time;
+        state.mPayload = payload;
+        state.mRSSI = rssi;
+        state.mSequence = sequence;
+
+        for (Subscription subscription : mSubscriptions) {
+            if (!subscription.mAllSensors && (subscription.mSenderId != senderId)) {
+                continue;
+            }
+            if (subscription.mMinDelta > 0) {
+                float value = state.getValue(subscription.mChannel);
+                if (subscription.mNotified[slot]
+                        && (Math.abs(value - subscription.mLastValues[slot]) < subscription.mMinDelta)) {
+                    continue;
+                }
+                subscription.mNotified[slot] = true;
+                subscription.mLastValues[slot] = value;
+            }
+            subscription.mListener.onStateChanged(state);
+        }
+    }
+
+    /**
+     * 読み出し用にセンダーIDのスロット位置を探す. 登録中のスロットは読み飛ばす.
+     *
+     * @return 登録済みならそのスロット, 未登録なら空きスロット, 満杯なら -1.
+     */
+    private int findSlot(int senderId) {
+        int slot = mix(senderId) & mMask;
+        for (int probe = 0; probe <= mMask; probe++) {
+            int used = mUsed.get(slot);
+            if (used == SLOT_EMPTY) {
+                return slot;
+            }
+            if ((used == SLOT_READY) && (mKeys.get(slot) == senderId)) {
+                return slot;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        return -1;
+    }
+
+    private static int mix(int value) {
+        int h = value * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
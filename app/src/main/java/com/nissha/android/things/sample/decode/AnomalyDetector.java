@@ -0,0 +1,326 @@
+package com.nissha.android.things.sample.decode;
+
+import com.nissha.android.things.sample.enocean.A50904;
+
+/**
+ * Streaming anomaly detection for A5-09-04 samples per sensor and channel.
+ * <p>
+ * チャンネル(CO2濃度・温度・湿度)ごとに指数移動平均(EWMA)の平均と分散を持ち, 次を検出する.
+ * <ul>
+ * <li>スパイク : 平均からの外れが標準偏差の {@value #SPIKE_Z} 倍かつ最小幅以上.</li>
+ * <li>張り付き : 測定範囲の上限・下限の値が {@value #STUCK_SAMPLES} 回続く.</li>
+ * <li>温湿度の不整合 : 温度と湿度から求めた絶対湿度が急に変わる(片方だけが不自然に変化した).</li>
+ * <li>変化なし : 同じ生値が {@value #FLAT_SAMPLES} 回続く(警告のみ).</li>
+ * </ul>
+ * 安定した部屋の温湿度は正常でも変化しないため, 変化なしは警告として通知するだけで値は正常として扱う
+ * ({@link #isExcluded(int)} は false).
+ * 異常と判定した値は平均・分散に反映しない. 状態はセンサーごとに固定長のプリミティブ配列で持つ.
+ * スレッドセーフではない(デコードのシャードごとに持つ).
+ */
+
+public class AnomalyDetector {
+
+    /**
+     * チャンネル数({@link com.nissha.android.things.sample.data.SensorQuery} のチャンネルと同じ順).
+     */
+    public static final int CHANNELS = 3;
+
+    /**
+     * 異常の種類. チャンネルごとに4bitずつ({@link #getFlags(int, int)} で取り出す).
+     */
+    public static final int FLAG_SPIKE = 0x01;
+
+    public static final int FLAG_STUCK = 0x02;
+
+    public static final int FLAG_FLAT = 0x04;
+
+    public static final int FLAG_CROSS = 0x08;
+
+    /**
+     * 値を除外する異常の種類(変化なしは含まない).
+     */
+    public static final int FLAGS_EXCLUDED = FLAG_SPIKE | FLAG_STUCK | FLAG_CROSS;
+
+    /**
+     * EWMAの係数.
+     */
+    private static final float ALPHA = 0.125f;
+
+    /**
+     * 判定を始めるまでのサンプル数.
+     */
+    private static final int WARMUP_SAMPLES = 8;
+
+    private static final float SPIKE_Z = 4f;
+
+    /**
+     * スパイクが続いた場合は値が変わったとみなして平均を合わせ直す回数.
+     */
+    private static final int SPIKE_RESET = 3;
+
+    private static final int STUCK_SAMPLES = 3;
+
+    private static final int FLAT_SAMPLES = 240;
+
+    /**
+     * スパイクとみなす最小幅(CO2濃度 ppm・温度 ℃・湿度 %・絶対湿度 g/m3).
+     */
+    private static final float[] MIN_DEVIATION = {200f, 3f, 10f, 1f};
+
+    /**
+     * 生値の上限(CO2濃度・温度・湿度).
+     */
+    private static final int[] MAX_RAW = {255, 255, 200};
+
+    /**
+     * 内部で平均・分散を持つ系列数(3チャンネル + 絶対湿度).
+     */
+    private static final int SERIES = CHANNELS + 1;
+
+    private static final int SERIES_ABSOLUTE_HUMIDITY = CHANNELS;
+
+    // センサーごとの状態(オープンアドレス法)
+    private final int[] mKeys;
+
+    private final boolean[] mUsed;
+
+    private final int mMask;
+
+    private int mSize;
+
+    private final int[] mSamples;
+
+    // 系列ごとの状態(スロット * SERIES + 系列)
+    private final float[] mMean;
+
+    private final float[] mVariance;
+
+    private final int[] mSpikeRun;
+
+    // チャンネルごとの状態(スロット * CHANNELS + チャンネル)
+    private final int[] mLastRaw;
+
+    private final int[] mRepeatRun;
+
+    private long mChecked;
+
+    private long mAnomalies;
+
+    private long mWarnings;
+
+    private long mUntracked;
+
+    /**
+     * コンストラクタ.
+     *
+     * @param maxSensors 状態を保持する最大センサー数.
+     */
+    public AnomalyDetector(int maxSensors) {
+        int size = Integer.highestOneBit(Math.max(maxSensors, 1) * 2 - 1) * 2;
+        mMask = size - 1;
+        mKeys = new int[size];
+        mUsed = new boolean[size];
+        mSamples = new int[size];
+        mMean = new float[size * SERIES];
+        mVariance = new float[size * SERIES];
+        mSpikeRun = new int[size * SERIES];
+        mLastRaw = new int[size * CHANNELS];
+        mRepeatRun = new int[size * CHANNELS];
+    }
+
+    /**
+     * チャンネルの異常の種類を取り出す.
+     *
+     * @param anomalies {@link #check(int, int)} の戻り値.
+     * @param channel   チャンネル.
+     * @return 異常の種類(FLAG_*の組み合わせ). 異常が無い場合は0.
+     */
+    public static int getFlags(int anomalies, int channel) {
+        return (anomalies >>> (channel * 4)) & 0x0F;
+    }
+
+    /**
+     * 値を除外すべき異常を含むか判定する(変化なしの警告だけの場合は false).
+     *
+     * @param anomalies {@link #check(int, int)} の戻り値.
+     * @return true : 除外する.
+     */
+    public static boolean isExcluded(int anomalies) {
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            if ((getFlags(anomalies, channel) & FLAGS_EXCLUDED) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * サンプルを判定し, 正常な値で平均・分散を更新する.
+     *
+     * @param senderId センダーID.
+     * @param payload  ペイロード(DB3 - DB0).
+     * @return 異常の種類(チャンネルごとに4bit). 異常が無い場合は0.
+     */
+    public int check(int senderId, int payload) {
+        int slot = findSlot(senderId);
+        if (slot < 0) {
+            mUntracked++;
+            return 0;
+        }
+        mChecked++;
+
+        int concentration = (payload >>> 16) & 0xFF;
+        int temperature = (payload >>> 8) & 0xFF;
+        int humidity = (payload >>> 24) & 0xFF;
+        float celsius = (float) A50904.getTemperature(temperature);
+        float percent = (float) A50904.getHumidity(humidity);
+
+        int samples = ++mSamples[slot];
+        int anomalies = 0;
+        anomalies |= checkChannel(slot, 0, concentration, (float) A50904.getConcentration(concentration), samples);
+        anomalies |= checkChannel(slot, 1, temperature, celsius, samples) << 4;
+        anomalies |= checkChannel(slot, 2, humidity, percent, samples) << 8;
+
+        // 温度・湿度がともに正常なら(変化なしの警告は正常とみなす), 絶対湿度で両者の整合を確認する
+        if (((getFlags(anomalies, 1) & FLAGS_EXCLUDED) == 0) && ((getFlags(anomalies, 2) & FLAGS_EXCLUDED) == 0)) {
+            if (checkSeries(slot, SERIES_ABSOLUTE_HUMIDITY, getAbsoluteHumidity(celsius, percent), samples)) {
+                anomalies |= (FLAG_CROSS << 4) | (FLAG_CROSS << 8);
+            }
+        }
+
+        if (isExcluded(anomalies)) {
+            mAnomalies++;
+        } else if (anomalies != 0) {
+            mWarnings++;
+        }
+        return anomalies;
+    }
+
+    /**
+     * 判定したサンプル数.
+     *
+     * @return 件数.
+     */
+    public long getCheckedCount() {
+        return mChecked;
+    }
+
+    /**
+     * 除外すべき異常と判定したサンプル数.
+     *
+     * @return 件数.
+     */
+    public long getAnomalyCount() {
+        return mAnomalies;
+    }
+
+    /**
+     * 警告(変化なし)だけのサンプル数.
+     *
+     * @return 件数.
+     */
+    public long getWarningCount() {
+        return mWarnings;
+    }
+
+    /**
+     * 状態を保持できずに判定しなかったサンプル数.
+     *
+     * @return 件数.
+     */
+    public long getUntrackedCount() {
+        return mUntracked;
+    }
+
+    /**
+     * 1チャンネル分を判定する.
+     *
+     * @return 異常の種類.
+     */
+    private int checkChannel(int slot, int channel, int raw, float value, int samples) {
+        int index = (slot * CHANNELS) + channel;
+        if ((samples > 1) && (mLastRaw[index] == raw)) {
+            mRepeatRun[index]++;
+        } else {
+            mRepeatRun[index] = 1;
+        }
+        mLastRaw[index] = raw;
+
+        if (((raw == 0) || (raw == MAX_RAW[channel])) && (mRepeatRun[index] >= STUCK_SAMPLES)) {
+            // 張り付いた値で平均を動かさない
+            return FLAG_STUCK;
+        }
+        int flags = 0;
+        if (checkSeries(slot, channel, value, samples)) {
+            flags |= FLAG_SPIKE;
+        }
+        if (mRepeatRun[index] >= FLAT_SAMPLES) {
+            // 変化しない値も正常な値として平均に反映する
+            flags |= FLAG_FLAT;
+        }
+        return flags;
+    }
+
+    /**
+     * EWMAの平均・分散でスパイクを判定し, 正常なら更新する.
+     *
+     * @return true : スパイク.
+     */
+    private boolean checkSeries(int slot, int series, float value, int samples) {
+        int index = (slot * SERIES) + series;
+        if (samples == 1) {
+            mMean[index] = value;
+            mVariance[index] = 0;
+            mSpikeRun[index] = 0;
+            return false;
+        }
+
+        float diff = value - mMean[index];
+        if (samples > WARMUP_SAMPLES) {
+            float deviation = Math.abs(diff);
+            if ((deviation >= MIN_DEVIATION[series])
+                    && ((deviation * deviation) > (SPIKE_Z * SPIKE_Z * mVariance[index]))) {
+                if (++mSpikeRun[index] < SPIKE_RESET) {
+                    return true;
+                }
+                // 同じ方向に外れ続けた場合は値が変わったとみなして合わせ直す
+                mMean[index] = value;
+                mVariance[index] = 0;
+                mSpikeRun[index] = 0;
+                return false;
+            }
+        }
+        mSpikeRun[index] = 0;
+
+        float increment = ALPHA * diff;
+        mMean[index] += increment;
+        mVariance[index] = (1 - ALPHA) * (mVariance[index] + (diff * increment));
+        return false;
+    }
+
+    /**
+     * 絶対湿度(g/m3)を求める(Magnusの式).
+     */
+    private static float getAbsoluteHumidity(float celsius, float percent) {
+        double saturation = 6.112 * Math.exp((17.67 * celsius) / (celsius + 243.5));
+        return (float) ((saturation * percent * 2.1674) / (273.15 + celsius));
+    }
+
+    private int findSlot(int senderId) {
+        int slot = ShardedDecoder.mix(senderId) & mMask;
+        while (mUsed[slot]) {
+            if (mKeys[slot] == senderId) {
+                return slot;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        // 負荷率を1/2までに抑える
+        if (mSize >= ((mMask + 1) / 2)) {
+            return -1;
+        }
+        mKeys[slot] = senderId;
+        mUsed[slot] = true;
+        mSize++;
+        return slot;
+    }
+}
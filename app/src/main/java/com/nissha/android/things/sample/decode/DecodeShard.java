@@ -0,0 +1,513 @@
+package com.nissha.android.things.sample.decode;
+
+import com.nissha.android.things.sample.enocean.A50904;
+import com.nissha.android.things.sample.enocean.ChainReassembler;
+import com.nissha.android.things.sample.enocean.EEP;
+import com.nissha.android.things.sample.enocean.EnOceanMessage;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Single-threaded decode worker owning the state of its senders.
+ * <p>
+ * 受信キューとセンサーごとの状態(重複判定・集計・最終受信時刻)は
+ * このシャードのスレッドだけが更新するため, ロックを取らない.
+ * 状態の参照は {@link #post(Runnable)} でシャードのスレッドに依頼する.
+ */
+
+class DecodeShard implements Runnable {
+
+    /**
+     * 1回のロックで取り出す最大件数.
+     */
+    private static final int DRAIN_MAX = 64;
+
+    /**
+     * 連結テレグラム : 同時に結合できる数・結合後の最大長・結合を待つ最大時間.
+     */
+    private static final int CHAIN_SLOTS = 64;
+
+    private static final int CHAIN_MAX_LENGTH = 512;
+
+    private static final long CHAIN_TIMEOUT_MS = 2000;
+
+    private final int mIndex;
+
+    private final ShardedDecoder.IDecodeListener mListener;
+
+    private final long mDedupWindowNanos;
+
+    // 受信キュー(リングバッファ)
+    private final byte[][] mQueueFrames;
+
+    private final long[] mQueueNanos;
+
+    private int mHead;
+
+    private int mSize;
+
+    private final byte[][] mBatchFrames = new byte[DRAIN_MAX][];
+
+    private final long[] mBatchNanos = new long[DRAIN_MAX];
+
+    private final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<>();
+
+    // センサーごとの状態(オープンアドレス法, 使用中のスロットは mUsed で管理するためセンダーID 0 も格納できる)
+    private final int[] mKeys;
+
+    private final boolean[] mUsed;
+
+    private final int[] mLastPayload;
+
+    private final long[] mLastNanos;
+
+    private final long[] mCount;
+
+    private final long[] mDuplicates;
+
+    private final long[] mRssiSum;
+
+    private final int[] mRssiMin;
+
+    private final int[] mRssiMax;
+
+    private final int mMask;
+
+    private int mSenderCount;
+
+    private final ChainReassembler mReassembler = new ChainReassembler(CHAIN_SLOTS, CHAIN_MAX_LENGTH,
+            CHAIN_TIMEOUT_MS, new ChainReassembler.IChainListener() {
+        @Override
+        public void onMessage(int senderId, byte[] data, int offset, int length) {
+            mChainEEP = EEP.getEEP(senderId, data, offset, length);
+        }
+    });
+
+    /**
+     * 結合したデータから取得したEEP(結合完了の通知から受け取る).
+     */
+    private EEP mChainEEP;
+
+    /**
+     * A5-09-04の異常値の判定.
+     */
+    private final AnomalyDetector mDetector;
+
+    private volatile boolean mIsRunning = true;
+
+    // 統計(このシャードのスレッドだけが更新する)
+    private volatile long mDecoded;
+
+    private volatile long mDuplicated;
+
+    private volatile long mRejected;
+
+    private volatile long mUntracked;
+
+    private volatile long mErrors;
+
+    private volatile long mOverflowed;
+
+    private volatile long mChained;
+
+    private volatile long mFragments;
+
+    private volatile long mAnomalies;
+
+    /**
+     * 受信から通知までの時間の合計・最大.
+     */
+    private volatile long mLatencySum;
+
+    private volatile long mLatencyMax;
+
+    /**
+     * コンストラクタ.
+     *
+     * @param index            シャード番号.
+     * @param queueSize        受信キューの長さ.
+     * @param maxSenders       状態を保持する最大センサー数.
+     * @param dedupWindowNanos 同じ内容を重複とみなす時間.
+     * @param listener         通知先.
+     */
+    DecodeShard(int index, int queueSize, int maxSenders, long dedupWindowNanos,
+                ShardedDecoder.IDecodeListener listener) {
+        mIndex = index;
+        mListener = listener;
+        mDedupWindowNanos = dedupWindowNanos;
+        mQueueFrames = new byte[queueSize][];
+        mQueueNanos = new long[queueSize];
+
+        int size = Integer.highestOneBit(Math.max(maxSenders, 1) * 2 - 1) * 2;
+        mMask = size - 1;
+        mKeys = new int[size];
+        mUsed = new boolean[size];
+        mLastPayload = new int[size];
+        mLastNanos = new long[size];
+        mCount = new long[size];
+        mDuplicates = new long[size];
+        mRssiSum = new long[size];
+        mRssiMin = new int[size];
+        mRssiMax = new int[size];
+        mDetector = new AnomalyDetector(maxSenders);
+    }
+
+    /**
+     * 受信フレームをキューに入れる.
+     *
+     * @param frame         フレーム.
+     * @param receivedNanos 受信時刻.
+     * @return false : キューが一杯で破棄した.
+     */
+    synchronized boolean offer(byte[] frame, long receivedNanos) {
+        if (mSize == mQueueFrames.length) {
+            mOverflowed++;
+            return false;
+        }
+        int tail = (mHead + mSize) % mQueueFrames.length;
+        mQueueFrames[tail] = frame;
+        mQueueNanos[tail] = receivedNanos;
+        mSize++;
+        if (mSize == 1) {
+            notify();
+        }
+        return true;
+    }
+
+    /**
+     * シャードのスレッドで処理を実行する.
+     *
+     * @param task 処理.
+     */
+    void post(Runnable task) {
+        mTasks.add(task);
+        synchronized (this) {
+            notify();
+        }
+    }
+
+    synchronized void stop() {
+        mIsRunning = false;
+        notify();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            int count;
+            synchronized (this) {
+                while (mIsRunning && (mSize == 0) && mTasks.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (!mIsRunning && (mSize == 0)) {
+                    break;
+                }
+                count = Math.min(mSize, DRAIN_MAX);
+                for (int index = 0; index < count; index++) {
+                    mBatchFrames[index] = mQueueFrames[mHead];
+                    mBatchNanos[index] = mQueueNanos[mHead];
+                    mQueueFrames[mHead] = null;
+                    mHead = (mHead + 1) % mQueueFrames.length;
+                }
+                mSize -= count;
+            }
+
+            for (int index = 0; index < count; index++) {
+                decode(mBatchFrames[index], mBatchNanos[index]);
+                mBatchFrames[index] = null;
+            }
+
+            Runnable task;
+            while ((task = mTasks.poll()) != null) {
+                task.run();
+            }
+        }
+
+        Runnable task;
+        while ((task = mTasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void decode(byte[] frame, long receivedNanos) {
+        EEP eep;
+        try {
+            if (EEP.peekExtTelegram(frame) == EEP.EXT_TELEGRAM_CDM) {
+                if (!decodeChained(frame, receivedNanos)) {
+                    return;
+                }
+                eep = mChainEEP;
+                mChainEEP = null;
+            } else {
+                eep = EEP.getEEP(frame);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            mErrors++;
+            mListener.onDropped(mIndex, frame, receivedNanos, ShardedDecoder.DROP_ERROR);
+            return;
+        }
+        if (eep == null) {
+            mRejected++;
+            mListener.onDropped(mIndex, frame, receivedNanos, ShardedDecoder.DROP_UNKNOWN_SENDER);
+            return;
+        }
+
+        int senderId = eep.getSenderIdValue();
+        int payload = eep.getPayloadWord();
+        int rssi = EnOceanMessage.getRSSI(frame);
+
+        int slot = findSlot(senderId);
+        if (slot < 0) {
+            // 状態を保持できない場合は重複判定せずに通知する
+            mUntracked++;
+        } else {
+            if ((mCount[slot] > 0) && (mLastPayload[slot] == payload)
+                    && ((receivedNanos - mLastNanos[slot]) < mDedupWindowNanos)) {
+                // リピーター経由などで同じテレグラムを複数回受信した
+                mDuplicates[slot]++;
+                mDuplicated++;
+                mListener.onDropped(mIndex, frame, receivedNanos, ShardedDecoder.DROP_DUPLICATE);
+                return;
+            }
+            if (mCount[slot] == 0) {
+                mRssiMin[slot] = rssi;
+                mRssiMax[slot] = rssi;
+            } else {
+                mRssiMin[slot] = Math.min(mRssiMin[slot], rssi);
+                mRssiMax[slot] = Math.max(mRssiMax[slot], rssi);
+            }
+            mCount[slot]++;
+            mRssiSum[slot] += rssi;
+            mLastPayload[slot] = payload;
+            mLastNanos[slot] = receivedNanos;
+        }
+
+        // 重複を除いた後に判定する(同じサンプルを変化なしと数えないため)
+        int anomalies = 0;
+        if (eep instanceof A50904) {
+            anomalies = mDetector.check(senderId, payload);
+            if (AnomalyDetector.isExcluded(anomalies)) {
+                mAnomalies++;
+            }
+        }
+
+        mDecoded++;
+        long latency = System.nanoTime() - receivedNanos;
+        mLatencySum += latency;
+        if (latency > mLatencyMax) {
+            mLatencyMax = latency;
+        }
+        mListener.onDecoded(mIndex, frame, receivedNanos, eep, rssi, anomalies);
+    }
+
+    /**
+     * 連結テレグラムの断片を結合する. 結合が完了した場合は mChainEEP に結果が入る.
+     *
+     * @return true : 結合が完了した(最後の断片として処理を続ける).
+     */
+    private boolean decodeChained(byte[] frame, long receivedNanos) {
+        long senderId = EEP.peekSenderId(frame);
+        // 未登録センサーの断片でスロットを使わないように先に除外する
+        if ((senderId == EEP.NO_SENDER_ID) || !EEP.getSenderFilter().accept((int) senderId)) {
+            mRejected++;
+            mListener.onDropped(mIndex, frame, receivedNanos, ShardedDecoder.DROP_UNKNOWN_SENDER);
+            return false;
+        }
+        int offset = EEP.getPayloadOffset(frame);
+        int length = EEP.getPayloadLength(frame);
+        if ((length < 0) || (frame.length < (offset + length))) {
+            mErrors++;
+            mListener.onDropped(mIndex, frame, receivedNanos, ShardedDecoder.DROP_ERROR);
+            return false;
+        }
+        switch (mReassembler.feed((int) senderId, frame, offset, length, receivedNanos)) {
+            case ChainReassembler.RESULT_COMPLETED:
+                mChained++;
+                return true;
+            case ChainReassembler.RESULT_ERROR:
+                mErrors++;
+                mListener.onDropped(mIndex, frame, receivedNanos, ShardedDecoder.DROP_ERROR);
+                return false;
+            default:
+                mFragments++;
+                mListener.onDropped(mIndex, frame, receivedNanos, ShardedDecoder.DROP_FRAGMENT);
+                return false;
+        }
+    }
+
+    /**
+     * センダーIDの位置を取得する. 未登録の場合は追加する.
+     *
+     * @return 位置. 満杯の場合は -1.
+     */
+    private int findSlot(int senderId) {
+        int slot = ShardedDecoder.mix(senderId) & mMask;
+        while (mUsed[slot]) {
+            if (mKeys[slot] == senderId) {
+                return slot;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        // 負荷率を1/2までに抑える
+        if (mSenderCount >= ((mMask + 1) / 2)) {
+            return -1;
+        }
+        mKeys[slot] = senderId;
+        mUsed[slot] = true;
+        mSenderCount++;
+        return slot;
+    }
+
+    private int lookup(int senderId) {
+        int slot = ShardedDecoder.mix(senderId) & mMask;
+        while (mUsed[slot]) {
+            if (mKeys[slot] == senderId) {
+                return slot;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        return -1;
+    }
+
+    /**
+     * センサーの状態を取得する(シャードのスレッドから呼ぶこと).
+     *
+     * @param senderId センダーID.
+     * @param out      格納先.
+     * @return false : 未受信.
+     */
+    boolean getStats(int senderId, SenderStats out) {
+        int slot = lookup(senderId);
+        if (slot < 0) {
+            return false;
+        }
+        copy(slot, out);
+        return true;
+    }
+
+    /**
+     * 一定時間受信していないセンサーを取得する(シャードのスレッドから呼ぶこと).
+     *
+     * @param now          現在時刻(System.nanoTime()基準).
+     * @param timeoutNanos 判定時間.
+     * @param out          格納先.
+     * @param offset       格納開始位置.
+     * @return 格納後の位置.
+     */
+    int getSilentSenders(long now, long timeoutNanos, int[] out, int offset) {
+        for (int slot = 0; (slot <= mMask) && (offset < out.length); slot++) {
+            if (mUsed[slot] && ((now - mLastNanos[slot]) >= timeoutNanos)) {
+                out[offset++] = mKeys[slot];
+            }
+        }
+        return offset;
+    }
+
+    /**
+     * 全センサーの状態を取得する(シャードのスレッドから呼ぶこと).
+     *
+     * @param out 格納先.
+     */
+    void getAllStats(List<SenderStats> out) {
+        for (int slot = 0; slot <= mMask; slot++) {
+            if (mUsed[slot]) {
+                SenderStats stats = new SenderStats();
+                copy(slot, stats);
+                out.add(stats);
+            }
+        }
+    }
+
+    /**
+     * 保存していた状態を戻す. 既に受信しているセンサーは集計を合算する(シャードのスレッドから呼ぶこと).
+     *
+     * @param stats 状態.
+     */
+    void restoreStats(SenderStats stats) {
+        int slot = findSlot(stats.mSenderId);
+        if (slot < 0) {
+            return;
+        }
+        if (mCount[slot] == 0) {
+            mRssiMin[slot] = stats.mRssiMin;
+            mRssiMax[slot] = stats.mRssiMax;
+            mLastNanos[slot] = stats.mLastSeenNanos;
+        } else {
+            mRssiMin[slot] = Math.min(mRssiMin[slot], stats.mRssiMin);
+            mRssiMax[slot] = Math.max(mRssiMax[slot], stats.mRssiMax);
+            // 最終受信時刻と重複判定の基準は受信済みのものを優先する
+        }
+        mCount[slot] += stats.mCount;
+        mDuplicates[slot] += stats.mDuplicates;
+        mRssiSum[slot] += stats.mRssiSum;
+    }
+
+    private void copy(int slot, SenderStats out) {
+        out.mSenderId = mKeys[slot];
+        out.mCount = mCount[slot];
+        out.mDuplicates = mDuplicates[slot];
+        out.mRssiMin = mRssiMin[slot];
+        out.mRssiMax = mRssiMax[slot];
+        out.mRssiSum = mRssiSum[slot];
+        out.mLastSeenNanos = mLastNanos[slot];
+    }
+
+    long getDecoded() {
+        return mDecoded;
+    }
+
+    long getDuplicated() {
+        return mDuplicated;
+    }
+
+    long getRejected() {
+        return mRejected;
+    }
+
+    long getUntracked() {
+        return mUntracked;
+    }
+
+    long getErrors() {
+        return mErrors;
+    }
+
+    long getOverflowed() {
+        return mOverflowed;
+    }
+
+    long getChained() {
+        return mChained;
+    }
+
+    long getLatencySum() {
+        return mLatencySum;
+    }
+
+    long getLatencyMax() {
+        return mLatencyMax;
+    }
+
+    long getFragments() {
+        return mFragments;
+    }
+
+    long getAnomalies() {
+        return mAnomalies;
+    }
+
+    /**
+     * 連結テレグラムの結合状況(シャードのスレッドから呼ぶこと).
+     *
+     * @return 結合処理.
+     */
+    ChainReassembler getReassembler() {
+        return mReassembler;
+    }
+}
@@ -0,0 +1,40 @@
+package com.nissha.android.things.sample.decode;
+
+/**
+ * Per-sender counters kept by a {@link DecodeShard}.
+ */
+
+public class SenderStats {
+
+    public int mSenderId;
+
+    /**
+     * 受理したテレグラム数(重複を除く).
+     */
+    public long mCount;
+
+    /**
+     * 重複として除外したテレグラム数.
+     */
+    public long mDuplicates;
+
+    public int mRssiMin;
+
+    public int mRssiMax;
+
+    public long mRssiSum;
+
+    /**
+     * 最後に受信した時刻(System.nanoTime()基準).
+     */
+    public long mLastSeenNanos;
+
+    /**
+     * RSSIの平均値を取得する.
+     *
+     * @return RSSIの平均値.
+     */
+    public double getRssiAverage() {
+        return (mCount == 0) ? 0 : (mRssiSum / (double) mCount);
+    }
+}
@@ -0,0 +1,461 @@
+package com.nissha.android.things.sample.decode;
+
+import com.nissha.android.things.sample.enocean.ChainReassembler;
+import com.nissha.android.things.sample.enocean.EEP;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decode stage sharded by sender ID.
+ * <p>
+ * フレームから直接読み出したセンダーIDのハッシュ値でシャード(単一スレッドのワーカー)を選ぶ.
+ * 同じセンサーのテレグラムは常に同じシャードで順番に処理されるため,
+ * センサーごとの状態(重複判定・集計・最終受信時刻)はロック無しで更新できる.
+ * 通知はシャードのスレッドから行われる.
+ */
+
+public class ShardedDecoder {
+
+    /**
+     * 破棄理由 : 未登録のセンサー.
+     */
+    public static final int DROP_UNKNOWN_SENDER = 1;
+
+    /**
+     * 破棄理由 : 重複受信.
+     */
+    public static final int DROP_DUPLICATE = 2;
+
+    /**
+     * 破棄理由 : 解析エラー.
+     */
+    public static final int DROP_ERROR = 3;
+
+    /**
+     * 破棄理由 : 連結テレグラムの途中の断片(結合待ち. 最後の断片で onDecoded を通知する).
+     */
+    public static final int DROP_FRAGMENT = 4;
+
+    /**
+     * 1シャードあたりの受信キューの長さ.
+     */
+    private static final int DEFAULT_QUEUE_SIZE = 1024;
+
+    /**
+     * 同じ内容のテレグラムを重複とみなす時間.
+     */
+    private static final long DEFAULT_DEDUP_WINDOW_MS = 500;
+
+    /**
+     * 状態の参照でシャードの処理を待つ最大時間(停止後に呼ばれた場合に戻れるようにする).
+     */
+    private static final long QUERY_TIMEOUT_MS = 1000;
+
+    /**
+     * 解析結果の通知先.
+     */
+    public interface IDecodeListener {
+
+        /**
+         * 解析したテレグラムを通知する.
+         *
+         * @param shard         シャード番号.
+         * @param frame         フレーム.
+         * @param receivedNanos 受信時刻.
+         * @param eep           EEP.
+         * @param rssi          RSSI.
+         * @param anomalies     異常値の判定結果({@link AnomalyDetector#getFlags(int, int)} で取り出す). 正常な場合は0.
+         */
+        void onDecoded(int shard, byte[] frame, long receivedNanos, EEP eep, int rssi, int anomalies);
+
+        /**
+         * 破棄したテレグラムを通知する.
+         *
+         * @param shard         シャード番号.
+         * @param frame         フレーム.
+         * @param receivedNanos 受信時刻.
+         * @param reason        破棄理由(DROP_*).
+         */
+        void onDropped(int shard, byte[] frame, long receivedNanos, int reason);
+    }
+
+    private final DecodeShard[] mShards;
+
+    private Thread[] mThreads;
+
+    /**
+     * コンストラクタ(コア数分のシャードを作る).
+     *
+     * @param maxSenders 状態を保持する最大センサー数.
+     * @param listener   通知先.
+     */
+    public ShardedDecoder(int maxSenders, IDecodeListener listener) {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_SIZE, maxSenders,
+                DEFAULT_DEDUP_WINDOW_MS, listener);
+    }
+
+    /**
+     * コンストラクタ.
+     *
+     * @param shardCount    シャード数.
+     * @param queueSize     1シャードあたりの受信キューの長さ.
+     * @param maxSenders    状態を保持する最大センサー数.
+     * @param dedupWindowMs 同じ内容のテレグラムを重複とみなす時間.
+     * @param listener      通知先.
+     */
+    public ShardedDecoder(int shardCount, int queueSize, int maxSenders, long dedupWindowMs,
+                          IDecodeListener listener) {
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException("shardCount : " + shardCount);
+        }
+        mShards = new DecodeShard[shardCount];
+        int sendersPerShard = (maxSenders + shardCount - 1) / shardCount;
+        for (int index = 0; index < shardCount; index++) {
+            mShards[index] = new DecodeShard(index, queueSize, sendersPerShard,
+                    dedupWindowMs * 1000000L, listener);
+        }
+    }
+
+    public int getShardCount() {
+        return mShards.length;
+    }
+
+    public synchronized void start() {
+        if (mThreads != null) {
+            return;
+        }
+        mThreads = new Thread[mShards.length];
+        for (int index = 0; index < mShards.length; index++) {
+            mThreads[index] = new Thread(mShards[index], "DecodeShard-" + index);
+            mThreads[index].start();
+        }
+    }
+
+    /**
+     * 停止する. キューに残っているフレームは処理してから停止する.
+     */
+    public void stop() {
+        Thread[] threads;
+        synchronized (this) {
+            threads = mThreads;
+            mThreads = null;
+        }
+        if (threads == null) {
+            return;
+        }
+        for (DecodeShard shard : mShards) {
+            shard.stop();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * フレームを担当シャードのキューに入れる. 呼び出し元は待たされない.
+     *
+     * @param frame         フレーム.
+     * @param receivedNanos 受信時刻(System.nanoTime()基準).
+     * @return false : キューが一杯で破棄した.
+     */
+    public boolean submit(byte[] frame, long receivedNanos) {
+        return mShards[getShardIndex(frame)].offer(frame, receivedNanos);
+    }
+
+    /**
+     * フレームの担当シャードを取得する.
+     *
+     * @param frame フレーム.
+     * @return シャード番号.
+     */
+    public int getShardIndex(byte[] frame) {
+        long senderId = EEP.peekSenderId(frame);
+        if (senderId == EEP.NO_SENDER_ID) {
+            return 0;
+        }
+        return getShardIndex((int) senderId);
+    }
+
+    /**
+     * センダーIDの担当シャードを取得する.
+     *
+     * @param senderId センダーID.
+     * @return シャード番号.
+     */
+    public int getShardIndex(int senderId) {
+        // シャード内の表はハッシュ値の下位ビットを使うため, 上位ビットで選ぶ
+        return (int) (((mix(senderId) & 0xFFFFFFFFL) * mShards.length) >>> 32);
+    }
+
+    /**
+     * センサーの状態を取得する. 担当シャードの処理を待つため, 受信処理中のスレッドからは呼ばないこと.
+     *
+     * @param senderId センダーID.
+     * @param out      格納先.
+     * @return false : 未受信.
+     * @throws InterruptedException 割り込み.
+     */
+    public boolean getStats(final int senderId, SenderStats out) throws InterruptedException {
+        // タイムアウト後にシャードが遅れて応答しても呼び出し元の格納先を書き換えないよう, 専用の領域に受け取る
+        final SenderStats result = new SenderStats();
+        final boolean[] found = new boolean[1];
+        final DecodeShard shard = mShards[getShardIndex(senderId)];
+        final CountDownLatch latch = new CountDownLatch(1);
+        shard.post(new Runnable() {
+            @Override
+            public void run() {
+                found[0] = shard.getStats(senderId, result);
+                latch.countDown();
+            }
+        });
+        await(latch);
+        if (found[0]) {
+            copy(result, out);
+        }
+        return found[0];
+    }
+
+    /**
+     * 一定時間受信していないセンサーを取得する.
+     *
+     * @param timeoutMs 判定時間.
+     * @param out       格納先.
+     * @return 格納した件数.
+     * @throws InterruptedException 割り込み.
+     */
+    public int getSilentSenders(long timeoutMs, int[] out) throws InterruptedException {
+        final long now = System.nanoTime();
+        final long timeoutNanos = timeoutMs * 1000000L;
+        int count = 0;
+        for (final DecodeShard shard : mShards) {
+            if (count >= out.length) {
+                break;
+            }
+            final int[] result = new int[out.length - count];
+            final int[] resultCount = new int[1];
+            final CountDownLatch latch = new CountDownLatch(1);
+            shard.post(new Runnable() {
+                @Override
+                public void run() {
+                    resultCount[0] = shard.getSilentSenders(now, timeoutNanos, result, 0);
+                    latch.countDown();
+                }
+            });
+            await(latch);
+            System.arraycopy(result, 0, out, count, resultCount[0]);
+            count += resultCount[0];
+        }
+        return count;
+    }
+
+    /**
+     * 全センサーの状態を取得する. 各シャードの処理を待つため, 受信処理中のスレッドからは呼ばないこと.
+     *
+     * @param out 格納先.
+     * @throws InterruptedException 割り込み.
+     */
+    public void getAllStats(List<SenderStats> out) throws InterruptedException {
+        for (final DecodeShard shard : mShards) {
+            final List<SenderStats> result = new ArrayList<>();
+            final CountDownLatch latch = new CountDownLatch(1);
+            shard.post(new Runnable() {
+                @Override
+                public void run() {
+                    shard.getAllStats(result);
+                    latch.countDown();
+                }
+            });
+            await(latch);
+            out.addAll(result);
+        }
+    }
+
+    /**
+     * 保存していた状態を担当シャードに戻す(非同期).
+     *
+     * @param stats 状態.
+     */
+    public void restoreStats(final SenderStats stats) {
+        final DecodeShard shard = mShards[getShardIndex(stats.mSenderId)];
+        shard.post(new Runnable() {
+            @Override
+            public void run() {
+                shard.restoreStats(stats);
+            }
+        });
+    }
+
+    /**
+     * 処理済みのテレグラム数(破棄を含む).
+     *
+     * @return 件数.
+     */
+    public long getProcessedCount() {
+        long count = 0;
+        for (DecodeShard shard : mShards) {
+            count += shard.getDecoded() + shard.getDuplicated() + shard.getRejected() + shard.getErrors()
+                    + shard.getFragments();
+        }
+        return count;
+    }
+
+    public long getDecodedCount() {
+        long count = 0;
+        for (DecodeShard shard : mShards) {
+            count += shard.getDecoded();
+        }
+        return count;
+    }
+
+    public long getDuplicateCount() {
+        long count = 0;
+        for (DecodeShard shard : mShards) {
+            count += shard.getDuplicated();
+        }
+        return count;
+    }
+
+    public long getRejectedCount() {
+        long count = 0;
+        for (DecodeShard shard : mShards) {
+            count += shard.getRejected();
+        }
+        return count;
+    }
+
+    /**
+     * 状態を保持できずに重複判定を行わなかった件数.
+     *
+     * @return 件数.
+     */
+    public long getUntrackedCount() {
+        long count = 0;
+        for (DecodeShard shard : mShards) {
+            count += shard.getUntracked();
+        }
+        return count;
+    }
+
+    /**
+     * キューが一杯で破棄した件数.
+     *
+     * @return 件数.
+     */
+    public long getOverflowCount() {
+        long count = 0;
+        for (DecodeShard shard : mShards) {
+            count += shard.getOverflowed();
+        }
+        return count;
+    }
+
+    /**
+     * 受信(読み込み)から解析結果の通知までの平均時間.
+     *
+     * @return 時間(ns).
+     */
+    public long getAverageLatencyNanos() {
+        long sum = 0;
+        long count = 0;
+        for (DecodeShard shard : mShards) {
+            sum += shard.getLatencySum();
+            count += shard.getDecoded();
+        }
+        return (count == 0) ? 0 : (sum / count);
+    }
+
+    /**
+     * 受信(読み込み)から解析結果の通知までの最大時間.
+     *
+     * @return 時間(ns).
+     */
+    public long getMaxLatencyNanos() {
+        long max = 0;
+        for (DecodeShard shard : mShards) {
+            max = Math.max(max, shard.getLatencyMax());
+        }
+        return max;
+    }
+
+    /**
+     * 除外すべき異常値を含むと判定した件数(変化なしの警告だけの場合は数えない).
+     *
+     * @return 件数.
+     */
+    public long getAnomalyCount() {
+        long count = 0;
+        for (DecodeShard shard : mShards) {
+            count += shard.getAnomalies();
+        }
+        return count;
+    }
+
+    /**
+     * 連結テレグラムを結合して解析した件数.
+     *
+     * @return 件数.
+     */
+    public long getChainedCount() {
+        long count = 0;
+        for (DecodeShard shard : mShards) {
+            count += shard.getChained();
+        }
+        return count;
+    }
+
+    /**
+     * 結合待ちの連結テレグラムのうち, タイムアウトまたはスロット不足で破棄した件数.
+     *
+     * @return 件数.
+     * @throws InterruptedException 割り込み.
+     */
+    public long getChainDiscardedCount() throws InterruptedException {
+        long count = 0;
+        for (final DecodeShard shard : mShards) {
+            final long[] result = new long[1];
+            final CountDownLatch latch = new CountDownLatch(1);
+            shard.post(new Runnable() {
+                @Override
+                public void run() {
+                    ChainReassembler reassembler = shard.getReassembler();
+                    result[0] = reassembler.getTimedOutCount() + reassembler.getEvictedCount();
+                    latch.countDown();
+                }
+            });
+            await(latch);
+            count += result[0];
+        }
+        return count;
+    }
+
+    private static void copy(SenderStats from, SenderStats to) {
+        to.mSenderId = from.mSenderId;
+        to.mCount = from.mCount;
+        to.mDuplicates = from.mDuplicates;
+        to.mRssiMin = from.mRssiMin;
+        to.mRssiMax = from.mRssiMax;
+        to.mRssiSum = from.mRssiSum;
+        to.mLastSeenNanos = from.mLastSeenNanos;
+    }
+
+    /**
+     * シャードの応答を待つ. タイムアウトした場合, シャードは後から専用の領域に書き込むだけで呼び出し元には影響しない.
+     */
+    private static void await(CountDownLatch latch) throws InterruptedException {
+        if (!latch.await(QUERY_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+            throw new InterruptedException("decode shard did not respond.");
+        }
+    }
+
+    static int mix(int value) {
+        int h = value * 0x9E3779B9;
+        return h ^ (h >>> 15);
+    }
+}
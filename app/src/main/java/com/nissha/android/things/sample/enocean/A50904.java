@@ -8,6 +8,38 @@ import android.content.Context;
 
 public class A50904 extends EEP {
 
+    /**
+     * フィールド : 湿度(DB3), CO2濃度(DB2), 温度(DB1).
+     */
+    private static final int FIELD_HUMIDITY = BitFieldReader.compile(0, 8);
+
+    private static final int FIELD_CONCENTRATION = BitFieldReader.compile(8, 8);
+
+    private static final int FIELD_TEMPERATURE = BitFieldReader.compile(16, 8);
+
+    /**
+     * 湿度変換テーブル(生値 0 - 255).
+     */
+    private static final double[] HUMIDITY_TABLE = new double[256];
+
+    /**
+     * 濃度変換テーブル(生値 0 - 255).
+     */
+    private static final int[] CONCENTRATION_TABLE = new int[256];
+
+    /**
+     * 温度変換テーブル(生値 0 - 255).
+     */
+    private static final double[] TEMPERATURE_TABLE = new double[256];
+
+    static {
+        for (int raw = 0; raw < 256; raw++) {
+            HUMIDITY_TABLE[raw] = calcHumidity(raw);
+            CONCENTRATION_TABLE[raw] = calcConcentration(raw);
+            TEMPERATURE_TABLE[raw] = calcTemperature(raw);
+        }
+    }
+
     /**
      * コンストラクタ.
      *
@@ -18,25 +50,31 @@ public class A50904 extends EEP {
         super(payloadData, senderID);
     }
 
-    @Override
-    public EnOceanModule analyze(Context context, int rssi) {
-        byte[] data = mPayloadData;
+    /**
+     * コンストラクタ. 配列をコピーせずにそのまま保持する.
+     *
+     * @param payloadData EEPデータ(呼び出し後に変更しないこと).
+     * @param senderID    デバイスID(呼び出し後に変更しないこと).
+     * @param copy        常にfalse.
+     */
+    A50904(byte[] payloadData, byte[] senderID, boolean copy) {
+        super(payloadData, senderID, copy);
+    }
 
-        String sensorId = super.getSensorID();
+    @Override
+    public EnOceanModule analyze(Context context, int rssi, long time) {
+        long data = (long) getPayloadWord() << 32;
 
-        CO2SensorData sensorData = new CO2SensorData(sensorId);
+        CO2SensorData sensorData = new CO2SensorData(time, getSenderIdValue());
 
         // 湿度
-        int humData = data[0] & 0xFF;
-        sensorData.mHumidity = calcHumidity(humData);
+        sensorData.mHumidity = getHumidity(BitFieldReader.get(data, FIELD_HUMIDITY));
 
         // 濃度
-        int contData = data[1] & 0xFF;
-        sensorData.mConcentration = calcConcentration(contData);
+        sensorData.mConcentration = getConcentration(BitFieldReader.get(data, FIELD_CONCENTRATION));
 
         // 温度
-        int tempData = data[2] & 0xFF;
-        sensorData.mTemperature = calcTemperature(tempData);
+        sensorData.mTemperature = getTemperature(BitFieldReader.get(data, FIELD_TEMPERATURE));
 
         // RSSI
         sensorData.mRSSI = rssi;
@@ -44,21 +82,51 @@ public class A50904 extends EEP {
         return new CO2Sensor(sensorData);
     }
 
-    private double calcHumidity(int data) {
+    /**
+     * 湿度(%)を取得する.
+     *
+     * @param raw 生値(DB3).
+     * @return 湿度.
+     */
+    public static double getHumidity(int raw) {
+        return HUMIDITY_TABLE[raw & 0xFF];
+    }
+
+    /**
+     * 濃度(ppm)を取得する.
+     *
+     * @param raw 生値(DB2).
+     * @return 濃度.
+     */
+    public static int getConcentration(int raw) {
+        return CONCENTRATION_TABLE[raw & 0xFF];
+    }
+
+    /**
+     * 温度(℃)を取得する.
+     *
+     * @param raw 生値(DB1).
+     * @return 温度.
+     */
+    public static double getTemperature(int raw) {
+        return TEMPERATURE_TABLE[raw & 0xFF];
+    }
+
+    private static double calcHumidity(int data) {
         return data * 0.5;
     }
 
-    private int calcConcentration(int data) {
+    private static int calcConcentration(int data) {
         return (data * 10);
     }
 
-    private double calcTemperature(int data) {
+    private static double calcTemperature(int data) {
         double dt = (double) 51 / 255;
         double temp = (dt * data);
         return roundValue(temp);
     }
 
-    private double roundValue(double val) {
+    private static double roundValue(double val) {
         double tempVal = val * 10;
         tempVal = Math.round(tempVal);
         return (tempVal / 10);
@@ -0,0 +1,152 @@
+package com.nissha.android.things.sample.enocean;
+
+/**
+ * AES-128 block encryption with precomputed key schedules.
+ * <p>
+ * EnOcean Security の VAES・CMAC は暗号化方向しか使わないため, 暗号化のみ実装する.
+ * 鍵スケジュール(44ワード)は {@link #expandKey} で一度だけ作り, 呼び出し側で保持して再利用する.
+ * 処理はテーブル参照のみで, オブジェクト生成を行わない.
+ */
+
+public final class AES128 {
+
+    /**
+     * ブロック長(byte).
+     */
+    public static final int BLOCK_SIZE = 16;
+
+    /**
+     * 鍵スケジュールのワード数.
+     */
+    public static final int SCHEDULE_WORDS = 44;
+
+    private static final int[] SBOX = new int[256];
+
+    private static final int[] TE0 = new int[256];
+
+    private static final int[] TE1 = new int[256];
+
+    private static final int[] TE2 = new int[256];
+
+    private static final int[] TE3 = new int[256];
+
+    private static final int[] RCON = {
+            0x01000000, 0x02000000, 0x04000000, 0x08000000, 0x10000000,
+            0x20000000, 0x40000000, 0x80000000, 0x1B000000, 0x36000000
+    };
+
+    static {
+        // GF(2^8) の指数・対数表からSボックスを作る
+        int[] exp = new int[256];
+        int[] log = new int[256];
+        int x = 1;
+        for (int index = 0; index < 255; index++) {
+            exp[index] = x;
+            log[x] = index;
+            x ^= (x << 1) ^ (((x & 0x80) != 0) ? 0x1B : 0);
+            x &= 0xFF;
+        }
+        for (int index = 0; index < 256; index++) {
+            int inverse = (index == 0) ? 0 : exp[(255 - log[index]) % 255];
+            int s = inverse;
+            for (int shift = 1; shift <= 4; shift++) {
+                s ^= ((inverse << shift) | (inverse >>> (8 - shift))) & 0xFF;
+            }
+            SBOX[index] = s ^ 0x63;
+        }
+        for (int index = 0; index < 256; index++) {
+            int s = SBOX[index];
+            int s2 = ((s << 1) ^ (((s & 0x80) != 0) ? 0x1B : 0)) & 0xFF;
+            int s3 = s2 ^ s;
+            int t = (s2 << 24) | (s << 16) | (s << 8) | s3;
+            TE0[index] = t;
+            TE1[index] = Integer.rotateRight(t, 8);
+            TE2[index] = Integer.rotateRight(t, 16);
+            TE3[index] = Integer.rotateRight(t, 24);
+        }
+    }
+
+    private AES128() {
+    }
+
+    /**
+     * 鍵スケジュールを作る.
+     *
+     * @param key       鍵(16byte).
+     * @param out       格納先.
+     * @param outOffset 格納位置({@value #SCHEDULE_WORDS} ワード分).
+     */
+    public static void expandKey(byte[] key, int[] out, int outOffset) {
+        if (key.length != BLOCK_SIZE) {
+            throw new IllegalArgumentException("AES-128 key must be 16 bytes.");
+        }
+        for (int index = 0; index < 4; index++) {
+            out[outOffset + index] = getInt(key, index * 4);
+        }
+        for (int index = 4; index < SCHEDULE_WORDS; index++) {
+            int temp = out[outOffset + index - 1];
+            if ((index % 4) == 0) {
+                temp = subWord(Integer.rotateLeft(temp, 8)) ^ RCON[(index / 4) - 1];
+            }
+            out[outOffset + index] = out[outOffset + index - 4] ^ temp;
+        }
+    }
+
+    /**
+     * 1ブロックを暗号化する. in と out は同じ配列でもよい.
+     *
+     * @param rk        鍵スケジュール.
+     * @param rkOffset  鍵スケジュールの位置.
+     * @param in        入力.
+     * @param inOffset  入力位置.
+     * @param out       出力.
+     * @param outOffset 出力位置.
+     */
+    public static void encrypt(int[] rk, int rkOffset, byte[] in, int inOffset, byte[] out, int outOffset) {
+        int k = rkOffset;
+        int s0 = getInt(in, inOffset) ^ rk[k];
+        int s1 = getInt(in, inOffset + 4) ^ rk[k + 1];
+        int s2 = getInt(in, inOffset + 8) ^ rk[k + 2];
+        int s3 = getInt(in, inOffset + 12) ^ rk[k + 3];
+
+        for (int round = 1; round < 10; round++) {
+            k += 4;
+            int t0 = TE0[s0 >>> 24] ^ TE1[(s1 >>> 16) & 0xFF] ^ TE2[(s2 >>> 8) & 0xFF] ^ TE3[s3 & 0xFF] ^ rk[k];
+            int t1 = TE0[s1 >>> 24] ^ TE1[(s2 >>> 16) & 0xFF] ^ TE2[(s3 >>> 8) & 0xFF] ^ TE3[s0 & 0xFF] ^ rk[k + 1];
+            int t2 = TE0[s2 >>> 24] ^ TE1[(s3 >>> 16) & 0xFF] ^ TE2[(s0 >>> 8) & 0xFF] ^ TE3[s1 & 0xFF] ^ rk[k + 2];
+            int t3 = TE0[s3 >>> 24] ^ TE1[(s0 >>> 16) & 0xFF] ^ TE2[(s1 >>> 8) & 0xFF] ^ TE3[s2 & 0xFF] ^ rk[k + 3];
+            s0 = t0;
+            s1 = t1;
+            s2 = t2;
+            s3 = t3;
+        }
+
+        k += 4;
+        putInt(out, outOffset, finalRound(s0, s1, s2, s3) ^ rk[k]);
+        putInt(out, outOffset + 4, finalRound(s1, s2, s3, s0) ^ rk[k + 1]);
+        putInt(out, outOffset + 8, finalRound(s2, s3, s0, s1) ^ rk[k + 2]);
+        putInt(out, outOffset + 12, finalRound(s3, s0, s1, s2) ^ rk[k + 3]);
+    }
+
+    private static int finalRound(int a, int b, int c, int d) {
+        return (SBOX[a >>> 24] << 24) | (SBOX[(b >>> 16) & 0xFF] << 16)
+                | (SBOX[(c >>> 8) & 0xFF] << 8) | SBOX[d & 0xFF];
+    }
+
+    private static int subWord(int word) {
+        return (SBOX[word >>> 24] << 24) | (SBOX[(word >>> 16) & 0xFF] << 16)
+                | (SBOX[(word >>> 8) & 0xFF] << 8) | SBOX[word & 0xFF];
+    }
+
+    private static int getInt(byte[] data, int pos) {
+        return ((data[pos] & 0xFF) << 24) | ((data[pos + 1] & 0xFF) << 16)
+                | ((data[pos + 2] & 0xFF) << 8) | (data[pos + 3] & 0xFF);
+    }
+
+    private static void putInt(byte[] out, int pos, int value) {
+        out[pos] = (byte) (value >>> 24);
+        out[pos + 1] = (byte) (value >>> 16);
+        out[pos + 2] = (byte) (value >>> 8);
+        out[pos + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,139 @@
+package com.nissha.android.things.sample.enocean;
+
+/**
+ * Big-endian bit field reader over an EEP payload.
+ * <p>
+ * ペイロードを {@link #load} で64bitワードの配列(左詰め・末尾は0埋め)に1回だけ詰め替え,
+ * 各フィールドは {@link #compile} で作ったディスクリプタから定数回の演算・分岐無しで読み出す.
+ * ビット位置は EEP の表記どおり, ペイロード先頭(DB_n の bit7)を0とする.
+ * 範囲外のビットは0として読めるため, フィールドごとの境界チェックは不要.
+ */
+
+public class BitFieldReader {
+
+    /**
+     * 1フィールドの最大ビット長.
+     */
+    public static final int MAX_BIT_LENGTH = 32;
+
+    /**
+     * ペイロードのワード(先頭が最上位ビット). 末尾に0のワードを1つ余分に持つ.
+     */
+    private final long[] mWords;
+
+    private final int mMaxLength;
+
+    private int mLength;
+
+    /**
+     * コンストラクタ.
+     *
+     * @param maxLength 読み込む最大ペイロード長(byte).
+     */
+    public BitFieldReader(int maxLength) {
+        mMaxLength = maxLength;
+        mWords = new long[((maxLength + 7) / 8) + 1];
+    }
+
+    /**
+     * フィールドのディスクリプタを作る.
+     *
+     * @param bitOffset ビットオフセット.
+     * @param bitLength ビット長(1 - {@value #MAX_BIT_LENGTH}).
+     * @return ディスクリプタ.
+     */
+    public static int compile(int bitOffset, int bitLength) {
+        if ((bitOffset < 0) || (bitOffset > 0xFFFFFF) || (bitLength <= 0) || (bitLength > MAX_BIT_LENGTH)) {
+            throw new IllegalArgumentException("Invalid bit field : " + bitOffset + ", " + bitLength);
+        }
+        return (bitOffset << 8) | bitLength;
+    }
+
+    /**
+     * フィールド定義からディスクリプタを作る.
+     *
+     * @param field フィールド定義.
+     * @return ディスクリプタ.
+     */
+    public static int compile(EEPField field) {
+        return compile(field.getBitOffset(), field.getBitLength());
+    }
+
+    /**
+     * フィールドの最終ビットを含むのに必要なペイロード長を取得する.
+     *
+     * @param descriptor ディスクリプタ.
+     * @return ペイロード長(byte).
+     */
+    public static int getRequiredLength(int descriptor) {
+        return ((descriptor >>> 8) + (descriptor & 0xFF) + 7) / 8;
+    }
+
+    public int getMaxLength() {
+        return mMaxLength;
+    }
+
+    /**
+     * ペイロードを読み込む. 最大長を超える部分は読み込まない.
+     *
+     * @param data   受信データ.
+     * @param offset ペイロード先頭位置.
+     * @param length ペイロード長.
+     * @return 読み込んだ長さ(byte).
+     */
+    public int load(byte[] data, int offset, int length) {
+        length = Math.max(0, Math.min(Math.min(length, mMaxLength), data.length - offset));
+        int words = (length + 7) / 8;
+        int pos = offset;
+        for (int word = 0; word < words; word++) {
+            long value = 0;
+            int end = Math.min(pos + 8, offset + length);
+            int shift = 56;
+            for (; pos < end; pos++, shift -= 8) {
+                value |= (long) (data[pos] & 0xFF) << shift;
+            }
+            mWords[word] = value;
+        }
+        for (int word = words; word < mWords.length; word++) {
+            mWords[word] = 0;
+        }
+        mLength = length;
+        return length;
+    }
+
+    /**
+     * 読み込んだペイロード長.
+     *
+     * @return ペイロード長(byte).
+     */
+    public int getLength() {
+        return mLength;
+    }
+
+    /**
+     * フィールドの生値を取得する. 読み込んだペイロード外のビットは0として扱う.
+     * ディスクリプタは最大ペイロード長の範囲内であること({@link #getRequiredLength} で確認する).
+     *
+     * @param descriptor ディスクリプタ.
+     * @return 生値.
+     */
+    public int get(int descriptor) {
+        int bitOffset = descriptor >>> 8;
+        int word = bitOffset >>> 6;
+        int shift = bitOffset & 0x3F;
+        // 次のワードにまたがる分を下位に足す(shift == 0 の場合は0になる)
+        long value = (mWords[word] << shift) | ((mWords[word + 1] >>> 1) >>> (63 - shift));
+        return (int) (value >>> (64 - (descriptor & 0xFF)));
+    }
+
+    /**
+     * 左詰めの64bitワード(8byte以下のペイロード)からフィールドの生値を取得する.
+     *
+     * @param word       ペイロード(先頭byteが最上位).
+     * @param descriptor ディスクリプタ(ビットオフセットは64未満).
+     * @return 生値.
+     */
+    public static int get(long word, int descriptor) {
+        return (int) ((word << (descriptor >>> 8)) >>> (64 - (descriptor & 0xFF)));
+    }
+}
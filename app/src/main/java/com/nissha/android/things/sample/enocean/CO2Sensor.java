@@ -13,29 +13,33 @@ public class CO2Sensor extends EnOceanModule {
         mSensorData = sensorData;
     }
 
-    @Override
-    public String toString() {
-        StringBuilder sb = new StringBuilder();
-
-        int concentration = mSensorData.mConcentration;
-        sb.append(concentration)
+    /**
+     * 表示用の文字列を追加する(文字列を生成せずにログ等へ書き出す場合に使う).
+     *
+     * @param sb 追加先.
+     * @return sb.
+     */
+    public StringBuilder appendTo(StringBuilder sb) {
+        sb.append(mSensorData.mConcentration)
                 .append("ppm");
 
-        double voltage = mSensorData.mVoltage;
         sb.append(" / ")
-                .append(voltage)
+                .append(mSensorData.mVoltage)
                 .append("V");
 
-        double temperature = mSensorData.mTemperature;
         sb.append(" / ")
-                .append(temperature)
+                .append(mSensorData.mTemperature)
                 .append("°C");
 
-        double humidity = mSensorData.mHumidity;
         sb.append(" / ")
-                .append(humidity)
+                .append(mSensorData.mHumidity)
                 .append("%");
 
-        return sb.toString();
+        return sb;
+    }
+
+    @Override
+    public String toString() {
+        return appendTo(new StringBuilder()).toString();
     }
 }
@@ -1,8 +1,6 @@
 package com.nissha.android.things.sample.enocean;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
+import com.nissha.android.things.sample.util.TimeLabelFormatter;
 
 /**
  * CO2 sensor data class.
@@ -12,6 +10,11 @@ public class CO2SensorData extends EnOceanSensorData {
 
     public String mSensorId;
 
+    /**
+     * センダーID.
+     */
+    public int mSenderId;
+
     /**
      * ガス濃度(ppm).
      */
@@ -44,10 +47,13 @@ public class CO2SensorData extends EnOceanSensorData {
 
 
     /**
-     * コンストラクタ.
+     * コンストラクタ. 受信時刻には生成した時刻を使う.
+     *
+     * @deprecated 解析が遅れると受信時刻がずれるため, {@link #CO2SensorData(long, String)} を使うこと.
      */
+    @Deprecated
     public CO2SensorData(String sensorId) {
-        this(new java.util.Date().getTime(), sensorId);
+        this(System.currentTimeMillis(), sensorId);
     }
 
     /**
@@ -60,6 +66,17 @@ public class CO2SensorData extends EnOceanSensorData {
         mSensorId = sensorId;
     }
 
+    /**
+     * コンストラクタ.
+     *
+     * @param time     データ取得時間.
+     * @param senderId センダーID.
+     */
+    public CO2SensorData(long time, int senderId) {
+        this(time, EEP.getSensorID(senderId));
+        mSenderId = senderId;
+    }
+
     @Override
     public float getValues(int index) {
         switch (index) {
@@ -77,8 +94,6 @@ public class CO2SensorData extends EnOceanSensorData {
 
     @Override
     public String getXDataLabel() {
-        java.util.Date date = new Date(mTime);
-        SimpleDateFormat sdf = new SimpleDateFormat("HH:mm:ss", Locale.getDefault());
-        return sdf.format(date);
+        return TimeLabelFormatter.format(mTime);
     }
 }
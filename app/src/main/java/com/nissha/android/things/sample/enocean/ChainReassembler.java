@@ -0,0 +1,330 @@
+package com.nissha.android.things.sample.enocean;
+
+/**
+ * Reassembles chained data telegrams (CDM) per sender and sequence number.
+ * <p>
+ * 各断片の先頭は SEQ(bit7-6) と IDX(bit5-0). IDX = 0 の断片には続けて結合後の長さ(2byte)が入り,
+ * 結合後のデータは元のRORG + データとなる.
+ * 結合中のデータは固定数のスロット(1つの配列を分割したもの)に書き込み, 空きが無い場合は
+ * 最も古い結合中のデータを破棄するため, 送信元がいくつあってもメモリ使用量は一定となる.
+ * スレッドセーフではない. 同じセンサーの断片は同じスレッドから渡すこと.
+ */
+
+public class ChainReassembler {
+
+    /**
+     * 結合完了の通知先.
+     */
+    public interface IChainListener {
+
+        /**
+         * 結合したデータを通知する. data は通知中のみ有効(戻った後はスロットを再利用する).
+         *
+         * @param senderId センダーID.
+         * @param data     結合データ(先頭は元のRORG).
+         * @param offset   位置.
+         * @param length   長さ.
+         */
+        void onMessage(int senderId, byte[] data, int offset, int length);
+    }
+
+    /**
+     * 処理結果 : 結合待ち・結合完了・再送された断片・不正な断片.
+     */
+    public static final int RESULT_PENDING = 0;
+
+    public static final int RESULT_COMPLETED = 1;
+
+    public static final int RESULT_REPEATED = 2;
+
+    public static final int RESULT_ERROR = -1;
+
+    /**
+     * 先頭の断片のヘッダー長(SEQ/IDX + 長さ).
+     */
+    private static final int FIRST_HEADER_LEN = 3;
+
+    private static final int NONE = -1;
+
+    private final IChainListener mListener;
+
+    private final int mMaxLength;
+
+    private final long mTimeoutNanos;
+
+    /**
+     * 結合データ(スロットごとに mMaxLength byte).
+     */
+    private final byte[] mBuffer;
+
+    // スロットごとの状態
+    private final int[] mSenderIds;
+
+    private final int[] mSequences;
+
+    private final int[] mExpected;
+
+    private final int[] mReceived;
+
+    private final int[] mNextIndex;
+
+    private final long[] mStartedNanos;
+
+    private final boolean[] mInUse;
+
+    /**
+     * ハッシュ表の連結リスト(使用中)・空きリスト(未使用)の次のスロット.
+     */
+    private final int[] mNext;
+
+    private final int[] mBuckets;
+
+    private int mFree;
+
+    private int mInUseCount;
+
+    /**
+     * 次にタイムアウトを確認する時刻.
+     */
+    private long mNextExpiry = Long.MAX_VALUE;
+
+    private long mCompleted;
+
+    private long mTimedOut;
+
+    private long mEvicted;
+
+    private long mErrors;
+
+    /**
+     * コンストラクタ.
+     *
+     * @param slots     同時に結合できる数.
+     * @param maxLength 結合後の最大長.
+     * @param timeoutMs 結合を待つ最大時間.
+     * @param listener  通知先.
+     */
+    public ChainReassembler(int slots, int maxLength, long timeoutMs, IChainListener listener) {
+        mListener = listener;
+        mMaxLength = maxLength;
+        mTimeoutNanos = timeoutMs * 1000000L;
+        mBuffer = new byte[slots * maxLength];
+        mSenderIds = new int[slots];
+        mSequences = new int[slots];
+        mExpected = new int[slots];
+        mReceived = new int[slots];
+        mNextIndex = new int[slots];
+        mStartedNanos = new long[slots];
+        mInUse = new boolean[slots];
+        mNext = new int[slots];
+        mBuckets = new int[Integer.highestOneBit(Math.max(slots, 1) * 2 - 1) * 2];
+        for (int index = 0; index < mBuckets.length; index++) {
+            mBuckets[index] = NONE;
+        }
+        for (int slot = 0; slot < slots; slot++) {
+            mNext[slot] = (slot + 1 < slots) ? (slot + 1) : NONE;
+        }
+        mFree = (slots > 0) ? 0 : NONE;
+    }
+
+    /**
+     * 断片を渡す. 結合が完了した場合は戻る前に通知する.
+     *
+     * @param senderId センダーID.
+     * @param data     受信データ.
+     * @param offset   断片の位置(SEQ/IDX).
+     * @param length   断片の長さ.
+     * @param nowNanos 受信時刻(System.nanoTime()基準).
+     * @return 処理結果(RESULT_*).
+     */
+    public int feed(int senderId, byte[] data, int offset, int length, long nowNanos) {
+        expire(nowNanos);
+        if (length < 1) {
+            mErrors++;
+            return RESULT_ERROR;
+        }
+
+        int sequence = (data[offset] >> 6) & 0x03;
+        int chainIndex = data[offset] & 0x3F;
+        int slot = find(senderId, sequence);
+
+        int dataOffset;
+        if (chainIndex == 0) {
+            if (length < FIRST_HEADER_LEN) {
+                mErrors++;
+                return RESULT_ERROR;
+            }
+            int expected = ((data[offset + 1] & 0xFF) << 8) | (data[offset + 2] & 0xFF);
+            if ((expected == 0) || (expected > mMaxLength)) {
+                mErrors++;
+                return RESULT_ERROR;
+            }
+            if (slot == NONE) {
+                slot = allocate(senderId, sequence);
+            } else if (mNextIndex[slot] == 1) {
+                // 先頭の断片の再送
+                return RESULT_REPEATED;
+            }
+            // 同じ SEQ で送り直された場合は最初からやり直す
+            mExpected[slot] = expected;
+            mReceived[slot] = 0;
+            mStartedNanos[slot] = nowNanos;
+            mNextExpiry = Math.min(mNextExpiry, nowNanos + mTimeoutNanos);
+            dataOffset = FIRST_HEADER_LEN;
+        } else {
+            if (slot == NONE) {
+                // 先頭を受信していない(タイムアウト・破棄済みを含む)
+                mErrors++;
+                return RESULT_ERROR;
+            }
+            if (chainIndex == (mNextIndex[slot] - 1)) {
+                return RESULT_REPEATED;
+            }
+            if (chainIndex != mNextIndex[slot]) {
+                // 断片の欠落
+                release(slot);
+                mErrors++;
+                return RESULT_ERROR;
+            }
+            dataOffset = 1;
+        }
+
+        int chunk = length - dataOffset;
+        if ((mReceived[slot] + chunk) > mExpected[slot]) {
+            release(slot);
+            mErrors++;
+            return RESULT_ERROR;
+        }
+        System.arraycopy(data, offset + dataOffset, mBuffer, (slot * mMaxLength) + mReceived[slot], chunk);
+        mReceived[slot] += chunk;
+        mNextIndex[slot] = chainIndex + 1;
+
+        if (mReceived[slot] < mExpected[slot]) {
+            return RESULT_PENDING;
+        }
+
+        mCompleted++;
+        try {
+            mListener.onMessage(senderId, mBuffer, slot * mMaxLength, mExpected[slot]);
+        } finally {
+            release(slot);
+        }
+        return RESULT_COMPLETED;
+    }
+
+    /**
+     * タイムアウトした結合中のデータを破棄する. {@link #feed} からも呼ばれる.
+     *
+     * @param nowNanos 現在時刻(System.nanoTime()基準).
+     */
+    public void expire(long nowNanos) {
+        if (nowNanos < mNextExpiry) {
+            return;
+        }
+        long next = Long.MAX_VALUE;
+        for (int slot = 0; slot < mInUse.length; slot++) {
+            if (!mInUse[slot]) {
+                continue;
+            }
+            long deadline = mStartedNanos[slot] + mTimeoutNanos;
+            if (deadline <= nowNanos) {
+                release(slot);
+                mTimedOut++;
+            } else {
+                next = Math.min(next, deadline);
+            }
+        }
+        mNextExpiry = next;
+    }
+
+    /**
+     * 結合中の数.
+     *
+     * @return 件数.
+     */
+    public int getPendingCount() {
+        return mInUseCount;
+    }
+
+    public long getCompletedCount() {
+        return mCompleted;
+    }
+
+    public long getTimedOutCount() {
+        return mTimedOut;
+    }
+
+    /**
+     * スロット不足で破棄した件数.
+     *
+     * @return 件数.
+     */
+    public long getEvictedCount() {
+        return mEvicted;
+    }
+
+    public long getErrorCount() {
+        return mErrors;
+    }
+
+    private int bucket(int senderId, int sequence) {
+        int h = (senderId * 4 + sequence) * 0x9E3779B9;
+        return (h ^ (h >>> 15)) & (mBuckets.length - 1);
+    }
+
+    private int find(int senderId, int sequence) {
+        int slot = mBuckets[bucket(senderId, sequence)];
+        while (slot != NONE) {
+            if ((mSenderIds[slot] == senderId) && (mSequences[slot] == sequence)) {
+                return slot;
+            }
+            slot = mNext[slot];
+        }
+        return NONE;
+    }
+
+    /**
+     * スロットを確保する. 空きが無い場合は最も古いものを破棄して使う.
+     */
+    private int allocate(int senderId, int sequence) {
+        if (mFree == NONE) {
+            int oldest = 0;
+            for (int slot = 1; slot < mInUse.length; slot++) {
+                if (mStartedNanos[slot] - mStartedNanos[oldest] < 0) {
+                    oldest = slot;
+                }
+            }
+            release(oldest);
+            mEvicted++;
+        }
+        int slot = mFree;
+        mFree = mNext[slot];
+
+        int bucket = bucket(senderId, sequence);
+        mSenderIds[slot] = senderId;
+        mSequences[slot] = sequence;
+        mNextIndex[slot] = 0;
+        mInUse[slot] = true;
+        mNext[slot] = mBuckets[bucket];
+        mBuckets[bucket] = slot;
+        mInUseCount++;
+        return slot;
+    }
+
+    private void release(int slot) {
+        int bucket = bucket(mSenderIds[slot], mSequences[slot]);
+        if (mBuckets[bucket] == slot) {
+            mBuckets[bucket] = mNext[slot];
+        } else {
+            int prev = mBuckets[bucket];
+            while (mNext[prev] != slot) {
+                prev = mNext[prev];
+            }
+            mNext[prev] = mNext[slot];
+        }
+        mInUse[slot] = false;
+        mNext[slot] = mFree;
+        mFree = slot;
+        mInUseCount--;
+    }
+}
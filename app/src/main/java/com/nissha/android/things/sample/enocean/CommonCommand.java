@@ -0,0 +1,199 @@
+package com.nissha.android.things.sample.enocean;
+
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+/**
+ * ESP3 COMMON_COMMAND builders and RESPONSE parsers.
+ * <p>
+ * 各メソッドは COMMON_COMMAND のデータ部(先頭がコマンドコード)を組み立てる.
+ * RESPONSE のデータ部は先頭がリターンコードで, 以降がコマンドごとの応答データ.
+ */
+
+public final class CommonCommand {
+
+    /**
+     * TCMのバージョン情報を読み出す.
+     */
+    public static final int CO_RD_VERSION = 0x03;
+
+    /**
+     * TCMのベースIDを読み出す.
+     */
+    public static final int CO_RD_IDBASE = 0x08;
+
+    /**
+     * 受信フィルターを追加する.
+     */
+    public static final int CO_WR_FILTER_ADD = 0x0B;
+
+    /**
+     * 受信フィルターを全て削除する.
+     */
+    public static final int CO_WR_FILTER_DEL_ALL = 0x0D;
+
+    /**
+     * 受信フィルターの有効・無効を切り替える.
+     */
+    public static final int CO_WR_FILTER_ENABLE = 0x0E;
+
+    /**
+     * CO_RD_VERSION の応答データ長(リターンコードを含む).
+     */
+    public static final int VERSION_RESPONSE_LEN = 33;
+
+    /**
+     * CO_RD_IDBASE の応答データ長(リターンコードを含む).
+     */
+    public static final int IDBASE_RESPONSE_LEN = 5;
+
+    /**
+     * フィルター種別 : 送信元ID.
+     */
+    public static final int FILTER_TYPE_SOURCE_ID = 0x00;
+
+    /**
+     * フィルター種別 : RORG.
+     */
+    public static final int FILTER_TYPE_RORG = 0x01;
+
+    /**
+     * フィルター種別 : 受信強度(dBm).
+     */
+    public static final int FILTER_TYPE_DBM = 0x02;
+
+    /**
+     * フィルター動作 : 一致したものを破棄する.
+     */
+    public static final int FILTER_KIND_BLOCK = 0x00;
+
+    /**
+     * フィルター動作 : 一致したもののみ受信する.
+     */
+    public static final int FILTER_KIND_APPLY = 0x80;
+
+    /**
+     * フィルターの組み合わせ : OR.
+     */
+    public static final int FILTER_OPERATOR_OR = 0x00;
+
+    /**
+     * フィルターの組み合わせ : AND.
+     */
+    public static final int FILTER_OPERATOR_AND = 0x01;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private CommonCommand() {
+    }
+
+    public static byte[] readVersion() {
+        return new byte[]{CO_RD_VERSION};
+    }
+
+    public static byte[] readIdBase() {
+        return new byte[]{CO_RD_IDBASE};
+    }
+
+    /**
+     * 受信フィルターを追加するコマンド.
+     *
+     * @param type  フィルター種別(FILTER_TYPE_*).
+     * @param value 値(送信元ID・RORG・dBm).
+     * @param kind  動作(FILTER_KIND_*).
+     * @return データ部.
+     */
+    public static byte[] addFilter(int type, int value, int kind) {
+        return new byte[]{CO_WR_FILTER_ADD, (byte) type,
+                (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value, (byte) kind};
+    }
+
+    public static byte[] deleteAllFilters() {
+        return new byte[]{CO_WR_FILTER_DEL_ALL};
+    }
+
+    /**
+     * 受信フィルターの有効・無効を切り替えるコマンド.
+     *
+     * @param enable   true : 有効.
+     * @param operator 組み合わせ(FILTER_OPERATOR_*).
+     * @return データ部.
+     */
+    public static byte[] enableFilter(boolean enable, int operator) {
+        return new byte[]{CO_WR_FILTER_ENABLE, (byte) (enable ? 1 : 0), (byte) operator};
+    }
+
+    /**
+     * 応答データのリターンコードを取得する.
+     *
+     * @param response 応答データ.
+     * @return リターンコード.
+     */
+    public static int getReturnCode(byte[] response) {
+        return response[0] & 0xFF;
+    }
+
+    /**
+     * CO_RD_VERSION の応答からアプリケーションのバージョンを取得する.
+     *
+     * @param response 応答データ.
+     * @return バージョン(例: 2.11.1.0).
+     */
+    public static String getAppVersion(byte[] response) {
+        return formatVersion(response, 1);
+    }
+
+    /**
+     * CO_RD_VERSION の応答からAPIのバージョンを取得する.
+     *
+     * @param response 応答データ.
+     * @return バージョン.
+     */
+    public static String getApiVersion(byte[] response) {
+        return formatVersion(response, 5);
+    }
+
+    /**
+     * CO_RD_VERSION の応答からチップIDを取得する.
+     *
+     * @param response 応答データ.
+     * @return チップID.
+     */
+    public static int getChipId(byte[] response) {
+        return getInt(response, 9);
+    }
+
+    /**
+     * CO_RD_VERSION の応答からアプリケーションの説明を取得する.
+     *
+     * @param response 応答データ.
+     * @return 説明.
+     */
+    public static String getAppDescription(byte[] response) {
+        int length = 0;
+        while ((length < 16) && (response[17 + length] != 0)) {
+            length++;
+        }
+        return new String(response, 17, length, ASCII);
+    }
+
+    /**
+     * CO_RD_IDBASE の応答からベースIDを取得する.
+     *
+     * @param response 応答データ.
+     * @return ベースID.
+     */
+    public static int getIdBase(byte[] response) {
+        return getInt(response, 1);
+    }
+
+    private static String formatVersion(byte[] response, int offset) {
+        return String.format(Locale.US, "%d.%d.%d.%d", response[offset] & 0xFF, response[offset + 1] & 0xFF,
+                response[offset + 2] & 0xFF, response[offset + 3] & 0xFF);
+    }
+
+    private static int getInt(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16)
+                | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+    }
+}
@@ -2,7 +2,7 @@ package com.nissha.android.things.sample.enocean;
 
 import android.content.Context;
 
-import java.util.Locale;
+import java.util.Arrays;
 
 /**
  * EEP
@@ -20,6 +20,42 @@ public abstract class EEP {
      */
     private static final int OFFSET_PAYLOAD = 6;
 
+    /**
+     * 受信対象センダーID : A5-09-04.
+     */
+    private static final int SENDER_ID_A50904 = 0x040189B8;
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * センダーIDを取得できなかった場合の値.
+     */
+    public static final long NO_SENDER_ID = -1;
+
+    /**
+     * 受信対象センダーの許可リストとセンダーごとのEEP.
+     */
+    private static final SenderProfiles sSenderProfiles = new SenderProfiles();
+
+    /**
+     * 拡張テレグラム種別 : 連結テレグラム(Chained Data).
+     */
+    public static final int EXT_TELEGRAM_CDM = 0x40;
+
+    /**
+     * 登録できるセキュアセンサー数.
+     */
+    private static final int MAX_SECURE_SENSORS = 1024;
+
+    /**
+     * セキュアテレグラムを送信するセンサーの鍵・ローリングコード.
+     */
+    private static final SecureSensorTable sSecureSensors = new SecureSensorTable(MAX_SECURE_SENSORS);
+
+    static {
+        sSenderProfiles.register(SENDER_ID_A50904, SenderProfiles.EEP_A50904);
+    }
+
     /**
      * ペイロードデータ.
      */
@@ -37,11 +73,19 @@ public abstract class EEP {
      * @param senderID    センダーID.
      */
     public EEP(byte[] payloadData, byte[] senderID) {
-        mPayloadData = new byte[payloadData.length];
-        System.arraycopy(payloadData, 0, mPayloadData, 0, payloadData.length);
+        this(payloadData.clone(), senderID.clone(), false);
+    }
 
-        mSenderID = new byte[senderID.length];
-        System.arraycopy(senderID, 0, mSenderID, 0, senderID.length);
+    /**
+     * コンストラクタ. 配列をコピーせずにそのまま保持する(解析時に確保した配列を渡す場合).
+     *
+     * @param payloadData ペイロードデータ(呼び出し後に変更しないこと).
+     * @param senderID    センダーID(呼び出し後に変更しないこと).
+     * @param copy        常にfalse(公開コンストラクタと区別するため).
+     */
+    EEP(byte[] payloadData, byte[] senderID, boolean copy) {
+        mPayloadData = payloadData;
+        mSenderID = senderID;
     }
 
     /**
@@ -53,6 +97,44 @@ public abstract class EEP {
         return getSensorID(mSenderID);
     }
 
+    /**
+     * センダーIDを数値で取得する.
+     *
+     * @return センダーID.
+     */
+    public int getSenderIdValue() {
+        return toSenderIdValue(mSenderID);
+    }
+
+    /**
+     * ペイロードの先頭4byte(DB3 - DB0)をビッグエンディアンでまとめて取得する.
+     * 4byteに満たない部分は0で埋める.
+     *
+     * @return ペイロード.
+     */
+    public int getPayloadWord() {
+        int word = 0;
+        for (int index = 0; index < 4; index++) {
+            int b = (index < mPayloadData.length) ? (mPayloadData[index] & 0xFF) : 0;
+            word = (word << 8) | b;
+        }
+        return word;
+    }
+
+    /**
+     * センダーIDのbyte配列を数値に変換する.
+     *
+     * @param data センダーIDのbyte配列(4byte).
+     * @return センダーID.
+     */
+    public static int toSenderIdValue(byte[] data) {
+        int id = 0;
+        for (byte b : data) {
+            id = (id << 8) | (b & 0xFF);
+        }
+        return id;
+    }
+
     /**
      * センダーIDを文字列に変換する.
      *
@@ -60,13 +142,169 @@ public abstract class EEP {
      * @return センダーID文字列.
      */
     public static String getSensorID(byte[] data) {
-        StringBuilder sb = new StringBuilder();
-        for (byte b : data) {
-            sb.append(String.format(Locale.getDefault(), "%02X", b));
+        char[] chars = new char[data.length * 2];
+        for (int index = 0; index < data.length; index++) {
+            chars[index * 2] = HEX_DIGITS[(data[index] >> 4) & 0x0F];
+            chars[index * 2 + 1] = HEX_DIGITS[data[index] & 0x0F];
         }
-        String sensorId = sb.toString();
-        sensorId = sensorId.substring(0, sensorId.length());
-        return sensorId;
+        return new String(chars);
+    }
+
+    /**
+     * センダーIDを文字列に変換する.
+     *
+     * @param senderId センダーID.
+     * @return センダーID文字列(8桁).
+     */
+    public static String getSensorID(int senderId) {
+        char[] chars = new char[8];
+        for (int index = 0; index < 8; index++) {
+            chars[index] = HEX_DIGITS[(senderId >>> ((7 - index) * 4)) & 0x0F];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * 受信対象センダーの許可リストを取得する.
+     *
+     * @return 許可リスト.
+     */
+    public static SenderFilter getSenderFilter() {
+        return sSenderProfiles.getFilter();
+    }
+
+    /**
+     * 受信対象センダーとEEPの登録先を取得する.
+     *
+     * @return 登録先.
+     */
+    public static SenderProfiles getSenderProfiles() {
+        return sSenderProfiles;
+    }
+
+    /**
+     * セキュアセンサーの登録先を取得する.
+     *
+     * @return セキュアセンサー表.
+     */
+    public static SecureSensorTable getSecureSensors() {
+        return sSecureSensors;
+    }
+
+    /**
+     * セキュアテレグラムを送信するセンサーを登録する. 許可リストにも登録される.
+     *
+     * @param senderId    センダーID.
+     * @param key         AES-128鍵(16byte).
+     * @param slf         セキュリティレベル(SecureSensorTable.SLF_*の組み合わせ).
+     * @param rollingCode 最後に受け入れたローリングコード.
+     * @param eep         復号したデータを解析するEEP名(null の場合は解析しない).
+     */
+    public static void registerSecureSensor(int senderId, byte[] key, int slf, long rollingCode, String eep) {
+        sSecureSensors.register(senderId, key, slf, rollingCode, SecureSensorTable.DEFAULT_RLC_WINDOW);
+        sSenderProfiles.register(senderId, eep);
+    }
+
+    /**
+     * ERP2ヘッダーを解析せずに受信データから直接センダーIDを読み出す.
+     *
+     * @param data 受信データ.
+     * @return センダーID(4byte分). 取得できない場合は NO_SENDER_ID.
+     */
+    public static long peekSenderId(byte[] data) {
+        if ((data == null) || (data.length < MIN_PACKET_LEN)) {
+            return NO_SENDER_ID;
+        }
+
+        int erpHeader = data[OFFSET_PAYLOAD];
+        int offset = OFFSET_PAYLOAD + 1;
+        if ((erpHeader & 0x10) != 0) {
+            offset += 1; // 拡張ヘッダー
+        }
+        if ((erpHeader & 0x0F) == 0x0F) {
+            offset += 1; // 拡張テレグラム
+        }
+
+        int length;
+        switch ((erpHeader >> 5) & 0x07) {
+            case 1:
+            case 2:
+                length = 4;
+                break;
+            case 3:
+                // 6byteのときは3byte目から利用する
+                offset += 2;
+                length = 4;
+                break;
+            default:
+                length = 3;
+                break;
+        }
+        if (data.length < (offset + length)) {
+            return NO_SENDER_ID;
+        }
+
+        int id = 0;
+        for (int index = 0; index < length; index++) {
+            id = (id << 8) | (data[offset + index] & 0xFF);
+        }
+        return id & 0xFFFFFFFFL;
+    }
+
+    /**
+     * 受信データから拡張テレグラム種別を読み出す.
+     *
+     * @param data 受信データ.
+     * @return 拡張テレグラム種別. 拡張テレグラムでない場合は -1.
+     */
+    public static int peekExtTelegram(byte[] data) {
+        if ((data == null) || (data.length < MIN_PACKET_LEN)) {
+            return -1;
+        }
+        int erpHeader = data[OFFSET_PAYLOAD];
+        if (!existExtTelegram(erpHeader)) {
+            return -1;
+        }
+        int offset = OFFSET_PAYLOAD + (existExtHeader(erpHeader) ? 2 : 1);
+        return data[offset] & 0xFF;
+    }
+
+    /**
+     * 受信データから実データの位置を求める.
+     *
+     * @param data 受信データ.
+     * @return 位置.
+     */
+    public static int getPayloadOffset(byte[] data) {
+        int erpHeader = data[OFFSET_PAYLOAD];
+        return OFFSET_PAYLOAD + 1
+                + (existExtHeader(erpHeader) ? 1 : 0)
+                + (existExtTelegram(erpHeader) ? 1 : 0)
+                + getOriginatorIDLen(erpHeader)
+                + getDestinationIDLen(erpHeader);
+    }
+
+    /**
+     * 受信データから実データの長さを求める.
+     *
+     * @param data 受信データ.
+     * @return 長さ. 不正な場合は負の値.
+     */
+    public static int getPayloadLength(byte[] data) {
+        // ERPデータの末尾はCRC8
+        return (OFFSET_PAYLOAD + EnOceanMessage.getDataLen(data) - 1) - getPayloadOffset(data);
+    }
+
+    /**
+     * EEPに応じてデータを解析し、EnOceanのデバイス情報を生成する.
+     * 受信時刻には呼び出した時刻を使うため, 受信時刻が分かる場合は {@link #analyze(Context, int, long)} を使うこと.
+     *
+     * @param context コンテキスト.
+     * @param rssi    RSSI
+     * @return 生成したEnOceanデバイス情報.
+     */
+    public EnOceanModule analyze(Context context, int rssi) {
+        return analyze(context, rssi, System.currentTimeMillis());
     }
 
     /**
@@ -74,9 +312,10 @@ public abstract class EEP {
      *
      * @param context コンテキスト.
      * @param rssi    RSSI
+     * @param time    受信時刻(Unix Time).
      * @return 生成したEnOceanデバイス情報.
      */
-    public abstract EnOceanModule analyze(Context context, int rssi);
+    public abstract EnOceanModule analyze(Context context, int rssi, long time);
 
 
     /**
@@ -86,6 +325,17 @@ public abstract class EEP {
      * @return EEP.
      */
     public static EEP getEEP(byte[] data) {
+        return getEEP(data, sSenderProfiles);
+    }
+
+    /**
+     * センサーから受信したデータを, 指定した許可リスト・EEPで解析する.
+     *
+     * @param data     受信データ.
+     * @param profiles 受信対象センダーとEEP.
+     * @return EEP.
+     */
+    public static EEP getEEP(byte[] data, SenderProfiles profiles) {
         EEP eep = null;
 
         if ((data == null) || (data.length < MIN_PACKET_LEN)) {
@@ -96,6 +346,12 @@ public abstract class EEP {
             return null;
         }
 
+        // 未登録センサーはヘッダー解析・コピーの前に除外する
+        long id = peekSenderId(data);
+        if ((id == NO_SENDER_ID) || !profiles.getFilter().accept((int) id)) {
+            return null;
+        }
+
         try {
             // ERPのデータ長
             int dataLen = EnOceanMessage.getDataLen(data);
@@ -114,8 +370,14 @@ public abstract class EEP {
 
             // 拡張テレグラム有無
             boolean existExtTelegram = existExtTelegram(erpHeader);
+            int extTelegram = -1;
             if (existExtTelegram) {
                 offset += 1;
+                extTelegram = data[offset] & 0xFF;
+                if (extTelegram == EXT_TELEGRAM_CDM) {
+                    // 連結テレグラムの断片は ChainReassembler で結合してから解析する
+                    return null;
+                }
             }
 
             offset += 1;
@@ -156,12 +418,13 @@ public abstract class EEP {
             if (data.length <= (offset + payloadLen)) {
                 return null; // データ長が不正
             }
-            byte[] payload = new byte[payloadLen];
-            System.arraycopy(data, offset, payload, 0, payloadLen);
-
+            byte[] payload = unwrapPayload(extTelegram, senderId, data, offset, payloadLen);
+            if (payload == null) {
+                return null;
+            }
 
             // EEPを取得
-            eep = getEEP(payload, senderId);
+            eep = profiles.create(payload, senderId);
 
         } catch (Exception e) {
             e.printStackTrace();
@@ -171,22 +434,69 @@ public abstract class EEP {
     }
 
     /**
-     * センサーIDからEEPを取得する
+     * 連結テレグラムを結合したデータからEEPを取得する.
      *
-     * @param payload  EEPのペイロードデータ.
      * @param senderId センダーID.
+     * @param message  結合データ(先頭は元のRORG).
+     * @param offset   位置.
+     * @param length   長さ.
      * @return EEP.
      */
-    public static EEP getEEP(byte[] payload, byte[] senderId) {
-
-        EEP eep = null;
+    public static EEP getEEP(int senderId, byte[] message, int offset, int length) {
+        if (length < 2) {
+            return null;
+        }
+        byte[] senderIdBytes = {
+                (byte) (senderId >>> 24), (byte) (senderId >>> 16), (byte) (senderId >>> 8), (byte) senderId
+        };
+        int rorg = message[offset] & 0xFF;
+        byte[] payload;
+        if (isSecure(rorg)) {
+            payload = unwrapPayload(rorg, senderIdBytes, message, offset + 1, length - 1);
+        } else {
+            // 結合データは通知後に再利用されるため, 1回だけコピーしてEEPにそのまま渡す
+            payload = Arrays.copyOfRange(message, offset + 1, offset + length);
+        }
+        return (payload == null) ? null : sSenderProfiles.create(payload, senderIdBytes);
+    }
 
-        final String sensorID = getSensorID(senderId);
-        if (sensorID.equals("040189B8")) {
-            eep = new A50904(payload, senderId);
+    /**
+     * 実データを取り出す. セキュアテレグラムの場合は CMAC・ローリングコードを検証して復号する.
+     *
+     * @param rorg     拡張テレグラム種別またはRORG.
+     * @param senderId センダーID.
+     * @param data     受信データ.
+     * @param offset   実データの位置.
+     * @param length   実データの長さ.
+     * @return 実データ. 検証に失敗した場合はnull.
+     */
+    private static byte[] unwrapPayload(int rorg, byte[] senderId, byte[] data, int offset, int length) {
+        if (!isSecure(rorg)) {
+            return Arrays.copyOfRange(data, offset, offset + length);
+        }
+        byte[] plain = new byte[SecureSensorTable.MAX_DATA_LEN];
+        int plainLen = sSecureSensors.unwrap(toSenderIdValue(senderId), rorg, data, offset, length, plain);
+        if (plainLen < 0) {
+            return null;
         }
+        // SEC_ENCAPS は先頭に元のRORGが入る
+        int start = (rorg == SecureSensorTable.RORG_SEC_ENCAPS) ? 1 : 0;
+        return Arrays.copyOfRange(plain, start, plainLen);
+    }
 
-        return eep;
+    private static boolean isSecure(int rorg) {
+        return (rorg == SecureSensorTable.RORG_SEC) || (rorg == SecureSensorTable.RORG_SEC_ENCAPS);
+    }
+
+    /**
+     * センサーIDからEEPを取得する
+     *
+     * @param payload  EEPのペイロードデータ.
+     * @param senderId センダーID.
+     * @return EEP.
+     */
+    public static EEP getEEP(byte[] payload, byte[] senderId) {
+        return sSenderProfiles.create(payload.clone(), senderId.clone());
     }
 
     /**
@@ -0,0 +1,106 @@
+package com.nissha.android.things.sample.enocean;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * EEP profile catalog.
+ * <p>
+ * プロファイル記述を保持し, 初回参照時に {@link EEPDecoder} へコンパイルする.
+ * 新しいEEPは {@link #register(String)} で記述を追加するだけで対応できる.
+ */
+
+public class EEPCatalog {
+
+    /**
+     * 組み込みのプロファイル記述.
+     */
+    private static final String[] BUILTIN_PROFILES = {
+            // A5-04-01 温湿度センサー
+            "A5-04-01 : HUM 8 8 0.4 0 % ; TMP 16 8 0.16 0 °C ; LRN 28 1 1 0 - ; TSN 30 1 1 0 -",
+            // A5-07-01 人感センサー
+            "A5-07-01 : SVC 0 8 0.02 0 V ; PIRS 16 8 1 0 - ; LRN 28 1 1 0 - ; SVA 31 1 1 0 -",
+            // A5-09-04 CO2センサー
+            "A5-09-04 : HUM 0 8 0.5 0 % ; CONC 8 8 10 0 ppm ; TMP 16 8 0.2 0 °C ; LRN 28 1 1 0 - ; HSN 29 1 1 0 - ; TSN 30 1 1 0 -",
+            // D5-00-01 開閉センサー
+            "D5-00-01 : LRN 4 1 1 0 - ; CO 7 1 1 0 -",
+            // F6-02-01 ロッカースイッチ
+            "F6-02-01 : R1 0 3 1 0 - ; EB 3 1 1 0 - ; R2 4 3 1 0 - ; SA 7 1 1 0 -",
+    };
+
+    private static final Map<String, String> sDescriptions = new HashMap<>();
+
+    private static final Map<String, EEPDecoder> sDecoders = new HashMap<>();
+
+    static {
+        for (String description : BUILTIN_PROFILES) {
+            register(description);
+        }
+
+        // A5-02-01 - A5-02-0B 温度センサー(40℃レンジ, 生値255が下限)
+        for (int type = 0x01; type <= 0x0B; type++) {
+            int max = (type * 10) - 10;
+            register(String.format(Locale.US,
+                    "A5-02-%02X : TMP 16 8 %s %d °C ; LRN 28 1 1 0 -", type, Double.toString(-40.0 / 255), max));
+        }
+    }
+
+    private EEPCatalog() {
+    }
+
+    /**
+     * プロファイル記述を登録する. 同じEEPが登録済みの場合は置き換える.
+     *
+     * @param description プロファイル記述.
+     * @return 登録したプロファイル.
+     */
+    public static synchronized EEPProfile register(String description) {
+        EEPProfile profile = EEPProfile.parse(description);
+        sDescriptions.put(profile.getEEP(), description);
+        sDecoders.remove(profile.getEEP());
+        return profile;
+    }
+
+    /**
+     * EEPのデコーダーを取得する.
+     *
+     * @param eep EEP名(例: A5-09-04).
+     * @return デコーダー. 未登録の場合はnull.
+     */
+    public static synchronized EEPDecoder getDecoder(String eep) {
+        EEPDecoder decoder = sDecoders.get(eep);
+        if (decoder == null) {
+            String description = sDescriptions.get(eep);
+            if (description == null) {
+                return null;
+            }
+            decoder = new EEPDecoder(EEPProfile.parse(description));
+            sDecoders.put(eep, decoder);
+        }
+        return decoder;
+    }
+
+    /**
+     * 登録済みのEEP名を取得する.
+     *
+     * @return EEP名(昇順).
+     */
+    public static synchronized List<String> getEEPs() {
+        List<String> eeps = new ArrayList<>(sDescriptions.keySet());
+        Collections.sort(eeps);
+        return eeps;
+    }
+
+    /**
+     * 登録済みの全プロファイルをデコーダーにコンパイルしておく.
+     */
+    public static synchronized void compileAll() {
+        for (String eep : sDescriptions.keySet()) {
+            getDecoder(eep);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.nissha.android.things.sample.enocean;
+
+/**
+ * EEP decoder compiled from {@link EEPProfile}.
+ * <p>
+ * フィールド定義をロード時に {@link BitFieldReader} のディスクリプタ配列に変換しておき,
+ * デコード時は生値(int)を {@link EEPRecord} に書き込むだけにする.
+ * デコード処理ではオブジェクト生成・浮動小数点演算を行わない.
+ */
+
+public class EEPDecoder {
+
+    private final EEPProfile mProfile;
+
+    private final int mPayloadLength;
+
+    private final int[] mDescriptors;
+
+    private final double[] mScale;
+
+    private final double[] mOffset;
+
+    /**
+     * コンストラクタ.
+     *
+     * @param profile プロファイル.
+     */
+    public EEPDecoder(EEPProfile profile) {
+        mProfile = profile;
+        mPayloadLength = profile.getPayloadLength();
+
+        int count = profile.getFieldCount();
+        mDescriptors = new int[count];
+        mScale = new double[count];
+        mOffset = new double[count];
+
+        for (int index = 0; index < count; index++) {
+            EEPField field = profile.getField(index);
+            mDescriptors[index] = BitFieldReader.compile(field);
+            mScale[index] = field.getScale();
+            mOffset[index] = field.getOffset();
+        }
+    }
+
+    public EEPProfile getProfile() {
+        return mProfile;
+    }
+
+    /**
+     * デコードに必要なペイロード長.
+     *
+     * @return ペイロード長(byte).
+     */
+    public int getPayloadLength() {
+        return mPayloadLength;
+    }
+
+    /**
+     * デコード結果を格納するレコードを生成する.
+     *
+     * @return レコード.
+     */
+    public EEPRecord newRecord() {
+        return new EEPRecord(this);
+    }
+
+    /**
+     * ペイロードをデコードし, 生値をレコードに書き込む.
+     *
+     * @param data   受信データ.
+     * @param offset ペイロード先頭位置.
+     * @param length ペイロード長.
+     * @param record 書き込み先レコード(再利用可).
+     * @return true : 成功, false : ペイロード長不足.
+     */
+    public boolean decode(byte[] data, int offset, int length, EEPRecord record) {
+        if ((length < mPayloadLength) || (data.length < (offset + mPayloadLength))) {
+            return false;
+        }
+
+        BitFieldReader reader = record.mReader;
+        reader.load(data, offset, mPayloadLength);
+
+        int[] raw = record.mRaw;
+        for (int index = 0; index < raw.length; index++) {
+            raw[index] = reader.get(mDescriptors[index]);
+        }
+        return true;
+    }
+
+    /**
+     * 生値を物理値に変換する.
+     *
+     * @param index フィールドインデックス.
+     * @param raw   生値.
+     * @return 物理値.
+     */
+    public double toPhysical(int index, int raw) {
+        return (raw * mScale[index]) + mOffset[index];
+    }
+}
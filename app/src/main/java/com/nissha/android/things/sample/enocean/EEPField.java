@@ -0,0 +1,91 @@
+package com.nissha.android.things.sample.enocean;
+
+/**
+ * EEP data field descriptor class.
+ */
+
+public class EEPField {
+
+    /**
+     * フィールド名(例: TMP, HUM).
+     */
+    private final String mName;
+
+    /**
+     * ペイロード先頭(DB_n の bit7)からのビットオフセット.
+     */
+    private final int mBitOffset;
+
+    /**
+     * ビット長(1 - 32).
+     */
+    private final int mBitLength;
+
+    /**
+     * 物理値 = 生値 * scale + offset.
+     */
+    private final double mScale;
+
+    private final double mOffset;
+
+    /**
+     * 単位.
+     */
+    private final String mUnit;
+
+    /**
+     * コンストラクタ.
+     *
+     * @param name      フィールド名.
+     * @param bitOffset ビットオフセット.
+     * @param bitLength ビット長.
+     * @param scale     スケール.
+     * @param offset    オフセット.
+     * @param unit      単位.
+     */
+    public EEPField(String name, int bitOffset, int bitLength, double scale, double offset, String unit) {
+        if ((bitOffset < 0) || (bitLength <= 0) || (bitLength > 32)) {
+            throw new IllegalArgumentException("Invalid bit field : " + name);
+        }
+        mName = name;
+        mBitOffset = bitOffset;
+        mBitLength = bitLength;
+        mScale = scale;
+        mOffset = offset;
+        mUnit = unit;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public int getBitOffset() {
+        return mBitOffset;
+    }
+
+    public int getBitLength() {
+        return mBitLength;
+    }
+
+    public double getScale() {
+        return mScale;
+    }
+
+    public double getOffset() {
+        return mOffset;
+    }
+
+    public String getUnit() {
+        return mUnit;
+    }
+
+    /**
+     * 生値を物理値に変換する.
+     *
+     * @param raw 生値.
+     * @return 物理値.
+     */
+    public double toPhysical(int raw) {
+        return (raw * mScale) + mOffset;
+    }
+}
@@ -0,0 +1,134 @@
+package com.nissha.android.things.sample.enocean;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * EEP profile description class.
+ * <p>
+ * 1行のテキストでプロファイルを記述する.
+ * <pre>
+ * A5-09-04 : HUM 0 8 0.5 0 % ; CONC 8 8 10 0 ppm ; TMP 16 8 0.2 0 °C
+ * </pre>
+ * 各フィールドは「名前 ビットオフセット ビット長 スケール オフセット 単位」の順.
+ * 単位が無いフィールドは "-" と記述する.
+ */
+
+public class EEPProfile {
+
+    /**
+     * EEP名(例: A5-09-04).
+     */
+    private final String mEEP;
+
+    private final int mRorg;
+
+    private final int mFunc;
+
+    private final int mType;
+
+    private final EEPField[] mFields;
+
+    /**
+     * コンストラクタ.
+     *
+     * @param eep    EEP名(RORG-FUNC-TYPE).
+     * @param fields フィールド定義.
+     */
+    public EEPProfile(String eep, EEPField[] fields) {
+        String[] parts = eep.split("-");
+        if (parts.length != 3) {
+            throw new IllegalArgumentException("Invalid EEP : " + eep);
+        }
+        mEEP = eep;
+        mRorg = Integer.parseInt(parts[0], 16);
+        mFunc = Integer.parseInt(parts[1], 16);
+        mType = Integer.parseInt(parts[2], 16);
+        mFields = fields;
+    }
+
+    public String getEEP() {
+        return mEEP;
+    }
+
+    public int getRorg() {
+        return mRorg;
+    }
+
+    public int getFunc() {
+        return mFunc;
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    public int getFieldCount() {
+        return mFields.length;
+    }
+
+    public EEPField getField(int index) {
+        return mFields[index];
+    }
+
+    /**
+     * フィールド名からインデックスを取得する.
+     *
+     * @param name フィールド名.
+     * @return インデックス. 存在しない場合は -1.
+     */
+    public int indexOf(String name) {
+        for (int index = 0; index < mFields.length; index++) {
+            if (mFields[index].getName().equals(name)) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 全フィールドを含むのに必要なペイロード長(byte)を取得する.
+     *
+     * @return ペイロード長.
+     */
+    public int getPayloadLength() {
+        int lastBit = 0;
+        for (EEPField field : mFields) {
+            lastBit = Math.max(lastBit, field.getBitOffset() + field.getBitLength());
+        }
+        return (lastBit + 7) / 8;
+    }
+
+    /**
+     * プロファイル記述をパースする.
+     *
+     * @param description プロファイル記述.
+     * @return プロファイル.
+     */
+    public static EEPProfile parse(String description) {
+        int sep = description.indexOf(':');
+        if (sep < 0) {
+            throw new IllegalArgumentException("Invalid profile : " + description);
+        }
+
+        String eep = description.substring(0, sep).trim();
+
+        List<EEPField> fields = new ArrayList<>();
+        for (String def : description.substring(sep + 1).split(";")) {
+            String[] tokens = def.trim().split("\\s+");
+            if (tokens.length != 6) {
+                throw new IllegalArgumentException("Invalid field : " + def);
+            }
+
+            String unit = "-".equals(tokens[5]) ? "" : tokens[5];
+            fields.add(new EEPField(tokens[0],
+                    Integer.parseInt(tokens[1]),
+                    Integer.parseInt(tokens[2]),
+                    Double.parseDouble(tokens[3]),
+                    Double.parseDouble(tokens[4]),
+                    unit));
+        }
+
+        return new EEPProfile(eep, fields.toArray(new EEPField[fields.size()]));
+    }
+}
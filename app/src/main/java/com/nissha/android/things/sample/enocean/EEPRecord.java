@@ -0,0 +1,56 @@
+package com.nissha.android.things.sample.enocean;
+
+/**
+ * Reusable decode result of {@link EEPDecoder}.
+ * <p>
+ * 生値のみを保持し, 物理値は {@link #getValue(int)} 呼び出し時に計算する.
+ */
+
+public class EEPRecord {
+
+    private final EEPDecoder mDecoder;
+
+    /**
+     * フィールドごとの生値.
+     */
+    final int[] mRaw;
+
+    /**
+     * デコード用の作業領域(レコードごとに持つため, デコーダーは複数スレッドで共有できる).
+     */
+    final BitFieldReader mReader;
+
+    EEPRecord(EEPDecoder decoder) {
+        mDecoder = decoder;
+        mRaw = new int[decoder.getProfile().getFieldCount()];
+        mReader = new BitFieldReader(decoder.getPayloadLength());
+    }
+
+    public EEPProfile getProfile() {
+        return mDecoder.getProfile();
+    }
+
+    public int size() {
+        return mRaw.length;
+    }
+
+    /**
+     * 生値を取得する.
+     *
+     * @param index フィールドインデックス.
+     * @return 生値.
+     */
+    public int getRaw(int index) {
+        return mRaw[index];
+    }
+
+    /**
+     * 物理値を取得する.
+     *
+     * @param index フィールドインデックス.
+     * @return 物理値.
+     */
+    public double getValue(int index) {
+        return mDecoder.toPhysical(index, mRaw[index]);
+    }
+}
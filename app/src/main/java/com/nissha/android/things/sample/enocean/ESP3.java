@@ -0,0 +1,219 @@
+package com.nissha.android.things.sample.enocean;
+
+/**
+ * ESP3 (EnOcean Serial Protocol 3) frame utility.
+ * <p>
+ * <pre>
+ * Sync(0x55) DataLen(2) OptLen(1) PacketType(1) CRC8H(1) Data(DataLen) OptData(OptLen) CRC8D(1)
+ * </pre>
+ */
+
+public final class ESP3 {
+
+    /**
+     * Sync Byte + Header(4byte) + CRC8H.
+     */
+    public static final int HEADER_LEN = 6;
+
+    /**
+     * ヘッダー・CRCを含めたフレームの固定部分の長さ.
+     */
+    public static final int FRAME_OVERHEAD = HEADER_LEN + 1;
+
+    /**
+     * PacketType : RESPONSE
+     */
+    public static final int PACKET_TYPE_RESPONSE = 0x02;
+
+    /**
+     * PacketType : EVENT
+     */
+    public static final int PACKET_TYPE_EVENT = 0x04;
+
+    /**
+     * PacketType : COMMON_COMMAND
+     */
+    public static final int PACKET_TYPE_COMMON_COMMAND = 0x05;
+
+    /**
+     * PacketType : RADIO_ERP2
+     */
+    public static final int PACKET_TYPE_RADIO_ERP2 = EnOceanMessage.PACKET_TYPE_ERP2;
+
+    /**
+     * RESPONSE のリターンコード.
+     */
+    public static final int RET_OK = 0x00;
+
+    public static final int RET_ERROR = 0x01;
+
+    public static final int RET_NOT_SUPPORTED = 0x02;
+
+    public static final int RET_WRONG_PARAM = 0x03;
+
+    public static final int RET_OPERATION_DENIED = 0x04;
+
+    private static final int[] CRC8_TABLE = new int[256];
+
+    static {
+        // CRC8 (多項式 x^8 + x^2 + x + 1)
+        for (int index = 0; index < 256; index++) {
+            int crc = index;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = ((crc & 0x80) != 0) ? ((crc << 1) ^ 0x07) : (crc << 1);
+            }
+            CRC8_TABLE[index] = crc & 0xFF;
+        }
+    }
+
+    private ESP3() {
+    }
+
+    /**
+     * CRC8を計算する.
+     *
+     * @param data   データ.
+     * @param offset 開始位置.
+     * @param length 長さ.
+     * @return CRC8.
+     */
+    public static int crc8(byte[] data, int offset, int length) {
+        int crc = 0;
+        for (int index = offset; index < (offset + length); index++) {
+            crc = CRC8_TABLE[(crc ^ data[index]) & 0xFF];
+        }
+        return crc;
+    }
+
+    /**
+     * フレームのパケットタイプを取得する.
+     *
+     * @param frame フレーム.
+     * @return パケットタイプ.
+     */
+    public static int getPacketType(byte[] frame) {
+        return frame[4] & 0xFF;
+    }
+
+    /**
+     * フレームのデータ長を取得する.
+     *
+     * @param frame フレーム.
+     * @return データ長.
+     */
+    public static int getDataLength(byte[] frame) {
+        return ((frame[1] & 0xFF) << 8) | (frame[2] & 0xFF);
+    }
+
+    /**
+     * フレームのオプションデータ長を取得する.
+     *
+     * @param frame フレーム.
+     * @return オプションデータ長.
+     */
+    public static int getOptionalLength(byte[] frame) {
+        return frame[3] & 0xFF;
+    }
+
+    /**
+     * フレーム長を計算する.
+     *
+     * @param dataLen データ長.
+     * @param optLen  オプションデータ長.
+     * @return フレーム長.
+     */
+    public static int getFrameLength(int dataLen, int optLen) {
+        return FRAME_OVERHEAD + dataLen + optLen;
+    }
+
+    /**
+     * ESP3フレームを組み立てる.
+     *
+     * @param packetType パケットタイプ.
+     * @param data       データ.
+     * @param dataLen    データ長.
+     * @param opt        オプションデータ(無い場合はnull).
+     * @param optLen     オプションデータ長.
+     * @param out        書き込み先.
+     * @param offset     書き込み位置.
+     * @return フレーム長.
+     */
+    public static int encode(int packetType, byte[] data, int dataLen, byte[] opt, int optLen,
+                             byte[] out, int offset) {
+        int pos = offset;
+        out[pos++] = EnOceanMessage.SYNC_BYTE;
+        out[pos++] = (byte) (dataLen >> 8);
+        out[pos++] = (byte) dataLen;
+        out[pos++] = (byte) optLen;
+        out[pos++] = (byte) packetType;
+        out[pos] = (byte) crc8(out, offset + 1, 4);
+        pos++;
+
+        int dataStart = pos;
+        System.arraycopy(data, 0, out, pos, dataLen);
+        pos += dataLen;
+        if (optLen > 0) {
+            System.arraycopy(opt, 0, out, pos, optLen);
+            pos += optLen;
+        }
+        out[pos] = (byte) crc8(out, dataStart, dataLen + optLen);
+        pos++;
+
+        return pos - offset;
+    }
+
+    /**
+     * ERP2のテレグラム(32bitの送信元ID, 宛先無し)を含むESP3フレームを組み立てる.
+     *
+     * @param telegramType ERP2テレグラムタイプ(例: 4BS = 0x02).
+     * @param senderId     送信元ID.
+     * @param payload      ペイロード.
+     * @param dBm          受信強度(符号無し, 例: 60 = -60dBm).
+     * @return フレーム.
+     */
+    public static byte[] buildERP2Frame(int telegramType, int senderId, byte[] payload, int dBm) {
+        return buildERP2Frame(telegramType, -1, senderId, payload, payload.length, dBm);
+    }
+
+    /**
+     * 拡張テレグラム種別(例: セキュアテレグラム)を持つERP2のテレグラムを含むESP3フレームを組み立てる.
+     *
+     * @param extTelegramType 拡張テレグラム種別.
+     * @param senderId        送信元ID.
+     * @param payload         ペイロード.
+     * @param payloadLen      ペイロード長.
+     * @param dBm             受信強度(符号無し, 例: 60 = -60dBm).
+     * @return フレーム.
+     */
+    public static byte[] buildExtendedERP2Frame(int extTelegramType, int senderId, byte[] payload, int payloadLen,
+                                                int dBm) {
+        return buildERP2Frame(0x0F, extTelegramType, senderId, payload, payloadLen, dBm);
+    }
+
+    private static byte[] buildERP2Frame(int telegramType, int extTelegramType, int senderId,
+                                         byte[] payload, int payloadLen, int dBm) {
+        boolean extended = (extTelegramType >= 0);
+        int dataLen = 1 + (extended ? 1 : 0) + 4 + payloadLen + 1;
+        byte[] data = new byte[dataLen];
+        int pos = 0;
+        // Address Control = 1(32bit Originator ID), 拡張ヘッダー無し
+        data[pos++] = (byte) (0x20 | (telegramType & 0x0F));
+        if (extended) {
+            data[pos++] = (byte) extTelegramType;
+        }
+        data[pos++] = (byte) (senderId >>> 24);
+        data[pos++] = (byte) (senderId >>> 16);
+        data[pos++] = (byte) (senderId >>> 8);
+        data[pos++] = (byte) senderId;
+        System.arraycopy(payload, 0, data, pos, payloadLen);
+        pos += payloadLen;
+        data[pos] = (byte) crc8(data, 0, pos);
+
+        // Optional Data : SubTelNum, dBm
+        byte[] opt = {(byte) 1, (byte) dBm};
+
+        byte[] frame = new byte[getFrameLength(dataLen, opt.length)];
+        encode(EnOceanMessage.PACKET_TYPE_ERP2, data, dataLen, opt, opt.length, frame, 0);
+        return frame;
+    }
+}
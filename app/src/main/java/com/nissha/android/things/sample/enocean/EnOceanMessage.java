@@ -29,6 +29,11 @@ public class EnOceanMessage {
 
     private byte[] mMessage;
 
+    /**
+     * 受信時刻(Unix Time).
+     */
+    private long mReceivedTime;
+
     /**
      * コンストラクタ.
      */
@@ -42,6 +47,18 @@ public class EnOceanMessage {
      * @throws Exception 例外.
      */
     public EnOceanMessage(byte[] data) throws Exception {
+        this(data, System.currentTimeMillis());
+    }
+
+    /**
+     * コンストラクタ.
+     *
+     * @param data         受信したデータ.
+     * @param receivedTime 受信時刻(Unix Time).
+     * @throws Exception 例外.
+     */
+    public EnOceanMessage(byte[] data, long receivedTime) throws Exception {
+        mReceivedTime = receivedTime;
         if (data == null) {
             throw new Exception("Need data.");
         }
@@ -72,12 +89,30 @@ public class EnOceanMessage {
         final int rssi = getRSSI(mMessage);
 
         if (eep != null) {
-            return eep.analyze(context, rssi);
+            return eep.analyze(context, rssi, mReceivedTime);
         }
 
         return null;
     }
 
+    /**
+     * MessageからEEPを取得する(データの変換は行わない).
+     *
+     * @return EEP. 対象外のデータの場合はnull.
+     */
+    public EEP getEEP() {
+        return EEP.getEEP(mMessage);
+    }
+
+    /**
+     * MessageのRSSIを取得する.
+     *
+     * @return RSSI.
+     */
+    public int getRSSI() {
+        return getRSSI(mMessage);
+    }
+
     /**
      * RSSIを取得する.
      *
@@ -0,0 +1,97 @@
+package com.nissha.android.things.sample.enocean;
+
+import com.nissha.android.things.sample.util.TimeLabelFormatter;
+
+/**
+ * CO2 sensor data class that keeps the raw A5-09-04 payload.
+ * <p>
+ * 受信時は生データ(4byte)のみを保持し, 濃度・温度・湿度は参照された時点で
+ * {@link A50904} の変換テーブルから求める. インスタンスは使い回し可能.
+ */
+
+public class LazyCO2SensorData extends EnOceanSensorData {
+
+    /**
+     * データ受信時刻(Unix Time)
+     */
+    public long mTime;
+
+    /**
+     * センダーID.
+     */
+    public int mSenderId;
+
+    /**
+     * ペイロード(DB3 - DB0).
+     */
+    public int mPayload;
+
+    /**
+     * RSSI
+     */
+    public int mRSSI;
+
+    /**
+     * 値をまとめてセットする.
+     *
+     * @param time     データ受信時刻.
+     * @param senderId センダーID.
+     * @param payload  ペイロード(DB3 - DB0).
+     * @param rssi     RSSI.
+     * @return this.
+     */
+    public LazyCO2SensorData set(long time, int senderId, int payload, int rssi) {
+        mTime = time;
+        mSenderId = senderId;
+        mPayload = payload;
+        mRSSI = rssi;
+        return this;
+    }
+
+    /**
+     * ガス濃度を取得する.
+     *
+     * @return ガス濃度(ppm).
+     */
+    public int getConcentration() {
+        return A50904.getConcentration(mPayload >>> 16);
+    }
+
+    /**
+     * 温度を取得する.
+     *
+     * @return 温度(0 - 51℃).
+     */
+    public double getTemperature() {
+        return A50904.getTemperature(mPayload >>> 8);
+    }
+
+    /**
+     * 湿度を取得する.
+     *
+     * @return 湿度(0 - 100%).
+     */
+    public double getHumidity() {
+        return A50904.getHumidity(mPayload >>> 24);
+    }
+
+    @Override
+    public float getValues(int index) {
+        switch (index) {
+            case 0:
+                return (float) getConcentration();
+
+            case 1:
+                return (float) getTemperature();
+
+            case 2:
+                return (float) getHumidity();
+        }
+        return 0;
+    }
+
+    @Override
+    public String getXDataLabel() {
+        return TimeLabelFormatter.format(mTime);
+    }
+}
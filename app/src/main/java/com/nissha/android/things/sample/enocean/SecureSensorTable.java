@@ -0,0 +1,556 @@
+package com.nissha.android.things.sample.enocean;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Key and rolling-code store for EnOcean secure telegrams (VAES + AES-CMAC).
+ * <p>
+ * センサーごとの鍵スケジュール・CMACサブ鍵・SLF・ローリングコードを固定長のプリミティブ配列に持ち,
+ * センダーIDからオープンアドレス法で引く. 登録は排他し, センダーIDの表だけを差し替えて公開する.
+ * 同じセンサーのテレグラムは常に同じスレッドで処理すること(ローリングコードの更新は排他しない).
+ */
+
+public class SecureSensorTable {
+
+    /**
+     * セキュアテレグラムのRORG(拡張テレグラム種別にも同じ値を使う).
+     */
+    public static final int RORG_SEC = 0x30;
+
+    /**
+     * 復号後の先頭に元のRORGを含むセキュアテレグラム.
+     */
+    public static final int RORG_SEC_ENCAPS = 0x31;
+
+    /**
+     * SLF : ローリングコードの長さ(bit7-6).
+     */
+    public static final int SLF_RLC_NONE = 0x00;
+
+    public static final int SLF_RLC_16 = 0x40;
+
+    public static final int SLF_RLC_24 = 0x80;
+
+    public static final int SLF_RLC_32 = 0xC0;
+
+    /**
+     * SLF : ローリングコードをテレグラムに含める(bit5).
+     */
+    public static final int SLF_RLC_TX = 0x20;
+
+    /**
+     * SLF : CMACの長さ(bit4-3).
+     */
+    public static final int SLF_MAC_NONE = 0x00;
+
+    public static final int SLF_MAC_3 = 0x08;
+
+    public static final int SLF_MAC_4 = 0x10;
+
+    /**
+     * SLF : 暗号化方式(bit2-0). AES-CBC には対応しない.
+     */
+    public static final int SLF_ENC_NONE = 0x00;
+
+    public static final int SLF_ENC_VAES = 0x03;
+
+    public static final int SLF_ENC_AES_CBC = 0x04;
+
+    /**
+     * 処理結果 : 未登録センサー・形式不正・CMAC不一致・ローリングコード範囲外・未対応の方式.
+     */
+    public static final int ERR_UNKNOWN_SENDER = -1;
+
+    public static final int ERR_FORMAT = -2;
+
+    public static final int ERR_MAC = -3;
+
+    public static final int ERR_ROLLING_CODE = -4;
+
+    public static final int ERR_NOT_SUPPORTED = -5;
+
+    /**
+     * ローリングコードの受け入れ幅の既定値.
+     */
+    public static final int DEFAULT_RLC_WINDOW = 128;
+
+    /**
+     * 暗号化データの最大長(VAESの1ブロック分).
+     */
+    public static final int MAX_DATA_LEN = AES128.BLOCK_SIZE;
+
+    /**
+     * VAESの公開鍵.
+     */
+    private static final byte[] VAES_PUBLIC_KEY = {
+            (byte) 0x34, (byte) 0x10, (byte) 0xDE, (byte) 0x8F, (byte) 0x1A, (byte) 0xBA, (byte) 0x3E, (byte) 0xFF,
+            (byte) 0x9F, (byte) 0x5A, (byte) 0x11, (byte) 0x71, (byte) 0x72, (byte) 0xEA, (byte) 0xCA, (byte) 0xBD
+    };
+
+    private static final int EMPTY = -1;
+
+    /**
+     * 1件あたりのCMACサブ鍵(K1, K2)のバイト数.
+     */
+    private static final int SUBKEY_BYTES = AES128.BLOCK_SIZE * 2;
+
+    /**
+     * スレッドごとの作業領域.
+     */
+    private static class Scratch {
+
+        final byte[] mMessage = new byte[AES128.BLOCK_SIZE * 2];
+
+        final byte[] mBlock = new byte[AES128.BLOCK_SIZE];
+
+        final byte[] mPrefix = new byte[AES128.BLOCK_SIZE];
+    }
+
+    private static final ThreadLocal<Scratch> sScratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    private final int mCapacity;
+
+    /**
+     * センダーID → スロット番号の表. 登録時に作り直して差し替える.
+     */
+    private volatile int[] mIndex;
+
+    private int[] mSenderIds;
+
+    private int mCount;
+
+    private final int[] mSchedules;
+
+    private final byte[] mSubkeys;
+
+    private final int[] mSlf;
+
+    private final int[] mWindow;
+
+    /**
+     * 最後に受け入れたローリングコード.
+     */
+    private final long[] mRollingCodes;
+
+    private final AtomicLong mVerified = new AtomicLong();
+
+    private final AtomicLong mMacFailures = new AtomicLong();
+
+    private final AtomicLong mRollingCodeFailures = new AtomicLong();
+
+    /**
+     * コンストラクタ.
+     *
+     * @param capacity 登録できるセンサー数.
+     */
+    public SecureSensorTable(int capacity) {
+        mCapacity = capacity;
+        mSenderIds = new int[capacity];
+        mSchedules = new int[capacity * AES128.SCHEDULE_WORDS];
+        mSubkeys = new byte[capacity * SUBKEY_BYTES];
+        mSlf = new int[capacity];
+        mWindow = new int[capacity];
+        mRollingCodes = new long[capacity];
+        mIndex = buildIndex();
+    }
+
+    /**
+     * センサーを登録する. 登録済みの場合は鍵・設定を置き換える.
+     *
+     * @param senderId    センダーID.
+     * @param key         AES-128鍵(16byte).
+     * @param slf         セキュリティレベル(SLF_*の組み合わせ).
+     * @param rollingCode 最後に受け入れたローリングコード.
+     * @param window      ローリングコードの受け入れ幅.
+     */
+    public synchronized void register(int senderId, byte[] key, int slf, long rollingCode, int window) {
+        int slot = find(mIndex, senderId);
+        if (slot < 0) {
+            if (mCount == mCapacity) {
+                throw new IllegalStateException("Secure sensor table is full.");
+            }
+            slot = mCount;
+        }
+
+        AES128.expandKey(key, mSchedules, slot * AES128.SCHEDULE_WORDS);
+        deriveSubkeys(slot);
+        mSlf[slot] = slf;
+        mWindow[slot] = Math.max(window, 1);
+        mRollingCodes[slot] = rollingCode & getRollingCodeMask(slf);
+        mSenderIds[slot] = senderId;
+
+        if (slot == mCount) {
+            mCount++;
+            // 鍵スケジュール等を書き込んだ後に表を公開する
+            mIndex = buildIndex();
+        }
+    }
+
+    /**
+     * 登録済みか判定する.
+     *
+     * @param senderId センダーID.
+     * @return true : 登録済み.
+     */
+    public boolean contains(int senderId) {
+        return find(mIndex, senderId) >= 0;
+    }
+
+    /**
+     * 最後に受け入れたローリングコードを取得する(保存用).
+     *
+     * @param senderId センダーID.
+     * @return ローリングコード. 未登録の場合は -1.
+     */
+    public long getRollingCode(int senderId) {
+        int slot = find(mIndex, senderId);
+        return (slot < 0) ? -1 : mRollingCodes[slot];
+    }
+
+    public long getVerifiedCount() {
+        return mVerified.get();
+    }
+
+    public long getMacFailureCount() {
+        return mMacFailures.get();
+    }
+
+    public long getRollingCodeFailureCount() {
+        return mRollingCodeFailures.get();
+    }
+
+    /**
+     * セキュアテレグラムを検証・復号する.
+     * <p>
+     * データは「暗号化データ + ローリングコード(送信する場合) + CMAC」の順.
+     * ローリングコードを送信しない場合は, 前回値の次から受け入れ幅の範囲でCMACが一致する値を探す.
+     *
+     * @param senderId センダーID.
+     * @param rorg     セキュアテレグラムのRORG.
+     * @param data     受信データ.
+     * @param offset   セキュアデータの位置.
+     * @param length   セキュアデータの長さ.
+     * @param out      復号データの書き込み先.
+     * @return 復号データ長. 失敗した場合は ERR_*.
+     */
+    public int unwrap(int senderId, int rorg, byte[] data, int offset, int length, byte[] out) {
+        int slot = find(mIndex, senderId);
+        if (slot < 0) {
+            return ERR_UNKNOWN_SENDER;
+        }
+
+        int slf = mSlf[slot];
+        int encryption = slf & 0x07;
+        if ((encryption != SLF_ENC_NONE) && (encryption != SLF_ENC_VAES)) {
+            return ERR_NOT_SUPPORTED;
+        }
+        int rlcLen = getRollingCodeLength(slf);
+        int txLen = ((slf & SLF_RLC_TX) != 0) ? rlcLen : 0;
+        int macLen = getMacLength(slf);
+        int dataLen = length - txLen - macLen;
+        if ((dataLen < 1) || (dataLen > MAX_DATA_LEN) || (dataLen > out.length)) {
+            return ERR_FORMAT;
+        }
+
+        Scratch scratch = sScratch.get();
+        long mask = getRollingCodeMask(slf);
+        long last = mRollingCodes[slot];
+        long rlc;
+        if (macLen == 0) {
+            // 認証なし : 送信されたローリングコードをそのまま使う
+            rlc = (txLen > 0) ? readRollingCode(data, offset + dataLen, txLen) : 0;
+        } else if (txLen > 0) {
+            rlc = readRollingCode(data, offset + dataLen, txLen);
+            long step = (rlc - last) & mask;
+            if ((step == 0) || (step > mWindow[slot])) {
+                mRollingCodeFailures.incrementAndGet();
+                return ERR_ROLLING_CODE;
+            }
+            if (!verify(slot, rorg, data, offset, dataLen, rlc, rlcLen, macLen, false, scratch)) {
+                mMacFailures.incrementAndGet();
+                return ERR_MAC;
+            }
+        } else {
+            rlc = -1;
+            int window = mWindow[slot];
+            for (int step = 1; step <= window; step++) {
+                long candidate = (last + step) & mask;
+                if (verify(slot, rorg, data, offset, dataLen, candidate, rlcLen, macLen, step > 1, scratch)) {
+                    rlc = candidate;
+                    break;
+                }
+            }
+            if (rlc < 0) {
+                mMacFailures.incrementAndGet();
+                return ERR_MAC;
+            }
+        }
+        if (rlcLen > 0) {
+            mRollingCodes[slot] = rlc;
+        }
+        mVerified.incrementAndGet();
+
+        if (encryption == SLF_ENC_VAES) {
+            xorKeyStream(slot, rlc, rlcLen, data, offset, dataLen, out, scratch);
+        } else {
+            System.arraycopy(data, offset, out, 0, dataLen);
+        }
+        return dataLen;
+    }
+
+    /**
+     * 平文からセキュアデータを作る(センサー側の処理. シミュレーター・ベンチマーク用).
+     *
+     * @param senderId    センダーID.
+     * @param rorg        セキュアテレグラムのRORG.
+     * @param plain       平文.
+     * @param plainLen    平文の長さ.
+     * @param rollingCode ローリングコード.
+     * @param out         書き込み先.
+     * @return セキュアデータ長. 失敗した場合は ERR_*.
+     */
+    public int wrap(int senderId, int rorg, byte[] plain, int plainLen, long rollingCode, byte[] out) {
+        int slot = find(mIndex, senderId);
+        if (slot < 0) {
+            return ERR_UNKNOWN_SENDER;
+        }
+        int slf = mSlf[slot];
+        int encryption = slf & 0x07;
+        if ((encryption != SLF_ENC_NONE) && (encryption != SLF_ENC_VAES)) {
+            return ERR_NOT_SUPPORTED;
+        }
+        if ((plainLen < 1) || (plainLen > MAX_DATA_LEN)) {
+            return ERR_FORMAT;
+        }
+
+        Scratch scratch = sScratch.get();
+        int rlcLen = getRollingCodeLength(slf);
+        int txLen = ((slf & SLF_RLC_TX) != 0) ? rlcLen : 0;
+        int macLen = getMacLength(slf);
+        long rlc = rollingCode & getRollingCodeMask(slf);
+
+        if (encryption == SLF_ENC_VAES) {
+            xorKeyStream(slot, rlc, rlcLen, plain, 0, plainLen, out, scratch);
+        } else {
+            System.arraycopy(plain, 0, out, 0, plainLen);
+        }
+        int pos = plainLen;
+        for (int index = txLen - 1; index >= 0; index--) {
+            out[pos++] = (byte) (rlc >>> (index * 8));
+        }
+        if (macLen > 0) {
+            int messageLen = buildMessage(rorg, out, 0, plainLen, rlc, rlcLen, scratch.mMessage);
+            cmac(slot, scratch.mMessage, messageLen, scratch.mBlock, scratch.mPrefix, false);
+            System.arraycopy(scratch.mBlock, 0, out, pos, macLen);
+            pos += macLen;
+        }
+        return pos;
+    }
+
+    /**
+     * SLFからローリングコード長(byte)を取得する.
+     *
+     * @param slf SLF.
+     * @return ローリングコード長.
+     */
+    public static int getRollingCodeLength(int slf) {
+        switch (slf & 0xC0) {
+            case SLF_RLC_16:
+                return 2;
+            case SLF_RLC_24:
+                return 3;
+            case SLF_RLC_32:
+                return 4;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * SLFからCMAC長(byte)を取得する.
+     *
+     * @param slf SLF.
+     * @return CMAC長.
+     */
+    public static int getMacLength(int slf) {
+        switch (slf & 0x18) {
+            case SLF_MAC_3:
+                return 3;
+            case SLF_MAC_4:
+                return 4;
+            default:
+                return 0;
+        }
+    }
+
+    private static long getRollingCodeMask(int slf) {
+        int length = getRollingCodeLength(slf);
+        return (length == 0) ? 0 : (-1L >>> (64 - (length * 8)));
+    }
+
+    private static long readRollingCode(byte[] data, int offset, int length) {
+        long value = 0;
+        for (int index = 0; index < length; index++) {
+            value = (value << 8) | (data[offset + index] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * CMACを計算して受信値と比較する.
+     * <p>
+     * ローリングコードを含まない先頭ブロックの途中結果は, 候補を試す間 scratch.mPrefix に保持して再利用する.
+     *
+     * @param retry true : 同じテレグラムで別の候補を試す.
+     */
+    private boolean verify(int slot, int rorg, byte[] data, int offset, int dataLen, long rlc, int rlcLen,
+                           int macLen, boolean retry, Scratch scratch) {
+        byte[] message = scratch.mMessage;
+        int messageLen = buildMessage(rorg, data, offset, dataLen, rlc, rlcLen, message);
+        // 先頭ブロックにローリングコードが含まれなければ前回の途中結果を再利用できる
+        boolean reusePrefix = retry && ((1 + dataLen) >= AES128.BLOCK_SIZE);
+        cmac(slot, message, messageLen, scratch.mBlock, scratch.mPrefix, reusePrefix);
+
+        byte[] mac = scratch.mBlock;
+        int macOffset = offset + dataLen + (((mSlf[slot] & SLF_RLC_TX) != 0) ? rlcLen : 0);
+        int diff = 0;
+        for (int index = 0; index < macLen; index++) {
+            diff |= mac[index] ^ data[macOffset + index];
+        }
+        return diff == 0;
+    }
+
+    /**
+     * CMACの対象(RORG + 暗号化データ + ローリングコード)を組み立てる.
+     */
+    private static int buildMessage(int rorg, byte[] data, int offset, int dataLen, long rlc, int rlcLen,
+                                    byte[] message) {
+        int pos = 0;
+        message[pos++] = (byte) rorg;
+        System.arraycopy(data, offset, message, pos, dataLen);
+        pos += dataLen;
+        for (int index = rlcLen - 1; index >= 0; index--) {
+            message[pos++] = (byte) (rlc >>> (index * 8));
+        }
+        return pos;
+    }
+
+    /**
+     * AES-CMAC(RFC 4493)を計算する. 対象は2ブロック以内.
+     *
+     * @param usePrefix true : 先頭ブロックの暗号化結果として prefix を使う(false の場合は計算して prefix に残す).
+     */
+    private void cmac(int slot, byte[] message, int length, byte[] out, byte[] prefix, boolean usePrefix) {
+        int rk = slot * AES128.SCHEDULE_WORDS;
+        int blocks = Math.max((length + AES128.BLOCK_SIZE - 1) / AES128.BLOCK_SIZE, 1);
+        int lastOffset = (blocks - 1) * AES128.BLOCK_SIZE;
+        int lastLen = length - lastOffset;
+
+        if (blocks > 1) {
+            if (!usePrefix) {
+                AES128.encrypt(mSchedules, rk, message, 0, prefix, 0);
+            }
+            System.arraycopy(prefix, 0, out, 0, AES128.BLOCK_SIZE);
+        } else {
+            for (int index = 0; index < AES128.BLOCK_SIZE; index++) {
+                out[index] = 0;
+            }
+        }
+
+        // 最終ブロック : 完全なら K1, 不完全なら 10..0 で埋めて K2 を使う
+        int subkey = slot * SUBKEY_BYTES + ((lastLen == AES128.BLOCK_SIZE) ? 0 : AES128.BLOCK_SIZE);
+        for (int index = 0; index < AES128.BLOCK_SIZE; index++) {
+            int b;
+            if (index < lastLen) {
+                b = message[lastOffset + index];
+            } else {
+                b = (index == lastLen) ? 0x80 : 0x00;
+            }
+            out[index] ^= (byte) (b ^ mSubkeys[subkey + index]);
+        }
+        AES128.encrypt(mSchedules, rk, out, 0, out, 0);
+    }
+
+    /**
+     * VAES : 公開鍵とローリングコードから鍵ストリームを作り, データとXORする.
+     */
+    private void xorKeyStream(int slot, long rlc, int rlcLen, byte[] in, int inOffset, int length, byte[] out,
+                              Scratch scratch) {
+        byte[] block = scratch.mBlock;
+        System.arraycopy(VAES_PUBLIC_KEY, 0, block, 0, AES128.BLOCK_SIZE);
+        for (int index = 0; index < rlcLen; index++) {
+            block[index] ^= (byte) (rlc >>> ((rlcLen - 1 - index) * 8));
+        }
+        AES128.encrypt(mSchedules, slot * AES128.SCHEDULE_WORDS, block, 0, block, 0);
+        for (int index = 0; index < length; index++) {
+            out[index] = (byte) (in[inOffset + index] ^ block[index]);
+        }
+    }
+
+    /**
+     * CMACのサブ鍵 K1, K2 を求める.
+     */
+    private void deriveSubkeys(int slot) {
+        byte[] block = new byte[AES128.BLOCK_SIZE];
+        AES128.encrypt(mSchedules, slot * AES128.SCHEDULE_WORDS, block, 0, block, 0);
+        int k1 = slot * SUBKEY_BYTES;
+        int k2 = k1 + AES128.BLOCK_SIZE;
+        shiftLeft(block, 0, mSubkeys, k1);
+        shiftLeft(mSubkeys, k1, mSubkeys, k2);
+    }
+
+    private static void shiftLeft(byte[] in, int inOffset, byte[] out, int outOffset) {
+        int msb = (in[inOffset] & 0x80) != 0 ? 1 : 0;
+        for (int index = 0; index < AES128.BLOCK_SIZE; index++) {
+            int next = (index + 1 < AES128.BLOCK_SIZE) ? ((in[inOffset + index + 1] & 0xFF) >>> 7) : 0;
+            out[outOffset + index] = (byte) (((in[inOffset + index] & 0xFF) << 1) | next);
+        }
+        if (msb != 0) {
+            out[outOffset + AES128.BLOCK_SIZE - 1] ^= (byte) 0x87;
+        }
+    }
+
+    private int[] buildIndex() {
+        int size = Integer.highestOneBit(Math.max(mCount, 1) * 4 - 1) * 2;
+        int[] index = new int[size * 2];
+        for (int slot = 0; slot < size; slot++) {
+            index[slot * 2 + 1] = EMPTY;
+        }
+        int mask = size - 1;
+        for (int slot = 0; slot < mCount; slot++) {
+            int id = mSenderIds[slot];
+            int pos = SenderFilter.mix(id) & mask;
+            while (index[pos * 2 + 1] != EMPTY) {
+                pos = (pos + 1) & mask;
+            }
+            index[pos * 2] = id;
+            index[pos * 2 + 1] = slot;
+        }
+        return index;
+    }
+
+    /**
+     * センダーIDからスロット番号を取得する.
+     *
+     * @return スロット番号. 未登録の場合は -1.
+     */
+    private static int find(int[] index, int senderId) {
+        int mask = (index.length / 2) - 1;
+        int pos = SenderFilter.mix(senderId) & mask;
+        while (true) {
+            int slot = index[pos * 2 + 1];
+            if (slot == EMPTY) {
+                return -1;
+            }
+            if (index[pos * 2] == senderId) {
+                return slot;
+            }
+            pos = (pos + 1) & mask;
+        }
+    }
+}
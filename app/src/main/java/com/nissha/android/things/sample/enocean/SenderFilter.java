@@ -0,0 +1,163 @@
+package com.nissha.android.things.sample.enocean;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Allow-list of sender IDs for early rejection of unknown telegrams.
+ * <p>
+ * 65536bitのビットセットで大半の未登録センサーを1回のメモリ参照で除外し,
+ * ビットが立っている場合のみオープンアドレス法のハッシュ表(int配列)で確定判定する.
+ * 登録・削除は排他し, 判定はロックを取らない(配列は差し替えで更新する).
+ */
+
+public class SenderFilter {
+
+    private static final int BITSET_BITS = 1 << 16;
+
+    private static final int EMPTY = 0;
+
+    /**
+     * 判定用のスナップショット. 更新時は丸ごと作り直す.
+     */
+    private static class Table {
+
+        final long[] mBits = new long[BITSET_BITS / 64];
+
+        /**
+         * センダーID. 0はEMPTYと区別するため mHasZero で管理する.
+         */
+        final int[] mKeys;
+
+        final int mMask;
+
+        final boolean mHasZero;
+
+        Table(int[] ids, int count) {
+            int size = Integer.highestOneBit(Math.max(count, 1) * 4 - 1) * 2;
+            mKeys = new int[size];
+            mMask = size - 1;
+            boolean hasZero = false;
+            for (int index = 0; index < count; index++) {
+                int id = ids[index];
+                int hash = mix(id);
+                mBits[(hash >>> 16) >>> 6] |= 1L << (hash >>> 16);
+                if (id == EMPTY) {
+                    hasZero = true;
+                    continue;
+                }
+                int slot = hash & mMask;
+                while ((mKeys[slot] != EMPTY) && (mKeys[slot] != id)) {
+                    slot = (slot + 1) & mMask;
+                }
+                mKeys[slot] = id;
+            }
+            mHasZero = hasZero;
+        }
+    }
+
+    private volatile Table mTable = new Table(new int[0], 0);
+
+    private int[] mIds = new int[16];
+
+    private int mCount;
+
+    private final AtomicLong mAccepted = new AtomicLong();
+
+    private final AtomicLong mRejected = new AtomicLong();
+
+    /**
+     * センダーIDを登録する.
+     *
+     * @param senderId センダーID.
+     */
+    public synchronized void add(int senderId) {
+        for (int index = 0; index < mCount; index++) {
+            if (mIds[index] == senderId) {
+                return;
+            }
+        }
+        if (mCount == mIds.length) {
+            int[] ids = new int[mIds.length * 2];
+            System.arraycopy(mIds, 0, ids, 0, mCount);
+            mIds = ids;
+        }
+        mIds[mCount++] = senderId;
+        mTable = new Table(mIds, mCount);
+    }
+
+    /**
+     * センダーIDの登録を解除する.
+     *
+     * @param senderId センダーID.
+     */
+    public synchronized void remove(int senderId) {
+        for (int index = 0; index < mCount; index++) {
+            if (mIds[index] == senderId) {
+                mIds[index] = mIds[--mCount];
+                mTable = new Table(mIds, mCount);
+                return;
+            }
+        }
+    }
+
+    /**
+     * 登録済みか判定する(カウンターは更新しない).
+     *
+     * @param senderId センダーID.
+     * @return true : 登録済み.
+     */
+    public boolean contains(int senderId) {
+        Table table = mTable;
+        int hash = mix(senderId);
+        if ((table.mBits[(hash >>> 16) >>> 6] & (1L << (hash >>> 16))) == 0) {
+            return false;
+        }
+        if (senderId == EMPTY) {
+            return table.mHasZero;
+        }
+        int slot = hash & table.mMask;
+        while (true) {
+            int key = table.mKeys[slot];
+            if (key == senderId) {
+                return true;
+            }
+            if (key == EMPTY) {
+                return false;
+            }
+            slot = (slot + 1) & table.mMask;
+        }
+    }
+
+    /**
+     * 登録済みか判定し, 受理・除外の件数を数える.
+     *
+     * @param senderId センダーID.
+     * @return true : 受理.
+     */
+    public boolean accept(int senderId) {
+        if (contains(senderId)) {
+            mAccepted.incrementAndGet();
+            return true;
+        }
+        mRejected.incrementAndGet();
+        return false;
+    }
+
+    public long getAcceptedCount() {
+        return mAccepted.get();
+    }
+
+    /**
+     * 未登録のため除外した件数.
+     *
+     * @return 件数.
+     */
+    public long getRejectedCount() {
+        return mRejected.get();
+    }
+
+    static int mix(int value) {
+        int h = value * 0x9E3779B9;
+        return h ^ (h >>> 15);
+    }
+}
@@ -0,0 +1,82 @@
+package com.nissha.android.things.sample.enocean;
+
+/**
+ * Sender allow-list together with the EEP each registered sender is decoded as.
+ * <p>
+ * 許可リスト({@link SenderFilter})は受信対象かどうかだけを判定し, 解析するEEPはセンダーごとに別に持つ.
+ * 許可リストに登録されていてもEEPが分からないセンサー(例: EEP未指定のセキュアセンサー)は解析しない.
+ * EEPごとのセンダー集合も {@link SenderFilter} で持つため, 判定はロックを取らない.
+ */
+
+public class SenderProfiles {
+
+    /**
+     * 解析できるEEP.
+     */
+    public static final String EEP_A50904 = "A5-09-04";
+
+    private final SenderFilter mFilter = new SenderFilter();
+
+    private final SenderFilter mA50904 = new SenderFilter();
+
+    /**
+     * センサーを登録する. 登録済みの場合はEEPを置き換える.
+     *
+     * @param senderId センダーID.
+     * @param eep      解析するEEP名(null の場合は許可リストのみに登録する).
+     */
+    public synchronized void register(int senderId, String eep) {
+        if ((eep != null) && !EEP_A50904.equals(eep)) {
+            throw new IllegalArgumentException("Unsupported EEP : " + eep);
+        }
+        if (eep == null) {
+            mA50904.remove(senderId);
+        } else {
+            mA50904.add(senderId);
+        }
+        mFilter.add(senderId);
+    }
+
+    /**
+     * センサーの登録を解除する.
+     *
+     * @param senderId センダーID.
+     */
+    public synchronized void unregister(int senderId) {
+        mFilter.remove(senderId);
+        mA50904.remove(senderId);
+    }
+
+    /**
+     * 受信対象センダーの許可リストを取得する.
+     *
+     * @return 許可リスト.
+     */
+    public SenderFilter getFilter() {
+        return mFilter;
+    }
+
+    /**
+     * センサーのEEP名を取得する.
+     *
+     * @param senderId センダーID.
+     * @return EEP名. 未登録・EEP未指定の場合は null.
+     */
+    public String getEEP(int senderId) {
+        return mA50904.contains(senderId) ? EEP_A50904 : null;
+    }
+
+    /**
+     * センサーのEEPで実データを解析する. 配列はコピーせずにEEPがそのまま保持する.
+     *
+     * @param payload  実データ(解析時に確保したもの).
+     * @param senderId センダーID(4byte, 解析時に確保したもの).
+     * @return EEP. 解析するEEPが登録されていない場合は null.
+     */
+    EEP create(byte[] payload, byte[] senderId) {
+        if (mA50904.contains(EEP.toSenderIdValue(senderId))) {
+            return new A50904(payload, senderId, false);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,26 @@
+package com.nissha.android.things.sample.stream;
+
+/**
+ * Reference-counted stream element that goes back to its pool when the last holder releases it.
+ * <p>
+ * {@link StreamPublisher} は購読者ごとに {@link #retain()} してから配信し, 上書き・取り消し等で
+ * 配信しなかった要素は自ら {@link #release()} する. 購読者は onNext で受け取った要素を使い終わったら
+ * release() を呼ぶこと. release() した後は参照しないこと.
+ */
+
+public interface IReleasable {
+
+    /**
+     * 参照を1つ追加する.
+     *
+     * @throws IllegalStateException 既にプールに戻っている.
+     */
+    void retain();
+
+    /**
+     * 参照を1つ手放す. 最後の参照を手放した場合はプールに戻る.
+     *
+     * @throws IllegalStateException 既にプールに戻っている.
+     */
+    void release();
+}
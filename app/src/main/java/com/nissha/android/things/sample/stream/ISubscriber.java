@@ -0,0 +1,33 @@
+package com.nissha.android.things.sample.stream;
+
+/**
+ * Subscriber of {@link StreamPublisher} (same contract as java.util.concurrent.Flow.Subscriber).
+ *
+ * @param <T> 要素の型.
+ */
+
+public interface ISubscriber<T> {
+
+    /**
+     * 購読開始時に呼ばれる. {@link ISubscription#request(long)} を呼ぶまで要素は届かない.
+     *
+     * @param subscription 購読.
+     */
+    void onSubscribe(ISubscription subscription);
+
+    /**
+     * 要素を受け取る. 要素が {@link IReleasable} の場合は, 使い終わったら release() を呼ぶこと.
+     *
+     * @param item 要素.
+     */
+    void onNext(T item);
+
+    /**
+     * エラーで購読が終了した. (バッファ溢れなど)
+     *
+     * @param throwable エラー.
+     */
+    void onError(Throwable throwable);
+
+    void onComplete();
+}
@@ -0,0 +1,20 @@
+package com.nissha.android.things.sample.stream;
+
+/**
+ * Subscription of {@link StreamPublisher} (same contract as java.util.concurrent.Flow.Subscription).
+ */
+
+public interface ISubscription {
+
+    /**
+     * 受け取れる要素数を追加する.
+     *
+     * @param n 要素数(Long.MAX_VALUEで無制限).
+     */
+    void request(long n);
+
+    /**
+     * 購読を解除する.
+     */
+    void cancel();
+}
@@ -0,0 +1,117 @@
+package com.nissha.android.things.sample.stream;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pooled, reference-counted decoded sample shared between subscribers.
+ * <p>
+ * {@link #obtain(long, int, int, int)} で取得したインスタンスはプールから払い出され, 参照を1つ持つ.
+ * 参照している間は値を変更しないため, 購読者間で共有できる. 購読者は使い終わったら {@link #release()} を呼ぶこと
+ * ({@link IReleasable}). 最後の参照を手放すとプールに戻り, 次の受信データに再利用される.
+ */
+
+public final class SensorSample implements IReleasable {
+
+    /**
+     * プールに保持する最大数.
+     */
+    private static final int MAX_POOL_SIZE = 32;
+
+    private static final Object sPoolSync = new Object();
+
+    private static SensorSample sPool;
+
+    private static int sPoolSize;
+
+    /**
+     * 受信時刻(Unix Time).
+     */
+    public long mTime;
+
+    /**
+     * センダーID.
+     */
+    public int mSenderId;
+
+    /**
+     * ペイロード(DB3 - DB0).
+     */
+    public int mPayload;
+
+    /**
+     * RSSI
+     */
+    public int mRSSI;
+
+    /**
+     * 参照数(0 = プールに戻っている).
+     */
+    private final AtomicInteger mReferences = new AtomicInteger(1);
+
+    /**
+     * プール内の次のインスタンス.
+     */
+    private SensorSample mNext;
+
+    public SensorSample(long time, int senderId, int payload, int rssi) {
+        mTime = time;
+        mSenderId = senderId;
+        mPayload = payload;
+        mRSSI = rssi;
+    }
+
+    /**
+     * プールからインスタンスを取得する(参照数は1).
+     *
+     * @param time     受信時刻.
+     * @param senderId センダーID.
+     * @param payload  ペイロード(DB3 - DB0).
+     * @param rssi     RSSI.
+     * @return インスタンス.
+     */
+    public static SensorSample obtain(long time, int senderId, int payload, int rssi) {
+        SensorSample sample = null;
+        synchronized (sPoolSync) {
+            if (sPool != null) {
+                sample = sPool;
+                sPool = sample.mNext;
+                sample.mNext = null;
+                sPoolSize--;
+            }
+        }
+        if (sample == null) {
+            return new SensorSample(time, senderId, payload, rssi);
+        }
+        sample.mTime = time;
+        sample.mSenderId = senderId;
+        sample.mPayload = payload;
+        sample.mRSSI = rssi;
+        sample.mReferences.set(1);
+        return sample;
+    }
+
+    @Override
+    public void retain() {
+        if (mReferences.getAndIncrement() <= 0) {
+            throw new IllegalStateException("This SensorSample is already released.");
+        }
+    }
+
+    @Override
+    public void release() {
+        int references = mReferences.decrementAndGet();
+        if (references > 0) {
+            return;
+        }
+        if (references < 0) {
+            throw new IllegalStateException("This SensorSample is already released.");
+        }
+        synchronized (sPoolSync) {
+            if (sPoolSize < MAX_POOL_SIZE) {
+                mNext = sPool;
+                sPool = this;
+                sPoolSize++;
+            }
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package com.nissha.android.things.sample.stream;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Multi-subscriber publisher with per-subscriber demand.
+ * <p>
+ * 購読者ごとにバッファと配信Executorを持つため, 遅い購読者が他の購読者を待たせることはない.
+ * {@link #publish(Object)} はブロックしない. 購読者への通知(onError を含む)は全て配信Executorから行う.
+ * <ul>
+ * <li>{@link #MODE_BUFFER} : 全要素を届ける(ストレージなど). バッファが溢れた場合は onError で購読を終了する.</li>
+ * <li>{@link #MODE_LATEST} : 最新の要素のみ届ける(UIなど). 未配信の要素は新しい要素で上書きされる.</li>
+ * </ul>
+ * 要素が {@link IReleasable} の場合は購読者ごとに参照を追加してから渡し, 上書き・溢れ・購読終了で
+ * 届けなかった要素はここで手放す. 届けた要素は購読者が手放す. 配信元は publish() の後に自分の参照を手放すこと.
+ *
+ * @param <T> 要素の型(購読者間で共有されるため不変オブジェクト, または参照中は変更しないオブジェクトにすること).
+ */
+
+public class StreamPublisher<T> {
+
+    /**
+     * 全要素を届ける.
+     */
+    public static final int MODE_BUFFER = 0;
+
+    /**
+     * 最新の要素のみ届ける.
+     */
+    public static final int MODE_LATEST = 1;
+
+    private final CopyOnWriteArrayList<Subscription> mSubscriptions = new CopyOnWriteArrayList<>();
+
+    private volatile boolean mCompleted;
+
+    /**
+     * 購読する.
+     *
+     * @param subscriber 購読者.
+     * @param mode       {@link #MODE_BUFFER} または {@link #MODE_LATEST}.
+     * @param bufferSize バッファサイズ({@link #MODE_BUFFER} のみ).
+     * @param executor   購読者への配信に使うExecutor.
+     * @return 購読.
+     */
+    public ISubscription subscribe(ISubscriber<? super T> subscriber, int mode, int bufferSize, Executor executor) {
+        Subscription subscription = new Subscription(subscriber, mode, bufferSize, executor);
+        subscriber.onSubscribe(subscription);
+        // 追加してから終了を確認する(complete() と同時に呼ばれても, どちらかが必ず終了を通知する)
+        mSubscriptions.add(subscription);
+        if (mCompleted) {
+            mSubscriptions.remove(subscription);
+            subscription.complete();
+        }
+        return subscription;
+    }
+
+    /**
+     * 要素を配信する.
+     *
+     * @param item 要素.
+     */
+    public void publish(T item) {
+        for (Subscription subscription : mSubscriptions) {
+            subscription.offer(item);
+        }
+    }
+
+    /**
+     * 配信を終了する.
+     */
+    public void complete() {
+        mCompleted = true;
+        for (Subscription subscription : mSubscriptions) {
+            subscription.complete();
+        }
+        mSubscriptions.clear();
+    }
+
+    /**
+     * 購読者数.
+     *
+     * @return 購読者数.
+     */
+    public int getSubscriberCount() {
+        return mSubscriptions.size();
+    }
+
+    private class Subscription implements ISubscription, Runnable {
+
+        private final ISubscriber<? super T> mSubscriber;
+
+        private final int mMode;
+
+        private final ArrayBlockingQueue<T> mQueue;
+
+        private final AtomicReference<T> mLatest = new AtomicReference<>();
+
+        private final Executor mExecutor;
+
+        private final AtomicLong mRequested = new AtomicLong();
+
+        private final AtomicInteger mWip = new AtomicInteger();
+
+        private volatile boolean mCancelled;
+
+        private volatile boolean mDone;
+
+        private volatile Throwable mError;
+
+        /**
+         * 残りの要素を届けずに直ちに通知するエラー(要求数の誤りなど).
+         */
+        private volatile Throwable mImmediateError;
+
+        Subscription(ISubscriber<? super T> subscriber, int mode, int bufferSize, Executor executor) {
+            mSubscriber = subscriber;
+            mMode = mode;
+            mQueue = (mode == MODE_BUFFER) ? new ArrayBlockingQueue<T>(bufferSize) : null;
+            mExecutor = executor;
+        }
+
+        void offer(T item) {
+            if (mCancelled || mDone) {
+                return;
+            }
+            retain(item);
+            if (mMode == MODE_LATEST) {
+                // 未配信の要素は届けずに手放す
+                release(mLatest.getAndSet(item));
+            } else if (!mQueue.offer(item)) {
+                release(item);
+                mError = new IllegalStateException("Subscriber buffer overflow.");
+                mDone = true;
+                mSubscriptions.remove(this);
+            }
+            if (mCancelled) {
+                // 取り消しと同時に追加した
+                clear();
+                return;
+            }
+            schedule();
+        }
+
+        void complete() {
+            mDone = true;
+            schedule();
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                mImmediateError = new IllegalArgumentException("request must be positive : " + n);
+                mSubscriptions.remove(this);
+                schedule();
+                return;
+            }
+            while (true) {
+                long current = mRequested.get();
+                long next = current + n;
+                if (next < 0) {
+                    next = Long.MAX_VALUE;
+                }
+                if (mRequested.compareAndSet(current, next)) {
+                    break;
+                }
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            mCancelled = true;
+            mSubscriptions.remove(this);
+            clear();
+        }
+
+        /**
+         * 未配信の要素を手放す.
+         */
+        private void clear() {
+            T item;
+            while ((item = poll()) != null) {
+                release(item);
+            }
+        }
+
+        private void schedule() {
+            if (mWip.getAndIncrement() == 0) {
+                mExecutor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            boolean finished = false;
+            try {
+                drain();
+                finished = true;
+            } finally {
+                if (!finished) {
+                    // 購読者が例外を投げた. 次の offer・request で配信を再開できるようにする
+                    mWip.set(0);
+                }
+            }
+        }
+
+        private void drain() {
+            int missed = 1;
+            while (true) {
+                if (!mCancelled && (mImmediateError != null)) {
+                    mCancelled = true;
+                    mSubscriber.onError(mImmediateError);
+                }
+
+                while (!mCancelled && (mRequested.get() > 0)) {
+                    T item = poll();
+                    if (item == null) {
+                        break;
+                    }
+                    if (mRequested.get() != Long.MAX_VALUE) {
+                        mRequested.decrementAndGet();
+                    }
+                    mSubscriber.onNext(item);
+                }
+
+                if (!mCancelled && mDone && isEmpty()) {
+                    mCancelled = true;
+                    if (mError != null) {
+                        mSubscriber.onError(mError);
+                    } else {
+                        mSubscriber.onComplete();
+                    }
+                }
+
+                if (mCancelled) {
+                    clear();
+                }
+
+                missed = mWip.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+
+        private void retain(T item) {
+            if (item instanceof IReleasable) {
+                ((IReleasable) item).retain();
+            }
+        }
+
+        private void release(T item) {
+            if (item instanceof IReleasable) {
+                ((IReleasable) item).release();
+            }
+        }
+
+        private T poll() {
+            if (mMode == MODE_LATEST) {
+                return mLatest.getAndSet(null);
+            }
+            return mQueue.poll();
+        }
+
+        private boolean isEmpty() {
+            if (mMode == MODE_LATEST) {
+                return mLatest.get() == null;
+            }
+            return mQueue.isEmpty();
+        }
+    }
+}
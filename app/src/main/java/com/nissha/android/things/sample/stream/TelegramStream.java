@@ -0,0 +1,58 @@
+package com.nissha.android.things.sample.stream;
+
+import com.nissha.android.things.sample.enocean.EEP;
+
+/**
+ * Publishers for each stage of the receive pipeline (frame → telegram → decoded sample).
+ */
+
+public class TelegramStream {
+
+    /**
+     * 切り出したESP3フレーム.
+     */
+    private final StreamPublisher<byte[]> mFrames = new StreamPublisher<>();
+
+    /**
+     * 対象センサーのテレグラム.
+     */
+    private final StreamPublisher<EEP> mTelegrams = new StreamPublisher<>();
+
+    /**
+     * 受信データ.
+     */
+    private final StreamPublisher<SensorSample> mSamples = new StreamPublisher<>();
+
+    public StreamPublisher<byte[]> frames() {
+        return mFrames;
+    }
+
+    public StreamPublisher<EEP> telegrams() {
+        return mTelegrams;
+    }
+
+    public StreamPublisher<SensorSample> samples() {
+        return mSamples;
+    }
+
+    /**
+     * 受信データを配信する. 購読者がいない場合は取得しない.
+     * 配信する要素はプールから取得し, 全ての購読者が手放すとプールに戻る.
+     */
+    public void publishSample(long time, int senderId, int payload, int rssi) {
+        if (mSamples.getSubscriberCount() > 0) {
+            SensorSample sample = SensorSample.obtain(time, senderId, payload, rssi);
+            mSamples.publish(sample);
+            sample.release();
+        }
+    }
+
+    /**
+     * 全ての配信を終了する.
+     */
+    public void complete() {
+        mFrames.complete();
+        mTelegrams.complete();
+        mSamples.complete();
+    }
+}
@@ -0,0 +1,62 @@
+package com.nissha.android.things.sample.uplink;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * HTTP uplink transport (one POST per batch).
+ */
+
+public class HttpUplinkTransport implements IUplinkTransport {
+
+    private static final int TIMEOUT_MS = 5000;
+
+    private final URL mUrl;
+
+    public HttpUplinkTransport(URL url) {
+        mUrl = url;
+    }
+
+    @Override
+    public void send(byte[] data, int length) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) mUrl.openConnection();
+        boolean succeeded = false;
+        try {
+            connection.setConnectTimeout(TIMEOUT_MS);
+            connection.setReadTimeout(TIMEOUT_MS);
+            connection.setDoOutput(true);
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", "application/octet-stream");
+            connection.setFixedLengthStreamingMode(length);
+
+            OutputStream out = connection.getOutputStream();
+            out.write(data, 0, length);
+            out.close();
+
+            int status = connection.getResponseCode();
+            if ((status < 200) || (status >= 300)) {
+                throw new IOException("Collector returned " + status);
+            }
+
+            // Keep-Aliveで接続を再利用するためにレスポンスを読み切る
+            InputStream in = connection.getInputStream();
+            byte[] buf = new byte[256];
+            while (in.read(buf) >= 0) {
+                // 読み捨て
+            }
+            in.close();
+            succeeded = true;
+        } finally {
+            if (!succeeded) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+}
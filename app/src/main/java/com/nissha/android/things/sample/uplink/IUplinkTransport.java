@@ -0,0 +1,24 @@
+package com.nissha.android.things.sample.uplink;
+
+import java.io.IOException;
+
+/**
+ * Uplink transport to the central collector.
+ */
+
+public interface IUplinkTransport {
+
+    /**
+     * 圧縮済みバッチを送信する. 正常に返った場合は送信先が受け取ったものとみなす.
+     *
+     * @param data   バッチ.
+     * @param length 長さ.
+     * @throws IOException 送信失敗(リンク断など).
+     */
+    void send(byte[] data, int length) throws IOException;
+
+    /**
+     * 接続を閉じる.
+     */
+    void close();
+}
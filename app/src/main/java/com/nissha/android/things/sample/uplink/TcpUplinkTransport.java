@@ -0,0 +1,82 @@
+package com.nissha.android.things.sample.uplink;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * TCP uplink transport.
+ * <p>
+ * バッチごとに「長さ(4byte) + バッチ」を送信し, 受信側からのACK(1byte)を待つ.
+ */
+
+public class TcpUplinkTransport implements IUplinkTransport {
+
+    /**
+     * 受信側が返すACK.
+     */
+    public static final int ACK = 0x06;
+
+    private static final int TIMEOUT_MS = 5000;
+
+    private final String mHost;
+
+    private final int mPort;
+
+    private Socket mSocket;
+
+    private DataInputStream mInput;
+
+    private DataOutputStream mOutput;
+
+    public TcpUplinkTransport(String host, int port) {
+        mHost = host;
+        mPort = port;
+    }
+
+    @Override
+    public void send(byte[] data, int length) throws IOException {
+        try {
+            if (mSocket == null) {
+                connect();
+            }
+            mOutput.writeInt(length);
+            mOutput.write(data, 0, length);
+            mOutput.flush();
+
+            if (mInput.read() != ACK) {
+                throw new IOException("No ACK from collector.");
+            }
+        } catch (IOException e) {
+            // 次回送信時に再接続する
+            close();
+            throw e;
+        }
+    }
+
+    private void connect() throws IOException {
+        Socket socket = new Socket();
+        socket.connect(new InetSocketAddress(mHost, mPort), TIMEOUT_MS);
+        socket.setSoTimeout(TIMEOUT_MS);
+        socket.setTcpNoDelay(true);
+        mSocket = socket;
+        mInput = new DataInputStream(socket.getInputStream());
+        mOutput = new DataOutputStream(socket.getOutputStream());
+    }
+
+    @Override
+    public void close() {
+        if (mSocket != null) {
+            try {
+                mSocket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        mSocket = null;
+        mInput = null;
+        mOutput = null;
+    }
+}
@@ -0,0 +1,68 @@
+package com.nissha.android.things.sample.uplink;
+
+/**
+ * Batch of samples waiting for uplink (primitive arrays, reusable).
+ */
+
+public class UplinkBatch {
+
+    final long[] mTimes;
+
+    final int[] mSenderIds;
+
+    final int[] mPayloads;
+
+    final byte[] mRSSIs;
+
+    int mCount;
+
+    /**
+     * バッチを作り始めた時刻(ms).
+     */
+    long mStartedAt;
+
+    /**
+     * コンストラクタ.
+     *
+     * @param capacity 最大件数.
+     */
+    public UplinkBatch(int capacity) {
+        mTimes = new long[capacity];
+        mSenderIds = new int[capacity];
+        mPayloads = new int[capacity];
+        mRSSIs = new byte[capacity];
+    }
+
+    public int getCapacity() {
+        return mTimes.length;
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    public boolean isFull() {
+        return mCount == mTimes.length;
+    }
+
+    /**
+     * データを追加する.
+     *
+     * @return false : 満杯.
+     */
+    public boolean add(long time, int senderId, int payload, int rssi) {
+        if (isFull()) {
+            return false;
+        }
+        mTimes[mCount] = time;
+        mSenderIds[mCount] = senderId;
+        mPayloads[mCount] = payload;
+        mRSSIs[mCount] = (byte) rssi;
+        mCount++;
+        return true;
+    }
+
+    public void clear() {
+        mCount = 0;
+    }
+}
@@ -0,0 +1,220 @@
+package com.nissha.android.things.sample.uplink;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compact binary encoding of {@link UplinkBatch}.
+ * <p>
+ * 形式(Deflate圧縮前):
+ * <pre>
+ * 'E' 'U' version(1) count(varint) baseTime(8)
+ * { timeDelta(zigzag varint) senderId(4) payload(4) rssi(1) } * count
+ * </pre>
+ * 圧縮後は 先頭4byteに圧縮前の長さ を付けて送る.
+ * 同じセンサーのデータが繰り返し現れるため, Deflateでよく縮む.
+ * エンコーダーはバッファとDeflaterを使い回すので, スレッドごとに用意すること.
+ */
+
+public class UplinkBatchCodec {
+
+    private static final byte MAGIC_0 = 'E';
+
+    private static final byte MAGIC_1 = 'U';
+
+    private static final byte VERSION = 1;
+
+    /**
+     * 1件あたりの最大サイズ(varint 10byte + 9byte).
+     */
+    private static final int MAX_RECORD_SIZE = 19;
+
+    private static final int HEADER_SIZE = 2 + 1 + 5 + 8;
+
+    /**
+     * デコードしたデータの通知先.
+     */
+    public interface ISampleListener {
+
+        void onSample(long time, int senderId, int payload, int rssi);
+    }
+
+    private final Deflater mDeflater = new Deflater(Deflater.BEST_SPEED);
+
+    private byte[] mRaw;
+
+    private byte[] mCompressed;
+
+    private int mCompressedLength;
+
+    /**
+     * バッチをエンコード・圧縮する. 結果は {@link #getBuffer()} / {@link #getLength()} で取得する.
+     *
+     * @param batch バッチ.
+     */
+    public void encode(UplinkBatch batch) {
+        int count = batch.mCount;
+        int capacity = HEADER_SIZE + (count * MAX_RECORD_SIZE);
+        if ((mRaw == null) || (mRaw.length < capacity)) {
+            mRaw = new byte[capacity];
+            mCompressed = new byte[4 + capacity + (capacity / 100) + 64];
+        }
+
+        byte[] raw = mRaw;
+        int pos = 0;
+        raw[pos++] = MAGIC_0;
+        raw[pos++] = MAGIC_1;
+        raw[pos++] = VERSION;
+        pos = putVarint(raw, pos, count);
+
+        long prevTime = (count > 0) ? batch.mTimes[0] : 0;
+        pos = putLong(raw, pos, prevTime);
+
+        for (int index = 0; index < count; index++) {
+            long time = batch.mTimes[index];
+            long delta = time - prevTime;
+            pos = putVarint(raw, pos, (delta << 1) ^ (delta >> 63));
+            prevTime = time;
+
+            pos = putInt(raw, pos, batch.mSenderIds[index]);
+            pos = putInt(raw, pos, batch.mPayloads[index]);
+            raw[pos++] = batch.mRSSIs[index];
+        }
+
+        putInt(mCompressed, 0, pos);
+        mDeflater.reset();
+        mDeflater.setInput(raw, 0, pos);
+        mDeflater.finish();
+        int length = 4;
+        while (!mDeflater.finished()) {
+            if (length == mCompressed.length) {
+                byte[] grown = new byte[mCompressed.length * 2];
+                System.arraycopy(mCompressed, 0, grown, 0, length);
+                mCompressed = grown;
+            }
+            length += mDeflater.deflate(mCompressed, length, mCompressed.length - length);
+        }
+        mCompressedLength = length;
+    }
+
+    /**
+     * 直前のエンコード結果のバッファ.
+     *
+     * @return バッファ(先頭から {@link #getLength()} byte が有効).
+     */
+    public byte[] getBuffer() {
+        return mCompressed;
+    }
+
+    public int getLength() {
+        return mCompressedLength;
+    }
+
+    /**
+     * 解放する.
+     */
+    public void release() {
+        mDeflater.end();
+    }
+
+    /**
+     * 圧縮済みバッチをデコードする(受信側・検証用).
+     *
+     * @param data     圧縮済みバッチ.
+     * @param length   長さ.
+     * @param listener 通知先.
+     * @return 件数.
+     * @throws IOException 形式不正.
+     */
+    public static int decode(byte[] data, int length, ISampleListener listener) throws IOException {
+        if (length < 4) {
+            throw new IOException("Batch is too short.");
+        }
+        int rawLength = getInt(data, 0);
+        byte[] raw = new byte[rawLength];
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, 4, length - 4);
+            int inflated = 0;
+            while (inflated < rawLength) {
+                int n = inflater.inflate(raw, inflated, rawLength - inflated);
+                if ((n == 0) && (inflater.finished() || inflater.needsInput())) {
+                    throw new IOException("Batch is truncated.");
+                }
+                inflated += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+
+        if ((raw[0] != MAGIC_0) || (raw[1] != MAGIC_1) || (raw[2] != VERSION)) {
+            throw new IOException("Unknown batch format.");
+        }
+
+        int[] pos = {3};
+        int count = (int) getVarint(raw, pos);
+        long time = getLong(raw, pos[0]);
+        pos[0] += 8;
+
+        for (int index = 0; index < count; index++) {
+            long zigzag = getVarint(raw, pos);
+            time += (zigzag >>> 1) ^ -(zigzag & 1);
+            int p = pos[0];
+            listener.onSample(time, getInt(raw, p), getInt(raw, p + 4), raw[p + 8]);
+            pos[0] = p + 9;
+        }
+        return count;
+    }
+
+    private static int putVarint(byte[] out, int pos, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[pos++] = (byte) value;
+        return pos;
+    }
+
+    private static long getVarint(byte[] data, int[] pos) {
+        long value = 0;
+        int shift = 0;
+        int p = pos[0];
+        while (true) {
+            byte b = data[p++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+            shift += 7;
+        }
+        pos[0] = p;
+        return value;
+    }
+
+    private static int putInt(byte[] out, int pos, int value) {
+        out[pos++] = (byte) (value >>> 24);
+        out[pos++] = (byte) (value >>> 16);
+        out[pos++] = (byte) (value >>> 8);
+        out[pos++] = (byte) value;
+        return pos;
+    }
+
+    private static int putLong(byte[] out, int pos, long value) {
+        pos = putInt(out, pos, (int) (value >>> 32));
+        return putInt(out, pos, (int) value);
+    }
+
+    static int getInt(byte[] data, int pos) {
+        return ((data[pos] & 0xFF) << 24) | ((data[pos + 1] & 0xFF) << 16)
+                | ((data[pos + 2] & 0xFF) << 8) | (data[pos + 3] & 0xFF);
+    }
+
+    private static long getLong(byte[] data, int pos) {
+        return ((long) getInt(data, pos) << 32) | (getInt(data, pos + 4) & 0xFFFFFFFFL);
+    }
+}
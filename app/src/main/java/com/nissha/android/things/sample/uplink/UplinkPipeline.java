@@ -0,0 +1,271 @@
+package com.nissha.android.things.sample.uplink;
+
+import android.os.Debug;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Store-and-forward uplink pipeline.
+ * <p>
+ * 受信データを件数または時間でバッチにまとめ, 圧縮してディスクにスプールしてから送信する.
+ * リンク断の間はスプールに溜め, 復帰後に古い順に送信する.
+ * 送信スレッドが追いつかない場合は {@link #offer} がfalseを返し, 受信処理は待たされない.
+ */
+
+public class UplinkPipeline {
+
+    private static final String TAG = UplinkPipeline.class.getSimpleName();
+
+    /**
+     * バッチのバッファ数(作成中 + 送信待ち).
+     */
+    private static final int BATCH_BUFFER_NUM = 4;
+
+    private static final long MIN_RETRY_DELAY_MS = 1000;
+
+    private static final long MAX_RETRY_DELAY_MS = 60 * 1000;
+
+    private final UplinkSpool mSpool;
+
+    private final IUplinkTransport mTransport;
+
+    private final long mMaxDelayMillis;
+
+    private final BlockingQueue<UplinkBatch> mFreeBatches;
+
+    private final BlockingQueue<UplinkBatch> mPendingBatches;
+
+    private final UplinkBatchCodec mCodec = new UplinkBatchCodec();
+
+    private UplinkBatch mCurrent;
+
+    private volatile boolean mIsRunning;
+
+    private Thread mThread;
+
+    private long mRetryDelay = MIN_RETRY_DELAY_MS;
+
+    private long mNextRetryAt;
+
+    // 統計
+    private volatile long mOfferedSamples;
+
+    private volatile long mRejectedSamples;
+
+    private volatile long mSentBatches;
+
+    private volatile long mSentBytes;
+
+    private volatile long mEncodedSamples;
+
+    private volatile long mEncodedBytes;
+
+    private volatile long mEncodeCpuNanos;
+
+    /**
+     * コンストラクタ.
+     *
+     * @param spool          スプール.
+     * @param transport      送信先.
+     * @param batchSize      1バッチの最大件数.
+     * @param maxDelayMillis バッチを送信に回すまでの最大待ち時間.
+     */
+    public UplinkPipeline(UplinkSpool spool, IUplinkTransport transport, int batchSize, long maxDelayMillis) {
+        mSpool = spool;
+        mTransport = transport;
+        mMaxDelayMillis = maxDelayMillis;
+        mFreeBatches = new ArrayBlockingQueue<>(BATCH_BUFFER_NUM);
+        mPendingBatches = new ArrayBlockingQueue<>(BATCH_BUFFER_NUM);
+        for (int index = 0; index < BATCH_BUFFER_NUM; index++) {
+            mFreeBatches.add(new UplinkBatch(batchSize));
+        }
+    }
+
+    /**
+     * 送信スレッドを開始する.
+     */
+    public synchronized void start() {
+        if (mIsRunning) {
+            return;
+        }
+        mIsRunning = true;
+        mThread = new Thread(mUplinkRunner, TAG);
+        mThread.start();
+    }
+
+    /**
+     * 送信スレッドを停止する. 作成中のバッチはスプールに書き出す.
+     */
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            if (!mIsRunning) {
+                return;
+            }
+            mIsRunning = false;
+            thread = mThread;
+            mThread = null;
+        }
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mTransport.close();
+    }
+
+    /**
+     * 送信するデータを追加する.
+     *
+     * @return false : 送信が追いついていないため追加できなかった.
+     */
+    public synchronized boolean offer(long time, int senderId, int payload, int rssi) {
+        mOfferedSamples++;
+
+        if (mCurrent == null) {
+            mCurrent = mFreeBatches.poll();
+            if (mCurrent == null) {
+                mRejectedSamples++;
+                return false;
+            }
+            mCurrent.mStartedAt = System.currentTimeMillis();
+        }
+
+        mCurrent.add(time, senderId, payload, rssi);
+        if (mCurrent.isFull()) {
+            seal();
+        }
+        return true;
+    }
+
+    /**
+     * 作成中のバッチを送信待ちにする.
+     */
+    private synchronized void seal() {
+        if ((mCurrent != null) && (mCurrent.size() > 0)) {
+            // mPendingBatchesはバッファ総数と同じ容量なので必ず入る
+            mPendingBatches.add(mCurrent);
+            mCurrent = null;
+        }
+    }
+
+    /**
+     * 作成中のバッチが最大待ち時間を過ぎていれば送信待ちにする.
+     */
+    private synchronized void sealIfExpired(long now) {
+        if ((mCurrent != null) && ((now - mCurrent.mStartedAt) >= mMaxDelayMillis)) {
+            seal();
+        }
+    }
+
+    private Runnable mUplinkRunner = new Runnable() {
+        @Override
+        public void run() {
+            while (mIsRunning) {
+                try {
+                    UplinkBatch batch = mPendingBatches.poll(Math.max(1, mMaxDelayMillis / 2), TimeUnit.MILLISECONDS);
+                    if (batch != null) {
+                        spool(batch);
+                    } else {
+                        sealIfExpired(System.currentTimeMillis());
+                    }
+                    drain();
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+
+            // 停止時は未送信のバッチをスプールに残す
+            seal();
+            UplinkBatch batch;
+            while ((batch = mPendingBatches.poll()) != null) {
+                spool(batch);
+            }
+            mCodec.release();
+        }
+    };
+
+    private void spool(UplinkBatch batch) {
+        long start = Debug.threadCpuTimeNanos();
+        mCodec.encode(batch);
+        mEncodeCpuNanos += Debug.threadCpuTimeNanos() - start;
+        mEncodedSamples += batch.size();
+        mEncodedBytes += mCodec.getLength();
+
+        try {
+            mSpool.write(mCodec.getBuffer(), mCodec.getLength());
+        } catch (IOException e) {
+            Log.e(TAG, "spool failed.", e);
+        }
+
+        batch.clear();
+        mFreeBatches.add(batch);
+    }
+
+    /**
+     * スプールのバッチを古い順に送信する. 新しいバッチが届いたら一旦戻る.
+     */
+    private void drain() {
+        long now = System.currentTimeMillis();
+        if (now < mNextRetryAt) {
+            return;
+        }
+
+        File file;
+        while (mIsRunning && mPendingBatches.isEmpty() && ((file = mSpool.peek()) != null)) {
+            try {
+                byte[] data = mSpool.read(file);
+                mTransport.send(data, data.length);
+                mSpool.remove(file);
+                mSentBatches++;
+                mSentBytes += data.length;
+                mRetryDelay = MIN_RETRY_DELAY_MS;
+            } catch (IOException e) {
+                Log.w(TAG, "uplink failed. retry after " + mRetryDelay + "ms : " + e.getMessage());
+                mNextRetryAt = System.currentTimeMillis() + mRetryDelay;
+                mRetryDelay = Math.min(mRetryDelay * 2, MAX_RETRY_DELAY_MS);
+                return;
+            }
+        }
+    }
+
+    public long getOfferedSamples() {
+        return mOfferedSamples;
+    }
+
+    /**
+     * 送信が追いつかず受け付けなかった件数.
+     */
+    public long getRejectedSamples() {
+        return mRejectedSamples;
+    }
+
+    public long getSentBatches() {
+        return mSentBatches;
+    }
+
+    public long getSentBytes() {
+        return mSentBytes;
+    }
+
+    public long getEncodedSamples() {
+        return mEncodedSamples;
+    }
+
+    public long getEncodedBytes() {
+        return mEncodedBytes;
+    }
+
+    /**
+     * エンコード・圧縮に使ったCPU時間.
+     */
+    public long getEncodeCpuNanos() {
+        return mEncodeCpuNanos;
+    }
+}
@@ -0,0 +1,171 @@
+package com.nissha.android.things.sample.uplink;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Disk spool of encoded uplink batches.
+ * <p>
+ * バッチ1件を1ファイルとして保存し, 古い順に取り出す.
+ * 合計サイズが上限を超えた場合は古いバッチから捨てる.
+ */
+
+public class UplinkSpool {
+
+    private static final String SUFFIX = ".batch";
+
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private final File mDirectory;
+
+    private final long mMaxBytes;
+
+    private long mNextSequence;
+
+    private long mTotalBytes;
+
+    private long mDroppedBatches;
+
+    /**
+     * コンストラクタ.
+     *
+     * @param directory 保存先ディレクトリ.
+     * @param maxBytes  保存する合計サイズの上限.
+     */
+    public UplinkSpool(File directory, long maxBytes) {
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IllegalStateException("Cannot create spool : " + directory);
+        }
+
+        // 前回の残りを引き継ぐ
+        for (File file : listBatches()) {
+            mTotalBytes += file.length();
+            mNextSequence = Math.max(mNextSequence, parseSequence(file) + 1);
+        }
+    }
+
+    /**
+     * バッチを保存する.
+     *
+     * @param data   バッチ.
+     * @param length 長さ.
+     * @throws IOException 書き込み失敗.
+     */
+    public synchronized void write(byte[] data, int length) throws IOException {
+        String name = String.format(Locale.US, "%019d", mNextSequence++);
+        File tmp = new File(mDirectory, name + TMP_SUFFIX);
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(data, 0, length);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(new File(mDirectory, name + SUFFIX))) {
+            throw new IOException("Cannot rename " + tmp);
+        }
+        mTotalBytes += length;
+
+        while (mTotalBytes > mMaxBytes) {
+            File oldest = peek();
+            if (oldest == null) {
+                break;
+            }
+            remove(oldest);
+            mDroppedBatches++;
+        }
+    }
+
+    /**
+     * 最も古いバッチを取得する.
+     *
+     * @return バッチのファイル. 無い場合はnull.
+     */
+    public synchronized File peek() {
+        File[] files = listBatches();
+        return (files.length > 0) ? files[0] : null;
+    }
+
+    /**
+     * バッチを読み込む.
+     *
+     * @param file バッチのファイル.
+     * @return バッチ.
+     * @throws IOException 読み込み失敗.
+     */
+    public byte[] read(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int pos = 0;
+            while (pos < data.length) {
+                int n = in.read(data, pos, data.length - pos);
+                if (n < 0) {
+                    throw new IOException("Unexpected EOF : " + file);
+                }
+                pos += n;
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    /**
+     * 送信済みのバッチを削除する.
+     *
+     * @param file バッチのファイル.
+     */
+    public synchronized void remove(File file) {
+        long length = file.length();
+        if (file.delete()) {
+            mTotalBytes -= length;
+        }
+    }
+
+    public synchronized long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    /**
+     * 容量超過で捨てたバッチ数.
+     *
+     * @return バッチ数.
+     */
+    public synchronized long getDroppedBatches() {
+        return mDroppedBatches;
+    }
+
+    private File[] listBatches() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+        int count = 0;
+        for (File file : files) {
+            if (file.getName().endsWith(SUFFIX)) {
+                files[count++] = file;
+            }
+        }
+        File[] batches = Arrays.copyOf(files, count);
+        // ファイル名はゼロ埋めしたシーケンス番号なので名前順 = 古い順
+        Arrays.sort(batches);
+        return batches;
+    }
+
+    private static long parseSequence(File file) {
+        String name = file.getName();
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
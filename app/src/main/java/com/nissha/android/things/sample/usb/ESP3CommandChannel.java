@@ -0,0 +1,408 @@
+package com.nissha.android.things.sample.usb;
+
+import android.util.Log;
+
+import com.nissha.android.things.sample.enocean.ESP3;
+
+import java.util.ArrayDeque;
+
+/**
+ * Pipelined ESP3 command channel (transmit path).
+ * <p>
+ * コマンドをキューに入れ, 送信スレッドがESP3フレーム(CRC8付き)に変換して書き込む.
+ * 応答待ちのコマンドは最大 {@code maxInFlight} 個まで同時に送信しておく.
+ * ESP3のRESPONSEには識別子が無く, TCMは受け取った順に応答するため, 応答は送信順に対応付ける.
+ * 応答データ長が決まっているコマンドは長さも照合し, 応答の無かったコマンドや
+ * タイムアウト後に遅れて届いた応答を, 後のコマンドの応答と取り違えないようにする.
+ * ただしエラー応答(RET_OK 以外のリターンコードのみ)はデータ長がコマンドによらず1byteのため,
+ * 最も古い応答待ちのコマンドの応答とする.
+ * <p>
+ * 受信スレッドは {@link #onResponse(byte[])} でフレームを渡すだけで, 通知は送信スレッドから行う.
+ */
+
+public class ESP3CommandChannel {
+
+    private static final String TAG = ESP3CommandChannel.class.getSimpleName();
+
+    /**
+     * 失敗理由 : 応答が無かった.
+     */
+    public static final int FAIL_TIMEOUT = 1;
+
+    /**
+     * 失敗理由 : 書き込みに失敗した.
+     */
+    public static final int FAIL_WRITE = 2;
+
+    /**
+     * 失敗理由 : チャネルを閉じた.
+     */
+    public static final int FAIL_CLOSED = 3;
+
+    /**
+     * 応答データ長を照合しない.
+     */
+    public static final int ANY_LENGTH = -1;
+
+    /**
+     * 送信・応答の通知先.
+     */
+    public interface ICommandListener {
+
+        /**
+         * 応答を通知する.
+         *
+         * @param command  コマンド.
+         * @param response 応答のデータ部(先頭がリターンコード).
+         * @param optional 応答のオプションデータ.
+         */
+        void onResponse(Command command, byte[] response, byte[] optional);
+
+        /**
+         * 失敗を通知する.
+         *
+         * @param command コマンド.
+         * @param reason  失敗理由(FAIL_*).
+         */
+        void onFailure(Command command, int reason);
+    }
+
+    /**
+     * 送信するコマンド.
+     */
+    public static class Command {
+
+        private final int mPacketType;
+
+        private final byte[] mData;
+
+        private final byte[] mOptional;
+
+        private final int mResponseLength;
+
+        private final ICommandListener mListener;
+
+        private long mSentNanos;
+
+        private long mElapsedNanos;
+
+        private long mDeadlineNanos;
+
+        private byte[] mResponse;
+
+        private byte[] mResponseOptional;
+
+        private int mFailure;
+
+        Command(int packetType, byte[] data, byte[] optional, int responseLength, ICommandListener listener) {
+            mPacketType = packetType;
+            mData = data;
+            mOptional = optional;
+            mResponseLength = responseLength;
+            mListener = listener;
+        }
+
+        public int getPacketType() {
+            return mPacketType;
+        }
+
+        public byte[] getData() {
+            return mData;
+        }
+
+        /**
+         * 送信から応答(または失敗)までの時間.
+         *
+         * @return 経過時間(ns).
+         */
+        public long getElapsedNanos() {
+            return mElapsedNanos;
+        }
+    }
+
+    private final IByteSink mSink;
+
+    private final int mMaxInFlight;
+
+    private final long mTimeoutNanos;
+
+    private final int mMaxPending;
+
+    /**
+     * 送信待ち.
+     */
+    private final ArrayDeque<Command> mPending = new ArrayDeque<>();
+
+    /**
+     * 応答待ち(送信順).
+     */
+    private final ArrayDeque<Command> mInFlight = new ArrayDeque<>();
+
+    /**
+     * 通知待ち.
+     */
+    private final ArrayDeque<Command> mCompleted = new ArrayDeque<>();
+
+    private byte[] mFrame = new byte[64];
+
+    private boolean mIsRunning;
+
+    private Thread mThread;
+
+    // 統計
+    private volatile long mSentCommands;
+
+    private volatile long mTimeouts;
+
+    private volatile long mStrayResponses;
+
+    /**
+     * コンストラクタ.
+     *
+     * @param sink        書き込み先.
+     * @param maxInFlight 同時に応答待ちにする最大コマンド数.
+     * @param maxPending  送信待ちの最大コマンド数.
+     * @param timeoutMs   応答のタイムアウト.
+     */
+    public ESP3CommandChannel(IByteSink sink, int maxInFlight, int maxPending, long timeoutMs) {
+        mSink = sink;
+        mMaxInFlight = maxInFlight;
+        mMaxPending = maxPending;
+        mTimeoutNanos = timeoutMs * 1000000L;
+    }
+
+    public synchronized void start() {
+        if (mIsRunning) {
+            return;
+        }
+        mIsRunning = true;
+        mThread = new Thread(mSendRunner, TAG);
+        mThread.start();
+    }
+
+    /**
+     * 停止する. 送信待ち・応答待ちのコマンドは FAIL_CLOSED で通知する.
+     */
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            if (!mIsRunning) {
+                return;
+            }
+            mIsRunning = false;
+            thread = mThread;
+            mThread = null;
+            notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * コマンドを送信キューに入れる.
+     *
+     * @param packetType     パケットタイプ.
+     * @param data           データ部.
+     * @param optional       オプションデータ(無い場合はnull).
+     * @param responseLength 期待する応答データ長(ANY_LENGTH の場合は照合しない).
+     * @param listener       通知先.
+     * @return コマンド. キューが一杯, または停止中の場合はnull.
+     */
+    public synchronized Command send(int packetType, byte[] data, byte[] optional, int responseLength,
+                                     ICommandListener listener) {
+        if (!mIsRunning || (mPending.size() >= mMaxPending)) {
+            return null;
+        }
+        Command command = new Command(packetType, data, optional, responseLength, listener);
+        mPending.add(command);
+        notifyAll();
+        return command;
+    }
+
+    /**
+     * COMMON_COMMAND を送信キューに入れる.
+     *
+     * @param data           データ部(先頭がコマンドコード).
+     * @param responseLength 期待する応答データ長.
+     * @param listener       通知先.
+     * @return コマンド. キューが一杯の場合はnull.
+     */
+    public Command sendCommonCommand(byte[] data, int responseLength, ICommandListener listener) {
+        return send(ESP3.PACKET_TYPE_COMMON_COMMAND, data, null, responseLength, listener);
+    }
+
+    /**
+     * 受信したRESPONSEを応答待ちのコマンドに対応付ける. 受信スレッドから呼ばれ, 待たされない.
+     *
+     * @param frame RESPONSEのフレーム.
+     */
+    public synchronized void onResponse(byte[] frame) {
+        int dataLen = ESP3.getDataLength(frame);
+        int optLen = ESP3.getOptionalLength(frame);
+
+        // TCMは順番に応答するため, 応答データ長が一致する最初のコマンドを対象とする.
+        // それより前のコマンドは応答が失われたものとして失敗にする.
+        // エラー応答は長さで照合できないため, 最も古いコマンドを対象とする.
+        Command command = null;
+        if ((dataLen == 1) && (frame[ESP3.HEADER_LEN] != ESP3.RET_OK)) {
+            command = mInFlight.peek();
+        } else {
+            for (Command candidate : mInFlight) {
+                if ((candidate.mResponseLength == ANY_LENGTH) || (candidate.mResponseLength == dataLen)) {
+                    command = candidate;
+                    break;
+                }
+            }
+        }
+        if (command == null) {
+            // タイムアウトしたコマンドの応答が遅れて届いた
+            mStrayResponses++;
+            return;
+        }
+        Command lost;
+        while ((lost = mInFlight.poll()) != command) {
+            mTimeouts++;
+            fail(lost, FAIL_TIMEOUT);
+        }
+
+        command.mResponse = new byte[dataLen];
+        System.arraycopy(frame, ESP3.HEADER_LEN, command.mResponse, 0, dataLen);
+        command.mResponseOptional = new byte[optLen];
+        System.arraycopy(frame, ESP3.HEADER_LEN + dataLen, command.mResponseOptional, 0, optLen);
+        command.mElapsedNanos = System.nanoTime() - command.mSentNanos;
+        mCompleted.add(command);
+        notifyAll();
+    }
+
+    private Runnable mSendRunner = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                Command toSend = null;
+                Command completed = null;
+                synchronized (ESP3CommandChannel.this) {
+                    long now = System.nanoTime();
+                    expire(now);
+                    if (!mIsRunning && mCompleted.isEmpty()) {
+                        break;
+                    }
+
+                    if (!mCompleted.isEmpty()) {
+                        completed = mCompleted.poll();
+                    } else if (!mPending.isEmpty() && (mInFlight.size() < mMaxInFlight)) {
+                        toSend = mPending.poll();
+                        toSend.mSentNanos = now;
+                        toSend.mDeadlineNanos = now + mTimeoutNanos;
+                        mInFlight.add(toSend);
+                    } else {
+                        Command head = mInFlight.peek();
+                        long waitNanos = (head == null) ? 0 : Math.max(1, head.mDeadlineNanos - now);
+                        try {
+                            if (waitNanos == 0) {
+                                ESP3CommandChannel.this.wait();
+                            } else {
+                                ESP3CommandChannel.this.wait(waitNanos / 1000000L, (int) (waitNanos % 1000000L));
+                            }
+                        } catch (InterruptedException e) {
+                            break;
+                        }
+                        continue;
+                    }
+                }
+
+                if (completed != null) {
+                    dispatch(completed);
+                } else {
+                    write(toSend);
+                }
+            }
+
+            // 残っているコマンドは全て失敗とする
+            synchronized (ESP3CommandChannel.this) {
+                for (Command command : mInFlight) {
+                    fail(command, FAIL_CLOSED);
+                }
+                for (Command command : mPending) {
+                    fail(command, FAIL_CLOSED);
+                }
+                mInFlight.clear();
+                mPending.clear();
+            }
+            Command command;
+            while ((command = mCompleted.poll()) != null) {
+                dispatch(command);
+            }
+        }
+    };
+
+    /**
+     * 期限切れの応答待ちコマンドを失敗にする.
+     */
+    private void expire(long now) {
+        Command head;
+        while (((head = mInFlight.peek()) != null) && ((now - head.mDeadlineNanos) >= 0)) {
+            mInFlight.poll();
+            mTimeouts++;
+            Log.w(TAG, "command timeout : type " + head.mPacketType);
+            fail(head, FAIL_TIMEOUT);
+        }
+    }
+
+    private void fail(Command command, int reason) {
+        command.mFailure = reason;
+        if (command.mSentNanos != 0) {
+            command.mElapsedNanos = System.nanoTime() - command.mSentNanos;
+        }
+        mCompleted.add(command);
+    }
+
+    private void write(Command command) {
+        int optLen = (command.mOptional == null) ? 0 : command.mOptional.length;
+        int length = ESP3.getFrameLength(command.mData.length, optLen);
+        if (mFrame.length < length) {
+            mFrame = new byte[length];
+        }
+        ESP3.encode(command.mPacketType, command.mData, command.mData.length, command.mOptional, optLen, mFrame, 0);
+
+        if (mSink.write(mFrame, length) != length) {
+            synchronized (this) {
+                if (mInFlight.remove(command)) {
+                    fail(command, FAIL_WRITE);
+                }
+            }
+            return;
+        }
+        mSentCommands++;
+    }
+
+    private void dispatch(Command command) {
+        if (command.mListener == null) {
+            return;
+        }
+        if (command.mResponse != null) {
+            command.mListener.onResponse(command, command.mResponse, command.mResponseOptional);
+        } else {
+            command.mListener.onFailure(command, command.mFailure);
+        }
+    }
+
+    public long getSentCommands() {
+        return mSentCommands;
+    }
+
+    public long getTimeouts() {
+        return mTimeouts;
+    }
+
+    /**
+     * 対応するコマンドが無かった応答の数.
+     *
+     * @return 件数.
+     */
+    public long getStrayResponses() {
+        return mStrayResponses;
+    }
+}
@@ -0,0 +1,225 @@
+package com.nissha.android.things.sample.usb;
+
+import com.nissha.android.things.sample.enocean.ESP3;
+import com.nissha.android.things.sample.enocean.EnOceanMessage;
+
+/**
+ * Splits the received byte stream into ESP3 packets.
+ * <p>
+ * パケットタイプによらず通知する(ERP2・RESPONSE等の振り分けは通知先で行う).
+ * ヘッダーのCRC8が一致しない場合はSync Byteの誤検出とみなして次のSync Byteを探す.
+ * 読み込みバッファ内で完結するパケットはコピーせずにその位置を通知し,
+ * 読み込みをまたぐパケットだけを作業領域に集めてから通知する.
+ */
+
+public class ESP3Framer {
+
+    /**
+     * 切り出したパケットの通知先(パケットごとに配列を生成する).
+     */
+    public interface IFrameListener {
+
+        void onFrame(byte[] packet);
+    }
+
+    /**
+     * 切り出したパケットの通知先(読み込みバッファ上の位置を通知する).
+     */
+    public interface ISliceListener {
+
+        /**
+         * パケットを通知する. data は通知中のみ有効(保持する場合はコピーすること).
+         *
+         * @param data   パケットを含むバッファ.
+         * @param offset パケットの位置.
+         * @param length パケット長.
+         */
+        void onFrame(byte[] data, int offset, int length);
+    }
+
+    /**
+     * 扱う最大のパケット長. これを超える長さのヘッダーは誤検出とみなす.
+     */
+    public static final int MAX_PACKET_LEN = 4096 * 10;
+
+    /**
+     * 読み込みをまたぐパケットの作業領域.
+     */
+    private final byte[] mCarry = new byte[MAX_PACKET_LEN];
+
+    private int mCarrySize = 0;
+
+    private final ISliceListener mListener;
+
+    private long mFrames;
+
+    private long mCarriedFrames;
+
+    private long mCopiedBytes;
+
+    public ESP3Framer(final IFrameListener listener) {
+        this(new ISliceListener() {
+            @Override
+            public void onFrame(byte[] data, int offset, int length) {
+                byte[] packet = new byte[length];
+                System.arraycopy(data, offset, packet, 0, length);
+                listener.onFrame(packet);
+            }
+        });
+    }
+
+    public ESP3Framer(ISliceListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * 途中まで受信したデータを破棄する.
+     */
+    public void reset() {
+        mCarrySize = 0;
+    }
+
+    /**
+     * 受信データを追加し, 揃ったパケットを通知する.
+     *
+     * @param buf      受信データ.
+     * @param readSize 受信データ長.
+     */
+    public void feed(byte[] buf, int readSize) {
+        feed(buf, 0, readSize);
+    }
+
+    /**
+     * 受信データを追加し, 揃ったパケットを通知する.
+     *
+     * @param buf    受信データ.
+     * @param offset 位置.
+     * @param length 長さ.
+     */
+    public void feed(byte[] buf, int offset, int length) {
+        int pos = offset;
+        int end = offset + length;
+
+        // 前回の読み込みから続くパケットを先に揃える(必要な分だけコピーする)
+        while (mCarrySize > 0) {
+            if (mCarry[0] != EnOceanMessage.SYNC_BYTE) {
+                int next = indexOfSync(mCarry, 1, mCarrySize);
+                dropCarry((next < 0) ? mCarrySize : next);
+                continue;
+            }
+            int need = ESP3.HEADER_LEN;
+            if (mCarrySize >= ESP3.HEADER_LEN) {
+                if (!isValidHeader(mCarry, 0)) {
+                    dropCarry(1);
+                    continue;
+                }
+                need = getPacketLength(mCarry, 0);
+            }
+            if (mCarrySize < need) {
+                int count = Math.min(need - mCarrySize, end - pos);
+                System.arraycopy(buf, pos, mCarry, mCarrySize, count);
+                mCarrySize += count;
+                mCopiedBytes += count;
+                pos += count;
+                if (mCarrySize < need) {
+                    // 1パケットに足りないので再読み込みする
+                    return;
+                }
+                continue;
+            }
+            mFrames++;
+            mCarriedFrames++;
+            mListener.onFrame(mCarry, 0, need);
+            dropCarry(need);
+        }
+
+        // 読み込みバッファ内で完結するパケットはそのまま通知する
+        while (pos < end) {
+            if (buf[pos] != EnOceanMessage.SYNC_BYTE) {
+                int next = indexOfSync(buf, pos + 1, end);
+                if (next < 0) {
+                    // Sync Byteが存在しないので再読み込み
+                    return;
+                }
+                pos = next;
+            }
+            if ((end - pos) < ESP3.HEADER_LEN) {
+                break;
+            }
+            if (!isValidHeader(buf, pos)) {
+                // ヘッダーが壊れていれば次のSync Byteから探し直す
+                pos++;
+                continue;
+            }
+            int packetSize = getPacketLength(buf, pos);
+            if ((end - pos) < packetSize) {
+                break;
+            }
+            mFrames++;
+            mListener.onFrame(buf, pos, packetSize);
+            pos += packetSize;
+        }
+
+        // 途中までのパケットを作業領域に残す
+        mCarrySize = end - pos;
+        System.arraycopy(buf, pos, mCarry, 0, mCarrySize);
+        mCopiedBytes += mCarrySize;
+    }
+
+    /**
+     * 切り出したパケット数.
+     *
+     * @return 件数.
+     */
+    public long getFrameCount() {
+        return mFrames;
+    }
+
+    /**
+     * 読み込みをまたいだため作業領域に集めてから通知したパケット数.
+     *
+     * @return 件数.
+     */
+    public long getCarriedFrameCount() {
+        return mCarriedFrames;
+    }
+
+    /**
+     * 作業領域にコピーしたバイト数.
+     *
+     * @return バイト数.
+     */
+    public long getCopiedBytes() {
+        return mCopiedBytes;
+    }
+
+    /**
+     * ヘッダーのCRC8が一致し, 扱える長さか判定する.
+     */
+    private static boolean isValidHeader(byte[] data, int offset) {
+        if (ESP3.crc8(data, offset + 1, 4) != (data[offset + ESP3.HEADER_LEN - 1] & 0xFF)) {
+            return false;
+        }
+        return getPacketLength(data, offset) <= MAX_PACKET_LEN;
+    }
+
+    private static int getPacketLength(byte[] data, int offset) {
+        int dataLen = ((data[offset + 1] & 0xFF) << 8) | (data[offset + 2] & 0xFF);
+        int optLen = data[offset + 3] & 0xFF;
+        return ESP3.getFrameLength(dataLen, optLen);
+    }
+
+    private void dropCarry(int count) {
+        mCarrySize -= count;
+        System.arraycopy(mCarry, count, mCarry, 0, mCarrySize);
+    }
+
+    private static int indexOfSync(byte[] data, int from, int to) {
+        for (int index = from; index < to; index++) {
+            if (data[index] == EnOceanMessage.SYNC_BYTE) {
+                return index;
+            }
+        }
+        return -1;
+    }
+}
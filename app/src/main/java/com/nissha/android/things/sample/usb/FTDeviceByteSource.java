@@ -0,0 +1,36 @@
+package com.nissha.android.things.sample.usb;
+
+import com.ftdi.j2xx.FT_Device;
+
+/**
+ * {@link IByteSource} and {@link IByteSink} backed by an FTDI device.
+ */
+
+public class FTDeviceByteSource implements IByteSource, IByteSink {
+
+    private final FT_Device mFTDevice;
+
+    public FTDeviceByteSource(FT_Device device) {
+        mFTDevice = device;
+    }
+
+    @Override
+    public int available() {
+        return mFTDevice.getQueueStatus();
+    }
+
+    @Override
+    public int read(byte[] buf, int length) {
+        return mFTDevice.read(buf, length);
+    }
+
+    @Override
+    public int write(byte[] buf, int length) {
+        return mFTDevice.write(buf, length);
+    }
+
+    @Override
+    public void close() {
+        mFTDevice.close();
+    }
+}
@@ -0,0 +1,17 @@
+package com.nissha.android.things.sample.usb;
+
+/**
+ * Byte sink for the serial transmit path (FTDI device, simulated TCM).
+ */
+
+public interface IByteSink {
+
+    /**
+     * データを書き込む.
+     *
+     * @param buf    書き込むデータ.
+     * @param length 書き込むバイト数.
+     * @return 書き込んだバイト数. 失敗した場合は負の値.
+     */
+    int write(byte[] buf, int length);
+}
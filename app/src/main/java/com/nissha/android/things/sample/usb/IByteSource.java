@@ -0,0 +1,29 @@
+package com.nissha.android.things.sample.usb;
+
+/**
+ * Byte source for the serial read loop (FTDI device, simulator, replay).
+ */
+
+public interface IByteSource {
+
+    /**
+     * 読み込み可能なバイト数を取得する.
+     *
+     * @return バイト数.
+     */
+    int available();
+
+    /**
+     * データを読み込む.
+     *
+     * @param buf    読み込み先.
+     * @param length 読み込むバイト数(available()以下).
+     * @return 読み込んだバイト数.
+     */
+    int read(byte[] buf, int length);
+
+    /**
+     * 閉じる.
+     */
+    void close();
+}
@@ -0,0 +1,15 @@
+package com.nissha.android.things.sample.usb;
+
+/**
+ * Byte source that can be reset when it stops delivering data (simulator etc.).
+ */
+
+public interface IResettableSource {
+
+    /**
+     * 受信済みのデータを破棄して開き直す.
+     *
+     * @return 成否.
+     */
+    boolean reset();
+}
@@ -0,0 +1,123 @@
+package com.nissha.android.things.sample.usb;
+
+import com.ftdi.j2xx.D2xxManager;
+
+import java.util.Locale;
+
+/**
+ * Serial link configuration for the FTDI device.
+ */
+
+public class LinkConfig {
+
+    /**
+     * TCM310の標準ボーレート.
+     */
+    public static final int DEFAULT_BAUD_RATE = 57600;
+
+    /**
+     * FTDIの標準レイテンシタイマー(ms).
+     */
+    public static final int DEFAULT_LATENCY_TIMER = 16;
+
+    public static final int DEFAULT_TRANSFER_SIZE = 16384;
+
+    public static final int DEFAULT_BUFFER_NUM = 16;
+
+    private int mBaudRate = DEFAULT_BAUD_RATE;
+
+    private int mLatencyTimer = DEFAULT_LATENCY_TIMER;
+
+    private int mTransferSize = DEFAULT_TRANSFER_SIZE;
+
+    private int mBufferNum = DEFAULT_BUFFER_NUM;
+
+    public int getBaudRate() {
+        return mBaudRate;
+    }
+
+    /**
+     * ボーレートを設定する.
+     *
+     * @param baudRate ボーレート.
+     * @return this.
+     */
+    public LinkConfig setBaudRate(int baudRate) {
+        mBaudRate = baudRate;
+        return this;
+    }
+
+    public int getLatencyTimer() {
+        return mLatencyTimer;
+    }
+
+    /**
+     * FTDIのレイテンシタイマーを設定する.
+     * 受信データが1パケットに満たない場合, この時間が経過するまでホストに送られない.
+     *
+     * @param latencyTimer レイテンシタイマー(1 - 255ms).
+     * @return this.
+     */
+    public LinkConfig setLatencyTimer(int latencyTimer) {
+        if ((latencyTimer < 1) || (latencyTimer > 255)) {
+            throw new IllegalArgumentException("latency timer must be 1 - 255 : " + latencyTimer);
+        }
+        mLatencyTimer = latencyTimer;
+        return this;
+    }
+
+    public int getTransferSize() {
+        return mTransferSize;
+    }
+
+    /**
+     * USB読み込みの転送サイズを設定する.
+     *
+     * @param transferSize 転送サイズ(byte, 64の倍数).
+     * @return this.
+     */
+    public LinkConfig setTransferSize(int transferSize) {
+        if ((transferSize < 64) || ((transferSize % 64) != 0)) {
+            throw new IllegalArgumentException("transfer size must be multiple of 64 : " + transferSize);
+        }
+        mTransferSize = transferSize;
+        return this;
+    }
+
+    public int getBufferNum() {
+        return mBufferNum;
+    }
+
+    /**
+     * USB読み込みバッファ数を設定する.
+     *
+     * @param bufferNum バッファ数(2 - 16).
+     * @return this.
+     */
+    public LinkConfig setBufferNum(int bufferNum) {
+        if ((bufferNum < 2) || (bufferNum > 16)) {
+            throw new IllegalArgumentException("buffer number must be 2 - 16 : " + bufferNum);
+        }
+        mBufferNum = bufferNum;
+        return this;
+    }
+
+    /**
+     * オープン時に指定するドライバーパラメータを生成する.
+     *
+     * @return ドライバーパラメータ.
+     */
+    public D2xxManager.DriverParameters toDriverParameters() {
+        D2xxManager.DriverParameters params = new D2xxManager.DriverParameters();
+        params.setMaxTransferSize(mTransferSize);
+        params.setMaxBufferSize(mTransferSize);
+        params.setBufferNumber(mBufferNum);
+        return params;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "baud=%d latency=%dms transfer=%d buffers=%d",
+                mBaudRate, mLatencyTimer, mTransferSize, mBufferNum);
+    }
+}
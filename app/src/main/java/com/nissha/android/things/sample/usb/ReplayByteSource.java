@@ -0,0 +1,135 @@
+package com.nissha.android.things.sample.usb;
+
+import com.nissha.android.things.sample.capture.CaptureReader;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * {@link IByteSource} that replays frames from a capture file.
+ * <p>
+ * 速度倍率が0の場合は待たずに全フレームを流す(オフラインのプロファイリング用).
+ * それ以外はキャプチャ時の受信間隔を倍率で割った間隔で流す.
+ */
+
+public class ReplayByteSource implements IByteSource {
+
+    private final CaptureReader mReader;
+
+    private final double mSpeed;
+
+    private final byte[] mFrame = new byte[256];
+
+    private int mFrameLength;
+
+    private int mFramePos;
+
+    private long mFrameNanos;
+
+    private long mFirstNanos = -1;
+
+    private long mStartNanos;
+
+    private boolean mEnd;
+
+    private final CaptureReader.IRecordListener mFrameLoader = new CaptureReader.IRecordListener() {
+        @Override
+        public boolean onRecord(long nanos, int dongleId, int result, byte[] frame, int length) {
+            System.arraycopy(frame, 0, mFrame, 0, length);
+            mFrameLength = length;
+            mFramePos = 0;
+            mFrameNanos = nanos;
+            return true;
+        }
+    };
+
+    /**
+     * コンストラクタ.
+     *
+     * @param file  キャプチャファイル.
+     * @param speed 速度倍率(0 : 待たない).
+     * @throws IOException 読み込み失敗.
+     */
+    public ReplayByteSource(File file, double speed) throws IOException {
+        mReader = new CaptureReader(file);
+        mSpeed = speed;
+    }
+
+    /**
+     * 全フレームを流し終えたか.
+     *
+     * @return true : 終端.
+     */
+    public synchronized boolean isEnd() {
+        return mEnd && (mFramePos >= mFrameLength);
+    }
+
+    @Override
+    public synchronized int available() {
+        if (!loadFrame()) {
+            return 0;
+        }
+        if (mSpeed > 0) {
+            long due = mStartNanos + (long) ((mFrameNanos - mFirstNanos) / mSpeed);
+            if (System.nanoTime() < due) {
+                return 0;
+            }
+        }
+        return mFrameLength - mFramePos;
+    }
+
+    @Override
+    public synchronized int read(byte[] buf, int length) {
+        int count = 0;
+        while (count < length) {
+            int available = available();
+            if (available == 0) {
+                break;
+            }
+            int n = Math.min(available, length - count);
+            System.arraycopy(mFrame, mFramePos, buf, count, n);
+            mFramePos += n;
+            count += n;
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            mReader.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 現在のフレームを読み終えていれば次のフレームを読み込む.
+     *
+     * @return false : 終端.
+     */
+    private boolean loadFrame() {
+        if (mFramePos < mFrameLength) {
+            return true;
+        }
+        if (mEnd) {
+            return false;
+        }
+        try {
+            boolean exists = mReader.next(mFrameLoader);
+            if (!exists) {
+                mEnd = true;
+                return false;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            mEnd = true;
+            return false;
+        }
+        if (mFirstNanos < 0) {
+            mFirstNanos = mFrameNanos;
+            mStartNanos = System.nanoTime();
+        }
+        return true;
+    }
+}
@@ -0,0 +1,299 @@
+package com.nissha.android.things.sample.usb;
+
+/**
+ * Detects a stalled read loop by comparing the silence against the observed traffic.
+ * <p>
+ * 受信の無い時間も含めた長期の平均受信量(byte/s)と, 受信と受信の間隔(通常の無受信時間)を学習する.
+ * 最後に受信してからの時間が次のすべてを超えても何も受信しない場合に停止とみなし, デバイスのリセットを要求する.
+ * <ul>
+ * <li>{@value #MIN_SILENCE_MS}ms</li>
+ * <li>学習した最長の受信間隔の {@value #GAP_FACTOR} 倍</li>
+ * <li>平均受信量で {@value #STALL_EXPECTED_BYTES} byte を受信する時間</li>
+ * </ul>
+ * センサーが少なく送信間隔が長い場合(例: 60秒に1件)でも, 通常の無受信を停止とみなさない.
+ * リセット後も受信しない場合は, 間隔を {@value #MAX_BACKOFF_MS}ms まで倍にしながらリセットを繰り返す.
+ * 読み込みスレッドから呼ぶこと(統計の取得は他のスレッドから呼んでよい).
+ */
+
+public class StallWatchdog {
+
+    /**
+     * 判定を行うまでに学習する最短の時間と受信間隔の数.
+     */
+    private static final long WARMUP_NANOS = 3000000000L;
+
+    private static final int WARMUP_GAPS = 3;
+
+    /**
+     * 平均受信量を求める期間の上限. 超えた場合は受信量・時間を半分にして古い分の重みを下げる.
+     */
+    private static final long LEARN_HORIZON_NANOS = 3600L * 1000000000L;
+
+    /**
+     * 最長の受信間隔を, 新しい受信間隔に近づける割合(長い間隔を徐々に忘れる).
+     */
+    private static final double GAP_DECAY = 1.0 / 64;
+
+    /**
+     * 停止とみなす, 最長の受信間隔に対する倍率.
+     */
+    private static final int GAP_FACTOR = 3;
+
+    /**
+     * 停止とみなす, 無受信の間に期待される受信量(テレグラム約10件分).
+     */
+    private static final int STALL_EXPECTED_BYTES = 200;
+
+    /**
+     * 停止とみなす最短の無受信時間(レイテンシタイマー等による揺らぎを除くため).
+     */
+    private static final long MIN_SILENCE_MS = 500;
+
+    private static final long INITIAL_BACKOFF_MS = 250;
+
+    private static final long MAX_BACKOFF_MS = 30000;
+
+    /**
+     * 指定した受信量(byte/s). 0の場合は学習した値を使う.
+     */
+    private volatile double mExpectedRate;
+
+    /**
+     * 学習した受信量と, その間の時間(停止中を除く).
+     */
+    private double mLearnedBytes;
+
+    private double mLearnedNanos;
+
+    /**
+     * 学習した最長の受信間隔と, 学習した受信間隔の数.
+     */
+    private double mMaxGapNanos;
+
+    private long mGaps;
+
+    private long mLastUpdateNanos;
+
+    private long mLastByteNanos;
+
+    // 停止中の状態
+    private volatile boolean mStalled;
+
+    private long mDetectedNanos;
+
+    private long mNextResetNanos;
+
+    private long mBackoffNanos;
+
+    // 統計
+    private volatile long mStalls;
+
+    private volatile long mResets;
+
+    private volatile long mFailedResets;
+
+    private volatile long mLastRecoverNanos;
+
+    private volatile long mMaxRecoverNanos;
+
+    private volatile long mLastOutageNanos;
+
+    private volatile long mMaxOutageNanos;
+
+    /**
+     * 監視を(再)開始する. 学習した受信量・受信間隔は引き継ぐ.
+     *
+     * @param now 現在時刻(System.nanoTime()基準).
+     */
+    public void start(long now) {
+        mLastUpdateNanos = now;
+        mLastByteNanos = now;
+        mStalled = false;
+    }
+
+    /**
+     * 期待する受信量を指定する(センサー数と送信間隔から分かる場合).
+     *
+     * @param bytesPerSecond 受信量(byte/s). 0の場合は学習した値を使う.
+     */
+    public void setExpectedBytesPerSecond(double bytesPerSecond) {
+        mExpectedRate = bytesPerSecond;
+    }
+
+    /**
+     * 読み込みごとに呼ぶ(受信が無い場合も呼ぶ).
+     *
+     * @param bytes 読み込んだバイト数.
+     * @param now   現在時刻(System.nanoTime()基準).
+     * @return true : デバイスをリセットすること.
+     */
+    public boolean update(int bytes, long now) {
+        if (mStalled) {
+            if (bytes > 0) {
+                onRecovered(now);
+            } else {
+                if (now - mNextResetNanos < 0) {
+                    return false;
+                }
+                // 次のリセットまでの間隔を倍にする
+                mNextResetNanos = now + mBackoffNanos;
+                mBackoffNanos = Math.min(mBackoffNanos * 2, MAX_BACKOFF_MS * 1000000L);
+                mResets++;
+                return true;
+            }
+        } else if (bytes > 0) {
+            learnGap(now - mLastByteNanos);
+        }
+
+        // 受信の無い時間も含めて学習する
+        mLearnedNanos += now - mLastUpdateNanos;
+        mLearnedBytes += bytes;
+        mLastUpdateNanos = now;
+        if (mLearnedNanos > LEARN_HORIZON_NANOS) {
+            mLearnedNanos /= 2;
+            mLearnedBytes /= 2;
+        }
+        if (bytes > 0) {
+            mLastByteNanos = now;
+            return false;
+        }
+
+        long silence = now - mLastByteNanos;
+        long threshold = getStallThresholdNanos();
+        if ((threshold <= 0) || (silence < threshold)) {
+            return false;
+        }
+
+        // 停止を検出した. 停止までの無受信は学習から除いてすぐにリセットする
+        mLearnedNanos = Math.max(mLearnedNanos - silence, 0);
+        mStalled = true;
+        mStalls++;
+        mDetectedNanos = now;
+        mBackoffNanos = INITIAL_BACKOFF_MS * 1000000L;
+        mNextResetNanos = now;
+        return update(0, now);
+    }
+
+    /**
+     * 停止とみなす無受信時間. 学習が足りない場合は 0.
+     *
+     * @return 時間(ns).
+     */
+    public long getStallThresholdNanos() {
+        double rate = getExpectedBytesPerSecond();
+        if (rate <= 0) {
+            return 0;
+        }
+        if ((mExpectedRate <= 0) && ((mLearnedNanos < WARMUP_NANOS) || (mGaps < WARMUP_GAPS))) {
+            return 0;
+        }
+        double threshold = Math.max(MIN_SILENCE_MS * 1e6, STALL_EXPECTED_BYTES * 1e9 / rate);
+        threshold = Math.max(threshold, GAP_FACTOR * mMaxGapNanos);
+        return (long) threshold;
+    }
+
+        /**
+     * リセットに失敗したことを通知する(次のリセットまでの間隔は変えない).
+     */
+    public void onResetFailed() {
+        mFailedResets++;
+    }
+
+    /**
+     * 受信間隔を学習する. 長い間隔はすぐに反映し, 短い間隔へは徐々に近づける.
+     */
+    private void learnGap(long gap) {
+        if (gap > mMaxGapNanos) {
+            mMaxGapNanos = gap;
+        } else {
+            mMaxGapNanos -= (mMaxGapNanos - gap) * GAP_DECAY;
+        }
+        mGaps++;
+    }
+
+    private void onRecovered(long now) {
+        mStalled = false;
+        long recover = now - mDetectedNanos;
+        long outage = now - mLastByteNanos;
+        mLastRecoverNanos = recover;
+        mMaxRecoverNanos = Math.max(mMaxRecoverNanos, recover);
+        mLastOutageNanos = outage;
+        mMaxOutageNanos = Math.max(mMaxOutageNanos, outage);
+        // 回復までの無受信期間は学習しない
+        mLastUpdateNanos = now;
+    }
+
+    /**
+     * 判定に使う受信量.
+     *
+     * @return 受信量(byte/s).
+     */
+    public double getExpectedBytesPerSecond() {
+        double expected = mExpectedRate;
+        if (expected > 0) {
+            return expected;
+        }
+        return (mLearnedNanos > 0) ? (mLearnedBytes * 1e9 / mLearnedNanos) : 0;
+    }
+
+    /**
+     * 学習した最長の受信間隔.
+     *
+     * @return 時間(ns).
+     */
+    public long getMaxGapNanos() {
+        return (long) mMaxGapNanos;
+    }
+
+    public boolean isStalled() {
+        return mStalled;
+    }
+
+    /**
+     * 停止を検出した回数.
+     *
+     * @return 回数.
+     */
+    public long getStallCount() {
+        return mStalls;
+    }
+
+    /**
+     * リセットを要求した回数.
+     *
+     * @return 回数.
+     */
+    public long getResetCount() {
+        return mResets;
+    }
+
+    public long getFailedResetCount() {
+        return mFailedResets;
+    }
+
+    /**
+     * 直近の停止の, 検出から受信再開までの時間.
+     *
+     * @return 時間(ns).
+     */
+    public long getLastRecoverNanos() {
+        return mLastRecoverNanos;
+    }
+
+    public long getMaxRecoverNanos() {
+        return mMaxRecoverNanos;
+    }
+
+    /**
+     * 直近の停止の, 最後の受信から受信再開までの時間(検出にかかった時間を含む).
+     *
+     * @return 時間(ns).
+     */
+    public long getLastOutageNanos() {
+        return mLastOutageNanos;
+    }
+
+    public long getMaxOutageNanos() {
+        return mMaxOutageNanos;
+    }
+}
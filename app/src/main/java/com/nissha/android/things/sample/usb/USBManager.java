@@ -1,16 +1,15 @@
 package com.nissha.android.things.sample.usb;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import android.widget.Toast;
 
 import com.ftdi.j2xx.D2xxManager;
 import com.ftdi.j2xx.FT_Device;
-import com.nissha.android.things.sample.enocean.EnOceanMessage;
-
-import java.util.Arrays;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import com.nissha.android.things.sample.enocean.ESP3;
+import com.nissha.android.things.sample.util.ReceiveClock;
 
 /**
  * USB Accessory Management class.
@@ -19,11 +18,17 @@ import java.util.concurrent.Executors;
 public class USBManager {
 
     /**
-     *
+     * 受信フレームの通知先. 読み込みスレッドから呼ばれるため, 時間のかかる処理は別スレッドで行うこと.
      */
     public interface IUSBDataListener {
 
-        void onReceivedData(byte[] data);
+        /**
+         * 受信フレームを通知する.
+         *
+         * @param data          フレーム.
+         * @param receivedNanos 受信時刻(フレームの最後を読み込んだ時刻. System.nanoTime()基準).
+         */
+        void onReceivedData(byte[] data, long receivedNanos);
     }
 
     /**
@@ -31,24 +36,77 @@ public class USBManager {
      */
     private static final String TAG = USBManager.class.getSimpleName();
 
+    /**
+     * コマンド送信 : 同時に応答待ちにする最大数・送信待ちの最大数・応答のタイムアウト.
+     */
+    private static final int COMMAND_MAX_IN_FLIGHT = 4;
+
+    private static final int COMMAND_MAX_PENDING = 32;
+
+    private static final long COMMAND_TIMEOUT_MS = 500;
+
+    /**
+     * 開き直しに失敗している間の読み込み元(常に受信無し). 閉じたデバイスを使い続けないために差し替える.
+     * 受信停止の監視による再試行, または {@link #openDevice()} で開き直す.
+     */
+    private static final IByteSource NO_DEVICE = new IByteSource() {
+        @Override
+        public int available() {
+            return 0;
+        }
+
+        @Override
+        public int read(byte[] buf, int length) {
+            return 0;
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
     private Context mContext;
 
+    /**
+     * 初回オープン時に取得する(起動処理を待たせないため).
+     */
     private D2xxManager mInstance;
 
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
     private FT_Device mFTDevice;
 
     private boolean mIsRunning = false;
 
     private IUSBDataListener mIUSBDataListener;
 
+    /**
+     * 回線設定.
+     */
+    private LinkConfig mLinkConfig = new LinkConfig();
+
+    /**
+     * 読み込み元(FTDIデバイスまたはシミュレーター).
+     */
+    private volatile IByteSource mByteSource;
+
+    /**
+     * コマンド送信(読み込み元が書き込みに対応している場合のみ).
+     */
+    private volatile ESP3CommandChannel mCommandChannel;
+
+    /**
+     * 受信時刻の記録と壁時計への変換.
+     */
+    private final ReceiveClock mReceiveClock = new ReceiveClock();
+
+    /**
+     * 受信停止の検出(読み込みスレッドが更新する).
+     */
+    private final StallWatchdog mWatchdog = new StallWatchdog();
+
     public USBManager(Context context) {
         mContext = context;
-
-        try {
-            mInstance = D2xxManager.getInstance(context);
-        } catch (D2xxManager.D2xxException e) {
-            e.printStackTrace();
-        }
     }
 
     public void setListener(IUSBDataListener listener) {
@@ -56,17 +114,174 @@ public class USBManager {
     }
 
     /**
-     * USBデバイスと接続
+     * 回線設定を変更する. 転送サイズ・バッファ数は次回オープン時に反映される.
+     * 読み込み中の場合は読み込みループと同じロック(読み込み元)を取って設定する.
+     *
+     * @param config 回線設定.
+     */
+    public synchronized void setLinkConfig(LinkConfig config) {
+        mLinkConfig = config;
+        IByteSource source = mByteSource;
+        if (source == null) {
+            setConfig();
+            return;
+        }
+        synchronized (source) {
+            setConfig();
+        }
+    }
+
+    public LinkConfig getLinkConfig() {
+        return mLinkConfig;
+    }
+
+    /**
+     * 接続中のドングルのIDを取得する(シリアル番号のハッシュ値).
+     *
+     * @return ドングルID. 未接続の場合は0.
+     */
+    public int getDongleId() {
+        FT_Device device = mFTDevice;
+        if (device == null) {
+            return 0;
+        }
+        D2xxManager.FtDeviceInfoListNode info = device.getDeviceInfo();
+        if ((info == null) || (info.serialNumber == null)) {
+            return 0;
+        }
+        return info.serialNumber.hashCode();
+    }
+
+    /**
+     * FTDIデバイスの代わりに任意の読み込み元から受信を開始する(シミュレーター・リプレイ用).
+     *
+     * @param source 読み込み元.
+     */
+    public synchronized void openSource(IByteSource source) {
+        if (mIsRunning) {
+            return;
+        }
+        startReading(source);
+    }
+
+    public ReceiveClock getReceiveClock() {
+        return mReceiveClock;
+    }
+
+    /**
+     * 受信停止の検出と回復の統計を取得する.
+     *
+     * @return 監視.
+     */
+    public StallWatchdog getStallWatchdog() {
+        return mWatchdog;
+    }
+
+    /**
+     * コマンド送信チャネルを取得する.
+     *
+     * @return チャネル. 未接続または書き込みに対応していない場合はnull.
+     */
+    public ESP3CommandChannel getCommandChannel() {
+        return mCommandChannel;
+    }
+
+    /**
+     * 読み込みを開始する. 書き込みに対応している場合はコマンド送信も開始する.
+     *
+     * @param source 読み込み元.
+     */
+    private void startReading(IByteSource source) {
+        mByteSource = source;
+        startCommandChannel(source);
+        mIsRunning = true;
+        new Thread(mReadRunner).start();
+    }
+
+    private void startCommandChannel(IByteSource source) {
+        if (source instanceof IByteSink) {
+            ESP3CommandChannel channel = new ESP3CommandChannel((IByteSink) source,
+                    COMMAND_MAX_IN_FLIGHT, COMMAND_MAX_PENDING, COMMAND_TIMEOUT_MS);
+            channel.start();
+            mCommandChannel = channel;
+        }
+    }
+
+    private void stopCommandChannel() {
+        ESP3CommandChannel channel = mCommandChannel;
+        mCommandChannel = null;
+        if (channel != null) {
+            channel.stop();
+        }
+    }
+
+    /**
+     * 受信が止まった読み込み元をリセットする(読み込みスレッドから呼ぶ).
+     * FTDIデバイスはバッファを破棄して開き直し, 回線設定を再設定する.
+     *
+     * @return 成否.
+     */
+    private boolean resetSource() {
+        IByteSource source = mByteSource;
+        if ((source instanceof FTDeviceByteSource) || (source == NO_DEVICE)) {
+            return reopenDevice();
+        }
+        if (source instanceof IResettableSource) {
+            synchronized (source) {
+                return ((IResettableSource) source).reset();
+            }
+        }
+        return false;
+    }
+
+    private synchronized boolean reopenDevice() {
+        if (!mIsRunning || (mInstance == null)) {
+            return false;
+        }
+        Log.w(TAG, "read stalled. reopen device.");
+
+        stopCommandChannel();
+        FT_Device old = mFTDevice;
+        if (old != null) {
+            synchronized (old) {
+                if (old.isOpen()) {
+                    old.purge((byte) (D2xxManager.FT_PURGE_RX | D2xxManager.FT_PURGE_TX));
+                }
+                old.close();
+            }
+        }
+        // 開き直せなかった場合に, 閉じたデバイスを使い続けないようにする
+        mFTDevice = null;
+        mByteSource = NO_DEVICE;
+
+        if (mInstance.createDeviceInfoList(mContext) <= 0) {
+            return false;
+        }
+        FT_Device device = mInstance.openByIndex(mContext, 0, mLinkConfig.toDriverParameters());
+        if ((device == null) || !device.isOpen()) {
+            return false;
+        }
+        mFTDevice = device;
+        setConfig();
+        device.purge((byte) (D2xxManager.FT_PURGE_RX | D2xxManager.FT_PURGE_TX));
+
+        IByteSource source = new FTDeviceByteSource(device);
+        mByteSource = source;
+        startCommandChannel(source);
+        return true;
+    }
+
+    /**
+     * USBデバイスと接続. バックグラウンドスレッドから呼んでもよい.
      *
      * @return 成否
      */
-    public boolean openDevice() {
+    public synchronized boolean openDevice() {
         if (mFTDevice != null) {
             if (mFTDevice.isOpen()) {
                 if (!mIsRunning) {
                     setConfig();
-                    mIsRunning = true;
-                    new Thread(mReadRunner).start();
+                    startReading(new FTDeviceByteSource(mFTDevice));
                 }
                 return true;
             }
@@ -74,34 +289,48 @@ public class USBManager {
 
         Log.i(TAG, "+++ openDevice() +++");
 
+        if (mInstance == null) {
+            try {
+                mInstance = D2xxManager.getInstance(mContext);
+            } catch (D2xxManager.D2xxException e) {
+                e.printStackTrace();
+                return false;
+            }
+        }
+
         int devCount = mInstance.createDeviceInfoList(mContext);
 
         Log.i(TAG, "device count : " + devCount);
 
-        Toast.makeText(mContext, "device count" + devCount, Toast.LENGTH_SHORT).show();
+        showToast("device count" + devCount);
 
         if (devCount > 0) {
             D2xxManager.FtDeviceInfoListNode deviceList = mInstance.getDeviceInfoListDetail(0);
 
             if (mFTDevice == null) {
-                mFTDevice = mInstance.openByIndex(mContext, 0);
+                mFTDevice = mInstance.openByIndex(mContext, 0, mLinkConfig.toDriverParameters());
             } else {
                 synchronized (mFTDevice) {
-                    mFTDevice = mInstance.openByIndex(mContext, 0);
+                    mFTDevice = mInstance.openByIndex(mContext, 0, mLinkConfig.toDriverParameters());
                 }
             }
 
-            if (mFTDevice.isOpen()) {
-                Toast.makeText(mContext, "Succeeded Open Device!!", Toast.LENGTH_SHORT).show();
+            if ((mFTDevice != null) && mFTDevice.isOpen()) {
+                showToast("Succeeded Open Device!!");
 
                 if (!mIsRunning) {
                     setConfig();
-                    mIsRunning = true;
-                    new Thread(mReadRunner).start();
+                    startReading(new FTDeviceByteSource(mFTDevice));
+                } else if (mByteSource == NO_DEVICE) {
+                    // 開き直しに失敗していた読み込みループに新しいデバイスを渡す
+                    setConfig();
+                    IByteSource source = new FTDeviceByteSource(mFTDevice);
+                    mByteSource = source;
+                    startCommandChannel(source);
                 }
                 return true;
             } else {
-                Toast.makeText(mContext, "Failed Open Device...", Toast.LENGTH_SHORT).show();
+                showToast("Failed Open Device...");
                 return false;
             }
         } else {
@@ -113,41 +342,90 @@ public class USBManager {
     /**
      * USBデバイスを切断
      */
-    public void closeDevice() {
+    public synchronized void closeDevice() {
         mIsRunning = false;
+        stopCommandChannel();
         if (mFTDevice != null) {
             mFTDevice.close();
         }
     }
 
+    /**
+     * UIスレッドでトーストを表示する.
+     *
+     * @param message メッセージ.
+     */
+    private void showToast(final String message) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Toast.makeText(mContext, message, Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+
     private void setConfig() {
         if ((mFTDevice == null) || (!mFTDevice.isOpen())) {
             return;
         }
 
         mFTDevice.setBitMode((byte) 0, D2xxManager.FT_BITMODE_RESET);
-        mFTDevice.setBaudRate(57600);
+        mFTDevice.setBaudRate(mLinkConfig.getBaudRate());
+        mFTDevice.setDataCharacteristics(D2xxManager.FT_DATA_BITS_8, D2xxManager.FT_STOP_BITS_1,
+                D2xxManager.FT_PARITY_NONE);
+        mFTDevice.setFlowControl(D2xxManager.FT_FLOW_NONE, (byte) 0x00, (byte) 0x00);
+        mFTDevice.setLatencyTimer((byte) mLinkConfig.getLatencyTimer());
     }
 
     private Runnable mReadRunner = new Runnable() {
 
-        private byte[] receivedData = new byte[4096 * 10];
-
         private byte[] buf = new byte[4096 * 2];
 
-        private ExecutorService pool = Executors.newCachedThreadPool();
+        /**
+         * 読み込んだ時刻. 読み込み1回につき1回だけ時計を読む.
+         */
+        private long batchNanos;
+
+        private ESP3Framer framer = new ESP3Framer(new ESP3Framer.ISliceListener() {
+            @Override
+            public void onFrame(byte[] data, int offset, int length) {
+                // 読み込みバッファ上のパケットを, 受け渡す分だけ1回コピーする
+                switch (data[offset + 4] & 0xFF) {
+                    case ESP3.PACKET_TYPE_RADIO_ERP2:
+                        // 通知(解析は受信側でセンサーごとのスレッドに振り分ける)
+                        if (mIUSBDataListener != null) {
+                            mIUSBDataListener.onReceivedData(copyOf(data, offset, length), batchNanos);
+                        }
+                        break;
+                    case ESP3.PACKET_TYPE_RESPONSE:
+                        // 送信したコマンドへの応答(通知はコマンド送信スレッドで行う)
+                        ESP3CommandChannel channel = mCommandChannel;
+                        if (channel != null) {
+                            channel.onResponse(copyOf(data, offset, length));
+                        }
+                        break;
+                    default:
+                        // EVENT等は使用しない
+                        break;
+                }
+            }
+        });
 
         @Override
         public void run() {
 
-            int receivedSize = 0;
+            framer.reset();
+            mWatchdog.start(System.nanoTime());
 
             while (mIsRunning) {
-                synchronized (mFTDevice) {
-                    int readSize = mFTDevice.getQueueStatus();
-
-                    // CPU負荷低減
-                    if (readSize == 0) {
+                // 停止から回復した場合は読み込み元が入れ替わる
+                final IByteSource source = mByteSource;
+                int readSize;
+                synchronized (source) {
+                    readSize = source.available();
+
+                    // CPU負荷低減(閉じたデバイスは -1 を返すため, 負の値も受信無しとして待つ)
+                    if (readSize <= 0) {
                         try {
                             Thread.sleep(1);
                         } catch (InterruptedException e) {
@@ -156,92 +434,35 @@ public class USBManager {
                     }
 
                     if (readSize > 0) {
-                        // 受信データを読み込む
-                        Arrays.fill(buf, (byte) 0x00);
+                        // 受信データを読み込む(読み込んだ範囲だけを使うため0埋めはしない)
                         if (readSize > buf.length) {
                             readSize = buf.length;
                         }
-                        mFTDevice.read(buf, readSize);
-
-
-                        // 前回読み込んだ途中のデータの後ろにコピーする
-                        // （読み込み済みデータがなければ、receivedDataの先頭にコピーされる）
-                        System.arraycopy(buf, 0, receivedData, receivedSize, readSize);
-                        receivedSize += readSize;
+                        readSize = source.read(buf, readSize);
+                        batchNanos = mReceiveClock.now();
 
                         // 受信したデータをパケット単位に切り出して通知する
-                        while (receivedSize >= EnOceanMessage.MIN_DATA_LEN) {
-
-                            int firstPos = findFirstPos(receivedSize);
-                            if (firstPos > 0) {
-                                // 先頭がSync Byteでないので、Sync Byteまで移動
-                                receivedSize -= firstPos;
-                                System.arraycopy(receivedData, firstPos, receivedData, 0, receivedSize);
-                            } else if (firstPos == -1) {
-                                // Sync Byteが存在しないので再読み込み
-                                receivedSize = 0;
-                                break;
-                            }
-
-                            // 対象データでなければ次のデータを取得する
-                            if (!EnOceanMessage.isTargetData(receivedData)) {
-                                // EnOceanデータではないので再読み込み
-                                receivedSize = 0;
-                                break;
-                            }
-
-                            // データからパケットサイズを取得する
-                            int packetSize = EnOceanMessage.getPacketSize(receivedData);
-                            if (packetSize <= 0) {
-                                // Packet Sizeが異常なので再読み込み
-                                receivedSize = 0;
-                                break;
-                            }
-
-
-                            // 取得データがパケットサイズより大きければ１パケットずつに分割
-                            if (receivedSize >= packetSize) {
-
-                                // 1パケット分をコピー
-                                final byte[] packet = new byte[packetSize];
-                                System.arraycopy(receivedData, 0, packet, 0, packetSize);
-
-                                // 通知
-                                pool.execute(new Runnable() {
-                                    @Override
-                                    public void run() {
-                                        if (mIUSBDataListener != null) {
-                                            mIUSBDataListener.onReceivedData(packet);
-                                        }
-                                    }
-                                });
-
-                                // 通知した分をつめる
-                                receivedSize -= packetSize;
-                                System.arraycopy(receivedData, packetSize, receivedData, 0, receivedSize);
-                            } else {
-                                // 1パケットに足りないので再読み込みする
-                                break;
-                            }
+                        // (読み込み中にデバイスが閉じられた場合は負の値が返る)
+                        if (readSize > 0) {
+                            framer.feed(buf, readSize);
                         }
                     }
                 }
-            }
-        }
 
-        private int findFirstPos(int maxSize) {
-
-            int pos = -1;
-            for (int index = 0; index < maxSize; index++) {
-                byte b = receivedData[index];
-                if (b == EnOceanMessage.SYNC_BYTE) {
-                    pos = index;
-                    break;
+                if (mWatchdog.update(Math.max(readSize, 0), System.nanoTime())) {
+                    if (!resetSource()) {
+                        mWatchdog.onResetFailed();
+                    }
+                    // 途中まで受信したパケットはリセットで続きが失われる
+                    framer.reset();
                 }
-
             }
-            return pos;
         }
     };
 
+    private static byte[] copyOf(byte[] data, int offset, int length) {
+        byte[] packet = new byte[length];
+        System.arraycopy(data, offset, packet, 0, length);
+        return packet;
+    }
 }
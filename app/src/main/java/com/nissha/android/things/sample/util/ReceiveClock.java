@@ -0,0 +1,81 @@
+package com.nissha.android.things.sample.util;
+
+/**
+ * Maps monotonic receive timestamps to wall-clock time.
+ * <p>
+ * 受信時刻は System.nanoTime() で記録し, 保存・表示の際に壁時計の時刻に変換する.
+ * 壁時計との差分は一定間隔ごとに読み直し, 小さなずれは少しずつ寄せる(時刻が逆行しないようにする).
+ * 時刻合わせ等で大きくずれた場合はそのまま合わせる.
+ */
+
+public class ReceiveClock {
+
+    /**
+     * 壁時計を読み直す間隔.
+     */
+    private static final long ANCHOR_INTERVAL_NANOS = 1000000000L;
+
+    /**
+     * 1回の読み直しで寄せる最大量(間隔の0.1%).
+     */
+    private static final long MAX_SLEW_NANOS = 1000000L;
+
+    /**
+     * これ以上ずれた場合は寄せずに合わせる.
+     */
+    private static final long STEP_THRESHOLD_NANOS = 1000000000L;
+
+    /**
+     * 壁時計(ns) - System.nanoTime().
+     */
+    private volatile long mOffsetNanos;
+
+    private long mLastAnchorNanos;
+
+    public ReceiveClock() {
+        long nanos = System.nanoTime();
+        mOffsetNanos = (System.currentTimeMillis() * 1000000L) - nanos;
+        mLastAnchorNanos = nanos;
+    }
+
+    /**
+     * 受信時刻を取得する. 読み込み1回につき1回呼ぶ.
+     *
+     * @return 受信時刻(System.nanoTime()基準).
+     */
+    public long now() {
+        long nanos = System.nanoTime();
+        anchor(nanos);
+        return nanos;
+    }
+
+    /**
+     * 一定間隔ごとに壁時計との差分を読み直す.
+     *
+     * @param nanos 現在時刻(System.nanoTime()基準).
+     */
+    public synchronized void anchor(long nanos) {
+        if ((nanos - mLastAnchorNanos) < ANCHOR_INTERVAL_NANOS) {
+            return;
+        }
+        mLastAnchorNanos = nanos;
+
+        long target = (System.currentTimeMillis() * 1000000L) - nanos;
+        long diff = target - mOffsetNanos;
+        if (Math.abs(diff) >= STEP_THRESHOLD_NANOS) {
+            mOffsetNanos = target;
+        } else {
+            mOffsetNanos += Math.max(-MAX_SLEW_NANOS, Math.min(MAX_SLEW_NANOS, diff));
+        }
+    }
+
+    /**
+     * 受信時刻を壁時計の時刻(Unix Time)に変換する.
+     *
+     * @param nanos 受信時刻(System.nanoTime()基準).
+     * @return 時刻(ms).
+     */
+    public long toWallMillis(long nanos) {
+        return (nanos + mOffsetNanos) / 1000000L;
+    }
+}
@@ -0,0 +1,94 @@
+package com.nissha.android.things.sample.util;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Startup phase timings up to the first sensor reading.
+ * <p>
+ * プロセス起動からの経過時間を段階ごとに記録し, 最初の受信データを表示用に
+ * 反映した時点でまとめてログに出力する.
+ */
+
+public class StartupTrace {
+
+    private static final String TAG = StartupTrace.class.getSimpleName();
+
+    /**
+     * 段階名.
+     */
+    private final List<String> mPhases = new ArrayList<>();
+
+    /**
+     * プロセス起動からの経過時間(ms).
+     */
+    private final List<Long> mElapsed = new ArrayList<>();
+
+    private final long mProcessStart;
+
+    private boolean mFinished;
+
+    /**
+     * コンストラクタ. 生成した時点を最初の段階として記録する.
+     */
+    public StartupTrace() {
+        mProcessStart = Process.getStartElapsedRealtime();
+        mark("create");
+    }
+
+    /**
+     * 段階の完了を記録する.
+     *
+     * @param phase 段階名.
+     */
+    public synchronized void mark(String phase) {
+        if (mFinished) {
+            return;
+        }
+        long elapsed = SystemClock.elapsedRealtime() - mProcessStart;
+        mPhases.add(phase);
+        mElapsed.add(elapsed);
+        Log.i(TAG, phase + " : " + elapsed + "ms");
+    }
+
+    /**
+     * 最初の受信データの反映を記録する. 2回目以降は何もしない.
+     *
+     * @return true : 最初の受信データだった.
+     */
+    public synchronized boolean markFirstReading() {
+        if (mFinished) {
+            return false;
+        }
+        mark("first reading");
+        mFinished = true;
+        Log.i(TAG, toString());
+        return true;
+    }
+
+    /**
+     * プロセス起動から最初の受信データまでの時間.
+     *
+     * @return 経過時間(ms). 未受信の場合は -1.
+     */
+    public synchronized long getTimeToFirstReading() {
+        return mFinished ? mElapsed.get(mElapsed.size() - 1) : -1;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder("startup");
+        long previous = 0;
+        for (int index = 0; index < mPhases.size(); index++) {
+            long elapsed = mElapsed.get(index);
+            sb.append(String.format(Locale.US, " | %s %dms (+%d)", mPhases.get(index), elapsed, elapsed - previous));
+            previous = elapsed;
+        }
+        return sb.toString();
+    }
+}
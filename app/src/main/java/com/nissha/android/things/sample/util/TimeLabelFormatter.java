@@ -0,0 +1,126 @@
+package com.nissha.android.things.sample.util;
+
+import java.util.TimeZone;
+
+/**
+ * HH:mm:ss label formatter for chart axes.
+ * <p>
+ * SimpleDateFormatを使わずに時刻文字列を生成する. スレッドごとに直前の秒と
+ * その文字列をキャッシュしているため, 同じ秒のデータが続く場合は同じ文字列を返す.
+ * TimeZone.getDefault() は呼ぶたびに複製を生成するため, タイムゾーンもスレッドごとにキャッシュし,
+ * {@link #onTimeZoneChanged()} が呼ばれた場合のみ取得し直す.
+ */
+
+public final class TimeLabelFormatter {
+
+    /**
+     * ラベル文字数(HH:mm:ss).
+     */
+    public static final int LABEL_LENGTH = 8;
+
+    private static final long MILLIS_PER_SECOND = 1000;
+
+    private static final long SECONDS_PER_DAY = 24 * 60 * 60;
+
+    /**
+     * タイムゾーンの変更回数. 各スレッドのキャッシュと異なる場合に取得し直す.
+     */
+    private static volatile int sZoneGeneration;
+
+    private static final ThreadLocal<Cache> sCache = new ThreadLocal<Cache>() {
+        @Override
+        protected Cache initialValue() {
+            return new Cache();
+        }
+    };
+
+    private static class Cache {
+
+        private long mSecond = Long.MIN_VALUE;
+
+        private final char[] mBuffer = new char[LABEL_LENGTH];
+
+        private String mLabel;
+
+        private TimeZone mZone;
+
+        private int mZoneGeneration;
+
+        /**
+         * キャッシュしているタイムゾーンを取得する. 変更が通知されていれば取得し直す.
+         *
+         * @return タイムゾーン.
+         */
+        TimeZone getZone() {
+            int generation = sZoneGeneration;
+            if ((mZone == null) || (mZoneGeneration != generation)) {
+                mZone = TimeZone.getDefault();
+                mZoneGeneration = generation;
+                mLabel = null;
+            }
+            return mZone;
+        }
+    }
+
+    private TimeLabelFormatter() {
+    }
+
+    /**
+     * タイムゾーンの変更を通知する(Intent.ACTION_TIMEZONE_CHANGED の受信時に呼ぶ).
+     */
+    public static void onTimeZoneChanged() {
+        sZoneGeneration++;
+    }
+
+    /**
+     * 時刻をHH:mm:ss形式の文字列に変換する.
+     *
+     * @param timeMillis 時刻(Unix Time).
+     * @return ラベル文字列.
+     */
+    public static String format(long timeMillis) {
+        Cache cache = sCache.get();
+        TimeZone zone = cache.getZone();
+        long second = timeMillis / MILLIS_PER_SECOND;
+        if ((cache.mLabel == null) || (cache.mSecond != second)) {
+            format(timeMillis, zone, cache.mBuffer, 0);
+            cache.mLabel = new String(cache.mBuffer);
+            cache.mSecond = second;
+        }
+        return cache.mLabel;
+    }
+
+    /**
+     * 時刻をHH:mm:ss形式で文字配列に書き込む.
+     *
+     * @param timeMillis 時刻(Unix Time).
+     * @param out        書き込み先.
+     * @param offset     書き込み位置.
+     * @return 書き込んだ文字数.
+     */
+    public static int format(long timeMillis, char[] out, int offset) {
+        return format(timeMillis, sCache.get().getZone(), out, offset);
+    }
+
+    private static int format(long timeMillis, TimeZone zone, char[] out, int offset) {
+        long local = timeMillis + zone.getOffset(timeMillis);
+        int secondOfDay = (int) ((local / MILLIS_PER_SECOND) % SECONDS_PER_DAY);
+
+        int hour = secondOfDay / 3600;
+        int minute = (secondOfDay / 60) % 60;
+        int second = secondOfDay % 60;
+
+        offset = putTwoDigits(out, offset, hour);
+        out[offset++] = ':';
+        offset = putTwoDigits(out, offset, minute);
+        out[offset++] = ':';
+        putTwoDigits(out, offset, second);
+        return LABEL_LENGTH;
+    }
+
+    private static int putTwoDigits(char[] out, int offset, int value) {
+        out[offset++] = (char) ('0' + (value / 10));
+        out[offset++] = (char) ('0' + (value % 10));
+        return offset;
+    }
+}
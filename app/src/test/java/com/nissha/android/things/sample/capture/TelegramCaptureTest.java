@@ -0,0 +1,64 @@
+package com.nissha.android.things.sample.capture;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link TelegramCapture} file rotation.
+ */
+
+public class TelegramCaptureTest {
+
+    private static final byte[] FRAME = {0x55, 0x00, 0x0A, 0x00, 0x0A, 0x00};
+
+    private File mFile;
+
+    private TelegramCapture mCapture;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("capture", ".bin");
+        assertTrue(mFile.delete());
+        mCapture = new TelegramCapture(mFile, 16, 1024 * 1024);
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+        for (int generation = 1; generation <= TelegramCapture.KEEP_FILES + 1; generation++) {
+            mCapture.getRotatedFile(generation).delete();
+        }
+    }
+
+    @Test
+    public void restartKeepsPreviousCaptures() throws IOException {
+        // 1回目は1件, 以降は記録ごとに1件ずつ増やして, 世代をファイルサイズで見分ける
+        for (int session = 1; session <= TelegramCapture.KEEP_FILES + 2; session++) {
+            mCapture.start();
+            for (int count = 0; count < session; count++) {
+                assertTrue(mCapture.record(System.nanoTime(), 1, TelegramCapture.RESULT_DECODED,
+                        FRAME, 0, FRAME.length));
+            }
+            mCapture.stop();
+        }
+
+        int session = TelegramCapture.KEEP_FILES + 2;
+        assertEquals(sizeOf(session), mFile.length());
+        for (int generation = 1; generation <= TelegramCapture.KEEP_FILES; generation++) {
+            assertEquals(sizeOf(session - generation), mCapture.getRotatedFile(generation).length());
+        }
+        assertFalse(mCapture.getRotatedFile(TelegramCapture.KEEP_FILES + 1).exists());
+    }
+
+    private static long sizeOf(int records) {
+        return 24 + records * (15L + FRAME.length);
+    }
+}
@@ -0,0 +1,72 @@
+package com.nissha.android.things.sample.collector;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Local stand-in gateway sending telegrams to {@link MergeCollector}.
+ * <p>
+ * 接続時にゲートウェイIDを送り, 以降は「受信時刻(8byte, μs) + ESP3フレーム」を送信する.
+ * 送信はバッファリングするため, 区切りで {@link #flush()} を呼ぶこと.
+ */
+
+public class GatewaySimulator {
+
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private static final int TIMEOUT_MS = 5000;
+
+    private final Socket mSocket;
+
+    private final DataOutputStream mOutput;
+
+    private long mLastTime = Long.MIN_VALUE;
+
+    /**
+     * コンストラクタ. コレクターに接続する.
+     *
+     * @param host      コレクターのホスト.
+     * @param port      コレクターのポート.
+     * @param gatewayId ゲートウェイID.
+     * @throws IOException 接続失敗.
+     */
+    public GatewaySimulator(String host, int port, int gatewayId) throws IOException {
+        mSocket = new Socket();
+        mSocket.connect(new InetSocketAddress(host, port), TIMEOUT_MS);
+        mSocket.setTcpNoDelay(true);
+        mOutput = new DataOutputStream(new BufferedOutputStream(mSocket.getOutputStream(), WRITE_BUFFER_SIZE));
+        mOutput.writeInt(gatewayId);
+    }
+
+    /**
+     * テレグラムを送信する.
+     *
+     * @param time  受信時刻(μs). 前回以上であること.
+     * @param frame ESP3フレーム.
+     * @throws IOException 送信失敗.
+     */
+    public void send(long time, byte[] frame) throws IOException {
+        if (time < mLastTime) {
+            throw new IllegalArgumentException("time must not go backwards : " + time + " < " + mLastTime);
+        }
+        mLastTime = time;
+        mOutput.writeLong(time);
+        mOutput.write(frame);
+    }
+
+    public void flush() throws IOException {
+        mOutput.flush();
+    }
+
+    public void close() {
+        try {
+            mOutput.flush();
+            mSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,343 @@
+package com.nissha.android.things.sample.collector;
+
+import android.util.Log;
+
+import com.nissha.android.things.sample.decode.TelegramGenerator;
+import com.nissha.android.things.sample.enocean.EEP;
+import com.nissha.android.things.sample.enocean.ESP3;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Measures {@link MergeCollector} with gateways simulated over loopback sockets.
+ * <p>
+ * 各テレグラムを複数のゲートウェイが異なるRSSI・時計のずれで受信したものとして送信し,
+ * マージ結果の順序・重複の除去・RSSIが最も強いものの選択を確認する.
+ * 送信速度を指定しない場合は最大速度, 指定した場合はその速度で送信して遅延を計測する.
+ */
+
+public class MergeBenchmark {
+
+    private static final String TAG = MergeBenchmark.class.getSimpleName();
+
+    /**
+     * 目標の処理速度(まとめた後のテレグラム数/秒).
+     */
+    public static final int TARGET_RATE = 100000;
+
+    private static final int SENDERS = 1000;
+
+    /**
+     * 1台のゲートウェイが受信する確率(%).
+     */
+    private static final int HEAR_PERCENT = 60;
+
+    /**
+     * ゲートウェイごとの時計のずれ(台数に比例)と, テレグラムごとのばらつき(μs).
+     */
+    private static final int CLOCK_SKEW_MICROS = 100;
+
+    private static final int JITTER_MICROS = 200;
+
+    private static final long REORDER_WINDOW_MICROS = 50000;
+
+    private static final long DEDUP_WINDOW_MICROS = 5000;
+
+    private static final int PENDING_CAPACITY = 65536;
+
+    /**
+     * 送信後, 全件の受信を待つ最大時間.
+     */
+    private static final long RECEIVE_TIMEOUT_MS = 30000;
+
+    private MergeBenchmark() {
+    }
+
+    /**
+     * 計測結果.
+     */
+    public static class Result {
+
+        public int mGateways;
+
+        /**
+         * 送信速度(テレグラム数/秒). 0の場合は最大速度.
+         */
+        public int mRate;
+
+        public long mTelegrams;
+
+        /**
+         * 全ゲートウェイから送信した件数(重複を含む).
+         */
+        public long mCopies;
+
+        /**
+         * コレクターが受信した件数(送信に失敗した場合は mCopies より少ない).
+         */
+        public long mReceived;
+
+        public double mTelegramsPerSecond;
+
+        public long mMerged;
+
+        public long mDuplicates;
+
+        public long mLate;
+
+        /**
+         * 受信時刻順になっていなかった件数.
+         */
+        public long mOrderErrors;
+
+        /**
+         * 受信ゲートウェイ数またはRSSIが期待と異なった件数.
+         */
+        public long mMergeErrors;
+
+        public double mAverageLatencyMicros;
+
+        public long mMaxLatencyMicros;
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%d gateways @ %s : %.0f telegrams/s, %d/%d merged (%d/%d copies, %d duplicates, %d late),"
+                            + " %d order errors, %d merge errors, latency avg %.0fus max %dus",
+                    mGateways, (mRate == 0) ? "max" : String.valueOf(mRate), mTelegramsPerSecond,
+                    mMerged, mTelegrams, mReceived, mCopies, mDuplicates, mLate, mOrderErrors, mMergeErrors,
+                    mAverageLatencyMicros, mMaxLatencyMicros);
+        }
+    }
+
+    /**
+     * 最大速度と {@value #TARGET_RATE} テレグラム/秒で計測する.
+     *
+     * @param gateways  ゲートウェイ数.
+     * @param telegrams テレグラム数.
+     * @return 計測結果(最大速度, 目標速度).
+     * @throws IOException 接続失敗.
+     */
+    public static Result[] run(int gateways, int telegrams) throws IOException {
+        // JITのウォームアップ
+        run(gateways, Math.min(telegrams, 100000), 0);
+
+        Result[] results = new Result[2];
+        results[0] = run(gateways, telegrams, 0);
+        Log.i(TAG, results[0].toString());
+        results[1] = run(gateways, telegrams, TARGET_RATE);
+        Log.i(TAG, results[1].toString());
+        return results;
+    }
+
+    /**
+     * 計測する.
+     *
+     * @param gateways  ゲートウェイ数.
+     * @param telegrams テレグラム数.
+     * @param rate      送信速度(テレグラム数/秒). 0の場合は最大速度.
+     * @return 計測結果.
+     * @throws IOException 接続失敗.
+     */
+    public static Result run(int gateways, final int telegrams, int rate) throws IOException {
+
+        // テレグラムごとに受信するゲートウェイとRSSIを決める
+        Random random = new Random(1);
+        final int[] expectedCopies = new int[telegrams];
+        final int[] expectedRssi = new int[telegrams];
+        int[][] heard = new int[gateways][telegrams];
+        int[][] dBm = new int[gateways][telegrams];
+        int[] heardCount = new int[gateways];
+        for (int index = 0; index < telegrams; index++) {
+            int best = Integer.MAX_VALUE;
+            for (int gateway = 0; gateway < gateways; gateway++) {
+                boolean hear = random.nextInt(100) < HEAR_PERCENT;
+                if (!hear && (gateway == (gateways - 1)) && (expectedCopies[index] == 0)) {
+                    hear = true;
+                }
+                if (!hear) {
+                    continue;
+                }
+                // 最も強いRSSIが1つに決まるようにゲートウェイごとに異なる値にする
+                int value = 30 + (random.nextInt(Math.max(200 / gateways, 1)) * gateways) + gateway;
+                heard[gateway][heardCount[gateway]] = index;
+                dBm[gateway][heardCount[gateway]] = value;
+                heardCount[gateway]++;
+                expectedCopies[index]++;
+                best = Math.min(best, value);
+            }
+            expectedRssi[index] = -best;
+        }
+
+        final boolean paced = (rate > 0);
+        final Result result = new Result();
+        result.mGateways = gateways;
+        result.mRate = rate;
+        result.mTelegrams = telegrams;
+
+        MergeCollector collector = new MergeCollector(REORDER_WINDOW_MICROS, DEDUP_WINDOW_MICROS, PENDING_CAPACITY,
+                new MergeCollector.IMergeListener() {
+                    private long mLastTime = Long.MIN_VALUE;
+
+                    private long mCount;
+
+                    private long mLatencySum;
+
+                    @Override
+                    public void onTelegram(long time, int gatewayId, int copies, byte[] frame, EEP eep, int rssi) {
+                        if (time < mLastTime) {
+                            result.mOrderErrors++;
+                        }
+                        mLastTime = time;
+                        int index = eep.getPayloadWord() >>> 4;
+                        if ((copies != expectedCopies[index]) || (rssi != expectedRssi[index])) {
+                            result.mMergeErrors++;
+                        }
+                        if (paced) {
+                            // 受信時刻(時計のずれを含む)から通知までの時間
+                            long latency = (System.nanoTime() / 1000) - time;
+                            mLatencySum += latency;
+                            result.mMaxLatencyMicros = Math.max(result.mMaxLatencyMicros, latency);
+                            result.mAverageLatencyMicros = (double) mLatencySum / ++mCount;
+                        }
+                    }
+                });
+        // 送信するセンサーはコレクターの登録先にだけ登録する
+        new TelegramGenerator(SENDERS, 1).register(collector.getSenderProfiles());
+        collector.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+        final GatewaySimulator[] simulators = new GatewaySimulator[gateways];
+        for (int gateway = 0; gateway < gateways; gateway++) {
+            simulators[gateway] = new GatewaySimulator(InetAddress.getLoopbackAddress().getHostAddress(),
+                    collector.getPort(), gateway + 1);
+        }
+
+        final long start = System.nanoTime();
+        Thread[] threads = new Thread[gateways];
+        for (int gateway = 0; gateway < gateways; gateway++) {
+            threads[gateway] = new Thread(new GatewayRunner(simulators[gateway], heard[gateway], dBm[gateway],
+                    heardCount[gateway], gateway, rate, start, new Random(gateway)), TAG + "-" + gateway);
+            threads[gateway].start();
+            result.mCopies += heardCount[gateway];
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+        // 全件受信してから停止する(停止時に残りを全て通知する). 送信に失敗した場合は待ち続けない
+        long deadline = System.nanoTime() + (RECEIVE_TIMEOUT_MS * 1000000L);
+        while ((collector.getReceivedCount() < result.mCopies) && (System.nanoTime() - deadline < 0)) {
+            Thread.yield();
+        }
+        collector.stop();
+        result.mReceived = collector.getReceivedCount();
+        long elapsed = System.nanoTime() - start;
+
+        result.mTelegramsPerSecond = telegrams / (elapsed / 1e9);
+        result.mMerged = collector.getMergedCount();
+        result.mDuplicates = collector.getDuplicateCount();
+        result.mLate = collector.getLateCount();
+        return result;
+    }
+
+    /**
+     * 1台のゲートウェイの送信.
+     */
+    private static class GatewayRunner implements Runnable {
+
+        private final GatewaySimulator mSimulator;
+
+        private final int[] mTelegrams;
+
+        private final int[] mDBm;
+
+        private final int mCount;
+
+        private final int mGateway;
+
+        private final int mRate;
+
+        private final long mStart;
+
+        private final Random mRandom;
+
+        GatewayRunner(GatewaySimulator simulator, int[] telegrams, int[] dBm, int count, int gateway, int rate,
+                      long start, Random random) {
+            mSimulator = simulator;
+            mTelegrams = telegrams;
+            mDBm = dBm;
+            mCount = count;
+            mGateway = gateway;
+            mRate = rate;
+            mStart = start;
+            mRandom = random;
+        }
+
+        @Override
+        public void run() {
+            byte[] payload = new byte[4];
+            long startMicros = mStart / 1000;
+            long last = Long.MIN_VALUE;
+            try {
+                for (int index = 0; index < mCount; index++) {
+                    int telegram = mTelegrams[index];
+                    long offset;
+                    if (mRate > 0) {
+                        offset = (telegram * 1000000L) / mRate;
+                        waitUntil(mStart + (offset * 1000));
+                    } else {
+                        // 最大速度では1μsごとに受信したものとする
+                        offset = telegram;
+                    }
+
+                    // ゲートウェイの時計のずれを加える(ゲートウェイごとには単調増加)
+                    long time = startMicros + offset + (mGateway * CLOCK_SKEW_MICROS) + mRandom.nextInt(JITTER_MICROS);
+                    time = Math.max(time, last);
+                    last = time;
+
+                    int word = (telegram << 4) | 0x08;
+                    payload[0] = (byte) (word >>> 24);
+                    payload[1] = (byte) (word >>> 16);
+                    payload[2] = (byte) (word >>> 8);
+                    payload[3] = (byte) word;
+                    mSimulator.send(time, ESP3.buildERP2Frame(0x02,
+                            TelegramGenerator.BASE_SENDER_ID + (telegram % SENDERS), payload, mDBm[index]));
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                mSimulator.close();
+            }
+        }
+
+        /**
+         * 送信時刻まで待つ. 待つ前に送信済みの分を送り出す.
+         */
+        private void waitUntil(long nanos) throws IOException {
+            long remaining = nanos - System.nanoTime();
+            if (remaining <= 0) {
+                return;
+            }
+            mSimulator.flush();
+            while (remaining > 0) {
+                if (remaining > 1000000) {
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                } else {
+                    Thread.yield();
+                }
+                remaining = nanos - System.nanoTime();
+            }
+        }
+    }
+}
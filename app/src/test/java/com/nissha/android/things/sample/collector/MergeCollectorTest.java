@@ -0,0 +1,153 @@
+package com.nissha.android.things.sample.collector;
+
+import com.nissha.android.things.sample.enocean.EEP;
+import com.nissha.android.things.sample.enocean.ESP3;
+import com.nissha.android.things.sample.enocean.SenderProfiles;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link MergeCollector} with gateways simulated over loopback sockets.
+ */
+
+public class MergeCollectorTest {
+
+    private static final int SENDER_ID = 0x05000001;
+
+    private static final int UNKNOWN_SENDER_ID = 0x05000002;
+
+    /**
+     * アプリ全体で受信対象のセンサー.
+     */
+    private static final int APP_SENDER_ID = 0x040189B8;
+
+    /**
+     * 並べ替え幅を十分に長くし, 全ゲートウェイの受信済み時刻だけで順序を決めさせる.
+     */
+    private static final long REORDER_WINDOW_MICROS = 10000000;
+
+    private static final long DEDUP_WINDOW_MICROS = 5000;
+
+    private static final long TIMEOUT_MS = 10000;
+
+    private final List<long[]> mTelegrams = new ArrayList<>();
+
+    private MergeCollector mCollector;
+
+    private GatewaySimulator[] mGateways;
+
+    @Before
+    public void setUp() throws Exception {
+        mCollector = new MergeCollector(REORDER_WINDOW_MICROS, DEDUP_WINDOW_MICROS, 1024,
+                new MergeCollector.IMergeListener() {
+                    @Override
+                    public void onTelegram(long time, int gatewayId, int copies, byte[] frame, EEP eep, int rssi) {
+                        mTelegrams.add(new long[]{time, gatewayId, copies, rssi, eep.getPayloadWord()});
+                    }
+                });
+        mCollector.getSenderProfiles().register(SENDER_ID, SenderProfiles.EEP_A50904);
+        mCollector.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+        mGateways = new GatewaySimulator[3];
+        for (int index = 0; index < mGateways.length; index++) {
+            mGateways[index] = new GatewaySimulator(InetAddress.getLoopbackAddress().getHostAddress(),
+                    mCollector.getPort(), index + 1);
+        }
+        // 全ゲートウェイの接続を待ってから送信する
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while ((mCollector.getGatewayCount() < mGateways.length) && (System.currentTimeMillis() < deadline)) {
+            Thread.sleep(1);
+        }
+        assertEquals(mGateways.length, mCollector.getGatewayCount());
+    }
+
+    @After
+    public void tearDown() {
+        for (GatewaySimulator gateway : mGateways) {
+            gateway.close();
+        }
+        mCollector.stop();
+    }
+
+    @Test
+    public void mergesInTimeOrderAndKeepsStrongestCopy() throws Exception {
+        byte[] first = {0x10, 0x20, 0x30, 0x08};
+        byte[] second = {0x11, 0x21, 0x31, 0x08};
+
+        // 同じテレグラムを3台が受信(2台目が最も強い)
+        mGateways[0].send(1000, frame(SENDER_ID, first, 70));
+        mGateways[1].send(1100, frame(SENDER_ID, first, 50));
+        mGateways[2].send(1050, frame(SENDER_ID, first, 80));
+        // 1台だけが受信
+        mGateways[0].send(20000, frame(SENDER_ID, second, 60));
+        // 登録していないセンサー
+        mGateways[1].send(30000, frame(UNKNOWN_SENDER_ID, second, 60));
+        // 重複判定幅を超えて同じ内容が送られた場合は別のテレグラム
+        mGateways[2].send(100000, frame(SENDER_ID, first, 65));
+        for (GatewaySimulator gateway : mGateways) {
+            gateway.flush();
+        }
+        waitReceived(6);
+        mCollector.stop();
+
+        assertEquals(3, mTelegrams.size());
+        assertTelegram(mTelegrams.get(0), 1000, 2, 3, -50, first);
+        assertTelegram(mTelegrams.get(1), 20000, 1, 1, -60, second);
+        assertTelegram(mTelegrams.get(2), 100000, 3, 1, -65, first);
+        assertEquals(3, mCollector.getMergedCount());
+        assertEquals(2, mCollector.getDuplicateCount());
+        assertEquals(1, mCollector.getRejectedCount());
+        assertEquals(0, mCollector.getLateCount());
+        assertEquals(0, mCollector.getErrorCount());
+    }
+
+    @Test
+    public void usesOwnSenderProfiles() throws Exception {
+        // コレクターへの登録はアプリ全体の許可リストに入らない
+        assertFalse(EEP.getSenderFilter().contains(SENDER_ID));
+        assertTrue(EEP.getSenderFilter().contains(APP_SENDER_ID));
+
+        mGateways[0].send(1000, frame(APP_SENDER_ID, new byte[]{0x10, 0x20, 0x30, 0x08}, 60));
+        mGateways[0].flush();
+        waitReceived(1);
+        mCollector.stop();
+
+        // アプリ全体で受信対象のセンサーでも, コレクターに登録していなければ解析しない
+        assertTrue(mTelegrams.isEmpty());
+        assertEquals(1, mCollector.getRejectedCount());
+    }
+
+    private void waitReceived(long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while ((mCollector.getReceivedCount() < count) && (System.currentTimeMillis() < deadline)) {
+            Thread.sleep(1);
+        }
+        assertEquals(count, mCollector.getReceivedCount());
+    }
+
+    private static void assertTelegram(long[] telegram, long time, int gatewayId, int copies, int rssi,
+                                       byte[] payload) {
+        assertEquals(time, telegram[0]);
+        assertEquals(gatewayId, telegram[1]);
+        assertEquals(copies, telegram[2]);
+        assertEquals(rssi, telegram[3]);
+        int word = ((payload[0] & 0xFF) << 24) | ((payload[1] & 0xFF) << 16) | ((payload[2] & 0xFF) << 8)
+                | (payload[3] & 0xFF);
+        assertEquals(word, (int) telegram[4]);
+    }
+
+    private static byte[] frame(int senderId, byte[] payload, int dBm) {
+        return ESP3.buildERP2Frame(0x02, senderId, payload, dBm);
+    }
+}
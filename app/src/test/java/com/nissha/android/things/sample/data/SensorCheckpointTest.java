@@ -0,0 +1,171 @@
+package com.nissha.android.things.sample.data;
+
+import com.nissha.android.things.sample.decode.SenderStats;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link SensorCheckpoint} restore of the history tail, including across file rotation.
+ */
+
+public class SensorCheckpointTest {
+
+    private static final int SENDER_A = 0x040189B8;
+
+    private static final int SENDER_B = 0x05000001;
+
+    private File mHistoryFile;
+
+    private File mCheckpointFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mHistoryFile = File.createTempFile("history", ".bin");
+        mCheckpointFile = File.createTempFile("checkpoint", ".bin");
+        assertTrue(mHistoryFile.delete());
+        assertTrue(mCheckpointFile.delete());
+    }
+
+    @After
+    public void tearDown() {
+        mHistoryFile.delete();
+        new File(mHistoryFile.getPath() + ".1").delete();
+        new File(mHistoryFile.getPath() + ".gen").delete();
+        mCheckpointFile.delete();
+    }
+
+    @Test
+    public void historyTailIsAddedToStats() throws IOException {
+        SensorHistoryFile file = new SensorHistoryFile(mHistoryFile);
+        SensorHistory history = new SensorHistory(new SensorSampleRing(16), file);
+        history.add(1000, SENDER_A, 0, 50);
+        history.add(2000, SENDER_A, 0, 60);
+
+        SenderStats saved = new SenderStats();
+        saved.mSenderId = SENDER_A;
+        saved.mCount = 2;
+        saved.mRssiSum = 110;
+        saved.mRssiMin = 50;
+        saved.mRssiMax = 60;
+        saved.mLastSeenNanos = System.nanoTime();
+        List<SenderStats> stats = new ArrayList<>();
+        stats.add(saved);
+        new SensorCheckpoint(mCheckpointFile, 16, 8).save(history, new SensorStateTable(8), stats);
+
+        // チェックポイント保存後に追加された分
+        history.add(3000, SENDER_A, 0, 40);
+        history.add(4000, SENDER_B, 0, 70);
+        file.flush();
+
+        SensorCheckpoint checkpoint = new SensorCheckpoint(mCheckpointFile, 16, 8);
+        assertTrue(checkpoint.load());
+        assertEquals(2, checkpoint.addHistoryTail(file, getPosition(file)));
+
+        List<SenderStats> restored = checkpoint.getStats();
+        assertEquals(2, restored.size());
+        SenderStats a = restored.get(0);
+        assertEquals(SENDER_A, a.mSenderId);
+        assertEquals(3, a.mCount);
+        assertEquals(150, a.mRssiSum);
+        assertEquals(40, a.mRssiMin);
+        assertEquals(60, a.mRssiMax);
+        SenderStats b = restored.get(1);
+        assertEquals(SENDER_B, b.mSenderId);
+        assertEquals(1, b.mCount);
+        assertEquals(70, b.mRssiSum);
+    }
+
+    @Test
+    public void historyTailIsReadAcrossRotation() throws IOException {
+        SensorHistoryFile file = new SensorHistoryFile(mHistoryFile, 4);
+        SensorHistory history = new SensorHistory(new SensorSampleRing(16), file);
+        history.add(1000, SENDER_A, 1, 50);
+        history.add(2000, SENDER_A, 2, 50);
+        history.add(3000, SENDER_A, 3, 50);
+
+        SenderStats saved = new SenderStats();
+        saved.mSenderId = SENDER_A;
+        saved.mCount = 3;
+        saved.mRssiSum = 150;
+        saved.mRssiMin = 50;
+        saved.mRssiMax = 50;
+        saved.mLastSeenNanos = System.nanoTime();
+        List<SenderStats> stats = new ArrayList<>();
+        stats.add(saved);
+        new SensorCheckpoint(mCheckpointFile, 16, 8).save(history, new SensorStateTable(8), stats);
+
+        // 保存後に3件追加して切り替わり, 新しいファイルに1件追加された
+        history.add(4000, SENDER_A, 4, 50);
+        history.add(5000, SENDER_A, 5, 50);
+        history.add(6000, SENDER_A, 6, 50);
+        file.flush();
+        history.add(7000, SENDER_A, 7, 50);
+        file.flush();
+        HistoryPosition position = getPosition(file);
+        assertEquals(1, position.mGeneration);
+        assertEquals(1, position.mRecords);
+
+        SensorCheckpoint checkpoint = new SensorCheckpoint(mCheckpointFile, 16, 8);
+        assertTrue(checkpoint.load());
+        assertEquals(0, checkpoint.getHistoryPosition().mGeneration);
+        assertEquals(3, checkpoint.getHistoryPosition().mRecords);
+        assertEquals(4, checkpoint.addHistoryTail(file, position));
+        assertEquals(7, checkpoint.getStats().get(0).mCount);
+
+        // 再起動後も世代が引き継がれ, チェックポイントのリングに切り替え前後の続きが重なる
+        SensorHistoryFile reopened = new SensorHistoryFile(mHistoryFile, 4);
+        SensorSampleRing ring = new SensorSampleRing(16);
+        SensorStateTable table = new SensorStateTable(8);
+        assertEquals(7, new SensorHistory(ring, reopened).restore(getPosition(reopened), table, checkpoint));
+        SensorState state = new SensorState();
+        assertTrue(table.get(SENDER_A, state));
+        assertEquals(7000, state.mTime);
+
+        final List<Integer> payloads = new ArrayList<>();
+        ring.read(0, Long.MAX_VALUE, new SensorHistoryFile.IRecordListener() {
+            @Override
+            public boolean onRecord(long time, int senderId, int payload, int rssi) {
+                payloads.add(payload);
+                return true;
+            }
+        });
+        assertEquals(7, payloads.size());
+        for (int index = 0; index < payloads.size(); index++) {
+            assertEquals(index + 1, (int) payloads.get(index));
+        }
+    }
+
+    @Test
+    public void historyTailIsSkippedAfterTwoRotations() throws IOException {
+        SensorHistoryFile file = new SensorHistoryFile(mHistoryFile, 2);
+        SensorHistory history = new SensorHistory(new SensorSampleRing(16), file);
+        history.add(1000, SENDER_A, 1, 50);
+        new SensorCheckpoint(mCheckpointFile, 16, 8).save(history, new SensorStateTable(8), null);
+
+        for (int index = 0; index < 4; index++) {
+            history.add(2000 + index, SENDER_A, 2 + index, 50);
+            file.flush();
+        }
+        assertEquals(2, getPosition(file).mGeneration);
+
+        SensorCheckpoint checkpoint = new SensorCheckpoint(mCheckpointFile, 16, 8);
+        assertTrue(checkpoint.load());
+        assertEquals(0, checkpoint.addHistoryTail(file, getPosition(file)));
+    }
+
+    private static HistoryPosition getPosition(SensorHistoryFile file) {
+        HistoryPosition position = new HistoryPosition();
+        file.getPosition(position);
+        return position;
+    }
+}
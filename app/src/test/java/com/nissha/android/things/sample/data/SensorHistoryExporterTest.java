@@ -0,0 +1,70 @@
+package com.nissha.android.things.sample.data;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link SensorHistoryExporter} sensor selection.
+ */
+
+public class SensorHistoryExporterTest {
+
+    private static final int PAYLOAD = 0x50648008;
+
+    private SensorHistoryExporter mExporter;
+
+    @Before
+    public void setUp() throws IOException {
+        SensorHistory history = new SensorHistory(new SensorSampleRing(16), null);
+        history.add(1000, 0xFFFFFFFF, PAYLOAD, 60);
+        history.add(2000, 0x00000000, PAYLOAD, 60);
+        history.add(3000, 0x040189B8, PAYLOAD, 60);
+        mExporter = new SensorHistoryExporter(history, 100000);
+    }
+
+    @After
+    public void tearDown() {
+        mExporter.shutdown();
+    }
+
+    @Test
+    public void sensorIdsAtTheEdgesSelectOneSensor() throws Exception {
+        // 0xFFFFFFFF(-1) も 0 も実在のセンダーIDとして扱い, 全センサーにはならない
+        assertEquals(1L, (long) mExporter.submit(SensorHistoryExporter.FORMAT_CSV, 0xFFFFFFFF, 0, 10000,
+                new ByteArrayOutputStream(), null).get());
+        assertEquals(1L, (long) mExporter.submit(SensorHistoryExporter.FORMAT_CSV, 0, 0, 10000,
+                new ByteArrayOutputStream(), null).get());
+        assertEquals(3L, (long) mExporter.submitAll(SensorHistoryExporter.FORMAT_CSV, 0, 10000,
+                new ByteArrayOutputStream(), null).get());
+    }
+
+    @Test
+    public void listenerIsNotifiedOnExportThread() throws Exception {
+        final long[] records = new long[1];
+        final IOException[] error = new IOException[1];
+        final CountDownLatch finished = new CountDownLatch(1);
+        mExporter.submitAll(SensorHistoryExporter.FORMAT_NDJSON, 0, 10000, new ByteArrayOutputStream(),
+                new SensorHistoryExporter.IExportListener() {
+                    @Override
+                    public void onExportFinished(long count, IOException e) {
+                        records[0] = count;
+                        error[0] = e;
+                        finished.countDown();
+                    }
+                });
+
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        assertEquals(3, records[0]);
+        assertNull(error[0]);
+    }
+}
@@ -0,0 +1,113 @@
+package com.nissha.android.things.sample.data;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link SensorHistoryFile} buffering and rotation.
+ */
+
+public class SensorHistoryFileTest {
+
+    private static final int SENDER_ID = 0x040189B8;
+
+    private File mFile;
+
+    private SensorHistoryFile mHistoryFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("history", ".bin");
+        assertTrue(mFile.delete());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (mHistoryFile != null) {
+            mHistoryFile.close();
+            mHistoryFile.getRotatedFile().delete();
+            mHistoryFile.getGenerationFile().delete();
+        }
+        mFile.delete();
+    }
+
+    @Test
+    public void appendDoesNotWriteUntilFlush() throws IOException {
+        mHistoryFile = new SensorHistoryFile(mFile);
+        mHistoryFile.append(1000, SENDER_ID, 0, 60);
+        assertFalse(mFile.exists());
+
+        mHistoryFile.flush();
+        assertEquals(1, mHistoryFile.getRecordCount());
+    }
+
+    @Test
+    public void fileIsRotatedAtMaxRecords() throws IOException {
+        mHistoryFile = new SensorHistoryFile(mFile, 10);
+        for (int index = 0; index < 25; index++) {
+            mHistoryFile.append(1000 + index, SENDER_ID, index, 60);
+            mHistoryFile.flush();
+        }
+
+        // 20件目で2回目の切り替えが起き, 最初の10件は消える
+        assertEquals(10, mHistoryFile.getRotatedFile().length() / SensorHistoryFile.RECORD_SIZE);
+        assertEquals(5, mHistoryFile.getRecordCount());
+
+        final List<Integer> payloads = new ArrayList<>();
+        mHistoryFile.read(0, Long.MAX_VALUE, new SensorHistoryFile.IRecordListener() {
+            @Override
+            public boolean onRecord(long time, int senderId, int payload, int rssi) {
+                payloads.add(payload);
+                return true;
+            }
+        });
+        assertEquals(15, payloads.size());
+        for (int index = 0; index < payloads.size(); index++) {
+            assertEquals(10 + index, (int) payloads.get(index));
+        }
+    }
+
+    @Test
+    public void rangeReadKeepsOutOfOrderRecords() throws IOException {
+        mHistoryFile = new SensorHistoryFile(mFile);
+        // 解析スレッド間で前後したレコード(時刻 2000 は 2100 より後に追記された)
+        long[] times = {1000, 1500, 2100, 2000, 2600, 2400, 3000};
+        for (int index = 0; index < times.length; index++) {
+            mHistoryFile.append(times[index], SENDER_ID, index, 60);
+        }
+        mHistoryFile.flush();
+
+        final List<Long> read = new ArrayList<>();
+        mHistoryFile.read(2050, 2500, new SensorHistoryFile.IRecordListener() {
+            @Override
+            public boolean onRecord(long time, int senderId, int payload, int rssi) {
+                read.add(time);
+                return true;
+            }
+        });
+        assertEquals(2, read.size());
+        assertEquals(2100L, (long) read.get(0));
+        assertEquals(2400L, (long) read.get(1));
+
+        read.clear();
+        mHistoryFile.read(1900, 2050, new SensorHistoryFile.IRecordListener() {
+            @Override
+            public boolean onRecord(long time, int senderId, int payload, int rssi) {
+                read.add(time);
+                return true;
+            }
+        });
+        assertEquals(1, read.size());
+        assertEquals(2000L, (long) read.get(0));
+    }
+}
@@ -0,0 +1,61 @@
+package com.nissha.android.things.sample.data;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Unit tests for {@link SensorHistoryServer} request validation.
+ */
+
+public class SensorHistoryServerTest {
+
+    private SensorHistoryServer mServer;
+
+    @Before
+    public void setUp() throws IOException {
+        SensorHistory history = new SensorHistory(new SensorSampleRing(16), null);
+        history.add(1000, 0x040189B8, 0x50648008, 60);
+        mServer = new SensorHistoryServer(history, 0);
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+    }
+
+    @Test
+    public void invalidParametersAreRejected() throws IOException {
+        assertEquals("HTTP/1.1 200 OK", get("/history?sensor=040189B8&channel=2"));
+        assertEquals("HTTP/1.1 400 Bad Request", get("/history?sensor=040189B8&channel=3"));
+        assertEquals("HTTP/1.1 400 Bad Request", get("/history?sensor=040189B8&channel=-1"));
+        assertEquals("HTTP/1.1 400 Bad Request", get("/history?sensor=100000000"));
+        assertEquals("HTTP/1.1 400 Bad Request", get("/export?sensor=-1"));
+    }
+
+    /**
+     * @return ステータス行.
+     */
+    private String get(String target) throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), mServer.getLocalPort());
+        try {
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET " + target + " HTTP/1.1\r\n\r\n").getBytes("US-ASCII"));
+            out.flush();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+            return reader.readLine();
+        } finally {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.nissha.android.things.sample.data;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Unit tests for {@link SensorSampleRing#readLatest(int, long[], int[])}.
+ */
+
+public class SensorSampleRingTest {
+
+    private static final int CAPACITY = 64;
+
+    private static final int LATEST = 11;
+
+    @Test
+    public void readLatestMatchesFullScan() {
+        SensorSampleRing ring = new SensorSampleRing(CAPACITY);
+        Random random = new Random(1);
+        // センサーの入れ替わり(全件上書きされて表から消える)を含める
+        for (int count = 0; count < 10000; count++) {
+            int senderId = (count / 1000) * 100 + random.nextInt(count % 3 == 0 ? 40 : 4);
+            ring.add(count, senderId, count, 60);
+            if ((count % 97) == 0) {
+                for (int candidate = 0; candidate < 1000; candidate++) {
+                    assertLatest(ring, candidate);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void readLatestAfterRestore() {
+        SensorSampleRing ring = new SensorSampleRing(CAPACITY);
+        ring.add(1000, 1, 10, 60);
+        ring.add(1001, 2, 11, 60);
+
+        SampleBlock block = new SampleBlock(CAPACITY);
+        for (int index = 0; index < 20; index++) {
+            block.add(index, (index % 2) + 1, index, 60);
+        }
+        assertEquals(20, ring.restore(block));
+
+        assertLatest(ring, 1);
+        assertLatest(ring, 2);
+        long[] times = new long[LATEST];
+        int[] payloads = new int[LATEST];
+        assertEquals(LATEST, ring.readLatest(1, times, payloads));
+        assertEquals(10, payloads[0]);
+        assertEquals(18, payloads[1]);
+    }
+
+    /**
+     * 全件を走査した結果と一致することを確認する.
+     */
+    private static void assertLatest(SensorSampleRing ring, int senderId) {
+        long[] times = new long[LATEST];
+        int[] payloads = new int[LATEST];
+        int count = ring.readLatest(senderId, times, payloads);
+
+        SampleBlock all = new SampleBlock(CAPACITY);
+        ring.snapshot(all);
+        int expected = 0;
+        for (int index = all.size() - 1; (index >= 0) && (expected < LATEST); index--) {
+            if (all.getSenderId(index) == senderId) {
+                assertEquals(all.getTime(index), times[expected]);
+                assertEquals(all.getPayload(index), payloads[expected]);
+                expected++;
+            }
+        }
+        assertEquals(expected, count);
+    }
+}
@@ -0,0 +1,136 @@
+package com.nissha.android.things.sample.data;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link SensorStateTable} subscriptions and concurrent writers.
+ */
+
+public class SensorStateTableTest {
+
+    private static final int PAYLOAD = 0x50648008;
+
+    private static class Recorder implements SensorStateTable.ISensorStateListener {
+
+        final List<Integer> mSenderIds = new ArrayList<>();
+
+        @Override
+        public void onStateChanged(SensorState state) {
+            mSenderIds.add(state.mSenderId);
+        }
+    }
+
+    @Test
+    public void sensorZeroIsNotAllSensors() {
+        SensorStateTable table = new SensorStateTable(8);
+        Recorder zero = new Recorder();
+        Recorder all = new Recorder();
+        table.subscribe(0, 0, 0, zero);
+        table.subscribeAll(0, 0, all);
+
+        table.update(0x040189B8, 1000, PAYLOAD, 60);
+        table.update(0, 2000, PAYLOAD, 60);
+        table.update(0xFFFFFFFF, 3000, PAYLOAD, 60);
+
+        assertEquals(1, zero.mSenderIds.size());
+        assertEquals(0, (int) zero.mSenderIds.get(0));
+        assertEquals(3, all.mSenderIds.size());
+    }
+
+    @Test
+    public void concurrentWritersKeepSlotsConsistent() throws InterruptedException {
+        final int writers = 4;
+        final int sensorsPerWriter = 16;
+        final int updates = 2000;
+        final SensorStateTable table = new SensorStateTable(writers * sensorsPerWriter + 1);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger torn = new AtomicInteger();
+        final AtomicInteger rejected = new AtomicInteger();
+
+        List<Thread> threads = new ArrayList<>();
+        for (int writer = 0; writer < writers; writer++) {
+            final int base = writer * sensorsPerWriter;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    await(start);
+                    for (int index = 0; index < updates; index++) {
+                        // 各スレッド固有のセンサーと, 全スレッド共通のセンサー(-1)を更新する
+                        int senderId = base + (index % sensorsPerWriter);
+                        if (!table.update(senderId, index, index, index)
+                                || !table.update(-1, index, index, index)) {
+                            rejected.incrementAndGet();
+                        }
+                    }
+                }
+            }));
+        }
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                SensorState state = new SensorState();
+                await(start);
+                for (int index = 0; index < updates * writers; index++) {
+                    if (table.get(-1, state)
+                            && ((state.mPayload != state.mRSSI) || (state.mTime != state.mPayload))) {
+                        torn.incrementAndGet();
+                    }
+                }
+            }
+        });
+        threads.add(reader);
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(0, rejected.get());
+        assertEquals(0, torn.get());
+        assertEquals(writers * sensorsPerWriter + 1, table.size());
+        assertEquals(writers * updates, table.getSequence(-1));
+        long total = 0;
+        int[] senderIds = new int[writers * sensorsPerWriter + 1];
+        assertEquals(senderIds.length, table.getSenderIds(senderIds));
+        for (int senderId : senderIds) {
+            if (senderId != -1) {
+                total += table.getSequence(senderId);
+            }
+        }
+        assertEquals(writers * updates, total);
+    }
+
+    @Test
+    public void restoreKeepsNewerValue() {
+        SensorStateTable table = new SensorStateTable(8);
+        SensorState state = new SensorState();
+
+        assertTrue(table.restore(1, 1000, PAYLOAD, 60));
+        table.update(1, 3000, PAYLOAD, 70);
+        assertFalse(table.restore(1, 2000, PAYLOAD, 80));
+
+        assertTrue(table.get(1, state));
+        assertEquals(3000, state.mTime);
+        assertEquals(70, state.mRSSI);
+        assertEquals(2, state.mSequence);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.nissha.android.things.sample.decode;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link AnomalyDetector}.
+ */
+
+public class AnomalyDetectorTest {
+
+    private static final int SENDER_ID = 0x04000001;
+
+    private final AnomalyDetector mDetector = new AnomalyDetector(16);
+
+    private final Random mRandom = new Random(1);
+
+    @Test
+    public void steadyRoomIsOnlyAWarning() {
+        // 温湿度が変化しない部屋で600件(CO2濃度だけ揺らぐ)
+        int flat = 0;
+        for (int count = 0; count < 600; count++) {
+            int anomalies = mDetector.check(SENDER_ID, payload(80, 100 + mRandom.nextInt(3), 128));
+            assertFalse(AnomalyDetector.isExcluded(anomalies));
+            if (anomalies != 0) {
+                assertEquals(AnomalyDetector.FLAG_FLAT, AnomalyDetector.getFlags(anomalies, 1));
+                assertEquals(AnomalyDetector.FLAG_FLAT, AnomalyDetector.getFlags(anomalies, 2));
+                flat++;
+            }
+        }
+
+        assertEquals(600 - 240 + 1, flat);
+        assertEquals(0, mDetector.getAnomalyCount());
+        assertEquals(flat, mDetector.getWarningCount());
+    }
+
+    @Test
+    public void noiseIsNotAnAnomaly() {
+        for (int count = 0; count < 1000; count++) {
+            int anomalies = mDetector.check(SENDER_ID,
+                    payload(80 + mRandom.nextInt(5), 100 + mRandom.nextInt(5), 128 + mRandom.nextInt(3)));
+            assertEquals(0, anomalies);
+        }
+    }
+
+    @Test
+    public void detectsSpike() {
+        warmUp();
+        int anomalies = mDetector.check(SENDER_ID, payload(80, 140, 128));
+
+        assertEquals(AnomalyDetector.FLAG_SPIKE, AnomalyDetector.getFlags(anomalies, 0));
+        assertTrue(AnomalyDetector.isExcluded(anomalies));
+        assertEquals(1, mDetector.getAnomalyCount());
+    }
+
+    @Test
+    public void followsLevelShiftAfterRepeatedSpikes() {
+        warmUp();
+        assertTrue(AnomalyDetector.isExcluded(mDetector.check(SENDER_ID, payload(80, 140, 128))));
+        assertTrue(AnomalyDetector.isExcluded(mDetector.check(SENDER_ID, payload(80, 141, 128))));
+        // 外れ続けた値は新しい水準として受け入れる
+        assertEquals(0, mDetector.check(SENDER_ID, payload(80, 140, 128)));
+        assertEquals(0, mDetector.check(SENDER_ID, payload(80, 141, 128)));
+    }
+
+    @Test
+    public void detectsStuckValue() {
+        warmUp();
+        assertEquals(0, AnomalyDetector.getFlags(mDetector.check(SENDER_ID, payload(80, 100, 0)), 1)
+                & AnomalyDetector.FLAG_STUCK);
+        mDetector.check(SENDER_ID, payload(80, 100, 0));
+        int anomalies = mDetector.check(SENDER_ID, payload(80, 100, 0));
+
+        assertEquals(AnomalyDetector.FLAG_STUCK, AnomalyDetector.getFlags(anomalies, 1));
+        assertTrue(AnomalyDetector.isExcluded(anomalies));
+    }
+
+    @Test
+    public void detectsInconsistentHumidity() {
+        for (int count = 0; count < 20; count++) {
+            mDetector.check(SENDER_ID, payload(80, 100, 128));
+        }
+        // 湿度だけが8%変わる : 湿度のスパイク幅には届かないが絶対湿度が不自然に変わる
+        int anomalies = mDetector.check(SENDER_ID, payload(96, 100, 128));
+
+        assertEquals(0, AnomalyDetector.getFlags(anomalies, 2) & AnomalyDetector.FLAG_SPIKE);
+        assertEquals(AnomalyDetector.FLAG_CROSS, AnomalyDetector.getFlags(anomalies, 1));
+        assertEquals(AnomalyDetector.FLAG_CROSS, AnomalyDetector.getFlags(anomalies, 2));
+        assertTrue(AnomalyDetector.isExcluded(anomalies));
+    }
+
+    @Test
+    public void keepsSensorsApart() {
+        warmUp();
+        // 別のセンサーの値は平均に影響しない
+        assertEquals(0, mDetector.check(SENDER_ID + 1, payload(80, 200, 128)));
+        assertEquals(0, mDetector.check(SENDER_ID, payload(80, 100, 128)));
+    }
+
+    private void warmUp() {
+        for (int count = 0; count < 20; count++) {
+            mDetector.check(SENDER_ID, payload(80, 100 + (count % 2), 128));
+        }
+    }
+
+    /**
+     * A5-09-04 のペイロード(湿度・濃度・温度の生値).
+     */
+    private static int payload(int humidity, int concentration, int temperature) {
+        return (humidity << 24) | (concentration << 16) | (temperature << 8) | 0x08;
+    }
+}
@@ -0,0 +1,125 @@
+package com.nissha.android.things.sample.decode;
+
+import android.util.Log;
+
+import com.nissha.android.things.sample.enocean.A50904;
+import com.nissha.android.things.sample.enocean.EEP;
+
+import java.util.Locale;
+
+/**
+ * Measures decode throughput of {@link ShardedDecoder} from 1 to N shards.
+ * <p>
+ * {@link TelegramGenerator} で事前に生成したフレームを1スレッドから投入し,
+ * 全件の処理が終わるまでの件数/秒をシャード数ごとに計測する.
+ * 各テレグラムはA5-09-04の物理値への変換まで行う.
+ */
+
+public class ShardBenchmark {
+
+    private static final String TAG = ShardBenchmark.class.getSimpleName();
+
+    private ShardBenchmark() {
+    }
+
+    /**
+     * 計測結果.
+     */
+    public static class Result {
+
+        public int mShards;
+
+        public long mTelegrams;
+
+        public double mTelegramsPerSecond;
+
+        /**
+         * 1シャードでの処理速度との比.
+         */
+        public double mSpeedup;
+
+        public long mOverflows;
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d shards : %.0f telegrams/s (x%.2f), %d overflows",
+                    mShards, mTelegramsPerSecond, mSpeedup, mOverflows);
+        }
+    }
+
+    /**
+     * シャード数を1からmaxShardsまで変えて計測する.
+     *
+     * @param maxShards 最大シャード数(0以下の場合はコア数).
+     * @param senders   センサー数.
+     * @param telegrams 1回あたりのテレグラム数.
+     * @return 計測結果.
+     */
+    public static Result[] run(int maxShards, int senders, int telegrams) {
+        if (maxShards <= 0) {
+            maxShards = Runtime.getRuntime().availableProcessors();
+        }
+        TelegramGenerator generator = new TelegramGenerator(senders, 1);
+        byte[][] frames = generator.next(telegrams);
+
+        // デコーダーはアプリ全体の許可リストを使うため, 計測後に登録を解除する
+        generator.register(EEP.getSenderProfiles());
+        try {
+            // JITのウォームアップ
+            run(1, senders, frames);
+
+            Result[] results = new Result[maxShards];
+            for (int shards = 1; shards <= maxShards; shards++) {
+                results[shards - 1] = run(shards, senders, frames);
+                results[shards - 1].mSpeedup =
+                        results[shards - 1].mTelegramsPerSecond / results[0].mTelegramsPerSecond;
+                Log.i(TAG, results[shards - 1].toString());
+            }
+            return results;
+        } finally {
+            generator.unregister(EEP.getSenderProfiles());
+        }
+    }
+
+    private static Result run(int shards, int senders, byte[][] frames) {
+        final double[] sink = new double[1];
+        ShardedDecoder decoder = new ShardedDecoder(shards, 1024, senders, 0,
+                new ShardedDecoder.IDecodeListener() {
+                    @Override
+                    public void onDecoded(int shard, byte[] frame, long receivedNanos, EEP eep, int rssi, int anomalies) {
+                        int payload = eep.getPayloadWord();
+                        double value = A50904.getConcentration((payload >>> 16) & 0xFF)
+                                + A50904.getHumidity(payload >>> 24)
+                                + A50904.getTemperature((payload >>> 8) & 0xFF);
+                        if (value < 0) {
+                            sink[0] = value;
+                        }
+                    }
+
+                    @Override
+                    public void onDropped(int shard, byte[] frame, long receivedNanos, int reason) {
+                    }
+                });
+        decoder.start();
+
+        long start = System.nanoTime();
+        for (byte[] frame : frames) {
+            // キューが一杯の場合は空くまで待つ(計測では破棄しない)
+            while (!decoder.submit(frame, System.nanoTime())) {
+                Thread.yield();
+            }
+        }
+        while (decoder.getProcessedCount() < frames.length) {
+            Thread.yield();
+        }
+        long elapsed = System.nanoTime() - start;
+        decoder.stop();
+
+        Result result = new Result();
+        result.mShards = shards;
+        result.mTelegrams = frames.length;
+        result.mTelegramsPerSecond = frames.length / (elapsed / 1e9);
+        result.mOverflows = decoder.getOverflowCount();
+        return result;
+    }
+}
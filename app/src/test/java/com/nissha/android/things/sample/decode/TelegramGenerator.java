@@ -0,0 +1,104 @@
+package com.nissha.android.things.sample.decode;
+
+import com.nissha.android.things.sample.enocean.ESP3;
+import com.nissha.android.things.sample.enocean.SenderProfiles;
+
+import java.util.Random;
+
+/**
+ * Synthetic A5-09-04 telegram generator for many senders.
+ * <p>
+ * センサーを順に巡回してERP2フレームを生成する. 解析させる場合は {@link #register(SenderProfiles)} で
+ * 登録し, 終わったら {@link #unregister(SenderProfiles)} で登録を解除すること.
+ */
+
+public class TelegramGenerator {
+
+    /**
+     * 生成するセンダーIDの先頭.
+     */
+    public static final int BASE_SENDER_ID = 0x05000000;
+
+    private final int[] mSenderIds;
+
+    private final int[] mCounters;
+
+    private final Random mRandom;
+
+    private final byte[] mPayload = new byte[4];
+
+    private int mNext;
+
+    /**
+     * コンストラクタ.
+     *
+     * @param senderCount センサー数.
+     * @param seed        乱数の種.
+     */
+    public TelegramGenerator(int senderCount, long seed) {
+        mSenderIds = new int[senderCount];
+        mCounters = new int[senderCount];
+        mRandom = new Random(seed);
+        for (int index = 0; index < senderCount; index++) {
+            mSenderIds[index] = BASE_SENDER_ID + index;
+        }
+    }
+
+    /**
+     * 生成するセンサーを A5-09-04 として登録する.
+     *
+     * @param profiles 登録先.
+     */
+    public void register(SenderProfiles profiles) {
+        for (int senderId : mSenderIds) {
+            profiles.register(senderId, SenderProfiles.EEP_A50904);
+        }
+    }
+
+    /**
+     * 生成するセンサーの登録を解除する.
+     *
+     * @param profiles 登録先.
+     */
+    public void unregister(SenderProfiles profiles) {
+        for (int senderId : mSenderIds) {
+            profiles.unregister(senderId);
+        }
+    }
+
+    public int getSenderId(int index) {
+        return mSenderIds[index];
+    }
+
+    /**
+     * 次のテレグラムを生成する.
+     *
+     * @return ESP3フレーム.
+     */
+    public byte[] next() {
+        int index = mNext;
+        mNext = (mNext + 1) % mSenderIds.length;
+
+        // 湿度・CO2濃度・温度は乱数, DB0 にセンサーごとの連番を入れて重複と区別する
+        int counter = mCounters[index]++;
+        mPayload[0] = (byte) mRandom.nextInt(201);
+        mPayload[1] = (byte) mRandom.nextInt(256);
+        mPayload[2] = (byte) mRandom.nextInt(251);
+        mPayload[3] = (byte) ((counter << 4) | 0x08);
+        return ESP3.buildERP2Frame(0x02, mSenderIds[index], mPayload, 40 + mRandom.nextInt(50));
+    }
+
+    /**
+     * テレグラムをまとめて生成する.
+     *
+     * @param count 件数.
+     * @return ESP3フレーム.
+     */
+    public byte[][] next(int count) {
+        byte[][] frames = new byte[count][];
+        for (int index = 0; index < count; index++) {
+            frames[index] = next();
+        }
+        return frames;
+    }
+}
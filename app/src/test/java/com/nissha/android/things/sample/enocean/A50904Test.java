@@ -0,0 +1,53 @@
+package com.nissha.android.things.sample.enocean;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+
+/**
+ * Unit tests for {@link A50904}.
+ */
+
+public class A50904Test {
+
+    private static final byte[] SENDER_ID = {0x04, 0x01, (byte) 0x89, (byte) 0xB8};
+
+    @Test
+    public void analyzeFillsSensorData() {
+        // 湿度 40%, 濃度 1000ppm, 温度 25.6℃
+        A50904 eep = new A50904(new byte[]{80, 100, (byte) 128, 0x08}, SENDER_ID);
+
+        CO2Sensor sensor = (CO2Sensor) eep.analyze(null, -60, 1234L);
+        CO2SensorData data = sensor.mSensorData;
+
+        assertEquals("040189B8", data.mSensorId);
+        assertEquals(0x040189B8, data.mSenderId);
+        assertEquals(1234L, data.mTime);
+        assertEquals(40.0, data.mHumidity, 1e-9);
+        assertEquals(1000, data.mConcentration);
+        assertEquals(25.6, data.mTemperature, 1e-9);
+        assertEquals(-60, data.mRSSI);
+    }
+
+    @Test
+    public void analyzeReturnsNewModuleEachTime() {
+        A50904 eep = new A50904(new byte[]{80, 100, (byte) 128, 0x08}, SENDER_ID);
+
+        CO2Sensor first = (CO2Sensor) eep.analyze(null, -60, 1L);
+        CO2Sensor second = (CO2Sensor) eep.analyze(null, -70, 2L);
+
+        assertNotSame(first.mSensorData, second.mSensorData);
+        assertEquals(-60, first.mSensorData.mRSSI);
+        assertEquals(1L, first.mSensorData.mTime);
+    }
+
+    @Test
+    public void payloadWordMatchesPayload() {
+        A50904 eep = new A50904(new byte[]{80, 100, (byte) 128, 0x08}, SENDER_ID);
+
+        assertEquals(0x50648008, eep.getPayloadWord());
+        assertEquals(0x040189B8, eep.getSenderIdValue());
+        assertEquals("040189B8", eep.getSensorID());
+    }
+}
@@ -0,0 +1,163 @@
+package com.nissha.android.things.sample.enocean;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Unit tests for {@link ChainReassembler}.
+ */
+
+public class ChainReassemblerTest {
+
+    private static final long TIMEOUT_MS = 100;
+
+    private static final long MS = 1000000L;
+
+    private final List<Integer> mSenders = new ArrayList<>();
+
+    private final List<byte[]> mMessages = new ArrayList<>();
+
+    private final ChainReassembler.IChainListener mListener = new ChainReassembler.IChainListener() {
+        @Override
+        public void onMessage(int senderId, byte[] data, int offset, int length) {
+            byte[] message = new byte[length];
+            System.arraycopy(data, offset, message, 0, length);
+            mSenders.add(senderId);
+            mMessages.add(message);
+        }
+    };
+
+    @Test
+    public void reassemblesInterleavedSenders() {
+        ChainReassembler reassembler = new ChainReassembler(4, 64, TIMEOUT_MS, mListener);
+        byte[] first = message(10, 0x11);
+        byte[] second = message(7, 0x22);
+        byte[][] a = split(1, first, 4);
+        byte[][] b = split(2, second, 4);
+
+        assertEquals(ChainReassembler.RESULT_PENDING, feed(reassembler, 100, a[0], 0));
+        assertEquals(ChainReassembler.RESULT_PENDING, feed(reassembler, 200, b[0], 0));
+        assertEquals(ChainReassembler.RESULT_PENDING, feed(reassembler, 100, a[1], 0));
+        assertEquals(ChainReassembler.RESULT_COMPLETED, feed(reassembler, 200, b[1], 0));
+        assertEquals(ChainReassembler.RESULT_COMPLETED, feed(reassembler, 100, a[2], 0));
+
+        assertEquals(2, mMessages.size());
+        assertEquals(200, (int) mSenders.get(0));
+        assertArrayEquals(second, mMessages.get(0));
+        assertEquals(100, (int) mSenders.get(1));
+        assertArrayEquals(first, mMessages.get(1));
+        assertEquals(0, reassembler.getPendingCount());
+    }
+
+    @Test
+    public void ignoresRepeatedFragments() {
+        ChainReassembler reassembler = new ChainReassembler(4, 64, TIMEOUT_MS, mListener);
+        byte[] data = message(10, 0x11);
+        byte[][] fragments = split(0, data, 4);
+
+        feed(reassembler, 100, fragments[0], 0);
+        assertEquals(ChainReassembler.RESULT_REPEATED, feed(reassembler, 100, fragments[0], 0));
+        feed(reassembler, 100, fragments[1], 0);
+        assertEquals(ChainReassembler.RESULT_REPEATED, feed(reassembler, 100, fragments[1], 0));
+        assertEquals(ChainReassembler.RESULT_COMPLETED, feed(reassembler, 100, fragments[2], 0));
+        assertArrayEquals(data, mMessages.get(0));
+    }
+
+    @Test
+    public void dropsChainOnMissingFragment() {
+        ChainReassembler reassembler = new ChainReassembler(4, 64, TIMEOUT_MS, mListener);
+        byte[][] fragments = split(0, message(10, 0x11), 4);
+
+        feed(reassembler, 100, fragments[0], 0);
+        assertEquals(ChainReassembler.RESULT_ERROR, feed(reassembler, 100, fragments[2], 0));
+        assertEquals(ChainReassembler.RESULT_ERROR, feed(reassembler, 100, fragments[1], 0));
+        assertEquals(0, mMessages.size());
+        assertEquals(0, reassembler.getPendingCount());
+    }
+
+    @Test
+    public void expiresIncompleteChain() {
+        ChainReassembler reassembler = new ChainReassembler(4, 64, TIMEOUT_MS, mListener);
+        byte[][] fragments = split(0, message(10, 0x11), 4);
+
+        feed(reassembler, 100, fragments[0], 0);
+        reassembler.expire((TIMEOUT_MS - 1) * MS);
+        assertEquals(1, reassembler.getPendingCount());
+        reassembler.expire(TIMEOUT_MS * MS);
+        assertEquals(0, reassembler.getPendingCount());
+        assertEquals(1, reassembler.getTimedOutCount());
+
+        // タイムアウト後の続きの断片は先頭が無いので不正
+        assertEquals(ChainReassembler.RESULT_ERROR, feed(reassembler, 100, fragments[1], TIMEOUT_MS * MS));
+        assertEquals(0, mMessages.size());
+    }
+
+    @Test
+    public void evictsOldestChainWhenSlotsAreFull() {
+        ChainReassembler reassembler = new ChainReassembler(2, 64, TIMEOUT_MS, mListener);
+        byte[][] a = split(0, message(10, 0x11), 4);
+        byte[][] b = split(0, message(10, 0x22), 4);
+        byte[][] c = split(0, message(10, 0x33), 4);
+
+        feed(reassembler, 100, a[0], 1 * MS);
+        feed(reassembler, 200, b[0], 2 * MS);
+        feed(reassembler, 300, c[0], 3 * MS);
+
+        assertEquals(1, reassembler.getEvictedCount());
+        assertEquals(2, reassembler.getPendingCount());
+        assertEquals(ChainReassembler.RESULT_ERROR, feed(reassembler, 100, a[1], 3 * MS));
+        feed(reassembler, 300, c[1], 3 * MS);
+        assertEquals(ChainReassembler.RESULT_COMPLETED, feed(reassembler, 300, c[2], 3 * MS));
+        assertEquals(300, (int) mSenders.get(0));
+    }
+
+    @Test
+    public void rejectsTooLongChain() {
+        ChainReassembler reassembler = new ChainReassembler(2, 8, TIMEOUT_MS, mListener);
+        byte[][] fragments = split(0, message(10, 0x11), 4);
+
+        assertEquals(ChainReassembler.RESULT_ERROR, feed(reassembler, 100, fragments[0], 0));
+        assertEquals(1, reassembler.getErrorCount());
+    }
+
+    private static int feed(ChainReassembler reassembler, int senderId, byte[] fragment, long nowNanos) {
+        return reassembler.feed(senderId, fragment, 0, fragment.length, nowNanos);
+    }
+
+    private static byte[] message(int length, int seed) {
+        byte[] data = new byte[length];
+        for (int index = 0; index < length; index++) {
+            data[index] = (byte) (seed + index);
+        }
+        return data;
+    }
+
+    /**
+     * 結合データを断片(SEQ/IDX + データ)に分ける. 先頭の断片には結合後の長さが入る.
+     */
+    private static byte[][] split(int sequence, byte[] data, int chunk) {
+        List<byte[]> fragments = new ArrayList<>();
+        int pos = 0;
+        int index = 0;
+        while (pos < data.length) {
+            int header = (index == 0) ? 3 : 1;
+            int count = Math.min(chunk, data.length - pos);
+            byte[] fragment = new byte[header + count];
+            fragment[0] = (byte) ((sequence << 6) | index);
+            if (index == 0) {
+                fragment[1] = (byte) (data.length >> 8);
+                fragment[2] = (byte) data.length;
+            }
+            System.arraycopy(data, pos, fragment, header, count);
+            fragments.add(fragment);
+            pos += count;
+            index++;
+        }
+        return fragments.toArray(new byte[fragments.size()][]);
+    }
+}
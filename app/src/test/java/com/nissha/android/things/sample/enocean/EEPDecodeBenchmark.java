@@ -0,0 +1,141 @@
+package com.nissha.android.things.sample.enocean;
+
+import android.util.Log;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Compares {@link EEPDecoder} with naive shift-and-mask decoding over the whole {@link EEPCatalog}.
+ * <p>
+ * 各プロファイルに乱数のペイロードを与え, 両方の方式で全フィールドの生値を求める.
+ * 結果が一致することを確認したうえで, 1テレグラムあたりの処理時間を比較する.
+ */
+
+public class EEPDecodeBenchmark {
+
+    private static final String TAG = EEPDecodeBenchmark.class.getSimpleName();
+
+    private EEPDecodeBenchmark() {
+    }
+
+    /**
+     * 計測結果.
+     */
+    public static class Result {
+
+        public int mProfiles;
+
+        public long mTelegrams;
+
+        public double mDecoderNanos;
+
+        public double mNaiveNanos;
+
+        /**
+         * 生値が一致しなかったフィールド数.
+         */
+        public long mMismatches;
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d profiles, %d telegrams : decoder %.1fns, naive %.1fns (x%.2f), %d mismatches",
+                    mProfiles, mTelegrams, mDecoderNanos, mNaiveNanos, mNaiveNanos / mDecoderNanos, mMismatches);
+        }
+    }
+
+    /**
+     * 計測する.
+     *
+     * @param telegrams 1プロファイルあたりのテレグラム数.
+     * @param rounds    計測回数(最初の1回はウォームアップとして除く).
+     * @return 計測結果.
+     */
+    public static Result run(int telegrams, int rounds) {
+        List<String> eeps = EEPCatalog.getEEPs();
+        int profiles = eeps.size();
+        EEPDecoder[] decoders = new EEPDecoder[profiles];
+        EEPRecord[] records = new EEPRecord[profiles];
+        int[][] naive = new int[profiles][];
+        for (int index = 0; index < profiles; index++) {
+            decoders[index] = EEPCatalog.getDecoder(eeps.get(index));
+            records[index] = decoders[index].newRecord();
+            naive[index] = new int[decoders[index].getProfile().getFieldCount()];
+        }
+
+        // ERP2ヘッダー分のオフセットを空けたフレーム相当のバッファにペイロードを置く
+        final int offset = 11;
+        Random random = new Random(1);
+        byte[][] frames = new byte[telegrams][];
+        for (int index = 0; index < telegrams; index++) {
+            frames[index] = new byte[offset + 16];
+            random.nextBytes(frames[index]);
+        }
+
+        Result result = new Result();
+        result.mProfiles = profiles;
+        long decoderNanos = 0;
+        long naiveNanos = 0;
+        long sink = 0;
+        for (int round = 0; round <= rounds; round++) {
+            long start = System.nanoTime();
+            for (byte[] frame : frames) {
+                for (int index = 0; index < profiles; index++) {
+                    EEPDecoder decoder = decoders[index];
+                    decoder.decode(frame, offset, decoder.getPayloadLength(), records[index]);
+                    sink += records[index].getRaw(0);
+                }
+            }
+            long decoderElapsed = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (byte[] frame : frames) {
+                for (int index = 0; index < profiles; index++) {
+                    decodeNaive(decoders[index].getProfile(), frame, offset, naive[index]);
+                    sink += naive[index][0];
+                }
+            }
+            long naiveElapsed = System.nanoTime() - start;
+
+            if (round > 0) {
+                decoderNanos += decoderElapsed;
+                naiveNanos += naiveElapsed;
+            }
+        }
+
+        // 結果の比較
+        for (byte[] frame : frames) {
+            for (int index = 0; index < profiles; index++) {
+                decoders[index].decode(frame, offset, decoders[index].getPayloadLength(), records[index]);
+                decodeNaive(decoders[index].getProfile(), frame, offset, naive[index]);
+                for (int field = 0; field < naive[index].length; field++) {
+                    if (records[index].getRaw(field) != naive[index][field]) {
+                        result.mMismatches++;
+                    }
+                }
+            }
+        }
+
+        result.mTelegrams = (long) telegrams * profiles * Math.max(rounds, 1);
+        result.mDecoderNanos = decoderNanos / (double) result.mTelegrams;
+        result.mNaiveNanos = naiveNanos / (double) result.mTelegrams;
+        Log.i(TAG, result + " (" + (sink & 1) + ")");
+        return result;
+    }
+
+    /**
+     * フィールドごとにビット位置を計算し, 1bitずつ取り出す素朴な実装(比較用).
+     */
+    private static void decodeNaive(EEPProfile profile, byte[] data, int offset, int[] out) {
+        for (int index = 0; index < profile.getFieldCount(); index++) {
+            EEPField field = profile.getField(index);
+            int value = 0;
+            for (int bit = field.getBitOffset(); bit < (field.getBitOffset() + field.getBitLength()); bit++) {
+                int b = data[offset + (bit >> 3)] & 0xFF;
+                value = (value << 1) | ((b >> (7 - (bit & 0x07))) & 0x01);
+            }
+            out[index] = value;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.nissha.android.things.sample.enocean;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Unit tests for {@link ESP3}.
+ */
+
+public class ESP3Test {
+
+    @Test
+    public void crc8MatchesCheckValue() {
+        // CRC-8 (多項式 0x07, 初期値 0) のチェック値
+        byte[] data = "123456789".getBytes();
+        assertEquals(0xF4, ESP3.crc8(data, 0, data.length));
+    }
+
+    @Test
+    public void crc8UsesOffsetAndLength() {
+        byte[] data = "xx123456789yy".getBytes();
+        assertEquals(0xF4, ESP3.crc8(data, 2, 9));
+        assertEquals(0, ESP3.crc8(data, 2, 0));
+    }
+
+    @Test
+    public void encodeWritesHeaderAndDataCrc() {
+        byte[] data = {0x01, 0x02, 0x03};
+        byte[] opt = {0x04};
+        byte[] frame = new byte[ESP3.getFrameLength(data.length, opt.length)];
+
+        int length = ESP3.encode(ESP3.PACKET_TYPE_COMMON_COMMAND, data, data.length, opt, opt.length, frame, 0);
+
+        assertEquals(frame.length, length);
+        assertEquals(EnOceanMessage.SYNC_BYTE, frame[0]);
+        assertEquals(data.length, ESP3.getDataLength(frame));
+        assertEquals(opt.length, ESP3.getOptionalLength(frame));
+        assertEquals(ESP3.PACKET_TYPE_COMMON_COMMAND, ESP3.getPacketType(frame));
+        assertEquals(ESP3.crc8(frame, 1, 4), frame[5] & 0xFF);
+        assertEquals(ESP3.crc8(frame, ESP3.HEADER_LEN, 4), frame[length - 1] & 0xFF);
+    }
+}
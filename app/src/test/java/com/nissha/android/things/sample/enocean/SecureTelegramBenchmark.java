@@ -0,0 +1,127 @@
+package com.nissha.android.things.sample.enocean;
+
+import android.util.Log;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Measures verification and decryption cost of secure telegrams across many sensors.
+ * <p>
+ * センサーごとに鍵を登録し, センサーを巡回しながら VAES + CMAC(4byte) のテレグラムを検証・復号する.
+ * ローリングコードを送信する場合と, 受信側で探索する場合(前回値から数個先)の両方を計測する.
+ */
+
+public class SecureTelegramBenchmark {
+
+    private static final String TAG = SecureTelegramBenchmark.class.getSimpleName();
+
+    /**
+     * ローリングコードを送信しない場合に, センサー側で進める間隔の最大値(取りこぼしの再現).
+     */
+    private static final int MAX_RLC_SKIP = 4;
+
+    private SecureTelegramBenchmark() {
+    }
+
+    /**
+     * 計測結果.
+     */
+    public static class Result {
+
+        public int mSensors;
+
+        public long mTelegrams;
+
+        /**
+         * ローリングコードを送信する場合の1テレグラムあたりの処理時間.
+         */
+        public double mTransmittedNanos;
+
+        /**
+         * ローリングコードを探索する場合の1テレグラムあたりの処理時間.
+         */
+        public double mSearchedNanos;
+
+        /**
+         * 検証に失敗した件数・平文が一致しなかった件数.
+         */
+        public long mFailures;
+
+        public long mMismatches;
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d sensors, %d telegrams : RLC sent %.0fns, RLC searched %.0fns, %d failures, %d mismatches",
+                    mSensors, mTelegrams, mTransmittedNanos, mSearchedNanos, mFailures, mMismatches);
+        }
+    }
+
+    /**
+     * 計測する.
+     *
+     * @param sensors   センサー数.
+     * @param telegrams 1センサーあたりのテレグラム数.
+     * @return 計測結果.
+     */
+    public static Result run(int sensors, int telegrams) {
+        Result result = new Result();
+        result.mSensors = sensors;
+        result.mTelegrams = (long) sensors * telegrams;
+
+        int slfSent = SecureSensorTable.SLF_RLC_24 | SecureSensorTable.SLF_RLC_TX
+                | SecureSensorTable.SLF_MAC_4 | SecureSensorTable.SLF_ENC_VAES;
+        int slfSearched = SecureSensorTable.SLF_RLC_24 | SecureSensorTable.SLF_MAC_4 | SecureSensorTable.SLF_ENC_VAES;
+
+        result.mTransmittedNanos = measure(sensors, telegrams, slfSent, result) / (double) result.mTelegrams;
+        result.mSearchedNanos = measure(sensors, telegrams, slfSearched, result) / (double) result.mTelegrams;
+        Log.i(TAG, result.toString());
+        return result;
+    }
+
+    private static long measure(int sensors, int telegrams, int slf, Result result) {
+        Random random = new Random(1);
+        SecureSensorTable table = new SecureSensorTable(sensors);
+        byte[] key = new byte[AES128.BLOCK_SIZE];
+        for (int index = 0; index < sensors; index++) {
+            random.nextBytes(key);
+            table.register(index + 1, key, slf, 0, SecureSensorTable.DEFAULT_RLC_WINDOW);
+        }
+
+        // センサーを巡回する順にテレグラムを作る
+        int count = sensors * telegrams;
+        byte[][] secure = new byte[count][];
+        int[] lengths = new int[count];
+        byte[][] plains = new byte[count][];
+        long[] rollingCodes = new long[sensors];
+        byte[] buf = new byte[SecureSensorTable.MAX_DATA_LEN + 8];
+        for (int index = 0; index < count; index++) {
+            int sensor = index % sensors;
+            rollingCodes[sensor] += 1 + random.nextInt(MAX_RLC_SKIP);
+            plains[index] = new byte[4];
+            random.nextBytes(plains[index]);
+            lengths[index] = table.wrap(sensor + 1, SecureSensorTable.RORG_SEC, plains[index], plains[index].length,
+                    rollingCodes[sensor], buf);
+            secure[index] = new byte[lengths[index]];
+            System.arraycopy(buf, 0, secure[index], 0, lengths[index]);
+        }
+
+        byte[] out = new byte[SecureSensorTable.MAX_DATA_LEN];
+        long start = System.nanoTime();
+        for (int index = 0; index < count; index++) {
+            int plainLen = table.unwrap((index % sensors) + 1, SecureSensorTable.RORG_SEC,
+                    secure[index], 0, lengths[index], out);
+            if (plainLen < 0) {
+                result.mFailures++;
+                continue;
+            }
+            for (int pos = 0; pos < plainLen; pos++) {
+                if (out[pos] != plains[index][pos]) {
+                    result.mMismatches++;
+                    break;
+                }
+            }
+        }
+        return System.nanoTime() - start;
+    }
+}
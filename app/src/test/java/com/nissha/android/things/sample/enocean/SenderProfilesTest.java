@@ -0,0 +1,58 @@
+package com.nissha.android.things.sample.enocean;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link SenderProfiles} and {@link EEP#getEEP(byte[], SenderProfiles)}.
+ */
+
+public class SenderProfilesTest {
+
+    private static final int SENDER_ID = 0x05000001;
+
+    private static final byte[] PAYLOAD = {0x50, 0x64, (byte) 0x80, 0x08};
+
+    @Test
+    public void decodesOnlySendersWithProfile() {
+        SenderProfiles profiles = new SenderProfiles();
+        byte[] frame = ESP3.buildERP2Frame(0x02, SENDER_ID, PAYLOAD, 60);
+
+        assertNull(EEP.getEEP(frame, profiles));
+        assertEquals(1, profiles.getFilter().getRejectedCount());
+
+        // 許可リストにだけ登録したセンサーは A5-09-04 として解析しない
+        profiles.register(SENDER_ID, null);
+        assertTrue(profiles.getFilter().contains(SENDER_ID));
+        assertNull(profiles.getEEP(SENDER_ID));
+        assertNull(EEP.getEEP(frame, profiles));
+
+        profiles.register(SENDER_ID, SenderProfiles.EEP_A50904);
+        EEP eep = EEP.getEEP(frame, profiles);
+        assertTrue(eep instanceof A50904);
+        assertEquals(SENDER_ID, eep.getSenderIdValue());
+        assertEquals(0x50648008, eep.getPayloadWord());
+
+        profiles.unregister(SENDER_ID);
+        assertFalse(profiles.getFilter().contains(SENDER_ID));
+        assertNull(EEP.getEEP(frame, profiles));
+    }
+
+    @Test
+    public void instancesDoNotShareRegistrations() {
+        SenderProfiles profiles = new SenderProfiles();
+        profiles.register(SENDER_ID, SenderProfiles.EEP_A50904);
+
+        assertFalse(EEP.getSenderFilter().contains(SENDER_ID));
+        assertNull(EEP.getEEP(ESP3.buildERP2Frame(0x02, SENDER_ID, PAYLOAD, 60)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnsupportedProfile() {
+        new SenderProfiles().register(SENDER_ID, "F6-02-01");
+    }
+}
@@ -0,0 +1,178 @@
+package com.nissha.android.things.sample.stream;
+
+import android.util.Log;
+
+import com.nissha.android.things.sample.enocean.A50904;
+import com.nissha.android.things.sample.enocean.EEP;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+/**
+ * Compares bytes allocated per telegram between the previous sample publishing and the pooled one.
+ * <p>
+ * 従来の処理(受信データを毎回生成し, ログ文字列も毎回生成)と, プールから取得して購読者が手放す処理
+ * (ログ文字列はログが有効な場合のみ生成)を同じEEPに対して実行し, 1テレグラムあたりの生成バイト数と
+ * 処理時間を比較する. 購読者(最新のみ)への配信は呼び出し元のスレッドで行う.
+ * 生成バイト数は com.sun.management.ThreadMXBean のスレッド単位の計測を使うため, JVM上で実行できる.
+ */
+
+public class SampleAllocationBenchmark {
+
+    private static final String TAG = SampleAllocationBenchmark.class.getSimpleName();
+
+    private SampleAllocationBenchmark() {
+    }
+
+    /**
+     * 計測結果.
+     */
+    public static class Result {
+
+        public long mTelegrams;
+
+        public double mLegacyBytes;
+
+        public double mLegacyNanos;
+
+        public double mPooledBytes;
+
+        public double mPooledNanos;
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d telegrams : legacy %.1fB %.0fns, pooled %.1fB %.0fns",
+                    mTelegrams, mLegacyBytes, mLegacyNanos, mPooledBytes, mPooledNanos);
+        }
+    }
+
+    /**
+     * 計測する.
+     *
+     * @param telegrams テレグラム数.
+     * @param rounds    計測回数(最初の1回はウォームアップとして除く).
+     * @return 計測結果.
+     * @throws UnsupportedOperationException スレッド単位の生成バイト数を計測できないJVM.
+     */
+    public static Result run(int telegrams, int rounds) {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            throw new UnsupportedOperationException("thread allocation counters are not available.");
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        threads.setThreadAllocatedMemoryEnabled(true);
+        long threadId = Thread.currentThread().getId();
+
+        Random random = new Random(1);
+        EEP[] eeps = new EEP[telegrams];
+        byte[] payload = new byte[4];
+        byte[] senderId = new byte[4];
+        for (int index = 0; index < telegrams; index++) {
+            random.nextBytes(payload);
+            random.nextBytes(senderId);
+            eeps[index] = new A50904(payload, senderId);
+        }
+
+        Executor direct = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+        final long[] sink = new long[1];
+        StreamPublisher<SensorSample> legacyStream = new StreamPublisher<>();
+        legacyStream.subscribe(new Sink(sink, false), StreamPublisher.MODE_LATEST, 0, direct);
+        StreamPublisher<SensorSample> pooledStream = new StreamPublisher<>();
+        pooledStream.subscribe(new Sink(sink, true), StreamPublisher.MODE_LATEST, 0, direct);
+
+        Result result = new Result();
+        result.mTelegrams = (long) telegrams * Math.max(rounds, 1);
+        long[] legacy = new long[2];
+        long[] pooled = new long[2];
+        for (int round = 0; round <= rounds; round++) {
+            long[] out = (round > 0) ? legacy : new long[2];
+            long bytes = threads.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            for (int index = 0; index < telegrams; index++) {
+                sink[0] += runLegacy(legacyStream, eeps[index], index);
+            }
+            out[1] += System.nanoTime() - start;
+            out[0] += threads.getThreadAllocatedBytes(threadId) - bytes;
+
+            out = (round > 0) ? pooled : new long[2];
+            bytes = threads.getThreadAllocatedBytes(threadId);
+            start = System.nanoTime();
+            for (int index = 0; index < telegrams; index++) {
+                sink[0] += runPooled(pooledStream, eeps[index], index);
+            }
+            out[1] += System.nanoTime() - start;
+            out[0] += threads.getThreadAllocatedBytes(threadId) - bytes;
+        }
+
+        result.mLegacyBytes = legacy[0] / (double) result.mTelegrams;
+        result.mLegacyNanos = legacy[1] / (double) result.mTelegrams;
+        result.mPooledBytes = pooled[0] / (double) result.mTelegrams;
+        result.mPooledNanos = pooled[1] / (double) result.mTelegrams;
+        Log.i(TAG, result + " (" + (sink[0] & 1) + ")");
+        return result;
+    }
+
+    /**
+     * 従来の処理(比較用). 受信データを毎回生成し, ログが無効でもログ文字列を生成する.
+     */
+    private static int runLegacy(StreamPublisher<SensorSample> stream, EEP eep, long sequence) {
+        String message = "received : " + eep.getSensorID() + " #" + sequence;
+        stream.publish(new SensorSample(sequence, eep.getSenderIdValue(), eep.getPayloadWord(), -60));
+        return message.length();
+    }
+
+    private static int runPooled(StreamPublisher<SensorSample> stream, EEP eep, long sequence) {
+        int length = 0;
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            String message = "received : " + eep.getSensorID() + " #" + sequence;
+            length = message.length();
+        }
+        SensorSample sample = SensorSample.obtain(sequence, eep.getSenderIdValue(), eep.getPayloadWord(), -60);
+        stream.publish(sample);
+        sample.release();
+        return length;
+    }
+
+    /**
+     * 受け取った値を集計する購読者(pooled の場合は受け取った要素を手放す).
+     */
+    private static class Sink implements ISubscriber<SensorSample> {
+
+        private final long[] mSink;
+
+        private final boolean mRelease;
+
+        Sink(long[] sink, boolean release) {
+            mSink = sink;
+            mRelease = release;
+        }
+
+        @Override
+        public void onSubscribe(ISubscription subscription) {
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(SensorSample item) {
+            mSink[0] += item.mPayload;
+            if (mRelease) {
+                item.release();
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+        }
+
+        @Override
+        public void onComplete() {
+        }
+    }
+}
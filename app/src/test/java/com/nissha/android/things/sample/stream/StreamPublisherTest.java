@@ -0,0 +1,230 @@
+package com.nissha.android.things.sample.stream;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for {@link StreamPublisher} signalling and the release of pooled elements.
+ */
+
+public class StreamPublisherTest {
+
+    /**
+     * 手動で実行するExecutor.
+     */
+    private static class ManualExecutor implements Executor {
+
+        final ArrayDeque<Runnable> mTasks = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable command) {
+            mTasks.add(command);
+        }
+
+        void runAll() {
+            Runnable task;
+            while ((task = mTasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    // 購読者の例外はExecutorに伝わる
+                }
+            }
+        }
+    }
+
+    private static class Recorder implements ISubscriber<Integer> {
+
+        final List<Integer> mItems = new ArrayList<>();
+
+        ISubscription mSubscription;
+
+        Throwable mError;
+
+        boolean mCompleted;
+
+        int mThrowOn = -1;
+
+        @Override
+        public void onSubscribe(ISubscription subscription) {
+            mSubscription = subscription;
+        }
+
+        @Override
+        public void onNext(Integer item) {
+            if (item == mThrowOn) {
+                throw new IllegalStateException("subscriber failure");
+            }
+            mItems.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            mError = throwable;
+        }
+
+        @Override
+        public void onComplete() {
+            mCompleted = true;
+        }
+    }
+
+    @Test
+    public void invalidRequestIsSignalledOnExecutor() {
+        StreamPublisher<Integer> publisher = new StreamPublisher<>();
+        ManualExecutor executor = new ManualExecutor();
+        Recorder recorder = new Recorder();
+        publisher.subscribe(recorder, StreamPublisher.MODE_BUFFER, 8, executor);
+
+        recorder.mSubscription.request(0);
+        assertNull(recorder.mError);
+        assertEquals(0, publisher.getSubscriberCount());
+
+        executor.runAll();
+        assertTrue(recorder.mError instanceof IllegalArgumentException);
+        assertFalse(recorder.mCompleted);
+    }
+
+    @Test
+    public void deliveryContinuesAfterSubscriberThrows() {
+        StreamPublisher<Integer> publisher = new StreamPublisher<>();
+        ManualExecutor executor = new ManualExecutor();
+        Recorder recorder = new Recorder();
+        recorder.mThrowOn = 1;
+        publisher.subscribe(recorder, StreamPublisher.MODE_BUFFER, 8, executor);
+        recorder.mSubscription.request(Long.MAX_VALUE);
+
+        publisher.publish(1);
+        executor.runAll();
+        publisher.publish(2);
+        publisher.publish(3);
+        executor.runAll();
+
+        assertEquals(2, recorder.mItems.size());
+        assertEquals(2, (int) recorder.mItems.get(0));
+        assertEquals(3, (int) recorder.mItems.get(1));
+    }
+
+    @Test
+    public void subscribeAfterCompleteIsCompleted() {
+        StreamPublisher<Integer> publisher = new StreamPublisher<>();
+        ManualExecutor executor = new ManualExecutor();
+        publisher.complete();
+
+        Recorder recorder = new Recorder();
+        publisher.subscribe(recorder, StreamPublisher.MODE_LATEST, 0, executor);
+        executor.runAll();
+
+        assertTrue(recorder.mCompleted);
+        assertEquals(0, publisher.getSubscriberCount());
+        if (recorder.mError != null) {
+            fail(recorder.mError.toString());
+        }
+    }
+
+    /**
+     * 受け取ったサンプルを記録して手放す購読者.
+     */
+    private static class SampleRecorder implements ISubscriber<SensorSample> {
+
+        final List<Long> mTimes = new ArrayList<>();
+
+        ISubscription mSubscription;
+
+        @Override
+        public void onSubscribe(ISubscription subscription) {
+            mSubscription = subscription;
+        }
+
+        @Override
+        public void onNext(SensorSample item) {
+            mTimes.add(item.mTime);
+            item.release();
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+        }
+
+        @Override
+        public void onComplete() {
+        }
+    }
+
+    @Test
+    public void overwrittenSamplesAreReleased() {
+        StreamPublisher<SensorSample> publisher = new StreamPublisher<>();
+        ManualExecutor executor = new ManualExecutor();
+        SampleRecorder latest = new SampleRecorder();
+        SampleRecorder buffer = new SampleRecorder();
+        publisher.subscribe(latest, StreamPublisher.MODE_LATEST, 0, executor);
+        publisher.subscribe(buffer, StreamPublisher.MODE_BUFFER, 8, executor);
+        latest.mSubscription.request(Long.MAX_VALUE);
+        buffer.mSubscription.request(Long.MAX_VALUE);
+
+        SensorSample first = SensorSample.obtain(1, 0, 0, 0);
+        publisher.publish(first);
+        first.release();
+        SensorSample second = SensorSample.obtain(2, 0, 0, 0);
+        publisher.publish(second);
+        second.release();
+        executor.runAll();
+
+        // 最新のみの購読者には2件目だけ届き, 上書きされた1件目も含めて全ての参照が手放されている
+        assertEquals(1, latest.mTimes.size());
+        assertEquals(2L, (long) latest.mTimes.get(0));
+        assertEquals(2, buffer.mTimes.size());
+        assertReleased(first);
+        assertReleased(second);
+    }
+
+    @Test
+    public void pendingSamplesAreReleasedOnCancel() {
+        StreamPublisher<SensorSample> publisher = new StreamPublisher<>();
+        ManualExecutor executor = new ManualExecutor();
+        SampleRecorder recorder = new SampleRecorder();
+        publisher.subscribe(recorder, StreamPublisher.MODE_BUFFER, 8, executor);
+
+        // 要求前に配信された要素は届かないまま取り消される
+        SensorSample sample = SensorSample.obtain(1, 0, 0, 0);
+        publisher.publish(sample);
+        sample.release();
+        recorder.mSubscription.cancel();
+        executor.runAll();
+
+        assertEquals(0, recorder.mTimes.size());
+        assertReleased(sample);
+    }
+
+    @Test
+    public void releasedSampleIsReused() {
+        SensorSample sample = SensorSample.obtain(1, 2, 3, 4);
+        sample.release();
+
+        SensorSample reused = SensorSample.obtain(5, 6, 7, 8);
+        assertSame(sample, reused);
+        assertEquals(5L, reused.mTime);
+        assertEquals(8, reused.mRSSI);
+        reused.release();
+    }
+
+    private static void assertReleased(SensorSample sample) {
+        try {
+            sample.release();
+            fail("sample is still referenced.");
+        } catch (IllegalStateException e) {
+            // プールに戻っている
+        }
+    }
+}
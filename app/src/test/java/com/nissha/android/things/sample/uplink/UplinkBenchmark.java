@@ -0,0 +1,83 @@
+package com.nissha.android.things.sample.uplink;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Uplink throughput measurement against {@link UplinkTestSink}.
+ * <p>
+ * 合成データを {@link UplinkPipeline} に流し, 受信側に全件届くまでの
+ * 件数/秒と, エンコード・圧縮のCPU時間あたりの件数(件/CPU秒)を計測する.
+ * CPU時間あたりの件数は消費電力の目安として使う.
+ */
+
+public class UplinkBenchmark {
+
+    private static final String TAG = UplinkBenchmark.class.getSimpleName();
+
+    /**
+     * 合成データのセンサー数.
+     */
+    private static final int SENSOR_NUM = 200;
+
+    private static final long TIMEOUT_MS = 60 * 1000;
+
+    private UplinkBenchmark() {
+    }
+
+    /**
+     * 計測する.
+     *
+     * @param spoolDir  スプールに使う空のディレクトリ.
+     * @param samples   件数.
+     * @param batchSize 1バッチの件数.
+     * @return 計測結果.
+     * @throws IOException          テスト用受信側の起動失敗.
+     * @throws InterruptedException 中断.
+     */
+    public static String run(File spoolDir, int samples, int batchSize) throws IOException, InterruptedException {
+        UplinkTestSink sink = new UplinkTestSink();
+        UplinkPipeline pipeline = new UplinkPipeline(new UplinkSpool(spoolDir, Long.MAX_VALUE),
+                new TcpUplinkTransport(sink.getHost(), sink.getPort()), batchSize, 100);
+        pipeline.start();
+
+        long start = System.nanoTime();
+        long time = System.currentTimeMillis();
+        int offered = 0;
+        while (offered < samples) {
+            int senderId = 0x04000000 + (offered % SENSOR_NUM);
+            int payload = ((offered & 0xFF) << 24) | (45 << 16) | (125 << 8) | 0x08;
+            if (pipeline.offer(time + offered, senderId, payload, -60 - (offered % 30))) {
+                offered++;
+            } else {
+                // 送信が追いつくまで待つ
+                Thread.sleep(1);
+            }
+        }
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while ((sink.getReceivedSamples() < samples) && (System.currentTimeMillis() < deadline)) {
+            Thread.sleep(5);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        pipeline.stop();
+        sink.close();
+
+        double seconds = elapsed / 1e9;
+        double cpuSeconds = pipeline.getEncodeCpuNanos() / 1e9;
+        double rawBytes = (double) pipeline.getEncodedSamples() * 17;
+        String result = String.format(Locale.US,
+                "samples=%d received=%d batches=%d elapsed=%.3fs throughput=%.0f/s "
+                        + "encode=%.0f/cpu-s bytes=%d ratio=%.2f rejected=%d",
+                samples, sink.getReceivedSamples(), sink.getReceivedBatches(), seconds, samples / seconds,
+                (cpuSeconds > 0) ? (pipeline.getEncodedSamples() / cpuSeconds) : 0,
+                pipeline.getSentBytes(), (rawBytes > 0) ? (pipeline.getEncodedBytes() / rawBytes) : 0,
+                pipeline.getRejectedSamples());
+        Log.i(TAG, result);
+        return result;
+    }
+}
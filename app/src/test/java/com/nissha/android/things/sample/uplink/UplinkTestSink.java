@@ -0,0 +1,137 @@
+package com.nissha.android.things.sample.uplink;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local stand-in collector for {@link TcpUplinkTransport}.
+ * <p>
+ * ループバックで待ち受け, 受信したバッチをデコードして件数を数え, ACKを返す.
+ * {@link #setLinkUp(boolean)} でリンク断を模擬できる.
+ */
+
+public class UplinkTestSink {
+
+    private final ServerSocket mServerSocket;
+
+    private final AtomicLong mReceivedSamples = new AtomicLong();
+
+    private final AtomicLong mReceivedBatches = new AtomicLong();
+
+    private volatile boolean mLinkUp = true;
+
+    private volatile Socket mClient;
+
+    /**
+     * コンストラクタ. 空きポートで待ち受けを開始する.
+     *
+     * @throws IOException 待ち受け失敗.
+     */
+    public UplinkTestSink() throws IOException {
+        mServerSocket = new ServerSocket();
+        mServerSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!mServerSocket.isClosed()) {
+                    try {
+                        Socket socket = mServerSocket.accept();
+                        if (!mLinkUp) {
+                            socket.close();
+                            continue;
+                        }
+                        mClient = socket;
+                        serve(socket);
+                    } catch (IOException e) {
+                        // 切断されたら次の接続を待つ
+                    }
+                }
+            }
+        }, UplinkTestSink.class.getSimpleName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void serve(Socket socket) throws IOException {
+        try {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            byte[] buf = new byte[0];
+            while (mLinkUp) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    return;
+                }
+                if (buf.length < length) {
+                    buf = new byte[length];
+                }
+                in.readFully(buf, 0, length);
+
+                int count = UplinkBatchCodec.decode(buf, length, new UplinkBatchCodec.ISampleListener() {
+                    @Override
+                    public void onSample(long time, int senderId, int payload, int rssi) {
+                    }
+                });
+                mReceivedSamples.addAndGet(count);
+                mReceivedBatches.incrementAndGet();
+
+                out.write(TcpUplinkTransport.ACK);
+                out.flush();
+            }
+        } finally {
+            socket.close();
+        }
+    }
+
+    public String getHost() {
+        return mServerSocket.getInetAddress().getHostAddress();
+    }
+
+    public int getPort() {
+        return mServerSocket.getLocalPort();
+    }
+
+    /**
+     * リンク状態を切り替える. falseにすると接続中のクライアントも切断する.
+     *
+     * @param linkUp true : 接続可能.
+     */
+    public void setLinkUp(boolean linkUp) {
+        mLinkUp = linkUp;
+        Socket client = mClient;
+        if (!linkUp && (client != null)) {
+            try {
+                client.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public long getReceivedSamples() {
+        return mReceivedSamples.get();
+    }
+
+    public long getReceivedBatches() {
+        return mReceivedBatches.get();
+    }
+
+    public void close() {
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        setLinkUp(false);
+    }
+}
@@ -0,0 +1,124 @@
+package com.nissha.android.things.sample.usb;
+
+import com.nissha.android.things.sample.enocean.CommonCommand;
+import com.nissha.android.things.sample.enocean.ESP3;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link ESP3CommandChannel} response matching against {@link SimulatedTCM}.
+ */
+
+public class ESP3CommandChannelTest {
+
+    /**
+     * SimulatedTCM が RET_NOT_SUPPORTED を返すコマンドコード.
+     */
+    private static final int UNSUPPORTED_COMMAND = 0x7F;
+
+    private SimulatedTCM mTCM;
+
+    private ESP3CommandChannel mChannel;
+
+    private Thread mPump;
+
+    private volatile boolean mPumping;
+
+    private static class Result implements ESP3CommandChannel.ICommandListener {
+
+        final CountDownLatch mDone = new CountDownLatch(1);
+
+        volatile byte[] mResponse;
+
+        volatile int mFailure;
+
+        @Override
+        public void onResponse(ESP3CommandChannel.Command command, byte[] response, byte[] optional) {
+            mResponse = response;
+            mDone.countDown();
+        }
+
+        @Override
+        public void onFailure(ESP3CommandChannel.Command command, int reason) {
+            mFailure = reason;
+            mDone.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue(mDone.await(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mTCM = new SimulatedTCM();
+        mChannel = new ESP3CommandChannel(mTCM, 4, 16, 5000);
+        final ESP3Framer framer = new ESP3Framer(new ESP3Framer.IFrameListener() {
+            @Override
+            public void onFrame(byte[] packet) {
+                if (ESP3.getPacketType(packet) == ESP3.PACKET_TYPE_RESPONSE) {
+                    mChannel.onResponse(packet);
+                }
+            }
+        });
+        mPumping = true;
+        mPump = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] buf = new byte[256];
+                while (mPumping) {
+                    int size = mTCM.read(buf, buf.length);
+                    if (size > 0) {
+                        framer.feed(buf, size);
+                    } else {
+                        try {
+                            Thread.sleep(1);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            }
+        });
+        mPump.start();
+        mChannel.start();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        mChannel.stop();
+        mPumping = false;
+        mPump.join();
+    }
+
+    @Test
+    public void errorResponseCompletesOldestCommand() throws InterruptedException {
+        Result unsupported = new Result();
+        Result idBase = new Result();
+        assertNotNull(mChannel.sendCommonCommand(new byte[]{(byte) UNSUPPORTED_COMMAND},
+                CommonCommand.VERSION_RESPONSE_LEN, unsupported));
+        assertNotNull(mChannel.sendCommonCommand(CommonCommand.readIdBase(),
+                CommonCommand.IDBASE_RESPONSE_LEN, idBase));
+
+        unsupported.await();
+        idBase.await();
+
+        // 1byteのエラー応答は長さが合わなくても最初のコマンドの応答になる
+        assertNotNull(unsupported.mResponse);
+        assertEquals(1, unsupported.mResponse.length);
+        assertEquals(ESP3.RET_NOT_SUPPORTED, unsupported.mResponse[0]);
+        assertNotNull(idBase.mResponse);
+        assertEquals(CommonCommand.IDBASE_RESPONSE_LEN, idBase.mResponse.length);
+        assertEquals(0, mChannel.getStrayResponses());
+        assertEquals(0, mChannel.getTimeouts());
+    }
+}
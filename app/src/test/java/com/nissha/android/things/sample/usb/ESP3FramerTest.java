@@ -0,0 +1,112 @@
+package com.nissha.android.things.sample.usb;
+
+import com.nissha.android.things.sample.enocean.ESP3;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Unit tests for {@link ESP3Framer}.
+ */
+
+public class ESP3FramerTest {
+
+    private final List<byte[]> mFrames = new ArrayList<>();
+
+    private final ESP3Framer mFramer = new ESP3Framer(new ESP3Framer.IFrameListener() {
+        @Override
+        public void onFrame(byte[] packet) {
+            mFrames.add(packet);
+        }
+    });
+
+    @Test
+    public void splitsFramesInOneRead() {
+        byte[] first = buildFrame(0x01020304, 10);
+        byte[] second = buildFrame(0x05060708, 20);
+        byte[] stream = concat(first, second);
+
+        mFramer.feed(stream, stream.length);
+
+        assertEquals(2, mFrames.size());
+        assertArrayEquals(first, mFrames.get(0));
+        assertArrayEquals(second, mFrames.get(1));
+        assertEquals(0, mFramer.getCarriedFrameCount());
+    }
+
+    @Test
+    public void joinsFramesSplitAcrossReads() {
+        byte[] first = buildFrame(0x01020304, 10);
+        byte[] second = buildFrame(0x05060708, 20);
+        byte[] stream = concat(first, second);
+
+        // 1byteずつ渡してもヘッダー・データの境界をまたいで揃える
+        for (int index = 0; index < stream.length; index++) {
+            mFramer.feed(stream, index, 1);
+        }
+
+        assertEquals(2, mFrames.size());
+        assertArrayEquals(first, mFrames.get(0));
+        assertArrayEquals(second, mFrames.get(1));
+        assertEquals(2, mFramer.getCarriedFrameCount());
+    }
+
+    @Test
+    public void resyncsAfterJunkAndFalseSyncByte() {
+        byte[] frame = buildFrame(0x01020304, 10);
+        // 0x55 を含むがヘッダーのCRC8が一致しないゴミ
+        byte[] junk = {0x00, 0x55, 0x00, 0x0A, 0x07, 0x0A, 0x00, 0x55, 0x12};
+        byte[] stream = concat(junk, frame);
+
+        mFramer.feed(stream, stream.length);
+
+        assertEquals(1, mFrames.size());
+        assertArrayEquals(frame, mFrames.get(0));
+    }
+
+    @Test
+    public void resyncsWhenJunkIsCarried() {
+        byte[] frame = buildFrame(0x01020304, 10);
+        byte[] junk = {0x55, 0x00, 0x0A};
+        byte[] stream = concat(junk, frame);
+
+        // 誤検出したSync Byteが作業領域に残った状態から探し直す
+        mFramer.feed(stream, 0, 3);
+        mFramer.feed(stream, 3, stream.length - 3);
+
+        assertEquals(1, mFrames.size());
+        assertArrayEquals(frame, mFrames.get(0));
+    }
+
+    @Test
+    public void resetDropsPartialFrame() {
+        byte[] first = buildFrame(0x01020304, 10);
+        byte[] second = buildFrame(0x05060708, 20);
+
+        mFramer.feed(first, 0, first.length - 2);
+        mFramer.reset();
+        mFramer.feed(second, second.length);
+
+        assertEquals(1, mFrames.size());
+        assertArrayEquals(second, mFrames.get(0));
+    }
+
+    private static byte[] buildFrame(int senderId, int value) {
+        byte[] payload = {(byte) value, 0x20, 0x30, 0x08};
+        return ESP3.buildERP2Frame(0x02, senderId, payload, 60);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            output.write(part, 0, part.length);
+        }
+        return output.toByteArray();
+    }
+}
@@ -0,0 +1,195 @@
+package com.nissha.android.things.sample.usb;
+
+import android.util.Log;
+
+import com.nissha.android.things.sample.decode.TelegramGenerator;
+import com.nissha.android.things.sample.enocean.EnOceanMessage;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Compares bytes copied per frame between the previous read loop and {@link ESP3Framer}.
+ * <p>
+ * 同じバイト列を同じ読み込み単位で, 従来の処理(読み込みバッファの0埋め・受信バッファへの追加・
+ * パケット切り出し後の前詰め)と現在の処理(バッファ内のパケットはその位置を通知し, 受け渡す分だけコピー)
+ * に与え, 1フレームあたりのコピー量と処理時間を比較する. 切り出したフレームが一致することも確認する.
+ */
+
+public class FramerBenchmark {
+
+    private static final String TAG = FramerBenchmark.class.getSimpleName();
+
+    /**
+     * 従来の読み込みバッファ・受信バッファの大きさ.
+     */
+    private static final int LEGACY_READ_BUFFER = 4096 * 2;
+
+    private static final int LEGACY_RECEIVE_BUFFER = 4096 * 10;
+
+    private FramerBenchmark() {
+    }
+
+    /**
+     * 計測結果.
+     */
+    public static class Result {
+
+        public long mFrames;
+
+        public int mReadSize;
+
+        public double mLegacyCopiedBytes;
+
+        public double mLegacyNanos;
+
+        public double mSliceCopiedBytes;
+
+        public double mSliceNanos;
+
+        /**
+         * 読み込みをまたいだフレームの割合.
+         */
+        public double mCarriedRatio;
+
+        /**
+         * 切り出し結果が一致しなかったフレーム数.
+         */
+        public long mMismatches;
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d frames, read %d : legacy %.0fB %.0fns, slice %.0fB %.0fns per frame, carried %.1f%%, %d mismatches",
+                    mFrames, mReadSize, mLegacyCopiedBytes, mLegacyNanos, mSliceCopiedBytes, mSliceNanos,
+                    mCarriedRatio * 100, mMismatches);
+        }
+    }
+
+    /**
+     * 計測する.
+     *
+     * @param frames   フレーム数.
+     * @param readSize 1回の読み込みの最大長(実際の長さは1からこの値までの乱数).
+     * @param rounds   計測回数(最初の1回はウォームアップとして除く).
+     * @return 計測結果.
+     */
+    public static Result run(int frames, int readSize, int rounds) {
+        TelegramGenerator generator = new TelegramGenerator(64, 1);
+        byte[][] packets = generator.next(frames);
+        int total = 0;
+        for (byte[] packet : packets) {
+            total += packet.length;
+        }
+        byte[] stream = new byte[total];
+        int pos = 0;
+        for (byte[] packet : packets) {
+            System.arraycopy(packet, 0, stream, pos, packet.length);
+            pos += packet.length;
+        }
+        Random random = new Random(1);
+        int[] reads = new int[total];
+        int readCount = 0;
+        for (pos = 0; pos < total; readCount++) {
+            reads[readCount] = Math.min(1 + random.nextInt(readSize), total - pos);
+            pos += reads[readCount];
+        }
+
+        Result result = new Result();
+        result.mFrames = frames;
+        result.mReadSize = readSize;
+        long legacyNanos = 0;
+        long sliceNanos = 0;
+        long[] legacyChecksum = new long[2];
+        long[] sliceChecksum = new long[2];
+        ESP3Framer framer = null;
+        for (int round = 0; round <= rounds; round++) {
+            legacyChecksum[0] = 0;
+            legacyChecksum[1] = 0;
+            long start = System.nanoTime();
+            runLegacy(stream, reads, readCount, legacyChecksum);
+            long legacyElapsed = System.nanoTime() - start;
+
+            sliceChecksum[0] = 0;
+            sliceChecksum[1] = 0;
+            start = System.nanoTime();
+            framer = runSlice(stream, reads, readCount, sliceChecksum);
+            long sliceElapsed = System.nanoTime() - start;
+
+            if (round > 0) {
+                legacyNanos += legacyElapsed;
+                sliceNanos += sliceElapsed;
+            }
+        }
+
+        // コピー量は最後の1回分(各回同じ)
+        result.mLegacyCopiedBytes = legacyChecksum[1] / (double) frames;
+        result.mSliceCopiedBytes = (framer.getCopiedBytes() + total) / (double) frames;
+        result.mCarriedRatio = framer.getCarriedFrameCount() / (double) frames;
+        int measured = Math.max(rounds, 1);
+        result.mLegacyNanos = legacyNanos / (double) measured / frames;
+        result.mSliceNanos = sliceNanos / (double) measured / frames;
+        result.mMismatches = Math.abs(frames - framer.getFrameCount())
+                + ((legacyChecksum[0] == sliceChecksum[0]) ? 0 : 1);
+        Log.i(TAG, result.toString());
+        return result;
+    }
+
+    /**
+     * 現在の処理. 受け渡し用のコピー(フレーム長分)はコピー量に含める.
+     */
+    private static ESP3Framer runSlice(byte[] stream, int[] reads, int readCount, final long[] checksum) {
+        ESP3Framer framer = new ESP3Framer(new ESP3Framer.ISliceListener() {
+            @Override
+            public void onFrame(byte[] data, int offset, int length) {
+                byte[] packet = new byte[length];
+                System.arraycopy(data, offset, packet, 0, length);
+                checksum[0] = (checksum[0] * 31) + Arrays.hashCode(packet);
+            }
+        });
+        byte[] buf = new byte[LEGACY_READ_BUFFER];
+        int pos = 0;
+        for (int index = 0; index < readCount; index++) {
+            // FT_Device.read と同じく読み込みバッファの先頭に読み込む
+            System.arraycopy(stream, pos, buf, 0, reads[index]);
+            pos += reads[index];
+            framer.feed(buf, reads[index]);
+        }
+        return framer;
+    }
+
+    /**
+     * 従来の処理(比較用). checksum[1] にコピーしたバイト数を加算する.
+     */
+    private static void runLegacy(byte[] stream, int[] reads, int readCount, long[] checksum) {
+        byte[] buf = new byte[LEGACY_READ_BUFFER];
+        byte[] received = new byte[LEGACY_RECEIVE_BUFFER];
+        int receivedSize = 0;
+        int pos = 0;
+        for (int index = 0; index < readCount; index++) {
+            int readSize = reads[index];
+            Arrays.fill(buf, (byte) 0x00);
+            System.arraycopy(stream, pos, buf, 0, readSize);
+            pos += readSize;
+            checksum[1] += buf.length + readSize;
+
+            System.arraycopy(buf, 0, received, receivedSize, readSize);
+            receivedSize += readSize;
+            checksum[1] += readSize;
+
+            while (receivedSize >= EnOceanMessage.MIN_DATA_LEN) {
+                int packetSize = EnOceanMessage.getPacketSize(received);
+                if (receivedSize < packetSize) {
+                    break;
+                }
+                byte[] packet = new byte[packetSize];
+                System.arraycopy(received, 0, packet, 0, packetSize);
+                checksum[0] = (checksum[0] * 31) + Arrays.hashCode(packet);
+
+                receivedSize -= packetSize;
+                System.arraycopy(received, packetSize, received, 0, receivedSize);
+                checksum[1] += packetSize + receivedSize;
+            }
+        }
+    }
+}
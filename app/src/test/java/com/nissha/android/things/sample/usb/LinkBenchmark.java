@@ -0,0 +1,131 @@
+package com.nissha.android.things.sample.usb;
+
+import android.util.Log;
+
+import java.util.Locale;
+
+/**
+ * Measures throughput and frame latency per {@link LinkConfig} with {@link SimulatedByteSource}.
+ * <p>
+ * USBManagerと同じ読み込みループ(キューが空なら1ms待つ)で模擬データを読み,
+ * 達成したbyte/秒と, フレームが回線を流れ終わってから切り出されるまでの遅延を計測する.
+ */
+
+public class LinkBenchmark {
+
+    private static final String TAG = LinkBenchmark.class.getSimpleName();
+
+    private LinkBenchmark() {
+    }
+
+    /**
+     * 計測結果.
+     */
+    public static class Result {
+
+        public LinkConfig mConfig;
+
+        public long mBytes;
+
+        public long mFrames;
+
+        public double mBytesPerSecond;
+
+        public double mAverageLatencyMs;
+
+        public double mMaxLatencyMs;
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s : %.0f bytes/s, %d frames, latency avg %.2fms max %.2fms",
+                    mConfig, mBytesPerSecond, mFrames, mAverageLatencyMs, mMaxLatencyMs);
+        }
+    }
+
+    /**
+     * 設定ごとに計測する.
+     *
+     * @param configs         回線設定.
+     * @param framesPerSecond 1秒あたりのテレグラム数.
+     * @param durationMs      1設定あたりの計測時間.
+     * @return 計測結果.
+     */
+    public static Result[] run(LinkConfig[] configs, int framesPerSecond, long durationMs) {
+        Result[] results = new Result[configs.length];
+        for (int index = 0; index < configs.length; index++) {
+            results[index] = run(configs[index], framesPerSecond, durationMs);
+            Log.i(TAG, results[index].toString());
+        }
+        return results;
+    }
+
+    /**
+     * 1つの設定で計測する.
+     *
+     * @param config          回線設定.
+     * @param framesPerSecond 1秒あたりのテレグラム数.
+     * @param durationMs      計測時間.
+     * @return 計測結果.
+     */
+    public static Result run(LinkConfig config, int framesPerSecond, long durationMs) {
+        final SimulatedByteSource source = new SimulatedByteSource(config, framesPerSecond);
+        final Result result = new Result();
+        result.mConfig = config;
+
+        final long[] latencySum = new long[1];
+        final long[] latencyMax = new long[1];
+        ESP3Framer framer = new ESP3Framer(new ESP3Framer.IFrameListener() {
+            @Override
+            public void onFrame(byte[] packet) {
+                long latency = System.nanoTime() - source.getFrameWireTimeNanos(SimulatedByteSource.getFrameIndex(packet));
+                latencySum[0] += latency;
+                latencyMax[0] = Math.max(latencyMax[0], latency);
+                result.mFrames++;
+            }
+        });
+
+        byte[] buf = new byte[config.getTransferSize()];
+        long start = System.nanoTime();
+        long end = start + (durationMs * 1000000L);
+        while (System.nanoTime() < end) {
+            int readSize = source.available();
+            if (readSize == 0) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                continue;
+            }
+            readSize = source.read(buf, Math.min(readSize, buf.length));
+            result.mBytes += readSize;
+            framer.feed(buf, readSize);
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        result.mBytesPerSecond = result.mBytes / seconds;
+        if (result.mFrames > 0) {
+            result.mAverageLatencyMs = (latencySum[0] / (double) result.mFrames) / 1e6;
+            result.mMaxLatencyMs = latencyMax[0] / 1e6;
+        }
+        return result;
+    }
+
+    /**
+     * 代表的な設定の組み合わせ(ボーレート × レイテンシタイマー).
+     *
+     * @return 回線設定.
+     */
+    public static LinkConfig[] defaultConfigs() {
+        int[] baudRates = {57600, 115200, 230400, 460800};
+        int[] latencyTimers = {16, 4, 1};
+        LinkConfig[] configs = new LinkConfig[baudRates.length * latencyTimers.length];
+        int index = 0;
+        for (int baudRate : baudRates) {
+            for (int latencyTimer : latencyTimers) {
+                configs[index++] = new LinkConfig().setBaudRate(baudRate).setLatencyTimer(latencyTimer);
+            }
+        }
+        return configs;
+    }
+}
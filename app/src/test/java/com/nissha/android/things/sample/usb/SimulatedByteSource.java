@@ -0,0 +1,209 @@
+package com.nissha.android.things.sample.usb;
+
+import com.nissha.android.things.sample.enocean.ESP3;
+
+/**
+ * Simulated TCM byte source.
+ * <p>
+ * A5-09-04 の ERP2 テレグラムを一定間隔で生成し, シリアル回線とFTDIの挙動を模擬して返す.
+ * <ul>
+ * <li>1byte の転送時間は 10bit / ボーレート</li>
+ * <li>FTDIは {@value #USB_PACKET_PAYLOAD} byte 溜まるか, レイテンシタイマーが満了するとホストに送る</li>
+ * </ul>
+ * ペイロードにはフレーム番号を入れるため, {@link #getFrameIndex(byte[])} と
+ * {@link #getFrameWireTimeNanos(long)} でフレームの遅延を計測できる.
+ * {@link #freeze(int)} で, 指定回数リセットするまで送信しない状態(ドングルが固まった状態)を模擬できる.
+ */
+
+public class SimulatedByteSource implements IByteSource, IResettableSource {
+
+    /**
+     * FTDIの1パケットあたりのデータ長(64byte - ステータス2byte).
+     */
+    public static final int USB_PACKET_PAYLOAD = 62;
+
+    /**
+     * 模擬するセンダーID(EEP.getEEPでA5-09-04として認識される).
+     */
+    public static final int SENDER_ID = 0x040189B8;
+
+    /**
+     * ESP3フレーム中のペイロード位置.
+     */
+    private static final int PAYLOAD_OFFSET = ESP3.HEADER_LEN + 1 + 4;
+
+    private final LinkConfig mConfig;
+
+    private final long mStartNanos;
+
+    /**
+     * 1byteの転送時間.
+     */
+    private final double mByteNanos;
+
+    /**
+     * フレームの送信周期(回線が飽和する場合はフレームの転送時間).
+     */
+    private final double mFramePeriodNanos;
+
+    private final int mFrameLength;
+
+    private final byte[] mPayload = new byte[4];
+
+    private byte[] mFrame;
+
+    private long mFrameIndex = -1;
+
+    /**
+     * 読み込み済みのバイト数.
+     */
+    private long mReadBytes;
+
+    private volatile boolean mFrozen;
+
+    /**
+     * 停止が解除されるまでのリセット回数(0の場合はリセットで解除しない).
+     */
+    private int mResetsToRecover;
+
+    private long mResetCount;
+
+    /**
+     * コンストラクタ.
+     *
+     * @param config          模擬する回線設定.
+     * @param framesPerSecond 1秒あたりのテレグラム数.
+     */
+    public SimulatedByteSource(LinkConfig config, int framesPerSecond) {
+        mConfig = config;
+        mByteNanos = 10 * 1e9 / config.getBaudRate();
+        mFrameLength = buildFrame(0).length;
+        mFramePeriodNanos = Math.max(1e9 / framesPerSecond, mFrameLength * mByteNanos);
+        mStartNanos = System.nanoTime();
+    }
+
+    /**
+     * 送信を止める(ドングルが固まった状態を模擬する).
+     *
+     * @param frozen true : 停止.
+     */
+    public synchronized void setFrozen(boolean frozen) {
+        mFrozen = frozen;
+        mResetsToRecover = 0;
+    }
+
+    /**
+     * 送信を止める. 指定回数リセットすると再開する.
+     *
+     * @param resetsToRecover 再開までのリセット回数.
+     */
+    public synchronized void freeze(int resetsToRecover) {
+        mFrozen = true;
+        mResetsToRecover = resetsToRecover;
+    }
+
+    /**
+     * 受信済みのデータを破棄する(停止中に送られた分も破棄される).
+     *
+     * @return 常にtrue.
+     */
+    @Override
+    public synchronized boolean reset() {
+        mResetCount++;
+        if (mFrozen && (mResetsToRecover > 0) && (--mResetsToRecover == 0)) {
+            mFrozen = false;
+        }
+        mReadBytes = Math.max(mReadBytes, getReleasedBytes(System.nanoTime() - mStartNanos));
+        return true;
+    }
+
+    public synchronized long getResetCount() {
+        return mResetCount;
+    }
+
+    @Override
+    public synchronized int available() {
+        if (mFrozen) {
+            return 0;
+        }
+        return (int) Math.min(Integer.MAX_VALUE, getReleasedBytes(System.nanoTime() - mStartNanos) - mReadBytes);
+    }
+
+    @Override
+    public synchronized int read(byte[] buf, int length) {
+        int count = Math.min(length, available());
+        for (int index = 0; index < count; index++) {
+            long frameIndex = mReadBytes / mFrameLength;
+            if (frameIndex != mFrameIndex) {
+                mFrame = buildFrame(frameIndex);
+                mFrameIndex = frameIndex;
+            }
+            buf[index] = mFrame[(int) (mReadBytes % mFrameLength)];
+            mReadBytes++;
+        }
+        return count;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * フレームの最終byteが回線上を流れ終わった時刻.
+     *
+     * @param frameIndex フレーム番号.
+     * @return 時刻(System.nanoTime()基準).
+     */
+    public long getFrameWireTimeNanos(long frameIndex) {
+        return mStartNanos + (long) ((frameIndex * mFramePeriodNanos) + (mFrameLength * mByteNanos));
+    }
+
+    /**
+     * 受信したフレームからフレーム番号を取得する.
+     *
+     * @param frame フレーム.
+     * @return フレーム番号.
+     */
+    public static long getFrameIndex(byte[] frame) {
+        int index = 0;
+        for (int pos = PAYLOAD_OFFSET; pos < (PAYLOAD_OFFSET + 4); pos++) {
+            index = (index << 8) | (frame[pos] & 0xFF);
+        }
+        return index & 0xFFFFFFFFL;
+    }
+
+    /**
+     * 経過時間までにホストに送られたバイト数.
+     */
+    private long getReleasedBytes(long elapsedNanos) {
+        long onWire = getWireBytes(elapsedNanos);
+
+        // 満杯になったUSBパケット
+        long fullPackets = (onWire / USB_PACKET_PAYLOAD) * USB_PACKET_PAYLOAD;
+
+        // レイテンシタイマーの満了で送られた分
+        long latencyNanos = mConfig.getLatencyTimer() * 1000000L;
+        long flushed = getWireBytes((elapsedNanos / latencyNanos) * latencyNanos);
+
+        return Math.max(fullPackets, flushed);
+    }
+
+    /**
+     * 経過時間までに回線上を流れたバイト数.
+     */
+    private long getWireBytes(long elapsedNanos) {
+        long frames = (long) (elapsedNanos / mFramePeriodNanos);
+        double inFrame = elapsedNanos - (frames * mFramePeriodNanos);
+        long bytes = Math.min(mFrameLength, (long) (inFrame / mByteNanos));
+        return (frames * mFrameLength) + bytes;
+    }
+
+    private byte[] buildFrame(long frameIndex) {
+        mPayload[0] = (byte) (frameIndex >>> 24);
+        mPayload[1] = (byte) (frameIndex >>> 16);
+        mPayload[2] = (byte) (frameIndex >>> 8);
+        mPayload[3] = (byte) frameIndex;
+        // 4BS
+        return ESP3.buildERP2Frame(0x02, SENDER_ID, mPayload, 60);
+    }
+}
@@ -0,0 +1,197 @@
+package com.nissha.android.things.sample.usb;
+
+import com.nissha.android.things.sample.enocean.CommonCommand;
+import com.nissha.android.things.sample.enocean.ESP3;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Simulated TCM that answers ESP3 commands written to it.
+ * <p>
+ * 書き込まれたフレームを受け取った順に処理し, 一定の遅延後に RESPONSE を読み込み可能にする.
+ * CO_RD_VERSION・CO_RD_IDBASE・フィルター設定・RADIO_ERP2 の送信に応答し,
+ * それ以外のコマンドには RET_NOT_SUPPORTED を返す.
+ * {@link #setDropEvery(int)} で応答を返さないコマンドを作り, タイムアウトを試験できる.
+ */
+
+public class SimulatedTCM implements IByteSource, IByteSink {
+
+    /**
+     * 模擬するベースID.
+     */
+    public static final int BASE_ID = 0xFF800000;
+
+    private static final byte[] APP_VERSION = {2, 11, 1, 0};
+
+    private static final byte[] API_VERSION = {2, 6, 3, 0};
+
+    private static final int CHIP_ID = 0x0400A1B2;
+
+    private static final String APP_DESCRIPTION = "GATEWAY CTRL";
+
+    private final ESP3Framer mFramer;
+
+    /**
+     * 応答(送信予定時刻順).
+     */
+    private final ArrayDeque<byte[]> mResponses = new ArrayDeque<>();
+
+    private final ArrayDeque<Long> mResponseDue = new ArrayDeque<>();
+
+    /**
+     * 読み込み中の応答.
+     */
+    private byte[] mReading;
+
+    private int mReadPos;
+
+    private long mLastDue;
+
+    private long mResponseDelayNanos = 1000000L;
+
+    private int mDropEvery;
+
+    private long mCommands;
+
+    /**
+     * コンストラクタ.
+     */
+    public SimulatedTCM() {
+        mFramer = new ESP3Framer(new ESP3Framer.IFrameListener() {
+            @Override
+            public void onFrame(byte[] packet) {
+                handle(packet);
+            }
+        });
+    }
+
+    /**
+     * 1コマンドあたりの処理時間を設定する.
+     *
+     * @param delayMs 処理時間.
+     */
+    public synchronized void setResponseDelayMs(long delayMs) {
+        mResponseDelayNanos = delayMs * 1000000L;
+    }
+
+    /**
+     * n個に1個のコマンドに応答しないようにする.
+     *
+     * @param n 間隔(0の場合は全て応答する).
+     */
+    public synchronized void setDropEvery(int n) {
+        mDropEvery = n;
+    }
+
+    @Override
+    public synchronized int write(byte[] buf, int length) {
+        mFramer.feed(buf, length);
+        return length;
+    }
+
+    @Override
+    public synchronized int available() {
+        int available = (mReading == null) ? 0 : (mReading.length - mReadPos);
+        long now = System.nanoTime();
+        Iterator<Long> dues = mResponseDue.iterator();
+        for (byte[] response : mResponses) {
+            if ((now - dues.next()) < 0) {
+                break;
+            }
+            available += response.length;
+        }
+        return available;
+    }
+
+    @Override
+    public synchronized int read(byte[] buf, int length) {
+        long now = System.nanoTime();
+        int count = 0;
+        while (count < length) {
+            if (mReading == null) {
+                Long due = mResponseDue.peek();
+                if ((due == null) || ((now - due) < 0)) {
+                    break;
+                }
+                mResponseDue.poll();
+                mReading = mResponses.poll();
+                mReadPos = 0;
+            }
+            int size = Math.min(length - count, mReading.length - mReadPos);
+            System.arraycopy(mReading, mReadPos, buf, count, size);
+            mReadPos += size;
+            count += size;
+            if (mReadPos == mReading.length) {
+                mReading = null;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private void handle(byte[] frame) {
+        mCommands++;
+        if ((mDropEvery > 0) && ((mCommands % mDropEvery) == 0)) {
+            return;
+        }
+
+        byte[] response;
+        byte[] optional = null;
+        switch (ESP3.getPacketType(frame)) {
+            case ESP3.PACKET_TYPE_COMMON_COMMAND:
+                switch (frame[ESP3.HEADER_LEN] & 0xFF) {
+                    case CommonCommand.CO_RD_VERSION:
+                        response = new byte[CommonCommand.VERSION_RESPONSE_LEN];
+                        System.arraycopy(APP_VERSION, 0, response, 1, 4);
+                        System.arraycopy(API_VERSION, 0, response, 5, 4);
+                        putInt(response, 9, CHIP_ID);
+                        putInt(response, 13, 0x45010000);
+                        byte[] description = APP_DESCRIPTION.getBytes();
+                        System.arraycopy(description, 0, response, 17, description.length);
+                        break;
+                    case CommonCommand.CO_RD_IDBASE:
+                        response = new byte[CommonCommand.IDBASE_RESPONSE_LEN];
+                        putInt(response, 1, BASE_ID);
+                        // 残りの書き換え回数
+                        optional = new byte[]{10};
+                        break;
+                    case CommonCommand.CO_WR_FILTER_ADD:
+                    case CommonCommand.CO_WR_FILTER_DEL_ALL:
+                    case CommonCommand.CO_WR_FILTER_ENABLE:
+                        response = new byte[1];
+                        break;
+                    default:
+                        response = new byte[]{ESP3.RET_NOT_SUPPORTED};
+                        break;
+                }
+                break;
+            case ESP3.PACKET_TYPE_RADIO_ERP2:
+                response = new byte[1];
+                break;
+            default:
+                response = new byte[]{ESP3.RET_NOT_SUPPORTED};
+                break;
+        }
+
+        int optLen = (optional == null) ? 0 : optional.length;
+        byte[] out = new byte[ESP3.getFrameLength(response.length, optLen)];
+        ESP3.encode(ESP3.PACKET_TYPE_RESPONSE, response, response.length, optional, optLen, out, 0);
+
+        // コマンドは1つずつ処理するため, 前の応答の後に処理時間を加える
+        long due = Math.max(mLastDue, System.nanoTime()) + mResponseDelayNanos;
+        mLastDue = due;
+        mResponses.add(out);
+        mResponseDue.add(due);
+    }
+
+    private static void putInt(byte[] out, int offset, int value) {
+        out[offset] = (byte) (value >>> 24);
+        out[offset + 1] = (byte) (value >>> 16);
+        out[offset + 2] = (byte) (value >>> 8);
+        out[offset + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,179 @@
+package com.nissha.android.things.sample.usb;
+
+import com.nissha.android.things.sample.enocean.EnOceanMessage;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link StallWatchdog}.
+ */
+
+public class StallWatchdogTest {
+
+    private static final long MS = 1000000L;
+
+    private static final long SECOND = 1000 * MS;
+
+    /**
+     * 読み込みループの周期(模擬).
+     */
+    private static final long POLL_NANOS = 10 * MS;
+
+    @Test
+    public void sparseTrafficIsNotAStall() {
+        StallWatchdog watchdog = new StallWatchdog();
+        watchdog.start(0);
+
+        // 1台のセンサーが60秒ごとに24byte送る状態を1時間続ける
+        for (long now = POLL_NANOS; now <= 3600 * SECOND; now += POLL_NANOS) {
+            int bytes = (now % (60 * SECOND) == 0) ? 24 : 0;
+            assertFalse(watchdog.update(bytes, now));
+        }
+
+        assertEquals(0, watchdog.getStallCount());
+        assertEquals(0, watchdog.getResetCount());
+        assertTrue(watchdog.getStallThresholdNanos() >= 3 * 60 * SECOND);
+    }
+
+    @Test
+    public void sparseTrafficStallIsDetectedAfterSeveralGaps() {
+        StallWatchdog watchdog = new StallWatchdog();
+        watchdog.start(0);
+        long now = 0;
+        for (int count = 0; count < 10; count++) {
+            now += 60 * SECOND;
+            watchdog.update(24, now);
+        }
+        long lastByte = now;
+
+        long detected = -1;
+        while (detected < 0) {
+            now += POLL_NANOS;
+            if (watchdog.update(0, now)) {
+                detected = now;
+            }
+            assertTrue(now - lastByte < 3600 * SECOND);
+        }
+
+        assertTrue(detected - lastByte >= 3 * 60 * SECOND);
+        assertEquals(1, watchdog.getStallCount());
+    }
+
+    @Test
+    public void steadyTrafficStallIsDetectedQuicklyAndBacksOff() {
+        StallWatchdog watchdog = new StallWatchdog();
+        watchdog.start(0);
+        long now = 0;
+        // 200件/秒相当 : 10ms ごとに2件(34byte)
+        for (int count = 0; count < 1000; count++) {
+            now += POLL_NANOS;
+            assertFalse(watchdog.update(34, now));
+        }
+        long lastByte = now;
+
+        int resets = 0;
+        long firstReset = -1;
+        long end = now + 2 * SECOND;
+        while (now < end) {
+            now += POLL_NANOS;
+            if (watchdog.update(0, now)) {
+                if (firstReset < 0) {
+                    firstReset = now;
+                }
+                resets++;
+            }
+        }
+
+        assertTrue(firstReset - lastByte >= 500 * MS);
+        assertTrue(firstReset - lastByte < 600 * MS);
+        // リセット間隔は 250ms, 500ms, ... と延びる
+        assertEquals(3, resets);
+        assertEquals(1, watchdog.getStallCount());
+        assertTrue(watchdog.isStalled());
+
+        now += POLL_NANOS;
+        assertFalse(watchdog.update(34, now));
+        assertFalse(watchdog.isStalled());
+        assertEquals(now - firstReset, watchdog.getLastRecoverNanos());
+        assertEquals(now - lastByte, watchdog.getLastOutageNanos());
+    }
+
+    @Test
+    public void noStallBeforeWarmup() {
+        StallWatchdog watchdog = new StallWatchdog();
+        watchdog.start(0);
+        watchdog.update(34, POLL_NANOS);
+
+        for (long now = 2 * POLL_NANOS; now < 10 * SECOND; now += POLL_NANOS) {
+            assertFalse(watchdog.update(0, now));
+        }
+        assertEquals(0, watchdog.getStallCount());
+    }
+
+    @Test
+    public void frozenSourceRecoversAfterResets() {
+        SimulatedByteSource source = new SimulatedByteSource(new LinkConfig(), 200);
+        final long[] frames = new long[1];
+        final long[] badFrames = new long[1];
+        ESP3Framer framer = new ESP3Framer(new ESP3Framer.ISliceListener() {
+            @Override
+            public void onFrame(byte[] data, int offset, int length) {
+                frames[0]++;
+                if (data[offset] != EnOceanMessage.SYNC_BYTE) {
+                    badFrames[0]++;
+                }
+            }
+        });
+        StallWatchdog watchdog = new StallWatchdog();
+        byte[] buf = new byte[4096];
+
+        // USBManager の読み込みループと同じ手順で, 停止したドングルをリセットで回復させる
+        long start = System.nanoTime();
+        watchdog.start(start);
+        boolean frozen = false;
+        long framesAtFreeze = 0;
+        while (System.nanoTime() - start < 15 * SECOND) {
+            long now = System.nanoTime();
+            if (!frozen && (now - start >= 4 * SECOND)) {
+                source.freeze(3);
+                frozen = true;
+                framesAtFreeze = frames[0];
+            }
+            int readSize = source.read(buf, Math.min(source.available(), buf.length));
+            if (readSize > 0) {
+                framer.feed(buf, readSize);
+            } else {
+                sleep();
+            }
+            if (watchdog.update(readSize, System.nanoTime())) {
+                source.reset();
+                framer.reset();
+            }
+            if (frozen && !watchdog.isStalled() && (watchdog.getStallCount() > 0)
+                    && (frames[0] > framesAtFreeze + 100)) {
+                break;
+            }
+        }
+
+        assertEquals(1, watchdog.getStallCount());
+        assertEquals(3, watchdog.getResetCount());
+        assertEquals(3, source.getResetCount());
+        assertFalse(watchdog.isStalled());
+        assertTrue(frames[0] > framesAtFreeze + 100);
+        assertEquals(0, badFrames[0]);
+        // 検出(500ms) + リセット間隔(250ms + 500ms)
+        assertTrue(watchdog.getLastOutageNanos() < 2 * SECOND);
+    }
+
+    private static void sleep() {
+        try {
+            Thread.sleep(1);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+}